@@ -0,0 +1,130 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies, in milliseconds, with a bounded relative error.
+ * <p>
+ * Buckets follow the HDR histogram layout: values below {@link #LINEAR_LIMIT} get a bucket each,
+ * larger values are grouped by power of two, each power being split into {@link #SUB_BUCKETS}
+ * linear buckets, so that percentiles are accurate within about 6% over the whole range while
+ * keeping the histogram small and fixed in size. Values larger than {@link #MAX_VALUE} are
+ * recorded as {@link #MAX_VALUE}.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets each power of two is split into
+     */
+    static final int SUB_BUCKETS = 16;
+
+    static final int SUB_BUCKETS_BITS = 4;
+
+    /**
+     * Values below this limit are recorded exactly
+     */
+    static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    /**
+     * Largest recordable value, a bit more than 24 days
+     */
+    static final long MAX_VALUE = Integer.MAX_VALUE;
+
+    static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Returns the bucket index of a value
+     */
+    static int bucket(long value) {
+        if (value < LINEAR_LIMIT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BUCKETS_BITS;
+        // the top bits of the value, between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+        int sub = (int) (value >>> shift);
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the highest value falling in the specified bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return Math.min(MAX_VALUE, ((sub + 1) << shift) - 1);
+    }
+
+    /**
+     * Records a value
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucket(value));
+    }
+
+    /**
+     * Adds the counts of this histogram to the specified array, sized {@link #BUCKETS}
+     */
+    void addTo(long[] target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            target[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * Resets all the counts. Values recorded concurrently might be lost.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the value below which the specified percentage of the recorded values fall, within
+     * the histogram precision.
+     *
+     * @param counts the bucket counts, as filled by {@link #addTo(long[])}
+     * @param percentile a number between 0 and 100
+     */
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+
+    /**
+     * Returns the value at the specified percentile, see {@link #percentile(long[], double)}
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        addTo(snapshot);
+        return percentile(snapshot, percentile);
+    }
+}
@@ -43,6 +43,11 @@ public class Monitor implements ApplicationListener<ApplicationEvent>{
     
     MonitorConfig config;
     MonitorDAO dao;
+    
+    /**
+     * real time aggregated statistics of the completed requests
+     */
+    RequestMetrics metrics = new RequestMetrics();
 
     /**
      * The set of listeners for the monitor
@@ -106,6 +111,7 @@ public class Monitor implements ApplicationListener<ApplicationEvent>{
         for (RequestDataListener listener : listeners) {
             listener.requestCompleted(data);
         }
+        metrics.record(data);
         // have the DAO persist/propagate the change
         dao.save(data);
         REQUEST.remove();
@@ -130,6 +136,10 @@ public class Monitor implements ApplicationListener<ApplicationEvent>{
         return dao;
     }
     
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+    
     public void query(Query q, RequestDataVisitor visitor) {
         dao.getRequests(q, visitor);
     }
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.util.Properties;
 
 import org.geoserver.monitor.hib.HibernateMonitorDAO2;
+import org.geoserver.monitor.hib.WriteBehindQueue;
+import org.geoserver.monitor.hib.WriteBehindQueue.Overflow;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.security.PropertyFileWatcher;
 import org.geotools.factory.Hints;
@@ -31,7 +33,7 @@ public class MonitorConfig implements ApplicationContextAware {
     }
     
     public static enum Sync {
-        SYNC, ASYNC, ASYNC_UPDATE;
+        SYNC, ASYNC, ASYNC_UPDATE, BATCH;
     }
     
     Properties props;
@@ -98,11 +100,33 @@ public class MonitorConfig implements ApplicationContextAware {
         
         HibernateMonitorDAO2 dao = (HibernateMonitorDAO2) context.getBean("hibMonitorDAO");
         dao.setMode(m);
+        if (getSync() == Sync.BATCH) {
+            dao.setWriteBehind(createWriteBehind());
+        }
         dao.setSync(getSync());
         
         return dao;
     }
     
+    /**
+     * Builds the write behind queue used in batch synchronization mode out of the 
+     * <code>batch.*</code> properties
+     */
+    WriteBehindQueue createWriteBehind() {
+        Integer bufferSize = getProperty("batch", "bufferSize", Integer.class);
+        Integer batchSize = getProperty("batch", "size", Integer.class);
+        Long maxDelay = getProperty("batch", "maxDelay", Long.class);
+        String overflow = getProperty("batch", "overflow", String.class);
+        Integer sampleRate = getProperty("batch", "sampleRate", Integer.class);
+        
+        return new WriteBehindQueue(
+            bufferSize != null ? bufferSize : WriteBehindQueue.DEFAULT_BUFFER_SIZE, 
+            batchSize != null ? batchSize : WriteBehindQueue.DEFAULT_BATCH_SIZE, 
+            maxDelay != null ? maxDelay : WriteBehindQueue.DEFAULT_MAX_DELAY, 
+            overflow != null ? Overflow.valueOf(overflow.trim().toUpperCase()) : Overflow.DROP,
+            sampleRate != null ? sampleRate : WriteBehindQueue.DEFAULT_SAMPLE_RATE);
+    }
+    
     /**
      * Allows to retrieve a generic property from the configuration. Extensions and plugins are
      * supposed to use the plugin.property naming convention, passing both a prefix and a name
@@ -29,6 +29,7 @@ import org.geotools.util.logging.Logging;
  * @author Justin Deoliveira, OpenGeo
  *
  * @param <K> The key type.
+ * @deprecated polls the pipelines every 10ms, use {@link SerialTaskExecutor} instead
  */
 public class PipeliningTaskQueue<K> implements Runnable {
 
@@ -0,0 +1,424 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.monitor.RequestData.Status;
+
+/**
+ * Aggregates completed requests in memory, keeping throughput counters and latency histograms
+ * per service, operation, layer and output format over a rolling time window.
+ * <p>
+ * Unlike the {@link MonitorDAO} queries the statistics are computed out of a fixed amount of
+ * memory per series, and recording a request is lock free (a lock is taken only when a time slot
+ * gets recycled), so they can be updated and polled cheaply and frequently, for example by
+ * dashboards. The window is split into time slots, each one holding its own counters, old slots
+ * are recycled as time goes by. Histograms are much larger than counters, so they are kept in a
+ * few coarser slots, about {@link #HISTOGRAM_SLOTS} per window: percentiles are computed over the
+ * histogram slots overlapping the requested window, and might include requests up to one
+ * histogram slot older than the window.
+ * </p>
+ */
+public class RequestMetrics {
+
+    /**
+     * The dimensions requests are aggregated by
+     */
+    public static enum Dimension {
+        /**
+         * All the requests
+         */
+        ALL,
+        /**
+         * The OWS service, e.g. WMS
+         */
+        SERVICE,
+        /**
+         * The OWS service and operation, e.g. WMS.GetMap
+         */
+        OPERATION,
+        /**
+         * The layers, or resources, involved in the request
+         */
+        LAYER,
+        /**
+         * The response mime type
+         */
+        FORMAT;
+    }
+
+    /**
+     * Number of histogram slots the window is split into
+     */
+    static final int HISTOGRAM_SLOTS = 5;
+
+    /**
+     * Duration of a slot, in milliseconds
+     */
+    long slotDuration;
+
+    /**
+     * Number of slots in the window
+     */
+    int slots;
+
+    /**
+     * Number of slots covered by a histogram slot
+     */
+    int histogramSpan;
+
+    /**
+     * Max number of series kept in memory, requests for new series beyond this limit are only
+     * accounted in the {@link Dimension#ALL} one
+     */
+    int maxSeries;
+
+    Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+    AtomicLong overflow = new AtomicLong();
+
+    volatile long lastPurge = System.currentTimeMillis();
+
+    /**
+     * Builds metrics over the last 15 minutes, in slots of 10 seconds and histogram slots of 3
+     * minutes, and up to 200 series
+     */
+    public RequestMetrics() {
+        this(TimeUnit.SECONDS.toMillis(10), 90, 200);
+    }
+
+    /**
+     * Builds a new metrics aggregator
+     *
+     * @param slotDuration the duration of a slot, in milliseconds
+     * @param slots the number of slots in the rolling window
+     * @param maxSeries the max number of series
+     */
+    public RequestMetrics(long slotDuration, int slots, int maxSeries) {
+        if (slotDuration < 1 || slots < 1) {
+            throw new IllegalArgumentException("Slot duration and count must be positive");
+        }
+        this.slotDuration = slotDuration;
+        this.slots = slots;
+        this.histogramSpan = (slots + HISTOGRAM_SLOTS - 1) / HISTOGRAM_SLOTS;
+        this.maxSeries = maxSeries;
+        // built once the slots are known
+        this.NO_SERIES = new Series(Dimension.ALL, "") {
+            @Override
+            void record(long epoch, long time, boolean error, long bytes) {
+            }
+        };
+    }
+
+    /**
+     * Records a completed request
+     */
+    public void record(RequestData data) {
+        record(data, System.currentTimeMillis());
+    }
+
+    void record(RequestData data, long now) {
+        if (now - lastPurge > getWindow()) {
+            lastPurge = now;
+            purge(now);
+        }
+        long epoch = now / slotDuration;
+        long time = data.getTotalTime();
+        boolean error = data.getStatus() == Status.FAILED || data.getError() != null;
+        long bytes = Math.max(0, data.getResponseLength());
+
+        getSeries(Dimension.ALL, "*").record(epoch, time, error, bytes);
+        String service = data.getService();
+        if (service != null) {
+            service = service.toUpperCase();
+            getSeries(Dimension.SERVICE, service).record(epoch, time, error, bytes);
+            if (data.getOperation() != null) {
+                getSeries(Dimension.OPERATION, service + "." + data.getOperation()).record(
+                        epoch, time, error, bytes);
+            }
+        }
+        List<String> resources = data.getResources();
+        if (resources != null) {
+            for (String layer : resources) {
+                if (layer != null) {
+                    getSeries(Dimension.LAYER, layer).record(epoch, time, error, bytes);
+                }
+            }
+        }
+        String format = data.getResponseContentType();
+        if (format != null) {
+            int idx = format.indexOf(';');
+            if (idx > 0) {
+                format = format.substring(0, idx);
+            }
+            getSeries(Dimension.FORMAT, format.trim()).record(epoch, time, error, bytes);
+        }
+    }
+
+    Series getSeries(Dimension dimension, String name) {
+        String key = dimension + ":" + name;
+        Series s = series.get(key);
+        if (s == null) {
+            if (series.size() >= maxSeries && dimension != Dimension.ALL) {
+                overflow.incrementAndGet();
+                return NO_SERIES;
+            }
+            synchronized (series) {
+                s = series.get(key);
+                if (s == null) {
+                    s = new Series(dimension, name);
+                    series.put(key, s);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Returns the statistics over the last <code>window</code> milliseconds for the requested
+     * dimensions, sorted by dimension and decreasing request count. Series without requests in
+     * the window are not returned.
+     *
+     * @param dimensions the dimensions to be returned, or null for all of them
+     * @param window the window, in milliseconds, rounded up to a multiple of the slot duration
+     *        and capped to the whole rolling window
+     */
+    public List<RequestStatistics> getStatistics(Set<Dimension> dimensions, long window) {
+        return getStatistics(dimensions, window, System.currentTimeMillis());
+    }
+
+    List<RequestStatistics> getStatistics(Set<Dimension> dimensions, long window, long now) {
+        if (dimensions == null) {
+            dimensions = EnumSet.allOf(Dimension.class);
+        }
+        int count = (int) Math.min(slots, Math.max(1, (window + slotDuration - 1) / slotDuration));
+        long epoch = now / slotDuration;
+
+        List<RequestStatistics> result = new ArrayList<RequestStatistics>();
+        for (Series s : series.values()) {
+            if (dimensions.contains(s.dimension)) {
+                RequestStatistics stats = s.getStatistics(epoch - count + 1, epoch, count
+                        * slotDuration);
+                if (stats.getCount() > 0) {
+                    result.add(stats);
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<RequestStatistics>() {
+            public int compare(RequestStatistics s1, RequestStatistics s2) {
+                int c = s1.getDimension().compareTo(s2.getDimension());
+                if (c != 0) {
+                    return c;
+                }
+                if (s1.getCount() != s2.getCount()) {
+                    return s1.getCount() > s2.getCount() ? -1 : 1;
+                }
+                return s1.getName().compareTo(s2.getName());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Removes the series that did not get any request in the whole window
+     */
+    public void purge() {
+        purge(System.currentTimeMillis());
+    }
+
+    void purge(long now) {
+        long oldest = now / slotDuration - slots + 1;
+        for (Series s : series.values()) {
+            if (s.lastEpoch < oldest) {
+                series.remove(s.dimension + ":" + s.name);
+            }
+        }
+    }
+
+    /**
+     * Clears all statistics
+     */
+    public void clear() {
+        series.clear();
+    }
+
+    /**
+     * Returns the number of requests that could not be aggregated in their own series because
+     * the max number of series was reached
+     */
+    public long getOverflow() {
+        return overflow.get();
+    }
+
+    /**
+     * Returns the whole rolling window duration, in milliseconds
+     */
+    public long getWindow() {
+        return slots * slotDuration;
+    }
+
+    /**
+     * The counters of a single series, one per slot, and its histograms, one per histogram slot
+     */
+    class Series {
+        Dimension dimension;
+
+        String name;
+
+        Slot[] ring;
+
+        HistogramSlot[] histograms;
+
+        volatile long lastEpoch;
+
+        Series(Dimension dimension, String name) {
+            this.dimension = dimension;
+            this.name = name;
+            this.ring = new Slot[slots];
+            // one more than the window needs, the most recent histogram slot is partially filled
+            this.histograms = new HistogramSlot[(slots + histogramSpan - 1) / histogramSpan + 1];
+        }
+
+        void record(long epoch, long time, boolean error, long bytes) {
+            Slot slot = getSlot(epoch);
+            slot.count.incrementAndGet();
+            slot.totalTime.addAndGet(time);
+            slot.bytes.addAndGet(bytes);
+            if (error) {
+                slot.errors.incrementAndGet();
+            }
+            long max;
+            while (time > (max = slot.maxTime.get()) && !slot.maxTime.compareAndSet(max, time))
+                ;
+            getHistogram(epoch / histogramSpan).record(time);
+            if (epoch > lastEpoch) {
+                lastEpoch = epoch;
+            }
+        }
+
+        Slot getSlot(long epoch) {
+            int idx = (int) (epoch % slots);
+            Slot slot = ring[idx];
+            if (slot == null || slot.epoch != epoch) {
+                // the slot holds old data, or no data at all, recycle it
+                synchronized (this) {
+                    slot = ring[idx];
+                    if (slot == null) {
+                        slot = new Slot();
+                        ring[idx] = slot;
+                    }
+                    if (slot.epoch != epoch) {
+                        slot.reset(epoch);
+                    }
+                }
+            }
+            return slot;
+        }
+
+        LatencyHistogram getHistogram(long epoch) {
+            int idx = (int) (epoch % histograms.length);
+            HistogramSlot slot = histograms[idx];
+            if (slot == null || slot.epoch != epoch) {
+                synchronized (this) {
+                    slot = histograms[idx];
+                    if (slot == null) {
+                        slot = new HistogramSlot();
+                        histograms[idx] = slot;
+                    }
+                    if (slot.epoch != epoch) {
+                        slot.histogram.reset();
+                        slot.epoch = epoch;
+                    }
+                }
+            }
+            return slot.histogram;
+        }
+
+        RequestStatistics getStatistics(long fromEpoch, long toEpoch, long window) {
+            long count = 0, errors = 0, totalTime = 0, bytes = 0, maxTime = 0;
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            for (Slot slot : ring) {
+                if (slot != null && slot.epoch >= fromEpoch && slot.epoch <= toEpoch) {
+                    count += slot.count.get();
+                    errors += slot.errors.get();
+                    totalTime += slot.totalTime.get();
+                    bytes += slot.bytes.get();
+                    maxTime = Math.max(maxTime, slot.maxTime.get());
+                }
+            }
+            for (HistogramSlot slot : histograms) {
+                if (slot != null && slot.epoch >= fromEpoch / histogramSpan
+                        && slot.epoch <= toEpoch / histogramSpan) {
+                    slot.histogram.addTo(counts);
+                }
+            }
+
+            RequestStatistics stats = new RequestStatistics(dimension, name, window);
+            stats.count = count;
+            stats.errors = errors;
+            stats.bytes = bytes;
+            stats.maxTime = maxTime;
+            if (count > 0) {
+                stats.throughput = count * 1000d / window;
+                stats.averageTime = totalTime / (double) count;
+                // the histogram returns the upper bound of the bucket, which can exceed the max
+                stats.p50 = Math.min(maxTime, LatencyHistogram.percentile(counts, 50));
+                stats.p95 = Math.min(maxTime, LatencyHistogram.percentile(counts, 95));
+                stats.p99 = Math.min(maxTime, LatencyHistogram.percentile(counts, 99));
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * A time slot of a series
+     */
+    static class Slot {
+        volatile long epoch = -1;
+
+        AtomicLong count = new AtomicLong();
+
+        AtomicLong errors = new AtomicLong();
+
+        AtomicLong totalTime = new AtomicLong();
+
+        AtomicLong maxTime = new AtomicLong();
+
+        AtomicLong bytes = new AtomicLong();
+
+        void reset(long epoch) {
+            count.set(0);
+            errors.set(0);
+            totalTime.set(0);
+            maxTime.set(0);
+            bytes.set(0);
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * A histogram slot of a series, its epoch is in units of histogram slots
+     */
+    static class HistogramSlot {
+        volatile long epoch = -1;
+
+        LatencyHistogram histogram = new LatencyHistogram();
+    }
+
+    /**
+     * Swallows the requests of series that could not be created
+     */
+    final Series NO_SERIES;
+}
@@ -0,0 +1,132 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.io.Serializable;
+
+import org.geoserver.monitor.RequestMetrics.Dimension;
+
+/**
+ * Aggregated statistics of the requests of a single series over a time window, as computed by
+ * {@link RequestMetrics}. Times are expressed in milliseconds.
+ */
+public class RequestStatistics implements Serializable {
+
+    private static final long serialVersionUID = -6389137212946211463L;
+
+    Dimension dimension;
+
+    String name;
+
+    long window;
+
+    long count;
+
+    long errors;
+
+    long bytes;
+
+    double throughput;
+
+    double averageTime;
+
+    long maxTime;
+
+    long p50;
+
+    long p95;
+
+    long p99;
+
+    public RequestStatistics(Dimension dimension, String name, long window) {
+        this.dimension = dimension;
+        this.name = name;
+        this.window = window;
+    }
+
+    /**
+     * The dimension the requests are aggregated by
+     */
+    public Dimension getDimension() {
+        return dimension;
+    }
+
+    /**
+     * The service, operation, layer or format name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The time window, in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * The number of requests completed in the window
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * The number of failed requests
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * The total number of bytes sent back to the clients
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The number of requests per second
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public double getAverageTime() {
+        return averageTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * The median request time
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * The request time below which 95% of the requests completed
+     */
+    public long getP95() {
+        return p95;
+    }
+
+    /**
+     * The request time below which 99% of the requests completed
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestStatistics(" + dimension + ":" + name + ", count=" + count + ", p50="
+                + p50 + ", p95=" + p95 + ", p99=" + p99 + ")";
+    }
+}
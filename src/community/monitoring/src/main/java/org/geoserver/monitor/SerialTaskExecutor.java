@@ -0,0 +1,208 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Executes tasks asynchronously, making sure tasks with the same key run serially and in
+ * submission order, while tasks with different keys run in parallel.
+ * <p>
+ * Unlike {@link PipeliningTaskQueue} no polling is involved: the first task submitted for a key
+ * schedules the key queue on the thread pool, and each task hands off to the next one when done.
+ * Queues are removed as soon as they are drained, and the number of pending tasks is bounded,
+ * callers block when the limit is reached.
+ *
+ * @param <K> The key type.
+ */
+public class SerialTaskExecutor<K> {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    /**
+     * Number of tasks a queue runs before giving its thread to the other queues
+     */
+    static final int BATCH_SIZE = 16;
+
+    ConcurrentHashMap<K, SerialQueue> queues = new ConcurrentHashMap<K, SerialQueue>();
+
+    ThreadPoolExecutor executor;
+
+    Semaphore pending;
+
+    int maxPending;
+
+    /**
+     * Builds an executor with up to 4 threads and 10000 pending tasks
+     */
+    public SerialTaskExecutor() {
+        this(4, 10000);
+    }
+
+    /**
+     * Builds a new executor
+     *
+     * @param threads the max number of threads running tasks
+     * @param maxPending the max number of tasks waiting to be run
+     */
+    public SerialTaskExecutor(int threads, int maxPending) {
+        this.maxPending = maxPending;
+        pending = new Semaphore(maxPending);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SerialTaskExecutor-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // don't keep threads around when there is nothing to do
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(K key, Runnable task) {
+        execute(key, task, "");
+    }
+
+    public void execute(K key, Runnable task, String desc) {
+        // back pressure, wait for a slot if too many tasks are pending
+        pending.acquireUninterruptibly();
+
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("Queuing task " + desc + " for key " + key);
+        }
+        while (true) {
+            SerialQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key, task);
+                if (queues.putIfAbsent(key, queue) == null) {
+                    schedule(queue);
+                    return;
+                }
+            } else if (queue.offer(task)) {
+                return;
+            }
+            // the queue just got drained and removed, try again
+        }
+    }
+
+    void schedule(SerialQueue queue) {
+        try {
+            executor.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // executor shut down, drop the queue and its tasks
+            queue.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of tasks submitted and not yet completed
+     */
+    public int getPending() {
+        return maxPending - pending.availablePermits();
+    }
+
+    /**
+     * Returns the number of keys with pending tasks
+     */
+    public int getActiveKeys() {
+        return queues.size();
+    }
+
+    /**
+     * Stops accepting new tasks, the pending ones are still executed
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the pending tasks to complete after a {@link #shutdown()}
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * The tasks of a single key. It's scheduled on the thread pool when created, and removes
+     * itself from the map once it has no more tasks to run.
+     */
+    class SerialQueue implements Runnable {
+        K key;
+
+        Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        boolean closed;
+
+        SerialQueue(K key, Runnable first) {
+            this.key = key;
+            tasks.add(first);
+        }
+
+        synchronized boolean offer(Runnable task) {
+            if (closed) {
+                return false;
+            }
+            tasks.add(task);
+            return true;
+        }
+
+        synchronized Runnable next() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                closed = true;
+                queues.remove(key, this);
+            }
+            return task;
+        }
+
+        synchronized void discard() {
+            closed = true;
+            queues.remove(key, this);
+            pending.release(tasks.size());
+            tasks.clear();
+        }
+
+        public void run() {
+            int count = 0;
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.log(Level.WARNING, "Task for key " + key + " failed", t);
+                } finally {
+                    pending.release();
+                }
+
+                // let the other keys run, we'll get back in line
+                if (++count == BATCH_SIZE && !executor.isShutdown()) {
+                    try {
+                        executor.execute(this);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // shutting down, keep on draining the queue on this thread
+                    }
+                }
+            }
+        }
+    }
+}
@@ -6,8 +6,11 @@ package org.geoserver.monitor.hib;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.geoserver.monitor.CompositeFilter;
 import org.geoserver.monitor.Filter;
@@ -15,12 +18,12 @@ import org.geoserver.monitor.FilterVisitorSupport;
 import org.geoserver.monitor.MonitorConfig.Mode;
 import org.geoserver.monitor.MonitorConfig.Sync;
 import org.geoserver.monitor.MonitorDAO;
-import org.geoserver.monitor.PipeliningTaskQueue;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.SerialTaskExecutor;
 import org.geoserver.ows.util.OwsUtils;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -32,7 +35,8 @@ import org.springframework.orm.hibernate3.HibernateTemplate;
 public class HibernateMonitorDAO2 implements MonitorDAO {
 
     HibernateTemplate hib;
-    PipeliningTaskQueue<Thread> tasks;
+    SerialTaskExecutor<Thread> tasks;
+    WriteBehindQueue writeBehind;
     Mode mode = Mode.HISTORY;
     Sync sync = Sync.ASYNC;
     
@@ -43,18 +47,48 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
     
     public void setSync(Sync sync) {
         this.sync = sync;
-        if (sync != Sync.SYNC) {
+        if (sync == Sync.ASYNC || sync == Sync.ASYNC_UPDATE) {
             if (tasks == null) {
-                tasks = new PipeliningTaskQueue<Thread>();
-                tasks.start();
+                tasks = new SerialTaskExecutor<Thread>();
             }
         }
-        else {
-            if (tasks != null) {
-                dispose();
+        else if (tasks != null) {
+            tasks.shutdown();
+            tasks = null;
+        }
+        
+        if (sync == Sync.BATCH) {
+            if (writeBehind == null) {
+                setWriteBehind(new WriteBehindQueue());
             }
         }
+        else if (writeBehind != null) {
+            writeBehind.shutdown();
+            writeBehind = null;
+        }
     }
+    
+    /**
+     * Sets the queue used to write requests in batch synchronization mode, replacing and shutting
+     * down the current one, if any
+     */
+    public void setWriteBehind(WriteBehindQueue writeBehind) {
+        if (this.writeBehind != null) {
+            this.writeBehind.shutdown();
+        }
+        this.writeBehind = writeBehind;
+        if (writeBehind != null) {
+            writeBehind.start(new BatchWrite());
+        }
+    }
+    
+    /**
+     * Returns the write behind queue, or null if not running in batch synchronization mode
+     */
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+    
     public void setMode(Mode mode) {
         this.mode = mode;
     }
@@ -117,6 +151,10 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
             tasks.shutdown();
             tasks = null;
         }
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+            writeBehind = null;
+        }
     }
 
     public List<RequestData> getOwsRequests() {
@@ -553,7 +591,11 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
 //    }
     
     protected void run(Task task) {
-        if (tasks != null) {
+        if (writeBehind != null) {
+            // inserts and updates are the same for the write behind, it looks at the id
+            writeBehind.offer(task.data);
+        }
+        else if (tasks != null) {
             tasks.execute(Thread.currentThread(), new Async(task), task.desc);
         }
         else {
@@ -639,20 +681,61 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
             hib.execute(new HibernateCallback() {
                 public Object doInHibernate(Session session) throws HibernateException,
                         SQLException {
+                    Transaction tx = session.beginTransaction();
+                    //mergeLayers(data, session);
+                    session.update(data);
+                    tx.commit();
+                    return null;
+                }
+            });
+        }
+        
+    }
+    
+    /**
+     * Writes a batch of requests in a single transaction, letting hibernate group the statements
+     * in JDBC batches
+     */
+    class BatchWrite implements WriteBehindQueue.BatchWriter {
+
+        public void write(final List<RequestData> batch) {
+            hib.execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException,
+                        SQLException {
+                    // the same request might have been queued more than once, once in the
+                    // session it will be written with its latest state
+                    Set<RequestData> written = Collections.newSetFromMap(
+                        new IdentityHashMap<RequestData, Boolean>());
+                    List<RequestData> inserted = new ArrayList<RequestData>();
+                    Transaction tx = session.beginTransaction();
                     try {
-                        Transaction tx = session.beginTransaction();
-                        //mergeLayers(data, session);
-                        session.update(data);
+                        for (RequestData data : batch) {
+                            if (!written.add(data)) {
+                                continue;
+                            }
+                            synchronized (data) {
+                                if (data.getId() == -1) {
+                                    data.setId((Long) session.save(data));
+                                    inserted.add(data);
+                                }
+                                else {
+                                    session.update(data);
+                                }
+                            }
+                        }
                         tx.commit();
                     }
-                    catch(HibernateException e) {
-                        if (tasks != null) tasks.print();
+                    catch (HibernateException e) {
+                        tx.rollback();
+                        // nothing got stored, the requests will have to be inserted again
+                        for (RequestData data : inserted) {
+                            data.setId(-1);
+                        }
                         throw e;
                     }
                     return null;
                 }
             });
         }
-        
     }
 }
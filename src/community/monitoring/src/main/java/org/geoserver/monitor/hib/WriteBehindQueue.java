@@ -0,0 +1,354 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.RequestData;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Write behind buffer used by the {@link HibernateMonitorDAO2} in batch synchronization mode.
+ * <p>
+ * Requests are kept in a bounded ring buffer and written to the database by a single background
+ * thread, one transaction per batch, so that inserts and updates can be sent to the database as
+ * JDBC batches. A batch is written as soon as {@link #getBatchSize()} requests are queued, or
+ * when the oldest queued request has been waiting for {@link #getMaxDelay()} milliseconds.
+ * </p>
+ * <p>
+ * Request threads never wait on the database: once the buffer is full new requests are dropped,
+ * or, with the {@link Overflow#SAMPLE} policy, sampled as the buffer gets close to full, so that
+ * the stored history stays representative of the load instead of showing a gap.
+ * </p>
+ */
+public class WriteBehindQueue {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    public static final int DEFAULT_BUFFER_SIZE = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_MAX_DELAY = 1000;
+
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    /**
+     * What to do with new requests when the buffer is full
+     */
+    public static enum Overflow {
+        /**
+         * Drop new requests until the buffer has room again
+         */
+        DROP,
+        /**
+         * Once the buffer is three quarters full keep only one request every sample rate ones,
+         * drop everything when the buffer is full
+         */
+        SAMPLE;
+    }
+
+    /**
+     * Persists a batch of requests. Requests with an id of -1 have not been stored yet.
+     */
+    public static interface BatchWriter {
+        void write(List<RequestData> batch) throws Exception;
+    }
+
+    /**
+     * A queued request along with the time it got queued, used to compute the lag
+     */
+    static class Entry {
+        RequestData data;
+
+        long time;
+
+        Entry(RequestData data, long time) {
+            this.data = data;
+            this.time = time;
+        }
+    }
+
+    ArrayBlockingQueue<Entry> buffer;
+
+    int bufferSize;
+
+    int batchSize;
+
+    long maxDelay;
+
+    Overflow overflow;
+
+    int sampleRate;
+
+    int sampleThreshold;
+
+    BatchWriter writer;
+
+    volatile Thread flusher;
+
+    volatile boolean running;
+
+    /**
+     * Serializes the writes, so that the requests are stored in queueing order even when
+     * {@link #flush()} is called from another thread
+     */
+    Object writeLock = new Object();
+
+    AtomicLong sampled = new AtomicLong();
+
+    AtomicLong dropped = new AtomicLong();
+
+    AtomicLong flushed = new AtomicLong();
+
+    AtomicLong failed = new AtomicLong();
+
+    AtomicLong batches = new AtomicLong();
+
+    /**
+     * Builds a queue holding up to 10000 requests, written in batches of 100 at least every second
+     */
+    public WriteBehindQueue() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY, Overflow.DROP,
+                DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Builds a new queue
+     *
+     * @param bufferSize the max number of requests waiting to be written
+     * @param batchSize the max number of requests written in a single transaction
+     * @param maxDelay the max time, in milliseconds, a request waits before being written
+     * @param overflow the policy to apply when the buffer is full
+     * @param sampleRate the sampling rate used with {@link Overflow#SAMPLE}
+     */
+    public WriteBehindQueue(int bufferSize, int batchSize, long maxDelay, Overflow overflow,
+            int sampleRate) {
+        if (bufferSize < 1 || batchSize < 1 || maxDelay < 1 || sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid write behind configuration, buffer size "
+                    + bufferSize + ", batch size " + batchSize + ", max delay " + maxDelay
+                    + ", sample rate " + sampleRate + ": all values must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.overflow = overflow;
+        this.sampleRate = sampleRate;
+        this.sampleThreshold = bufferSize - bufferSize / 4;
+        this.buffer = new ArrayBlockingQueue<Entry>(bufferSize);
+    }
+
+    /**
+     * Starts the background thread writing the requests with the specified writer
+     */
+    public synchronized void start(BatchWriter writer) {
+        if (flusher != null) {
+            throw new IllegalStateException("Write behind queue already started");
+        }
+        this.writer = writer;
+        running = true;
+        flusher = new Thread(new Flusher(), "MonitorWriteBehind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops the background thread, writing out the requests still in the buffer
+     */
+    public synchronized void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(maxDelay + TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        // in case the thread did not make it in time
+        flush();
+    }
+
+    /**
+     * Queues a request to be written
+     *
+     * @return true if the request was queued, false if it was dropped
+     */
+    public boolean offer(RequestData data) {
+        int size = buffer.size();
+        if (overflow == Overflow.SAMPLE && size >= sampleThreshold
+                && sampled.incrementAndGet() % sampleRate != 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (!buffer.offer(new Entry(data, System.nanoTime()))) {
+            // log only once in a while, we are most likely under heavy load
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                LOGGER.warning("Monitoring write behind buffer is full, requests are being "
+                        + "dropped. Total dropped so far: " + dropped.get());
+            }
+            return false;
+        }
+        if (size + 1 >= batchSize) {
+            Thread t = flusher;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all the queued requests on the calling thread
+     */
+    public void flush() {
+        List<Entry> batch = new ArrayList<Entry>(batchSize);
+        while (!buffer.isEmpty()) {
+            writeBatch(batch);
+        }
+    }
+
+    void writeBatch(List<Entry> batch) {
+        synchronized (writeLock) {
+            buffer.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<RequestData> datas = new ArrayList<RequestData>(batch.size());
+            for (Entry e : batch) {
+                datas.add(e.data);
+            }
+            batch.clear();
+
+            try {
+                writer.write(datas);
+                flushed.addAndGet(datas.size());
+                batches.incrementAndGet();
+            } catch (Exception e) {
+                if (datas.size() == 1) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Failed to store monitored request", e);
+                    return;
+                }
+                // write them one by one, so that a single bad request does not take the others
+                // down with it
+                LOGGER.log(Level.FINE, "Failed to store a batch of " + datas.size()
+                        + " monitored requests, retrying them one at a time", e);
+                for (RequestData data : datas) {
+                    try {
+                        writer.write(Collections.singletonList(data));
+                        flushed.incrementAndGet();
+                    } catch (Exception e1) {
+                        failed.incrementAndGet();
+                        LOGGER.log(Level.WARNING, "Failed to store monitored request", e1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting to be written
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    /**
+     * Returns how long, in milliseconds, the oldest queued request has been waiting to be written
+     */
+    public long getLag() {
+        Entry head = buffer.peek();
+        if (head == null) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.time));
+    }
+
+    /**
+     * Returns the number of requests dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of requests written
+     */
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    /**
+     * Returns the number of requests that could not be written due to errors
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of batches written
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Waits for a full batch or for the oldest request to be due, whatever comes first
+     */
+    class Flusher implements Runnable {
+
+        public void run() {
+            long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+            List<Entry> batch = new ArrayList<Entry>(batchSize);
+            while (running) {
+                Entry head = buffer.peek();
+                long wait = head == null ? maxDelayNanos : head.time + maxDelayNanos
+                        - System.nanoTime();
+                if (buffer.size() < batchSize && wait > 0) {
+                    // woken up early by offer() when a batch is ready, or by shutdown()
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                try {
+                    writeBatch(batch);
+                } catch (Throwable t) {
+                    LOGGER.log(Level.SEVERE, "Unexpected error writing monitored requests", t);
+                }
+            }
+            flush();
+        }
+    }
+}
@@ -4,7 +4,11 @@
  */
 package org.geoserver.monitor.rest;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestMetrics.Dimension;
 
 public class OwsRequestResource extends RequestResource {
 
@@ -23,5 +27,10 @@ public class OwsRequestResource extends RequestResource {
             return super.handleObjectGet();
         }
     }
+    
+    @Override
+    Set<Dimension> getDefaultDimensions() {
+        return EnumSet.of(Dimension.SERVICE, Dimension.OPERATION);
+    }
 
 }
@@ -18,8 +18,10 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -39,6 +41,8 @@ import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.RequestStatistics;
+import org.geoserver.monitor.RequestMetrics.Dimension;
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.geoserver.ows.util.ClassProperties;
@@ -64,6 +68,8 @@ import org.restlet.data.Status;
 import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
 
+import com.thoughtworks.xstream.XStream;
+
 import freemarker.template.Configuration;
 
 public class RequestResource extends ReflectiveResource {
@@ -76,14 +82,36 @@ public class RequestResource extends ReflectiveResource {
         MediaTypes.registerExtension("xls", MediaType.APPLICATION_EXCEL);
     }
     
+    /**
+     * Name of the pseudo request returning the real time aggregated statistics
+     */
+    static final String METRICS = "metrics";
+    
+    /**
+     * Default statistics window, in seconds
+     */
+    static final long DEFAULT_WINDOW = 60;
+    
     Monitor monitor;
     
     public RequestResource(Monitor monitor) {
         this.monitor = monitor;
     }
     
+    boolean isMetrics() {
+        return METRICS.equals(getAttribute("request"));
+    }
+    
     @Override
     protected List<DataFormat> createSupportedFormats(Request request, Response response) {
+        if (isMetrics()) {
+            List<DataFormat> formats = new ArrayList<DataFormat>();
+            formats.add(createJSONFormat(request, response));
+            formats.add(createXMLFormat(request, response));
+            formats.add(new StatisticsCSVFormat());
+            return formats;
+        }
+        
         List<DataFormat> formats = super.createSupportedFormats(request, response);
         formats.add(createCSVFormat(request, response));
         formats.add(createZIPFormat(request, response));
@@ -144,19 +172,27 @@ public class RequestResource extends ReflectiveResource {
         return true;
     }
     
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("statistics", RequestStatistics.class);
+    }
+    
+    Form getForm() {
+        if (getRequest().getResourceRef() != null) {
+            return getRequest().getResourceRef().getQueryAsForm();
+        }
+        else {
+            return new Form();
+        }
+    }
+    
     @Override
     protected Object handleObjectGet() throws Exception {
         String req = getAttribute("request");
         
         if (req == null) {
             //return a collection
-            Form form = null;
-            if (getRequest().getResourceRef() != null) {
-                form = getRequest().getResourceRef().getQueryAsForm();
-            }
-            else {
-                form = new Form();
-            }
+            Form form = getForm();
             
             
             // date range
@@ -223,6 +259,9 @@ public class RequestResource extends ReflectiveResource {
             
             return q;
         }
+        else if (METRICS.equals(req)) {
+            return getStatistics(getForm());
+        }
         else {
             //return the individual
             RequestData data = monitor.getDAO().getRequest(Long.parseLong(req));
@@ -233,6 +272,48 @@ public class RequestResource extends ReflectiveResource {
         }
     }
     
+    /**
+     * Returns the aggregated statistics, the <code>window</code> parameter sets the time window in 
+     * seconds, the <code>dimension</code> one a comma separated list of the dimensions to return
+     */
+    List<RequestStatistics> getStatistics(Form form) {
+        long window = DEFAULT_WINDOW;
+        String w = form.getFirstValue("window");
+        if (w != null) {
+            try {
+                window = Long.parseLong(w);
+            }
+            catch(NumberFormatException e) {
+                throw new RestletException("Invalid window " + w + ", should be a number of seconds",
+                    Status.CLIENT_ERROR_BAD_REQUEST, e);
+            }
+        }
+        
+        Set<Dimension> dimensions = getDefaultDimensions();
+        String d = form.getFirstValue("dimension");
+        if (d != null) {
+            dimensions = EnumSet.noneOf(Dimension.class);
+            for (String dim : d.split(",")) {
+                try {
+                    dimensions.add(Dimension.valueOf(dim.trim().toUpperCase()));
+                }
+                catch(IllegalArgumentException e) {
+                    throw new RestletException("Invalid dimension " + dim + ", should be one of " 
+                        + Arrays.asList(Dimension.values()), Status.CLIENT_ERROR_BAD_REQUEST, e);
+                }
+            }
+        }
+        
+        return monitor.getMetrics().getStatistics(dimensions, window * 1000);
+    }
+    
+    /**
+     * The dimensions returned when the client does not specify any
+     */
+    Set<Dimension> getDefaultDimensions() {
+        return EnumSet.allOf(Dimension.class);
+    }
+    
     Date parseDate(String s) {
         try {
             return DATE_FORMAT.parse(s);
@@ -418,6 +499,49 @@ public class RequestResource extends ReflectiveResource {
         
     }
     
+    static class StatisticsCSVFormat extends StreamDataFormat {
+        
+        static final String[] FIELDS = new String[] { "dimension", "name", "window", "count",
+            "errors", "bytes", "throughput", "averageTime", "maxTime", "p50", "p95", "p99" };
+        
+        protected StatisticsCSVFormat() {
+            super(new MediaType("application/csv"));
+        }
+        
+        @Override
+        protected void write(Object object, OutputStream out) throws IOException {
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out));
+            
+            StringBuffer sb = new StringBuffer();
+            for (String fld : FIELDS) {
+                sb.append(fld).append(",");
+            }
+            sb.setLength(sb.length()-1);
+            w.write(sb.append("\n").toString());
+            
+            for (RequestStatistics stats : (List<RequestStatistics>) object) {
+                sb.setLength(0);
+                String name = stats.getName();
+                if (CSVFormat.escapeRequired.matcher(name).find()) {
+                    name = "\"" + name.replaceAll("\"", "\"\"") + "\"";
+                }
+                sb.append(stats.getDimension()).append(",").append(name).append(",")
+                    .append(stats.getWindow()).append(",").append(stats.getCount()).append(",")
+                    .append(stats.getErrors()).append(",").append(stats.getBytes()).append(",")
+                    .append(stats.getThroughput()).append(",").append(stats.getAverageTime())
+                    .append(",").append(stats.getMaxTime()).append(",").append(stats.getP50())
+                    .append(",").append(stats.getP95()).append(",").append(stats.getP99());
+                w.write(sb.append("\n").toString());
+            }
+            w.flush();
+        }
+        
+        @Override
+        protected Object read(InputStream in) throws IOException {
+            return null;
+        }
+    }
+    
     static class ZIPFormat extends StreamDataFormat {
 
         List<String> fields;
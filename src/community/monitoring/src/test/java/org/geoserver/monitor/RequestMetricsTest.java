@@ -0,0 +1,193 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import org.geoserver.monitor.RequestData.Status;
+import org.geoserver.monitor.RequestMetrics.Dimension;
+import org.junit.Test;
+
+public class RequestMetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        // buckets are contiguous and cover the whole range
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long highest = LatencyHistogram.highestValue(i);
+            assertTrue(highest > previous);
+            assertEquals(i, LatencyHistogram.bucket(previous + 1));
+            assertEquals(i, LatencyHistogram.bucket(highest));
+            previous = highest;
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE, previous);
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertWithin(5000, histogram.getPercentile(50));
+        assertWithin(9500, histogram.getPercentile(95));
+        assertWithin(9900, histogram.getPercentile(99));
+        assertWithin(10000, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    void assertWithin(long expected, long actual) {
+        assertTrue("Expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= expected * 0.07);
+    }
+
+    @Test
+    public void testDimensions() {
+        RequestMetrics metrics = new RequestMetrics(1000, 60, 100);
+        long now = 1000000;
+        metrics.record(request("wms", "GetMap", "image/png", 100, "topp:states"), now);
+        metrics.record(request("wms", "GetMap", "image/png; mode=8bit", 300, "topp:states",
+                "topp:roads"), now);
+        metrics.record(request("WFS", "GetFeature", "text/xml", 50, "topp:roads"), now);
+        RequestData failed = request("wms", "GetFeatureInfo", null, 10);
+        failed.setStatus(Status.FAILED);
+        metrics.record(failed, now);
+
+        List<RequestStatistics> stats = metrics.getStatistics(null, 60000, now);
+        RequestStatistics all = find(stats, Dimension.ALL, "*");
+        assertEquals(4, all.getCount());
+        assertEquals(1, all.getErrors());
+        assertEquals(300, all.getMaxTime());
+        assertEquals(115, all.getAverageTime(), 0.001);
+
+        assertEquals(3, find(stats, Dimension.SERVICE, "WMS").getCount());
+        assertEquals(1, find(stats, Dimension.SERVICE, "WFS").getCount());
+        RequestStatistics getMap = find(stats, Dimension.OPERATION, "WMS.GetMap");
+        assertEquals(2, getMap.getCount());
+        assertEquals(300, getMap.getP99());
+        assertEquals(2, find(stats, Dimension.LAYER, "topp:states").getCount());
+        assertEquals(2, find(stats, Dimension.LAYER, "topp:roads").getCount());
+        assertEquals(2, find(stats, Dimension.FORMAT, "image/png").getCount());
+
+        // sorted by dimension, and then by count
+        assertSame(all, stats.get(0));
+        assertEquals("WMS", stats.get(1).getName());
+
+        // dimension selection
+        stats = metrics.getStatistics(EnumSet.of(Dimension.LAYER), 60000, now);
+        assertEquals(2, stats.size());
+    }
+
+    @Test
+    public void testRollingWindow() {
+        RequestMetrics metrics = new RequestMetrics(1000, 10, 100);
+        long now = 1000000;
+        metrics.record(request("wms", "GetMap", null, 100, "topp:states"), now);
+        metrics.record(request("wms", "GetMap", null, 200), now + 5000);
+
+        EnumSet<Dimension> all = EnumSet.of(Dimension.ALL);
+        assertEquals(2, metrics.getStatistics(all, 10000, now + 5000).get(0).getCount());
+        // a shorter window only sees the last request
+        RequestStatistics last = metrics.getStatistics(all, 1000, now + 5000).get(0);
+        assertEquals(1, last.getCount());
+        assertEquals(1.0, last.getThroughput(), 0.001);
+        // the first request falls out of the window
+        assertEquals(1, metrics.getStatistics(all, 10000, now + 10000).get(0).getCount());
+        // and then everything does
+        assertTrue(metrics.getStatistics(all, 10000, now + 15000).isEmpty());
+
+        // slots get recycled
+        metrics.record(request("wms", "GetMap", null, 50), now + 20000);
+        RequestStatistics stats = metrics.getStatistics(all, 10000, now + 20000).get(0);
+        assertEquals(1, stats.getCount());
+        assertEquals(50, stats.getMaxTime());
+
+        // idle series get purged
+        metrics.purge(now + 20000);
+        assertFalse(metrics.series.containsKey("LAYER:topp:states"));
+        assertTrue(metrics.series.containsKey("SERVICE:WMS"));
+        metrics.purge(now + 40000);
+        assertTrue(metrics.series.isEmpty());
+    }
+
+    @Test
+    public void testMaxSeries() {
+        RequestMetrics metrics = new RequestMetrics(1000, 10, 3);
+        long now = 1000000;
+        metrics.record(request("wms", "GetMap", null, 100), now);
+        metrics.record(request("wfs", "GetFeature", null, 100), now);
+
+        // only the overall series keeps growing past the limit
+        assertEquals(3, metrics.series.size());
+        assertEquals(2, metrics.getOverflow());
+        assertEquals(2, metrics.getStatistics(EnumSet.of(Dimension.ALL), 10000, now).get(0)
+                .getCount());
+    }
+
+    @Test
+    public void testMemoryBound() {
+        RequestMetrics metrics = new RequestMetrics();
+        // every series gets requests in every slot of the window
+        long now = 1000000000;
+        for (int slot = 0; slot < metrics.slots; slot++) {
+            for (int i = 0; i < metrics.maxSeries; i++) {
+                metrics.record(request("wms", "GetMap", "image/png", i, "layer" + i), now + slot
+                        * metrics.slotDuration);
+            }
+        }
+        assertEquals(metrics.maxSeries, metrics.series.size());
+
+        // generous estimates of the object sizes, 8 bytes per reference and 16 per header
+        long slotSize = 16 + 8 + 5 * 8 + 5 * (16 + 8);
+        long histogramSize = 16 + 8 + 8 + 16 + 8 + 16 + 8 + 16 + LatencyHistogram.BUCKETS * 8;
+        long size = 0;
+        for (RequestMetrics.Series series : metrics.series.values()) {
+            assertTrue(series.histograms.length <= RequestMetrics.HISTOGRAM_SLOTS + 1);
+            size += 16 + series.ring.length * 8 + 16 + series.histograms.length * 8;
+            for (RequestMetrics.Slot slot : series.ring) {
+                size += slot != null ? slotSize : 0;
+            }
+            for (RequestMetrics.HistogramSlot slot : series.histograms) {
+                size += slot != null ? histogramSize : 0;
+            }
+        }
+        assertTrue("Metrics take " + size + " bytes", size < 10 * 1024 * 1024);
+
+        // and percentiles are still computed over the window
+        RequestStatistics all = metrics.getStatistics(EnumSet.of(Dimension.ALL),
+                metrics.getWindow(), now + metrics.getWindow() - 1).get(0);
+        assertEquals(metrics.slots * metrics.maxSeries, all.getCount());
+        assertWithin(metrics.maxSeries / 2, all.getP50());
+    }
+
+    RequestStatistics find(List<RequestStatistics> stats, Dimension dimension, String name) {
+        for (RequestStatistics s : stats) {
+            if (s.getDimension() == dimension && s.getName().equals(name)) {
+                return s;
+            }
+        }
+        fail("Could not find " + dimension + ":" + name);
+        return null;
+    }
+
+    RequestData request(String service, String operation, String format, long time,
+            String... layers) {
+        RequestData data = new RequestData();
+        data.setService(service);
+        data.setOperation(operation);
+        data.setResponseContentType(format);
+        data.setTotalTime(time);
+        data.setStatus(Status.FINISHED);
+        for (String layer : layers) {
+            data.getResources().add(layer);
+        }
+        return data;
+    }
+}
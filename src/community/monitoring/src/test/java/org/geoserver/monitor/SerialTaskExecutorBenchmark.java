@@ -0,0 +1,123 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the overhead the monitoring task executors add to each request, simulating a number
+ * of request threads, each submitting the same tasks the monitor submits for a request (an insert
+ * and an update). Reports the average delay between the submission and the execution of a task,
+ * and the CPU time consumed while idle.
+ * <p>
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp ... org.geoserver.monitor.SerialTaskExecutorBenchmark [threads] [requests]
+ * </pre>
+ */
+public class SerialTaskExecutorBenchmark {
+
+    interface Executor {
+        void execute(Thread key, Runnable task);
+
+        void stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        for (int i = 0; i < 2; i++) {
+            // the first round warms up the JIT
+            run("PipeliningTaskQueue", pipelining(), threads, requests);
+            run("SerialTaskExecutor", serial(), threads, requests);
+        }
+    }
+
+    static Executor pipelining() {
+        final PipeliningTaskQueue<Thread> queue = new PipeliningTaskQueue<Thread>();
+        queue.start();
+        return new Executor() {
+            public void execute(Thread key, Runnable task) {
+                queue.execute(key, task);
+            }
+
+            public void stop() {
+                queue.stop();
+            }
+        };
+    }
+
+    static Executor serial() {
+        final SerialTaskExecutor<Thread> executor = new SerialTaskExecutor<Thread>();
+        return new Executor() {
+            public void execute(Thread key, Runnable task) {
+                executor.execute(key, task);
+            }
+
+            public void stop() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    static void run(String name, final Executor executor, int threads, final int requests)
+            throws Exception {
+        final AtomicLong delay = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(threads * requests * 2);
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < requests; j++) {
+                        for (int k = 0; k < 2; k++) {
+                            final long submitted = System.nanoTime();
+                            executor.execute(this, new Runnable() {
+                                public void run() {
+                                    delay.addAndGet(System.nanoTime() - submitted);
+                                    latch.countDown();
+                                }
+                            });
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        // the pipelining queue can lose tasks under contention, don't wait forever
+        boolean completed = latch.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        // measure the cpu used while idle
+        long cpu = processCpuTime();
+        Thread.sleep(1000);
+        long idleCpu = processCpuTime() - cpu;
+        executor.stop();
+
+        int tasks = threads * requests * 2;
+        if (!completed) {
+            System.out.println(name + ": " + latch.getCount() + " tasks out of " + tasks
+                    + " did not run");
+            return;
+        }
+        System.out.println(name + ": " + tasks + " tasks in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, average delay "
+                + (delay.get() / tasks / 1000) + "us, per request overhead "
+                + (elapsed / (threads * requests) / 1000) + "us, idle cpu "
+                + (idleCpu < 0 ? "n/a" : TimeUnit.NANOSECONDS.toMillis(idleCpu) + "ms/s"));
+    }
+
+    static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory
+                .getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
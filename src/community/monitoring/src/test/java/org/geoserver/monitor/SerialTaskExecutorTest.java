@@ -0,0 +1,132 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SerialTaskExecutorTest {
+
+    SerialTaskExecutor<Integer> executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new SerialTaskExecutor<Integer>(4, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        int groups = 5;
+        int tasks = 50;
+        ConcurrentLinkedQueue<int[]> completed = new ConcurrentLinkedQueue<int[]>();
+        CountDownLatch latch = new CountDownLatch(groups * tasks);
+        for (int j = 0; j < tasks; j++) {
+            for (int i = 0; i < groups; i++) {
+                executor.execute(i, new Worker(i, j, completed, latch));
+            }
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+        int[] status = new int[groups];
+        for (int[] w : completed) {
+            assertEquals(status[w[0]], w[1]);
+            status[w[0]]++;
+        }
+    }
+
+    @Test
+    public void testSerial() throws Exception {
+        final List<Integer> running = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> overlaps = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(1, new Runnable() {
+                public void run() {
+                    if (!running.isEmpty()) {
+                        overlaps.add(1);
+                    }
+                    running.add(1);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                    }
+                    running.remove(0);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(overlaps.isEmpty());
+    }
+
+    @Test
+    public void testCleanup() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(i, new Runnable() {
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+        // the queues go away once drained
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(0, executor.getActiveKeys());
+        assertEquals(0, executor.getPending());
+    }
+
+    @Test
+    public void testFailingTask() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(1, new Runnable() {
+            public void run() {
+                throw new RuntimeException("failure");
+            }
+        });
+        executor.execute(1, new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+    }
+
+    static class Worker implements Runnable {
+        int group;
+        int seq;
+        ConcurrentLinkedQueue<int[]> completed;
+        CountDownLatch latch;
+
+        Worker(int group, int seq, ConcurrentLinkedQueue<int[]> completed, CountDownLatch latch) {
+            this.group = group;
+            this.seq = seq;
+            this.completed = completed;
+            this.latch = latch;
+        }
+
+        public void run() {
+            completed.add(new int[] { group, seq });
+            latch.countDown();
+        }
+    }
+}
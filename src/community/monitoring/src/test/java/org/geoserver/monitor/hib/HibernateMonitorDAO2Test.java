@@ -7,6 +7,7 @@ package org.geoserver.monitor.hib;
 import static junit.framework.Assert.assertEquals;
 import static org.geoserver.monitor.MonitorTestData.assertCovered;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -17,18 +18,22 @@ import org.geoserver.monitor.MonitorDAOTestSupport;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.hib.WriteBehindQueue.Overflow;
 import org.geoserver.monitor.MonitorConfig.Mode;
 import org.geoserver.monitor.MonitorConfig.Sync;
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.h2.tools.DeleteDbFiles;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.web.context.support.XmlWebApplicationContext;
 
 public class HibernateMonitorDAO2Test extends MonitorDAOTestSupport {
@@ -66,6 +71,46 @@ public class HibernateMonitorDAO2Test extends MonitorDAOTestSupport {
         HibUtil.tearDownSession(((HibernateMonitorDAO2)dao).getSessionFactory(), null);
     }
     
+    @Test
+    public void testBatch() throws Exception {
+        HibernateMonitorDAO2 hibdao = (HibernateMonitorDAO2) dao;
+        hibdao.setWriteBehind(new WriteBehindQueue(100, 10, 60000, Overflow.DROP, 1));
+        hibdao.setSync(Sync.BATCH);
+        try {
+            final RequestData data = new RequestData();
+            data.setPath("/batched");
+            hibdao.save(data);
+            
+            // not written until the batch is flushed
+            assertEquals(-1, data.getId());
+            assertEquals(1, hibdao.getWriteBehind().getPending());
+            
+            data.getResources().add("batched_layer");
+            hibdao.update(data);
+            hibdao.getWriteBehind().flush();
+            assertEquals(1, hibdao.getWriteBehind().getBatches());
+            
+            RequestData stored = dao.getRequest(data.getId());
+            assertEquals("/batched", stored.getPath());
+            assertEquals(1, stored.getResources().size());
+            assertEquals(1, dao.getCount(new Query().filter("path", "/batched", Comparison.EQ)));
+            
+            // drop it, as to not break the other tests
+            hibdao.hib.execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException,
+                        SQLException {
+                    Transaction tx = session.beginTransaction();
+                    session.delete(session.get(RequestData.class, data.getId()));
+                    tx.commit();
+                    return null;
+                }
+            });
+        }
+        finally {
+            hibdao.setSync(Sync.SYNC);
+        }
+    }
+    
     @Test
     public void testGetRequestsFilterIN3() throws Exception {
         List<RequestData> datas = dao.getRequests( new Query().filter(
@@ -0,0 +1,150 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.hib.WriteBehindQueue.BatchWriter;
+import org.geoserver.monitor.hib.WriteBehindQueue.Overflow;
+import org.junit.After;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+    WriteBehindQueue queue;
+
+    RecordingWriter writer = new RecordingWriter();
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        // long delay, only the batch size can trigger the write
+        queue = new WriteBehindQueue(100, 5, 60000, Overflow.DROP, 1);
+        queue.start(writer);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(request("/" + i)));
+        }
+
+        List<RequestData> batch = writer.batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(5, batch.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("/" + i, batch.get(i).getPath());
+        }
+        assertEquals(5, queue.getFlushed());
+        assertEquals(1, queue.getBatches());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void testMaxDelay() throws Exception {
+        queue = new WriteBehindQueue(100, 50, 100, Overflow.DROP, 1);
+        queue.start(writer);
+        queue.offer(request("/one"));
+
+        List<RequestData> batch = writer.batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(1, batch.size());
+        assertEquals(0, queue.getLag());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        queue = new WriteBehindQueue(3, 10, 60000, Overflow.DROP, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(request("/" + i)));
+        }
+        assertFalse(queue.offer(request("/3")));
+        assertEquals(1, queue.getDropped());
+        assertEquals(3, queue.getPending());
+        Thread.sleep(10);
+        assertTrue(queue.getLag() > 0);
+
+        // whatever is left is written on shutdown
+        queue.start(writer);
+        queue.shutdown();
+        assertEquals(3, writer.written().size());
+        assertEquals(0, queue.getPending());
+        assertEquals(0, queue.getLag());
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        // sampling kicks in at 6 queued requests, keeping one in two
+        queue = new WriteBehindQueue(8, 10, 60000, Overflow.SAMPLE, 2);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer(request("/" + i)));
+        }
+        int accepted = 0;
+        for (int i = 6; i < 10; i++) {
+            if (queue.offer(request("/" + i))) {
+                accepted++;
+            }
+        }
+        assertEquals(2, accepted);
+        assertEquals(2, queue.getDropped());
+        assertEquals(8, queue.getPending());
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        queue = new WriteBehindQueue(100, 10, 60000, Overflow.DROP, 1);
+        writer.failOn = "/bad";
+        queue.offer(request("/one"));
+        queue.offer(request("/bad"));
+        queue.offer(request("/two"));
+        queue.start(writer);
+        queue.flush();
+
+        // the batch failed, then the requests were written one by one
+        List<RequestData> written = writer.written();
+        assertEquals(2, written.size());
+        assertEquals("/one", written.get(0).getPath());
+        assertEquals("/two", written.get(1).getPath());
+        assertEquals(2, queue.getFlushed());
+        assertEquals(1, queue.getFailed());
+    }
+
+    RequestData request(String path) {
+        RequestData data = new RequestData();
+        data.setPath(path);
+        return data;
+    }
+
+    static class RecordingWriter implements BatchWriter {
+        LinkedBlockingQueue<List<RequestData>> batches = new LinkedBlockingQueue<List<RequestData>>();
+
+        String failOn;
+
+        public void write(List<RequestData> batch) throws Exception {
+            for (RequestData data : batch) {
+                if (data.getPath().equals(failOn)) {
+                    throw new Exception("Failing on " + failOn);
+                }
+            }
+            batches.add(new ArrayList<RequestData>(batch));
+        }
+
+        List<RequestData> written() {
+            List<RequestData> result = new ArrayList<RequestData>();
+            for (List<RequestData> batch : batches) {
+                result.addAll(batch);
+            }
+            return result;
+        }
+    }
+}
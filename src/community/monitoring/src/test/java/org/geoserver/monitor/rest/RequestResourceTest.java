@@ -36,6 +36,7 @@ import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.MonitorTestData;
 import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.RequestStatistics;
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.rest.PageInfo;
 import org.geotools.feature.type.DateUtil;
@@ -408,6 +409,37 @@ public class RequestResourceTest {
         assertCovered(datas, 1, 2, 5, 6, 9, 10);
     }
     
+    @Test
+    public void testMetrics() throws Exception {
+        RequestData data = new RequestData();
+        data.setService("wms");
+        data.setOperation("GetMap");
+        data.setTotalTime(120);
+        monitor.getMetrics().record(data);
+        
+        Request req = new Request();
+        req.getAttributes().put("request", "metrics");
+        setKVP(req, "dimension", "service,operation", "window", "300");
+        Response res = new Response(req);
+        resource.init(null, req, res);
+        
+        List<RequestStatistics> stats = (List<RequestStatistics>) resource.handleObjectGet();
+        assertEquals(2, stats.size());
+        assertEquals("WMS", stats.get(0).getName());
+        assertEquals(1, stats.get(0).getCount());
+        assertEquals(300000, stats.get(0).getWindow());
+        assertEquals("WMS.GetMap", stats.get(1).getName());
+        assertEquals(120, stats.get(1).getP50());
+        
+        RequestResource.StatisticsCSVFormat format = new RequestResource.StatisticsCSVFormat();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.toRepresentation(stats).write(out);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(in.readLine().startsWith("dimension,name,window,count"));
+        assertTrue(in.readLine().startsWith("SERVICE,WMS,300000,1,0,"));
+    }
+    
     void setKVP(Request req, String... kvp) {
         Reference ref = new Reference();
         
@@ -14,6 +14,7 @@ import java.util.logging.Logger;
 import org.geoserver.flow.config.DefaultControlFlowConfigurator;
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.ParallelismLimiter;
 import org.geoserver.ows.Request;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
@@ -26,11 +27,15 @@ import org.springframework.context.ApplicationContextAware;
  * Callback that controls the flow of OWS requests based on user specified rules and makes sure
  * GeoServer does not get overwhelmed by too many concurrent ones. Can also be used to provide
  * different quality of service on different users.
+ * <p>
+ * Also limits the number of threads a single request can use, and prevents requests from
+ * parallelizing their work at all while other requests are waiting to be executed
+ * </p>
  * 
  * @author Andrea Aime - OpenGeo
  */
 public class ControlFlowCallback extends AbstractDispatcherCallback implements
-        ApplicationContextAware {
+        ApplicationContextAware, ParallelismLimiter {
     static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
 
     static ThreadLocal<List<FlowController>> REQUEST_CONTROLLERS = new ThreadLocal<List<FlowController>>();
@@ -39,6 +44,7 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
 
     List<FlowController> controllers = Collections.emptyList();
     long timeout = -1;
+    int parallelism = -1;
 
     ControlFlowConfigurator configurator;
     
@@ -96,7 +102,8 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
                             if(!flowController.requestIncoming(request, maxWait)) 
                                 throw new HttpErrorCodeException(503, "Requested timeout out while waiting to be executed");
                          } else {
-                            flowController.requestIncoming(request, -1);
+                            if(!flowController.requestIncoming(request, -1))
+                                throw new HttpErrorCodeException(503, "Request rejected, the server is too busy to execute it in a reasonable time");
                         }
                     }
                 }
@@ -108,6 +115,17 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
         return operation;
     }
 
+    public int getParallelism(Request request, int parallelism) {
+        // requests are queued, don't let the running ones grab more threads
+        if (controllers.size() > 0 && blockedRequests.get() > 0) {
+            return 1;
+        }
+        if (this.parallelism > 0) {
+            return Math.min(this.parallelism, parallelism);
+        }
+        return parallelism;
+    }
+
     private void checkConfiguration() {
         // check if we need to rebuild the flow controller list
         if (configurator.isStale()){
@@ -137,6 +155,7 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
                 LOGGER.info("Control-flow inactive, there are no configured rules");
             }
             timeout = configurator.getTimeout();
+            parallelism = configurator.getParallelism();
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error occurerd during flow controllers reconfiguration");
         }
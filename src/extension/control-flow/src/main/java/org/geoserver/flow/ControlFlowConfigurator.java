@@ -25,6 +25,12 @@ public interface ControlFlowConfigurator {
      */
     long getTimeout();
 
+    /**
+     * Maximum number of threads a single request can use to parallelize its work
+     * @return The maximum parallelism. Use 0 or a negative number for no limit
+     */
+    int getParallelism();
+
     /**
      * Returns true if the set of flow controllers changed since last invocation of
      * {@link #buildFlowControllers()}
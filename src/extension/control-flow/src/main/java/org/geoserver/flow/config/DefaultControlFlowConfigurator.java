@@ -13,9 +13,14 @@ import java.util.logging.Logger;
 
 import org.geoserver.flow.ControlFlowConfigurator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
+import org.geoserver.flow.controller.FairQueueFlowController;
+import org.geoserver.flow.controller.FairQueueFlowController.RequestClass;
 import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.flow.controller.IpFlowController;
+import org.geoserver.flow.controller.RateFlowController;
+import org.geoserver.flow.controller.RateFlowController.KeyType;
 import org.geoserver.flow.controller.SingleIpFlowController;
 import org.geoserver.flow.controller.UserFlowController;
 import org.geoserver.security.PropertyFileWatcher;
@@ -35,6 +40,8 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
     long timeout = -1;
 
+    int parallelism = -1;
+
     public DefaultControlFlowConfigurator() {
         configFile = new PropertyFileWatcher(new File(
                 GeoserverDataDirectory.getGeoserverDataDirectory(), "controlflow.properties"));
@@ -51,9 +58,12 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
     public List<FlowController> buildFlowControllers() throws Exception {
         timeout = -1;
+        parallelism = -1;
 
         Properties p = configFile.getProperties();
         List<FlowController> newControllers = new ArrayList<FlowController>();
+        int fairQueueSize = 0;
+        List<RequestClass> fairClasses = new ArrayList<RequestClass>();
         for (Object okey : p.keySet()) {
             String key = ((String) okey).trim();
             String value = (String) p.get(okey);
@@ -61,11 +71,22 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
             String[] keys = key.trim().split("\\s*\\.\\s*");
 
+            if ("rate".equals(keys[0])) {
+                try {
+                    newControllers.add(buildRateController(keys, value));
+                } catch (Exception e) {
+                    LOGGER.severe("Could not parse rule '" + okey + "=" + value + "': "
+                            + e.getMessage());
+                }
+                continue;
+            }
+
             int queueSize = 0;
             StringTokenizer tokenizer = new StringTokenizer(value, ",");
             try {
                 if (tokenizer.countTokens() == 1) {
                     queueSize = Integer.parseInt(value);
+                    tokenizer.nextToken();
                 } else {
                     queueSize = Integer.parseInt(tokenizer.nextToken());
                 }
@@ -80,6 +101,10 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 timeout = queueSize * 1000;
                 continue;
             }
+            if ("parallelism".equalsIgnoreCase(key)) {
+                parallelism = queueSize;
+                continue;
+            }
             if ("ows.global".equalsIgnoreCase(key)) {
                 controller = new GlobalFlowController(queueSize);
             } else if ("ows".equals(keys[0])) {
@@ -91,6 +116,36 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 } else if (keys.length == 2) {
                     controller = new BasicOWSController(keys[1], queueSize);
                 }
+            } else if ("fair".equals(keys[0])) {
+                // the fair queue controller is built from multiple rules, collect them first
+                if (keys.length == 1) {
+                    fairQueueSize = queueSize;
+                } else {
+                    try {
+                        fairClasses.add(buildRequestClass(keys[1], queueSize, tokenizer));
+                    } catch (Exception e) {
+                        LOGGER.severe("Could not parse rule '" + okey + "=" + value + "': "
+                                + e.getMessage());
+                    }
+                }
+                continue;
+            } else if ("adaptive".equals(keys[0])) {
+                long maxQueueTime = -1;
+                if (tokenizer.hasMoreTokens()) {
+                    try {
+                        maxQueueTime = Long.parseLong(tokenizer.nextToken().trim());
+                    } catch (NumberFormatException e) {
+                        LOGGER.severe("Adaptive rules accept a max queue time in milliseconds "
+                                + "as second parameter, instead " + okey + " is associated to "
+                                + value);
+                        continue;
+                    }
+                }
+                String service = keys.length > 1 ? keys[1] : null;
+                String method = keys.length > 2 ? keys[2] : null;
+                String outputFormat = keys.length > 3 ? keys[3] : null;
+                controller = new AdaptiveFlowController(service, method, outputFormat, queueSize,
+                        maxQueueTime);
             } else if ("user".equals(keys[0])) {
                 controller = new UserFlowController(queueSize);
             } else if ("ip".equals(keys[0])) {
@@ -108,9 +163,81 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
             }
         }
 
+        if (fairQueueSize > 0) {
+            try {
+                newControllers.add(new FairQueueFlowController(fairQueueSize, fairClasses));
+            } catch (IllegalArgumentException e) {
+                LOGGER.severe("Could not build the fair queue controller: " + e.getMessage());
+            }
+        } else if (fairClasses.size() > 0) {
+            LOGGER.severe("Request classes have been configured, but the fair queue size "
+                    + "is missing, add a fair=<count> rule");
+        }
+
         return newControllers;
     }
 
+    /**
+     * Parses a rate rule,
+     * <code>rate.&lt;ip|user|cookie&gt;[.service[.request[.outputFormat]]]=requests/unit[,burst]</code>
+     * where unit is one of s, m, h, d
+     */
+    RateFlowController buildRateController(String[] keys, String value) {
+        if (keys.length < 2) {
+            throw new IllegalArgumentException("the key type (ip, user, cookie) is missing");
+        }
+        KeyType keyType = KeyType.valueOf(keys[1].toUpperCase());
+        String service = keys.length > 2 ? keys[2] : null;
+        String method = keys.length > 3 ? keys[3] : null;
+        String outputFormat = keys.length > 4 ? keys[4] : null;
+
+        String[] values = value.split("\\s*,\\s*");
+        String[] rate = values[0].trim().split("\\s*/\\s*");
+        if (rate.length != 2) {
+            throw new IllegalArgumentException("the rate should be expressed as requests/unit");
+        }
+        int requests = Integer.parseInt(rate[0]);
+        long period;
+        char unit = rate[1].toLowerCase().charAt(0);
+        if (unit == 's') {
+            period = 1000;
+        } else if (unit == 'm') {
+            period = 60 * 1000;
+        } else if (unit == 'h') {
+            period = 60 * 60 * 1000;
+        } else if (unit == 'd') {
+            period = 24 * 60 * 60 * 1000;
+        } else {
+            throw new IllegalArgumentException("unknown time unit " + rate[1]
+                    + ", use one of s, m, h, d");
+        }
+        int burst = values.length > 1 ? Integer.parseInt(values[1]) : 0;
+
+        return new RateFlowController(keyType, service, method, outputFormat, requests, period,
+                burst);
+    }
+
+    /**
+     * Parses a fair queue class definition, <code>weight[,minConcurrency[,type:value]*]</code>
+     */
+    RequestClass buildRequestClass(String name, int weight, StringTokenizer tokenizer) {
+        int minConcurrency = 0;
+        if (tokenizer.hasMoreTokens()) {
+            minConcurrency = Integer.parseInt(tokenizer.nextToken().trim());
+        }
+        RequestClass rc = new RequestClass(name, weight, minConcurrency);
+        while (tokenizer.hasMoreTokens()) {
+            String criteria = tokenizer.nextToken().trim();
+            int idx = criteria.indexOf(':');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("Invalid criteria " + criteria
+                        + ", the expected syntax is type:value");
+            }
+            rc.addCriteria(criteria.substring(0, idx).trim(), criteria.substring(idx + 1).trim());
+        }
+        return rc;
+    }
+
     public boolean isStale() {
         return configFile.isStale();
     }
@@ -119,4 +246,8 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
         return timeout;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
 }
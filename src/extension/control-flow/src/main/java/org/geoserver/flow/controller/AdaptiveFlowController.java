@@ -0,0 +1,445 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller that does not use a fixed queue size, but adapts the number of concurrent
+ * requests at runtime based on the observed response times, in a way similar to TCP Vegas or
+ * gradient based concurrency limiters. Each service/request/output format combination gets its
+ * own limit, which grows while response times stay close to the best ones observed, and shrinks
+ * when they start to grow, that is, when requests start competing for resources.
+ * <p>
+ * Requests in excess are queued, but if the estimated queue time exceeds the configured budget
+ * (or the control flow timeout) they are rejected right away instead of waiting in vain.
+ */
+public class AdaptiveFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Number of samples after which the no load response time is reset to the current average,
+     * allowing it to follow changes in the data or in the hardware
+     */
+    static final int NO_LOAD_RESET_SAMPLES = 1000;
+
+    String service;
+
+    String method;
+
+    String outputFormat;
+
+    int maxLimit;
+
+    int minLimit = 1;
+
+    long maxQueueTime;
+
+    /**
+     * Number of limits at which we start looking for purging idle ones
+     */
+    int maxLimits = 100;
+
+    /**
+     * Time it takes for an idle limit to be considered stale
+     */
+    int maxAge = 60000;
+
+    long lastCleanup = System.currentTimeMillis();
+
+    Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+    ThreadLocal<Slot> slot = new ThreadLocal<Slot>();
+
+    AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Builds a controller applying to all requests, with no queue time budget
+     *
+     * @param maxLimit the maximum number of concurrent requests per request type
+     */
+    public AdaptiveFlowController(int maxLimit) {
+        this(null, null, null, maxLimit, -1);
+    }
+
+    /**
+     * Builds a new {@link AdaptiveFlowController}
+     *
+     * @param service the service to be matched, or null to match all
+     * @param method the request to be matched, or null to match all
+     * @param outputFormat the output format to be matched, or null to match all
+     * @param maxLimit the maximum number of concurrent requests per request type
+     * @param maxQueueTime the max time, in milliseconds, a request is expected to wait in queue
+     *        before it gets rejected, use 0 or a negative number for no budget
+     */
+    public AdaptiveFlowController(String service, String method, String outputFormat,
+            int maxLimit, long maxQueueTime) {
+        if (maxLimit < 1)
+            throw new IllegalArgumentException("The maximum limit must be a positive number");
+        else if (service == null && method != null)
+            throw new IllegalArgumentException(
+                    "Invalid OWS definition, request cannot be specified if service is not");
+        else if (method == null && outputFormat != null)
+            throw new IllegalArgumentException(
+                    "Invalid OWS definition, output format cannot be specified if request is not");
+        this.service = service;
+        this.method = method;
+        this.outputFormat = outputFormat;
+        this.maxLimit = maxLimit;
+        this.maxQueueTime = maxQueueTime;
+    }
+
+    public int getPriority() {
+        return maxLimit;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        if (!matchesRequest(request)) {
+            return true;
+        }
+
+        Limit limit = getLimit(request);
+        long budget = maxQueueTime;
+        if (timeout > 0 && (budget <= 0 || timeout < budget)) {
+            budget = timeout;
+        }
+
+        int inFlight;
+        try {
+            inFlight = limit.acquire(budget);
+            while (inFlight == Limit.RETIRED) {
+                // purged in the meantime, use the one replacing it
+                limit = getLimit(request);
+                inFlight = limit.acquire(budget);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING,
+                    "Unexpected interruption while waiting for an execution slot");
+            Thread.currentThread().interrupt();
+            inFlight = -1;
+        }
+        if (inFlight < 0) {
+            rejected.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " rejected request, " + limit);
+            }
+            return false;
+        }
+
+        slot.set(new Slot(limit, System.nanoTime(), inFlight));
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " " + limit);
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        Slot s = slot.get();
+        slot.remove();
+        if (s != null) {
+            s.limit.release((System.nanoTime() - s.start) / 1000000d, s.inFlight);
+        }
+    }
+
+    boolean matchesRequest(Request request) {
+        if (service == null)
+            return true;
+        else if (!service.equalsIgnoreCase(request.getService()))
+            return false;
+
+        if (method == null)
+            return true;
+        else if (!method.equalsIgnoreCase(request.getRequest()))
+            return false;
+
+        if (outputFormat == null)
+            return true;
+        else
+            return outputFormat.equalsIgnoreCase(request.getOutputFormat());
+    }
+
+    /**
+     * Returns the limit tracking the request type, creating it if missing or purged
+     */
+    Limit getLimit(Request request) {
+        String key = key(request);
+        Limit limit = limits.get(key);
+        if (limit == null || limit.isRetired()) {
+            synchronized (limits) {
+                limit = limits.get(key);
+                if (limit == null || limit.isRetired()) {
+                    cleanup();
+                    limit = new Limit(minLimit, maxLimit);
+                    limits.put(key, limit);
+                }
+            }
+        }
+        return limit;
+    }
+
+    String key(Request request) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.getService()).append('.').append(request.getRequest()).append('.')
+                .append(request.getOutputFormat());
+        return sb.toString().toLowerCase();
+    }
+
+    /**
+     * Purges the idle limits once too many have been accumulated, output formats are client
+     * provided and could otherwise make the map grow without bounds. A purged limit is retired,
+     * under its own lock, so that requests that looked it up just before get a new one instead
+     * of running untracked. Called while holding the lock on the limits.
+     */
+    void cleanup() {
+        long now = System.currentTimeMillis();
+        if (limits.size() < maxLimits && (now - lastCleanup) < maxAge) {
+            return;
+        }
+        int cleanupCount = 0;
+        for (Iterator<Limit> it = limits.values().iterator(); it.hasNext();) {
+            Limit limit = it.next();
+            if (limit.retire(now, maxAge)) {
+                it.remove();
+                cleanupCount++;
+            }
+        }
+        lastCleanup = now;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " purged " + cleanupCount + " idle limits");
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit for each request type seen so far
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getLimit());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of requests rejected so far
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public long getMaxQueueTime() {
+        return maxQueueTime;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveFlowController(" + service + "," + method + "," + outputFormat + ","
+                + maxLimit + "," + maxQueueTime + ")";
+    }
+
+    /**
+     * The execution slot taken by the current thread
+     */
+    static class Slot {
+        Limit limit;
+
+        long start;
+
+        int inFlight;
+
+        Slot(Limit limit, long start, int inFlight) {
+            this.limit = limit;
+            this.start = start;
+            this.inFlight = inFlight;
+        }
+    }
+
+    /**
+     * The concurrency limit of a single request type. The limit is updated on each completed
+     * request as <code>limit * gradient + sqrt(limit)</code>, where the gradient is the ratio
+     * between the best response time and the current average one, and the square root allows
+     * for a small queue to build up so that the limit can probe upwards.
+     */
+    static class Limit {
+        /**
+         * Returned by {@link #acquire(long)} once the limit has been purged
+         */
+        static final int RETIRED = -2;
+
+        /**
+         * Weight of the last sample in the average response time
+         */
+        static final double RTT_SMOOTHING = 0.1;
+
+        /**
+         * Weight of the new estimate when updating the limit
+         */
+        static final double LIMIT_SMOOTHING = 0.2;
+
+        final int minLimit;
+
+        final int maxLimit;
+
+        double limit;
+
+        int inFlight;
+
+        int waiting;
+
+        double rtt;
+
+        double noLoadRtt;
+
+        int samples;
+
+        long lastUsed = System.currentTimeMillis();
+
+        boolean retired;
+
+        Limit(int minLimit, int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.limit = Math.max(minLimit, Math.min(maxLimit,
+                    Runtime.getRuntime().availableProcessors()));
+        }
+
+        /**
+         * Waits for an execution slot up to the specified budget, or forever if the budget is not
+         * positive
+         *
+         * @return the number of requests in flight including this one, -1 if the request was
+         *         rejected, or {@link #RETIRED} if the limit has been purged
+         */
+        synchronized int acquire(long budget) throws InterruptedException {
+            if (retired) {
+                return RETIRED;
+            }
+            lastUsed = System.currentTimeMillis();
+            if (inFlight < getLimit()) {
+                return ++inFlight;
+            }
+
+            // fail fast if we already know the request won't make it in time
+            if (budget > 0 && estimateQueueTime(waiting + 1) > budget) {
+                return -1;
+            }
+
+            waiting++;
+            try {
+                long deadline = budget > 0 ? System.currentTimeMillis() + budget : -1;
+                while (inFlight >= getLimit()) {
+                    if (deadline > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return -1;
+                        }
+                        wait(remaining);
+                    } else {
+                        wait();
+                    }
+                }
+                return ++inFlight;
+            } finally {
+                waiting--;
+            }
+        }
+
+        /**
+         * Releases an execution slot and updates the limit with the response time of the request
+         *
+         * @param sample the request response time, in milliseconds
+         * @param startInFlight the number of requests in flight when the request started
+         */
+        synchronized void release(double sample, int startInFlight) {
+            inFlight--;
+            lastUsed = System.currentTimeMillis();
+            update(sample, startInFlight);
+            notifyAll();
+        }
+
+        void update(double sample, int startInFlight) {
+            samples++;
+            if (rtt == 0) {
+                rtt = sample;
+            } else {
+                rtt = rtt * (1 - RTT_SMOOTHING) + sample * RTT_SMOOTHING;
+            }
+            if (samples % NO_LOAD_RESET_SAMPLES == 0) {
+                noLoadRtt = rtt;
+            } else if (noLoadRtt == 0 || sample < noLoadRtt) {
+                noLoadRtt = sample;
+            }
+            if (rtt <= 0) {
+                return;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, noLoadRtt / rtt));
+            // don't grow the limit if the requests are not using it
+            if (gradient == 1.0 && startInFlight < limit / 2) {
+                return;
+            }
+            double estimate = limit * gradient + Math.sqrt(limit);
+            double newLimit = limit * (1 - LIMIT_SMOOTHING) + estimate * LIMIT_SMOOTHING;
+            limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        }
+
+        /**
+         * Estimates how long a request in the specified queue position will wait, assuming
+         * each batch of <code>limit</code> requests takes the average response time to run
+         */
+        long estimateQueueTime(int position) {
+            return (long) (Math.ceil(position / (double) getLimit()) * rtt);
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        /**
+         * Retires the limit if it has been idle for longer than the specified age
+         *
+         * @return true if the limit got retired
+         */
+        synchronized boolean retire(long now, long maxAge) {
+            if (inFlight == 0 && waiting == 0 && now - lastUsed > maxAge) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        synchronized boolean isRetired() {
+            return retired;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "limit " + getLimit() + ", running " + inFlight + ", waiting " + waiting
+                    + ", average time " + Math.round(rtt) + "ms";
+        }
+    }
+}
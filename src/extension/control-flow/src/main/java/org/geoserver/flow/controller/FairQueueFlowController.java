@@ -0,0 +1,454 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * A flow controller sharing a fixed number of execution slots among classes of requests, instead
+ * of serving them first come first served. Each request is assigned to a {@link RequestClass}
+ * based on service, request, output format, layer and user role, and requests in excess are
+ * scheduled using start time fair queueing, so that each class gets a share of the slots
+ * proportional to its weight. Each class can also be guaranteed a minimum number of slots that
+ * other classes cannot use, so that a few heavy requests cannot starve the cheap ones.
+ */
+public class FairQueueFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Name of the class collecting the requests not matched by any other class
+     */
+    public static final String DEFAULT_CLASS = "default";
+
+    int queueSize;
+
+    List<RequestClass> classes;
+
+    RequestClass defaultClass;
+
+    /**
+     * The virtual time of the last request that started execution
+     */
+    double virtualTime;
+
+    ThreadLocal<RequestClass> current = new ThreadLocal<RequestClass>();
+
+    /**
+     * Builds a new {@link FairQueueFlowController}
+     *
+     * @param queueSize
+     *            the total number of requests that can execute in parallel
+     * @param classes
+     *            the request classes, if none is named {@link #DEFAULT_CLASS} one with weight 1
+     *            and no guaranteed slots will be added to handle the requests not matching any
+     *            class
+     */
+    public FairQueueFlowController(int queueSize, List<RequestClass> classes) {
+        this.queueSize = queueSize;
+        this.classes = new ArrayList<RequestClass>(classes);
+        for (RequestClass rc : classes) {
+            if (DEFAULT_CLASS.equals(rc.name)) {
+                defaultClass = rc;
+            }
+        }
+        if (defaultClass == null) {
+            defaultClass = new RequestClass(DEFAULT_CLASS, 1, 0);
+            this.classes.add(defaultClass);
+        }
+
+        int reserved = 0;
+        for (RequestClass rc : this.classes) {
+            reserved += rc.minConcurrency;
+        }
+        if (reserved > queueSize) {
+            throw new IllegalArgumentException("The guaranteed slots of the request classes ("
+                    + reserved + ") exceed the total number of slots (" + queueSize + ")");
+        }
+        // the most specific classes get to match first
+        Collections.sort(this.classes);
+    }
+
+    public int getPriority() {
+        return queueSize;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        RequestClass rc = classify(request);
+        synchronized (this) {
+            if (rc.queue.isEmpty() && canStart(rc)) {
+                start(rc, 0);
+                current.set(rc);
+                return true;
+            }
+
+            if (rc.queue.isEmpty()) {
+                // a class becoming backlogged cannot claim the time it has been idle
+                rc.virtualTime = Math.max(rc.virtualTime, virtualTime);
+            }
+            Ticket ticket = new Ticket();
+            rc.queue.add(ticket);
+            try {
+                long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : -1;
+                while (!ticket.granted) {
+                    if (deadline > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Unexpected interruption while "
+                        + "blocking on the request queue");
+                Thread.currentThread().interrupt();
+            }
+            if (!ticket.granted) {
+                rc.queue.remove(ticket);
+                rc.timedOut++;
+                return false;
+            }
+            current.set(rc);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " " + rc);
+            }
+            return true;
+        }
+    }
+
+    public void requestComplete(Request request) {
+        RequestClass rc = current.get();
+        current.remove();
+        if (rc != null) {
+            synchronized (this) {
+                rc.running--;
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Returns the class the request belongs to
+     */
+    RequestClass classify(Request request) {
+        Set<String> roles = null;
+        for (RequestClass rc : classes) {
+            if (rc.criteria.containsKey(RequestClass.ROLE) && roles == null) {
+                roles = getRoles();
+            }
+            if (rc.matches(request, roles)) {
+                return rc;
+            }
+        }
+        return defaultClass;
+    }
+
+    Set<String> getRoles() {
+        Set<String> roles = new HashSet<String>();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            for (GrantedAuthority ga : auth.getAuthorities()) {
+                roles.add(ga.getAuthority().toLowerCase());
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * A class can start a request if it did not use all its guaranteed slots yet, or if there are
+     * shared slots available
+     */
+    boolean canStart(RequestClass rc) {
+        if (rc.running < rc.minConcurrency) {
+            return true;
+        }
+        int shared = queueSize;
+        int usedShared = 0;
+        for (RequestClass c : classes) {
+            shared -= c.minConcurrency;
+            usedShared += Math.max(0, c.running - c.minConcurrency);
+        }
+        return usedShared < shared;
+    }
+
+    /**
+     * Grants the free slots to the queued requests. Classes below their guaranteed slots go
+     * first, then the shared slots go to the backlogged class with the smallest virtual time
+     */
+    void dispatch() {
+        boolean granted = false;
+        while (true) {
+            RequestClass best = null;
+            for (RequestClass rc : classes) {
+                if (!rc.queue.isEmpty() && rc.running < rc.minConcurrency
+                        && (best == null || rc.virtualTime < best.virtualTime)) {
+                    best = rc;
+                }
+            }
+            if (best == null) {
+                for (RequestClass rc : classes) {
+                    if (!rc.queue.isEmpty() && (best == null || rc.virtualTime < best.virtualTime)) {
+                        best = rc;
+                    }
+                }
+                if (best == null || !canStart(best)) {
+                    break;
+                }
+            }
+
+            Ticket ticket = best.queue.removeFirst();
+            ticket.granted = true;
+            start(best, System.currentTimeMillis() - ticket.created);
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    void start(RequestClass rc, long queueTime) {
+        virtualTime = Math.max(virtualTime, rc.virtualTime);
+        rc.virtualTime = Math.max(rc.virtualTime, virtualTime) + 1d / rc.weight;
+        rc.running++;
+        rc.started++;
+        rc.queueTime += queueTime;
+    }
+
+    /**
+     * Returns the request classes, in the order they are matched
+     */
+    public List<RequestClass> getClasses() {
+        return Collections.unmodifiableList(classes);
+    }
+
+    @Override
+    public String toString() {
+        return "FairQueueFlowController(" + queueSize + "," + classes.size() + " classes)";
+    }
+
+    /**
+     * A request waiting to be granted an execution slot
+     */
+    static class Ticket {
+        long created = System.currentTimeMillis();
+
+        boolean granted;
+    }
+
+    /**
+     * A class of requests sharing the same weight and guaranteed slots. The class matches a
+     * request if, for each criteria type it uses, at least one of the values matches.
+     */
+    public static class RequestClass implements Comparable<RequestClass> {
+        public static final String SERVICE = "service";
+
+        public static final String REQUEST = "request";
+
+        public static final String FORMAT = "format";
+
+        public static final String LAYER = "layer";
+
+        public static final String ROLE = "role";
+
+        String name;
+
+        int weight;
+
+        int minConcurrency;
+
+        Map<String, Set<String>> criteria = new LinkedHashMap<String, Set<String>>();
+
+        double virtualTime;
+
+        LinkedList<Ticket> queue = new LinkedList<Ticket>();
+
+        int running;
+
+        long started;
+
+        long timedOut;
+
+        long queueTime;
+
+        /**
+         * Builds a new class
+         *
+         * @param name
+         *            the class name
+         * @param weight
+         *            the share of slots the class gets when competing with the other ones
+         * @param minConcurrency
+         *            the number of slots reserved to the class
+         */
+        public RequestClass(String name, int weight, int minConcurrency) {
+            if (weight < 1)
+                throw new IllegalArgumentException("Invalid weight " + weight + " for class "
+                        + name + ", it must be a positive number");
+            this.name = name;
+            this.weight = weight;
+            this.minConcurrency = Math.max(0, minConcurrency);
+        }
+
+        /**
+         * Adds a criteria to the class
+         *
+         * @param type
+         *            one of {@link #SERVICE}, {@link #REQUEST}, {@link #FORMAT}, {@link #LAYER},
+         *            {@link #ROLE}
+         * @param value
+         *            the value to be matched, case insensitive
+         */
+        public void addCriteria(String type, String value) {
+            type = type.toLowerCase();
+            if (!SERVICE.equals(type) && !REQUEST.equals(type) && !FORMAT.equals(type)
+                    && !LAYER.equals(type) && !ROLE.equals(type))
+                throw new IllegalArgumentException("Unknown criteria type " + type);
+            Set<String> values = criteria.get(type);
+            if (values == null) {
+                values = new HashSet<String>();
+                criteria.put(type, values);
+            }
+            values.add(value.toLowerCase());
+        }
+
+        boolean matches(Request request, Set<String> roles) {
+            if (criteria.isEmpty()) {
+                return false;
+            }
+            for (Map.Entry<String, Set<String>> entry : criteria.entrySet()) {
+                String type = entry.getKey();
+                Set<String> values = entry.getValue();
+                if (SERVICE.equals(type)) {
+                    if (!matches(values, request.getService()))
+                        return false;
+                } else if (REQUEST.equals(type)) {
+                    if (!matches(values, request.getRequest()))
+                        return false;
+                } else if (FORMAT.equals(type)) {
+                    if (!matches(values, request.getOutputFormat()))
+                        return false;
+                } else if (LAYER.equals(type)) {
+                    if (!matchesAny(values, getLayers(request)))
+                        return false;
+                } else if (ROLE.equals(type)) {
+                    if (roles == null || !matchesAny(values, roles))
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(Set<String> values, String value) {
+            return value != null && values.contains(value.toLowerCase());
+        }
+
+        boolean matchesAny(Set<String> values, Set<String> candidates) {
+            for (String candidate : candidates) {
+                if (values.contains(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Set<String> getLayers(Request request) {
+            Set<String> layers = new HashSet<String>();
+            Map kvp = request.getRawKvp();
+            if (kvp != null) {
+                for (String key : new String[] { "LAYERS", "LAYER", "TYPENAME", "TYPENAMES",
+                        "COVERAGE", "IDENTIFIER", "COVERAGEID" }) {
+                    Object value = kvp.get(key);
+                    if (value instanceof String) {
+                        for (String layer : ((String) value).split(",")) {
+                            layers.add(layer.trim().toLowerCase());
+                        }
+                    }
+                }
+            }
+            return layers;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getMinConcurrency() {
+            return minConcurrency;
+        }
+
+        /**
+         * Number of requests of this class currently executing
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * Number of requests of this class currently waiting for a slot
+         */
+        public int getQueued() {
+            return queue.size();
+        }
+
+        /**
+         * Number of requests of this class that got a slot
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Number of requests of this class that timed out while waiting for a slot
+         */
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Average time, in milliseconds, the requests of this class waited for a slot
+         */
+        public long getAverageQueueTime() {
+            return started > 0 ? queueTime / started : 0;
+        }
+
+        /**
+         * Sorts classes by decreasing number of criteria types, then by name
+         */
+        public int compareTo(RequestClass other) {
+            int diff = other.criteria.size() - criteria.size();
+            return diff != 0 ? diff : name.compareTo(other.name);
+        }
+
+        @Override
+        public String toString() {
+            return "RequestClass(" + name + "," + weight + "," + minConcurrency + ") running "
+                    + running + ", queued " + queue.size() + ", started " + started
+                    + ", timed out " + timedOut;
+        }
+    }
+}
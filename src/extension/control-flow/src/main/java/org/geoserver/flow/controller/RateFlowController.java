@@ -0,0 +1,327 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * A flow controller limiting the rate at which a single client can issue requests, as opposed to
+ * the number of concurrent ones. Each client gets a token bucket that refills at a fixed rate and
+ * can hold up to a burst of tokens, requests finding the bucket empty are rejected with a 429
+ * code and a <code>Retry-After</code> header telling the client when it can try again.
+ * <p>
+ * Buckets are kept lock free in a single long each, using the generic cell rate algorithm
+ * formulation of the token bucket: the bucket stores the time at which it will be full again,
+ * which makes full buckets equivalent to missing ones, and allows them to be purged at any time.
+ */
+public class RateFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * The HTTP code for "too many requests"
+     */
+    static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * How clients are identified
+     */
+    public enum KeyType {
+        /**
+         * The client ip address, as reported also by proxies in the X-Forwarded-For header
+         */
+        IP,
+        /**
+         * The authenticated user name, falling back on the ip address for anonymous requests
+         */
+        USER,
+        /**
+         * The control flow cookie, also used by {@link UserFlowController}, falling back on the
+         * ip address for clients not sending it
+         */
+        COOKIE
+    }
+
+    KeyType keyType;
+
+    String service;
+
+    String method;
+
+    String outputFormat;
+
+    int requests;
+
+    long period;
+
+    int burst;
+
+    /**
+     * Time between two tokens, in nanoseconds
+     */
+    long interval;
+
+    /**
+     * Max number of buckets kept in memory
+     */
+    int maxBuckets = 10000;
+
+    /**
+     * Min time between two purges of the full buckets, in nanoseconds
+     */
+    long purgeInterval = TimeUnit.SECONDS.toNanos(60);
+
+    volatile long lastPurge = System.nanoTime();
+
+    AtomicBoolean purging = new AtomicBoolean();
+
+    ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Builds a new {@link RateFlowController}
+     *
+     * @param keyType
+     *            how clients are identified
+     * @param service
+     *            the service to be matched, or null to match all
+     * @param method
+     *            the request to be matched, or null to match all
+     * @param outputFormat
+     *            the output format to be matched, or null to match all
+     * @param requests
+     *            the number of requests allowed in each period
+     * @param period
+     *            the period, in milliseconds
+     * @param burst
+     *            the max number of requests that can be made back to back, 0 or a negative number
+     *            to use the number of requests per period
+     */
+    public RateFlowController(KeyType keyType, String service, String method,
+            String outputFormat, int requests, long period, int burst) {
+        if (requests < 1 || period < 1)
+            throw new IllegalArgumentException("Invalid rate " + requests + "/" + period
+                    + "ms, both numbers must be positive");
+        else if (service == null && method != null)
+            throw new IllegalArgumentException(
+                    "Invalid OWS definition, request cannot be specified if service is not");
+        else if (method == null && outputFormat != null)
+            throw new IllegalArgumentException(
+                    "Invalid OWS definition, output format cannot be specified if request is not");
+        this.keyType = keyType;
+        this.service = service;
+        this.method = method;
+        this.outputFormat = outputFormat;
+        this.requests = requests;
+        this.period = period;
+        this.burst = burst > 0 ? burst : requests;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(period) / requests;
+    }
+
+    /**
+     * Rate limiting is cheap and can save the request from waiting in other queues only to be
+     * rejected later, so the controller goes first
+     */
+    public int getPriority() {
+        return 0;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        if (!matchesRequest(request)) {
+            return true;
+        }
+
+        String key = getKey(request);
+        long wait = acquire(key, System.nanoTime());
+        if (wait > 0) {
+            rejected.incrementAndGet();
+            long seconds = Math.max(1, (long) Math.ceil(wait / 1e9));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " rejected request from " + key + ", retry after " + seconds
+                        + "s");
+            }
+            HttpServletResponse response = request.getHttpResponse();
+            if (response != null) {
+                response.setHeader("Retry-After", String.valueOf(seconds));
+            }
+            throw new HttpErrorCodeException(TOO_MANY_REQUESTS, "Too many requests, retry in "
+                    + seconds + " seconds");
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        // nothing to do, the tokens are not given back
+    }
+
+    /**
+     * Takes a token from the bucket
+     *
+     * @return 0 if the token was available, otherwise the number of nanoseconds before one will be
+     */
+    long acquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            purge(now);
+            bucket = new AtomicLong(now);
+            AtomicLong existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+
+        // the bucket holds the time it will be full again, each token pushes it forward one
+        // interval, and we cannot go further than a full burst in the future
+        long tolerance = interval * burst;
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + interval;
+            if (next - now > tolerance) {
+                return next - now - tolerance;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Removes the full buckets, which are equivalent to missing ones, when the map is too big or
+     * enough time has passed since the last purge. If the map is still too big afterwards, some
+     * buckets are evicted regardless, giving their clients a fresh bucket
+     */
+    void purge(long now) {
+        if (buckets.size() < maxBuckets && now - lastPurge < purgeInterval) {
+            return;
+        }
+        // only one thread purges, the others just go on
+        if (!purging.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int purged = 0;
+            for (Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext();) {
+                if (it.next().get() <= now) {
+                    it.remove();
+                    purged++;
+                }
+            }
+            for (Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext()
+                    && buckets.size() >= maxBuckets;) {
+                it.next();
+                it.remove();
+                purged++;
+            }
+            lastPurge = now;
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " purged " + purged + " buckets");
+            }
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    String getKey(Request request) {
+        HttpServletRequest httpRequest = request.getHttpRequest();
+        if (keyType == KeyType.USER) {
+            Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+            if (auth != null && auth.isAuthenticated()
+                    && !(auth instanceof AnonymousAuthenticationToken)) {
+                return "user:" + auth.getName();
+            }
+        } else if (keyType == KeyType.COOKIE && httpRequest != null) {
+            Cookie[] cookies = httpRequest.getCookies();
+            if (cookies != null) {
+                for (Cookie cookie : cookies) {
+                    if (cookie.getName().equals(UserFlowController.COOKIE_NAME)) {
+                        return "cookie:" + cookie.getValue();
+                    }
+                }
+            }
+        }
+
+        String ip = httpRequest != null ? IpFlowController.getRemoteAddr(httpRequest) : null;
+        return "ip:" + (ip == null ? "" : ip);
+    }
+
+    boolean matchesRequest(Request request) {
+        if (service == null)
+            return true;
+        else if (!service.equalsIgnoreCase(request.getService()))
+            return false;
+
+        if (method == null)
+            return true;
+        else if (!method.equalsIgnoreCase(request.getRequest()))
+            return false;
+
+        if (outputFormat == null)
+            return true;
+        else
+            return outputFormat.equalsIgnoreCase(request.getOutputFormat());
+    }
+
+    /**
+     * Returns the number of requests rejected so far
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public int getRequests() {
+        return requests;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public String toString() {
+        return "RateFlowController(" + keyType + "," + service + "," + method + ","
+                + outputFormat + "," + requests + "/" + period + "ms," + burst + ")";
+    }
+}
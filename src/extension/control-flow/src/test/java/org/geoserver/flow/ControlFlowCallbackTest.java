@@ -53,12 +53,34 @@ public class ControlFlowCallbackTest {
         callback.finished(null);
     }
 
+    @Test
+    public void testParallelism() {
+        ControlFlowCallback callback = new ControlFlowCallback();
+        TestingConfigurator tc = new TestingConfigurator();
+        tc.controllers.add(new CountingController(1, 0));
+        callback.configurator = tc;
+        callback.reloadConfiguration();
+
+        // no limit configured
+        assertEquals(8, callback.getParallelism(null, 8));
+
+        tc.parallelism = 4;
+        callback.reloadConfiguration();
+        assertEquals(4, callback.getParallelism(null, 8));
+        assertEquals(2, callback.getParallelism(null, 2));
+
+        // requests waiting in queue, no parallelism allowed
+        callback.blockedRequests.incrementAndGet();
+        assertEquals(1, callback.getParallelism(null, 8));
+    }
+
     /**
      * A wide open configurator to be used for testing
      */
     static class TestingConfigurator implements ControlFlowConfigurator {
         List<FlowController> controllers = new ArrayList<FlowController>();
         long timeout;
+        int parallelism;
         boolean stale = true;
 
         public Collection<FlowController> buildFlowControllers() throws Exception {
@@ -70,6 +92,10 @@ public class ControlFlowCallbackTest {
             return timeout;
         }
 
+        public int getParallelism() {
+            return parallelism;
+        }
+
         public boolean isStale() {
             return stale;
         }
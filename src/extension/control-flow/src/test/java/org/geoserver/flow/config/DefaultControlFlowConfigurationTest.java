@@ -9,9 +9,14 @@ import java.util.Properties;
 
 import org.geoserver.flow.ControllerPriorityComparator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
+import org.geoserver.flow.controller.FairQueueFlowController;
+import org.geoserver.flow.controller.FairQueueFlowController.RequestClass;
 import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.flow.controller.IpFlowController;
+import org.geoserver.flow.controller.RateFlowController;
+import org.geoserver.flow.controller.RateFlowController.KeyType;
 import org.geoserver.flow.controller.SingleIpFlowController;
 import org.geoserver.flow.controller.UserFlowController;
 import org.geoserver.security.PropertyFileWatcher;
@@ -23,6 +28,7 @@ public class DefaultControlFlowConfigurationTest {
     public void testParsing() throws Exception {
         Properties p = new Properties();
         p.put("timeout", "10");
+        p.put("parallelism", "4");
         p.put("ows.global", "100");
         p.put("ows.wms.getmap", "8");
         p.put("user", "6");
@@ -37,6 +43,7 @@ public class DefaultControlFlowConfigurationTest {
         Collections.sort(controllers, new ControllerPriorityComparator());
         assertFalse(configurator.isStale());
         assertEquals(10 * 1000, configurator.getTimeout());
+        assertEquals(4, configurator.getParallelism());
 
         assertEquals(6, controllers.size());
         assertTrue(controllers.get(0) instanceof UserFlowController);
@@ -63,6 +70,91 @@ public class DefaultControlFlowConfigurationTest {
         assertEquals(14, ipSc.getPriority());
     }
 
+    @Test
+    public void testParsingAdaptive() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive", "64");
+        p.put("adaptive.wms.getmap", "16,2000");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        Collections.sort(controllers, new ControllerPriorityComparator());
+        assertEquals(2, controllers.size());
+
+        AdaptiveFlowController getMap = (AdaptiveFlowController) controllers.get(0);
+        assertEquals(16, getMap.getPriority());
+        assertEquals("wms", getMap.getService());
+        assertEquals("getmap", getMap.getMethod());
+        assertNull(getMap.getOutputFormat());
+        assertEquals(2000, getMap.getMaxQueueTime());
+
+        AdaptiveFlowController all = (AdaptiveFlowController) controllers.get(1);
+        assertEquals(64, all.getPriority());
+        assertNull(all.getService());
+        assertEquals(-1, all.getMaxQueueTime());
+    }
+
+    @Test
+    public void testParsingFair() throws Exception {
+        Properties p = new Properties();
+        p.put("fair", "16");
+        p.put("fair.tiles", "8,4,service:gwc");
+        p.put("fair.exports", "1,1,service:wfs,format:shape-zip,layer:topp:states");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+
+        FairQueueFlowController fc = (FairQueueFlowController) controllers.get(0);
+        assertEquals(16, fc.getPriority());
+        List<RequestClass> classes = fc.getClasses();
+        assertEquals(3, classes.size());
+        RequestClass exports = classes.get(0);
+        assertEquals("exports", exports.getName());
+        assertEquals(1, exports.getWeight());
+        assertEquals(1, exports.getMinConcurrency());
+        RequestClass tiles = classes.get(1);
+        assertEquals("tiles", tiles.getName());
+        assertEquals(8, tiles.getWeight());
+        assertEquals(4, tiles.getMinConcurrency());
+        assertEquals(FairQueueFlowController.DEFAULT_CLASS, classes.get(2).getName());
+    }
+
+    @Test
+    public void testParsingRate() throws Exception {
+        Properties p = new Properties();
+        p.put("rate.ip.gwc", "100/s,200");
+        p.put("rate.user", "1000/h");
+        p.put("rate.foo", "1/s");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(2, controllers.size());
+        RateFlowController gwc = null;
+        RateFlowController user = null;
+        for (FlowController fc : controllers) {
+            RateFlowController rc = (RateFlowController) fc;
+            if (rc.getKeyType() == KeyType.IP) {
+                gwc = rc;
+            } else {
+                user = rc;
+            }
+        }
+
+        assertEquals("gwc", gwc.getService());
+        assertEquals(100, gwc.getRequests());
+        assertEquals(1000, gwc.getPeriod());
+        assertEquals(200, gwc.getBurst());
+        assertEquals(KeyType.USER, user.getKeyType());
+        assertNull(user.getService());
+        assertEquals(1000, user.getRequests());
+        assertEquals(60 * 60 * 1000, user.getPeriod());
+        assertEquals(1000, user.getBurst());
+    }
+
     static class FixedWatcher extends PropertyFileWatcher {
         boolean stale = true;
 
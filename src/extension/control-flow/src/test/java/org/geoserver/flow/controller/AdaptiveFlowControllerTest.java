@@ -0,0 +1,165 @@
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import org.geoserver.flow.controller.AdaptiveFlowController.Limit;
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+import org.junit.Test;
+
+public class AdaptiveFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    @Test
+    public void testMatch() {
+        AdaptiveFlowController controller = new AdaptiveFlowController("WMS", "GetMap", null,
+                10, -1);
+        assertFalse(controller.matchesRequest(buildRequest("WFS", "GetFeature", "GML")));
+        assertTrue(controller.matchesRequest(buildRequest("WMS", "GETMAP", "image/png")));
+        assertFalse(controller.matchesRequest(buildRequest("WMS", "GetFeatureInfo", "image/png")));
+        assertTrue(new AdaptiveFlowController(10).matchesRequest(buildRequest("WFS",
+                "GetFeature", "GML")));
+    }
+
+    @Test
+    public void testSeparateLimits() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(10);
+        Limit png = controller.getLimit(buildRequest("WMS", "GetMap", "image/png"));
+        assertSame(png, controller.getLimit(buildRequest("wms", "GETMAP", "IMAGE/PNG")));
+        assertNotSame(png, controller.getLimit(buildRequest("WMS", "GetMap", "image/jpeg")));
+        assertEquals(2, controller.getLimits().size());
+    }
+
+    @Test
+    public void testPurgedLimitReplaced() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(10);
+        Request request = buildRequest("WMS", "GetMap", "image/png");
+        Limit stale = controller.getLimit(request);
+
+        // the limit gets purged after a request looked it up
+        assertTrue(stale.retire(System.currentTimeMillis() + 1000, 0));
+        assertEquals(Limit.RETIRED, stale.acquire(-1));
+
+        // the request is tracked by the limit replacing it
+        assertTrue(controller.requestIncoming(request, -1));
+        Limit current = controller.getLimit(request);
+        assertNotSame(stale, current);
+        assertFalse(current.retire(System.currentTimeMillis() + 1000, 0));
+        controller.requestComplete(request);
+    }
+
+    @Test
+    public void testLimitFollowsLatency() {
+        Limit limit = new Limit(1, 100);
+        int initial = limit.getLimit();
+
+        // fast and stable response times with a saturated limit make it grow
+        for (int i = 0; i < 100; i++) {
+            limit.update(10, limit.getLimit());
+        }
+        int grown = limit.getLimit();
+        assertTrue(grown > initial);
+
+        // response times degrading make it shrink
+        for (int i = 0; i < 100; i++) {
+            limit.update(50, limit.getLimit());
+        }
+        assertTrue(limit.getLimit() < grown);
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhenUnused() {
+        Limit limit = new Limit(1, 100);
+        int initial = limit.getLimit();
+        for (int i = 0; i < 100; i++) {
+            limit.update(10, 0);
+        }
+        assertEquals(initial, limit.getLimit());
+    }
+
+    @Test
+    public void testQueueAndProceed() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(1);
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+
+            // let t1 go, t2 should get its slot
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            waitBlocked(t2, MAX_WAIT);
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testFastReject() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(null, null, null, 1, 100);
+        // requests are known to take a second, waiting in queue cannot fit the budget
+        controller.getLimit(new Request()).update(1000, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t1.state);
+
+            // t2 is rejected without waiting for the budget to expire
+            long start = System.currentTimeMillis();
+            t2.start();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertTrue(System.currentTimeMillis() - start < 100);
+            assertEquals(1, controller.getRejected());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testBudgetExpires() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(null, null, null, 1, 100);
+
+        // no response time known yet, the request waits for the budget and then gives up
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    Request buildRequest(String service, String request, String outputFormat) {
+        Request r = new Request();
+        r.setService(service);
+        r.setRequest(request);
+        r.setOutputFormat(outputFormat);
+
+        return r;
+    }
+}
@@ -0,0 +1,167 @@
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geoserver.flow.controller.FairQueueFlowController.RequestClass;
+import org.geoserver.flow.controller.FairQueueFlowController.Ticket;
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.security.impl.GeoServerRole;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class FairQueueFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.getContext().setAuthentication(null);
+    }
+
+    @Test
+    public void testClassify() {
+        RequestClass exports = new RequestClass("exports", 1, 0);
+        exports.addCriteria("service", "WFS");
+        exports.addCriteria("format", "SHAPE-ZIP");
+        RequestClass tiles = new RequestClass("tiles", 4, 0);
+        tiles.addCriteria("service", "gwc");
+        RequestClass states = new RequestClass("states", 1, 0);
+        states.addCriteria("layer", "topp:states");
+        RequestClass admin = new RequestClass("admin", 1, 0);
+        admin.addCriteria("role", "ROLE_ADMINISTRATOR");
+        FairQueueFlowController controller = new FairQueueFlowController(4, Arrays.asList(
+                exports, tiles, states, admin));
+
+        assertSame(exports, controller.classify(buildRequest("wfs", "GetFeature", "shape-zip")));
+        assertSame(controller.defaultClass, controller.classify(buildRequest("wfs",
+                "GetFeature", "GML2")));
+        assertSame(tiles, controller.classify(buildRequest("GWC", "GetMap", "image/png")));
+
+        Request r = buildRequest("wms", "GetMap", "image/png");
+        r.getRawKvp().put("LAYERS", "topp:roads,topp:states");
+        assertSame(states, controller.classify(r));
+
+        r = buildRequest("wms", "GetMap", "image/png");
+        assertSame(controller.defaultClass, controller.classify(r));
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("admin", "geoserver", Collections
+                        .<GrantedAuthority> singletonList(GeoServerRole.ADMIN_ROLE)));
+        assertSame(admin, controller.classify(r));
+    }
+
+    @Test
+    public void testGuaranteedSlots() throws Exception {
+        RequestClass exports = new RequestClass("exports", 1, 0);
+        exports.addCriteria("format", "shape-zip");
+        RequestClass tiles = new RequestClass("tiles", 1, 1);
+        tiles.addCriteria("service", "gwc");
+        FairQueueFlowController controller = new FairQueueFlowController(2, Arrays.asList(
+                exports, tiles));
+
+        FlowControllerTestingThread e1 = new FlowControllerTestingThread(buildRequest("wfs",
+                "GetFeature", "shape-zip"), 0, Long.MAX_VALUE, controller);
+        FlowControllerTestingThread e2 = new FlowControllerTestingThread(buildRequest("wfs",
+                "GetFeature", "shape-zip"), 0, Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(buildRequest("gwc",
+                "GetMap", "image/png"), 0, Long.MAX_VALUE, controller);
+        try {
+            // the first export takes the only shared slot, the second has to wait
+            e1.start();
+            waitBlocked(e1, MAX_WAIT);
+            e2.start();
+            waitBlocked(e2, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, e1.state);
+            assertEquals(ThreadState.STARTED, e2.state);
+            assertEquals(1, exports.getQueued());
+
+            // the tile request uses its guaranteed slot
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t1.state);
+
+            // once the first export is done, the second one can go
+            e1.interrupt();
+            waitTerminated(e1, MAX_WAIT);
+            waitBlocked(e2, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, e2.state);
+            assertEquals(2, exports.getStarted());
+            assertEquals(0, exports.getQueued());
+        } finally {
+            waitAndKill(e1, MAX_WAIT);
+            waitAndKill(e2, MAX_WAIT);
+            waitAndKill(t1, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        FairQueueFlowController controller = new FairQueueFlowController(1, Collections
+                .<RequestClass> emptyList());
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 100,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertEquals(1, controller.defaultClass.getTimedOut());
+            assertEquals(0, controller.defaultClass.getQueued());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testWeightedShare() {
+        RequestClass heavy = new RequestClass("a", 3, 0);
+        heavy.addCriteria("service", "wms");
+        RequestClass light = new RequestClass("b", 1, 0);
+        light.addCriteria("service", "wfs");
+        FairQueueFlowController controller = new FairQueueFlowController(1, Arrays.asList(
+                heavy, light));
+
+        StringBuilder order = new StringBuilder();
+        synchronized (controller) {
+            for (int i = 0; i < 4; i++) {
+                heavy.queue.add(new Ticket());
+                light.queue.add(new Ticket());
+            }
+            for (int i = 0; i < 8; i++) {
+                controller.dispatch();
+                RequestClass started = heavy.running > 0 ? heavy : light;
+                order.append(started.getName());
+                started.running--;
+            }
+        }
+        // the heavier class gets three slots for each one of the lighter one
+        assertEquals(3, order.substring(0, 4).replace("b", "").length());
+        assertEquals("aaaabbbb", sort(order.toString()));
+    }
+
+    String sort(String s) {
+        char[] chars = s.toCharArray();
+        Arrays.sort(chars);
+        return new String(chars);
+    }
+
+    Request buildRequest(String service, String request, String outputFormat) {
+        Request r = new Request();
+        r.setService(service);
+        r.setRequest(request);
+        r.setOutputFormat(outputFormat);
+        r.setRawKvp(new KvpMap());
+
+        return r;
+    }
+}
@@ -0,0 +1,116 @@
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.flow.controller.RateFlowController.KeyType;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class RateFlowControllerTest {
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.getContext().setAuthentication(null);
+    }
+
+    @Test
+    public void testBurstAndRefill() {
+        // 10 requests per second, bursts of 2
+        RateFlowController controller = new RateFlowController(KeyType.IP, null, null, null, 10,
+                1000, 2);
+        long now = System.nanoTime();
+        assertEquals(0, controller.acquire("a", now));
+        assertEquals(0, controller.acquire("a", now));
+        long wait = controller.acquire("a", now);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait);
+
+        // other clients have their own bucket
+        assertEquals(0, controller.acquire("b", now));
+
+        // after the wait a new token is available
+        assertEquals(0, controller.acquire("a", now + wait));
+        assertTrue(controller.acquire("a", now + wait) > 0);
+    }
+
+    @Test
+    public void testRejectWithRetryAfter() {
+        RateFlowController controller = new RateFlowController(KeyType.IP, "wms", null, null, 1,
+                60 * 1000, 1);
+        Request request = buildRequest("127.0.0.1", "wms");
+        assertTrue(controller.requestIncoming(request, -1));
+        controller.requestComplete(request);
+
+        // a different service is not limited
+        assertTrue(controller.requestIncoming(buildRequest("127.0.0.1", "wfs"), -1));
+
+        request = buildRequest("127.0.0.1", "wms");
+        try {
+            controller.requestIncoming(request, -1);
+            fail("The request should have been rejected");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(429, e.getErrorCode());
+        }
+        MockHttpServletResponse response = (MockHttpServletResponse) request.getHttpResponse();
+        int retryAfter = Integer.parseInt(response.getHeader("Retry-After"));
+        assertTrue(retryAfter > 0 && retryAfter <= 60);
+        assertEquals(1, controller.getRejected());
+
+        // another ip can still go
+        assertTrue(controller.requestIncoming(buildRequest("127.0.0.2", "wms"), -1));
+    }
+
+    @Test
+    public void testUserKey() {
+        RateFlowController controller = new RateFlowController(KeyType.USER, null, null, null, 1,
+                1000, 1);
+        Request request = buildRequest("127.0.0.1", "wms");
+        assertEquals("ip:127.0.0.1", controller.getKey(request));
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("admin", "geoserver", Collections
+                        .<GrantedAuthority> emptyList()));
+        assertEquals("user:admin", controller.getKey(request));
+    }
+
+    @Test
+    public void testPurge() {
+        RateFlowController controller = new RateFlowController(KeyType.IP, null, null, null, 1,
+                1000, 1);
+        controller.maxBuckets = 2;
+        long now = System.nanoTime();
+        controller.acquire("a", now);
+        controller.acquire("b", now);
+        assertEquals(2, controller.buckets.size());
+
+        // a and b are full again by the time c shows up, so they get purged
+        controller.acquire("c", now + TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, controller.buckets.size());
+        assertTrue(controller.buckets.containsKey("c"));
+
+        // if purging full buckets is not enough, the map is still kept within bounds
+        controller.acquire("d", now + TimeUnit.SECONDS.toNanos(2));
+        controller.acquire("e", now + TimeUnit.SECONDS.toNanos(2));
+        assertTrue(controller.buckets.size() <= 2);
+        assertTrue(controller.buckets.containsKey("e"));
+    }
+
+    Request buildRequest(String ipAddress, String service) {
+        Request request = new Request();
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        httpRequest.setRemoteAddr(ipAddress);
+        request.setHttpRequest(httpRequest);
+        request.setHttpResponse(new MockHttpServletResponse());
+        request.setService(service);
+        return request;
+    }
+}
@@ -6,14 +6,21 @@ package org.geoserver.gwc;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geoserver.data.test.MockData.BASIC_POLYGONS;
 import static org.geoserver.gwc.GWC.tileLayerName;
 
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.util.DateUtil;
@@ -22,8 +29,12 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.gwc.layer.CatalogConfiguration;
+import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.test.GeoServerSystemTestSupport;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.map.CanvasPool;
+import org.geoserver.wms.map.RenderedImageMap;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.GeoWebCacheExtensions;
 import org.geowebcache.grid.BoundingBox;
@@ -331,4 +342,61 @@ public class GWCIntegrationTest extends GeoServerSystemTestSupport {
             assertTrue(true);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The maps dispatched for seeding are encoded after the GetMap dispatch ends, their canvas
+     * cannot go back to the pool before
+     */
+    @Test
+    public void testSeedingMapCanvasOutlivesDispatch() throws Exception {
+        CanvasPool.get().clear();
+        RenderedImageMap map = dispatchSeedingGetMap("-180,-90,0,90");
+        RenderedImageMap other = null;
+        try {
+            BufferedImage image = (BufferedImage) map.getImage();
+            int[] pixels = image.getRGB(0, 0, 256, 256, null, 0, 256);
+
+            // a map of the same size gets another canvas, and does not paint over the first one
+            other = dispatchSeedingGetMap("0,-90,180,90");
+            assertNotSame(image, other.getImage());
+            assertTrue(Arrays.equals(pixels, image.getRGB(0, 0, 256, 256, null, 0, 256)));
+
+            // the canvas is given back once the map is disposed
+            map.dispose();
+            map = null;
+            assertSame(image, CanvasPool.get().acquire(256, 256, image.getType()));
+        } finally {
+            if (map != null) {
+                map.dispose();
+            }
+            if (other != null) {
+                other.dispose();
+            }
+        }
+    }
+
+    RenderedImageMap dispatchSeedingGetMap(String bbox) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("SERVICE", "WMS");
+        params.put("VERSION", "1.1.1");
+        params.put("REQUEST", "GetMap");
+        params.put("LAYERS", getLayerId(MockData.LAKES));
+        params.put("STYLES", "");
+        params.put("SRS", "EPSG:4326");
+        params.put("BBOX", bbox);
+        params.put("WIDTH", "256");
+        params.put("HEIGHT", "256");
+        params.put("FORMAT", "image/png");
+        params.put("TRANSPARENT", "true");
+        params.put("EXCEPTIONS", GetMapRequest.SE_XML);
+        params.put(GeoServerTileLayer.GWC_SEED_INTERCEPT_TOKEN, "true");
+        try {
+            GWC.get().dispatchOwsRequest(params, (Cookie[]) null);
+            RenderedImageMap map = (RenderedImageMap) GeoServerTileLayer.WEB_MAP.get();
+            assertNotNull(map);
+            return map;
+        } finally {
+            GeoServerTileLayer.WEB_MAP.remove();
+        }
+    }
+}
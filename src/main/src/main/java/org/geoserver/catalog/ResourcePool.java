@@ -27,9 +27,16 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -155,6 +162,13 @@ public class ResourcePool {
     CoverageReaderCache coverageReaderCache;
     CoverageHintReaderCache hintCoverageReaderCache;
     HashMap<StyleInfo,Style> styleCache;
+    KeyedLoader<String, DataAccess> dataStoreLoader;
+    KeyedLoader<String, FeatureType> featureTypeLoader;
+    KeyedLoader<String, List<AttributeTypeInfo>> featureTypeAttributeLoader;
+    KeyedLoader<String, WebMapServer> wmsLoader;
+    KeyedLoader<String, GridCoverageReader> coverageReaderLoader;
+    KeyedLoader<CoverageHintReaderKey, GridCoverageReader> hintCoverageReaderLoader;
+    KeyedLoader<StyleInfo, Style> styleLoader;
     List<Listener> listeners;
     ThreadPoolExecutor coverageExecutor;
     CatalogRepository repository;
@@ -174,6 +188,18 @@ public class ResourcePool {
         wmsCache = new WMSCache();
         
         styleCache = new HashMap<StyleInfo, Style>();
+        
+        dataStoreLoader = new KeyedLoader<String, DataAccess>("dataStore", dataStoreCache);
+        featureTypeLoader = new KeyedLoader<String, FeatureType>("featureType", featureTypeCache);
+        featureTypeAttributeLoader = new KeyedLoader<String, List<AttributeTypeInfo>>(
+                "featureTypeAttribute", featureTypeAttributeCache);
+        wmsLoader = new KeyedLoader<String, WebMapServer>("wms", wmsCache);
+        coverageReaderLoader = new KeyedLoader<String, GridCoverageReader>("coverageReader", 
+                coverageReaderCache);
+        hintCoverageReaderLoader = new KeyedLoader<CoverageHintReaderKey, GridCoverageReader>(
+                "hintCoverageReader", hintCoverageReaderCache);
+        styleLoader = new KeyedLoader<StyleInfo, Style>("style", styleCache);
+        
         listeners = new CopyOnWriteArrayList<Listener>();
         
         catalog.addListener( new CacheClearingListener() );
@@ -189,8 +215,10 @@ public class ResourcePool {
         synchronized (this) {
             featureTypeCache.clear();
             featureTypeCache = new FeatureTypeCache(featureTypeCacheSize);
+            featureTypeLoader = featureTypeLoader.reset(featureTypeCache);
             featureTypeAttributeCache.clear();
             featureTypeAttributeCache = new FeatureTypeAttributeCache(featureTypeCacheSize);
+            featureTypeAttributeLoader = featureTypeAttributeLoader.reset(featureTypeAttributeCache);
         }
     }
     
@@ -206,6 +234,22 @@ public class ResourcePool {
         }
     }
     
+    /**
+     * Returns the loaders of the resource caches, which keep track of how many resources were
+     * loaded, how many requests had to wait on a load in progress and the time spent loading.
+     */
+    public List<KeyedLoader<?, ?>> getCacheLoaders() {
+        List<KeyedLoader<?, ?>> loaders = new ArrayList<KeyedLoader<?, ?>>();
+        loaders.add(dataStoreLoader);
+        loaders.add(featureTypeLoader);
+        loaders.add(featureTypeAttributeLoader);
+        loaders.add(coverageReaderLoader);
+        loaders.add(hintCoverageReaderLoader);
+        loaders.add(wmsLoader);
+        loaders.add(styleLoader);
+        return loaders;
+    }
+    
     /**
      * Adds a pool listener.
      */
@@ -299,97 +343,108 @@ public class ResourcePool {
      * 
      * @throws IOException Any errors that occur connecting to the resource.
      */
-    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( DataStoreInfo info ) throws IOException {
-        DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
+    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( final DataStoreInfo info ) throws IOException {
         try {
+            // cache only if the id is not null, no need to cache the stores
+            // returned from un-saved DataStoreInfo objects (it would be actually
+            // harmful, NPE when trying to dispose of them)
             String id = info.getId();
-            dataStore = (DataAccess<? extends FeatureType, ? extends Feature>) dataStoreCache.get(id);
+            DataAccess<? extends FeatureType, ? extends Feature> dataStore = 
+                (DataAccess<? extends FeatureType, ? extends Feature>) dataStoreCache.get(id);
             if ( dataStore == null ) {
-                synchronized (dataStoreCache) {
-                    dataStore = (DataAccess<? extends FeatureType, ? extends Feature>) dataStoreCache.get( id );
-                    if ( dataStore == null ) {
-                        //create data store
-                        Map<String, Serializable> connectionParameters = info.getConnectionParameters();
-                        
-                        //call this methdo to execute the hack which recognizes 
-                        // urls which are relative to the data directory
-                        // TODO: find a better way to do this
-                        connectionParameters = DataStoreUtils.getParams(connectionParameters,null);
-                        
-                        // obtain the factory
-                        DataAccessFactory factory = null;
-                        try {
-                            factory = getDataStoreFactory(info);
-                        } catch(IOException e) {
-                            throw new IOException("Failed to find the datastore factory for " + info.getName() 
-                                    + ", did you forget to install the store extension jar?");
-                        }
-                        Param[] params = factory.getParametersInfo();
-                        
-                        //ensure that the namespace parameter is set for the datastore
-                        if (!connectionParameters.containsKey( "namespace") && params != null) {
-                            //if we grabbed the factory, check that the factory actually supports
-                            // a namespace parameter, if we could not get the factory, assume that
-                            // it does
-                            boolean supportsNamespace = true;
-                            supportsNamespace = false;
-                            
-                            for ( Param p : params ) {
-                                if ( "namespace".equalsIgnoreCase( p.key ) ) {
-                                    supportsNamespace = true;
-                                    break;
-                                }
-                            }
-                            
-                            if ( supportsNamespace ) {
-                                WorkspaceInfo ws = info.getWorkspace();
-                                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
-                                if ( ns == null ) {
-                                    ns = info.getCatalog().getDefaultNamespace();
-                                }
-                                if ( ns != null ) {
-                                    connectionParameters.put( "namespace", ns.getURI() );
-                                }    
-                            }
-                        }
-                        
-                        // see if the store has a repository param, if so, pass the one wrapping
-                        // the store
-                        if(params != null) {
-                            for ( Param p : params ) {
-                                if(Repository.class.equals(p.getType())) {
-                                    connectionParameters.put(p.getName(), repository);
-                                }
-                            }
-                        }
-                        
-                        dataStore = DataStoreUtils.getDataAccess(connectionParameters);
-                        if (dataStore == null) {
-                            /*
-                             * Preserve DataStore retyping behaviour by calling
-                             * DataAccessFinder.getDataStore after the call to
-                             * DataStoreUtils.getDataStore above.
-                             * 
-                             * TODO: DataAccessFinder can also find DataStores, and when retyping is
-                             * supported for DataAccess, we can use a single mechanism.
-                             */
-                            dataStore = DataAccessFinder.getDataStore(connectionParameters);
-                        }
-                        
-                        if ( dataStore == null ) {
-                            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
-                        }
-                        
-                        // cache only if the id is not null, no need to cache the stores
-                        // returned from un-saved DataStoreInfo objects (it would be actually
-                        // harmful, NPE when trying to dispose of them)
-                        if(id != null) {
-                            dataStoreCache.put( id, dataStore );
-                        }
+                dataStore = dataStoreLoader.load(id, new Callable<DataAccess>() {
+                    public DataAccess call() throws Exception {
+                        return createDataStore(info);
                     }
-                } 
+                });
             }
             
+            return dataStore;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException().initCause(e);
+        }
+    }
+    
+    /**
+     * Connects to the data store described by the metadata, without caching it. 
+     */
+    DataAccess<? extends FeatureType, ? extends Feature> createDataStore( DataStoreInfo info ) throws IOException {
+        DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
+        try {
+            //create data store
+            Map<String, Serializable> connectionParameters = info.getConnectionParameters();
+
+            //call this methdo to execute the hack which recognizes 
+            // urls which are relative to the data directory
+            // TODO: find a better way to do this
+            connectionParameters = DataStoreUtils.getParams(connectionParameters,null);
+
+            // obtain the factory
+            DataAccessFactory factory = null;
+            try {
+                factory = getDataStoreFactory(info);
+            } catch(IOException e) {
+                throw new IOException("Failed to find the datastore factory for " + info.getName() 
+                        + ", did you forget to install the store extension jar?");
+            }
+            Param[] params = factory.getParametersInfo();
+
+            //ensure that the namespace parameter is set for the datastore
+            if (!connectionParameters.containsKey( "namespace") && params != null) {
+                //if we grabbed the factory, check that the factory actually supports
+                // a namespace parameter, if we could not get the factory, assume that
+                // it does
+                boolean supportsNamespace = true;
+                supportsNamespace = false;
+
+                for ( Param p : params ) {
+                    if ( "namespace".equalsIgnoreCase( p.key ) ) {
+                        supportsNamespace = true;
+                        break;
+                    }
+                }
+
+                if ( supportsNamespace ) {
+                    WorkspaceInfo ws = info.getWorkspace();
+                    NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
+                    if ( ns == null ) {
+                        ns = info.getCatalog().getDefaultNamespace();
+                    }
+                    if ( ns != null ) {
+                        connectionParameters.put( "namespace", ns.getURI() );
+                    }    
+                }
+            }
+
+            // see if the store has a repository param, if so, pass the one wrapping
+            // the store
+            if(params != null) {
+                for ( Param p : params ) {
+                    if(Repository.class.equals(p.getType())) {
+                        connectionParameters.put(p.getName(), repository);
+                    }
+                }
+            }
+
+            dataStore = DataStoreUtils.getDataAccess(connectionParameters);
+            if (dataStore == null) {
+                /*
+                 * Preserve DataStore retyping behaviour by calling
+                 * DataAccessFinder.getDataStore after the call to
+                 * DataStoreUtils.getDataStore above.
+                 * 
+                 * TODO: DataAccessFinder can also find DataStores, and when retyping is
+                 * supported for DataAccess, we can use a single mechanism.
+                 */
+                dataStore = DataAccessFinder.getDataStore(connectionParameters);
+            }
+
+            if ( dataStore == null ) {
+                throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
+            }
+
             return dataStore;
         } catch (Exception e) {
             // if anything goes wrong we have to clean up the store anyways
@@ -454,10 +509,10 @@ public class ResourcePool {
      * @param info The data store metadata.
      */
     public void clear( DataStoreInfo info ) {
-        dataStoreCache.remove( info.getId() );
+        dataStoreLoader.clear( info.getId() );
     }
     
-    public List<AttributeTypeInfo> getAttributes(FeatureTypeInfo info) throws IOException {
+    public List<AttributeTypeInfo> getAttributes(final FeatureTypeInfo info) throws IOException {
         //first check the feature type itself
         //      workaround for GEOS-3294, upgrading from 2.0 data directory,
         //      simply ignore any stored attributes
@@ -472,11 +527,12 @@ public class ResourcePool {
         //check the cache
         List<AttributeTypeInfo> atts = (List<AttributeTypeInfo>) featureTypeAttributeCache.get(info.getId());
         if (atts == null) {
-            synchronized (featureTypeAttributeCache) {
-                atts = (List<AttributeTypeInfo>) featureTypeAttributeCache.get(info.getId());
-                if (atts == null) {
+            // cache attributes only if the id is not null -> the feature type is not new
+            atts = load(featureTypeAttributeLoader, info.getId(), 
+                    new Callable<List<AttributeTypeInfo>>() {
+                public List<AttributeTypeInfo> call() throws Exception {
                     //load from feature type
-                    atts = loadAttributes(info);
+                    List<AttributeTypeInfo> atts = loadAttributes(info);
                     
                     //check for a schema override
                     try {
@@ -486,13 +542,9 @@ public class ResourcePool {
                         LOGGER.log( Level.WARNING, 
                             "Error occured applying schema override for "+info.getName(), e);
                     }
-                    
-                    // cache attributes only if the id is not null -> the feature type is not new
-                    if(info.getId() != null) {
-                        featureTypeAttributeCache.put(info.getId(), atts);
-                    }
+                    return atts;
                 }
-            }
+            });
         }
         
         return atts;
@@ -626,100 +678,111 @@ public class ResourcePool {
         return getFeatureType(info, true);
     }
     
-    FeatureType getFeatureType( FeatureTypeInfo info, boolean handleProjectionPolicy ) throws IOException {
+    FeatureType getFeatureType( final FeatureTypeInfo info, final boolean handleProjectionPolicy ) throws IOException {
         boolean cacheable = isCacheable(info) && handleProjectionPolicy;
+        if ( !cacheable ) {
+            return loadFeatureType(info, handleProjectionPolicy, false);
+        }
+        
         FeatureType ft = (FeatureType) featureTypeCache.get( info.getId() );
-        if ( ft == null || !cacheable ) {
-            synchronized ( featureTypeCache ) {
-                ft = (FeatureType) featureTypeCache.get( info.getId() );
-                if ( ft == null || !cacheable) {
-                    
-                    //grab the underlying feature type
-                    DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
-                    
-                    // sql view handling
-                    VirtualTable vt = null;
-                    String vtName = null;
-                    if(dataAccess instanceof JDBCDataStore && info.getMetadata() != null &&
-                            (info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE) instanceof VirtualTable)) {
-                        JDBCDataStore jstore = (JDBCDataStore) dataAccess;
-                        vt = info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, VirtualTable.class);
-                        
-                        if(!cacheable) {
-                            // use a highly random name, we don't want to actually add the
-                            // virtual table to the store as this feature type is not cacheable,
-                            // it is "dirty" or un-saved. The renaming below will take care
-                            // of making the user see the actual name
-                            final String[] typeNames = jstore.getTypeNames();
-                            do {
-                                vtName = UUID.randomUUID().toString();
-                            } while (Arrays.asList(typeNames).contains(vtName));
+        if ( ft == null ) {
+            ft = load(featureTypeLoader, info.getId(), new Callable<FeatureType>() {
+                public FeatureType call() throws Exception {
+                    return loadFeatureType(info, handleProjectionPolicy, true);
+                }
+            });
+        }
+        
+        return ft;
+    }
     
-                            // try adding the vt and see if that works
-                            jstore.addVirtualTable(new VirtualTable(vtName, vt));
-                            ft = jstore.getSchema(vtName);
-                        } else {
-                            vtName = vt.getName();
-                            if(!jstore.getVirtualTables().containsValue(vt)) {
-                                jstore.addVirtualTable(vt);
-                            }
-                            ft = jstore.getSchema(vt.getName());
-                        }
-                    } else {
-                        ft = dataAccess.getSchema(info.getQualifiedNativeName());
+    /**
+     * Builds the feature type from the underlying data store schema, without caching it.
+     */
+    FeatureType loadFeatureType( FeatureTypeInfo info, boolean handleProjectionPolicy, 
+            boolean cacheable ) throws IOException {
+        FeatureType ft;
+        //grab the underlying feature type
+        DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
+        
+        // sql view handling
+        VirtualTable vt = null;
+        String vtName = null;
+        if(dataAccess instanceof JDBCDataStore && info.getMetadata() != null &&
+                (info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE) instanceof VirtualTable)) {
+            JDBCDataStore jstore = (JDBCDataStore) dataAccess;
+            vt = info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, VirtualTable.class);
+            
+            if(!cacheable) {
+                // use a highly random name, we don't want to actually add the
+                // virtual table to the store as this feature type is not cacheable,
+                // it is "dirty" or un-saved. The renaming below will take care
+                // of making the user see the actual name
+                final String[] typeNames = jstore.getTypeNames();
+                do {
+                    vtName = UUID.randomUUID().toString();
+                } while (Arrays.asList(typeNames).contains(vtName));
+
+                // try adding the vt and see if that works
+                jstore.addVirtualTable(new VirtualTable(vtName, vt));
+                ft = jstore.getSchema(vtName);
+            } else {
+                vtName = vt.getName();
+                if(!jstore.getVirtualTables().containsValue(vt)) {
+                    jstore.addVirtualTable(vt);
+                }
+                ft = jstore.getSchema(vt.getName());
+            }
+        } else {
+            ft = dataAccess.getSchema(info.getQualifiedNativeName());
+        }
+        
+        // TODO: support reprojection for non-simple FeatureType
+        if (ft instanceof SimpleFeatureType) {
+            SimpleFeatureType sft = (SimpleFeatureType) ft;
+            //create the feature type so it lines up with the "declared" schema
+            SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+            tb.setName( info.getName() );
+            tb.setNamespaceURI( info.getNamespace().getURI() );
+
+            if ( info.getAttributes() == null || info.getAttributes().isEmpty() ) {
+                //take this to mean just load all native
+                for ( PropertyDescriptor pd : ft.getDescriptors() ) {
+                    if ( !( pd instanceof AttributeDescriptor ) ) {
+                        continue;
                     }
                     
-                    // TODO: support reprojection for non-simple FeatureType
-                    if (ft instanceof SimpleFeatureType) {
-                        SimpleFeatureType sft = (SimpleFeatureType) ft;
-                        //create the feature type so it lines up with the "declared" schema
-                        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
-                        tb.setName( info.getName() );
-                        tb.setNamespaceURI( info.getNamespace().getURI() );
-
-                        if ( info.getAttributes() == null || info.getAttributes().isEmpty() ) {
-                            //take this to mean just load all native
-                            for ( PropertyDescriptor pd : ft.getDescriptors() ) {
-                                if ( !( pd instanceof AttributeDescriptor ) ) {
-                                    continue;
-                                }
-                                
-                                AttributeDescriptor ad = (AttributeDescriptor) pd;
-                                if(handleProjectionPolicy) {
-                                    ad = handleDescriptor(ad, info);
-                                }
-                                tb.add( ad );
-                            }
-                        }
-                        else {
-                            //only load native attributes configured
-                            for ( AttributeTypeInfo att : info.getAttributes() ) {
-                                String attName = att.getName();
-                                
-                                //load the actual underlying attribute type
-                                PropertyDescriptor pd = ft.getDescriptor( attName );
-                                if ( pd == null || !( pd instanceof AttributeDescriptor) ) {
-                                    throw new IOException("the SimpleFeatureType " + info.getPrefixedName()
-                                            + " does not contains the configured attribute " + attName
-                                            + ". Check your schema configuration");
-                                }
-                            
-                                AttributeDescriptor ad = (AttributeDescriptor) pd;
-                                ad = handleDescriptor(ad, info);
-                                tb.add( (AttributeDescriptor) ad );
-                            }
-                        }
-                        ft = tb.buildFeatureType();
-                    } // end special case for SimpleFeatureType
+                    AttributeDescriptor ad = (AttributeDescriptor) pd;
+                    if(handleProjectionPolicy) {
+                        ad = handleDescriptor(ad, info);
+                    }
+                    tb.add( ad );
+                }
+            }
+            else {
+                //only load native attributes configured
+                for ( AttributeTypeInfo att : info.getAttributes() ) {
+                    String attName = att.getName();
                     
-                    if(cacheable) {
-                        featureTypeCache.put( info.getId(), ft );
-                    } else if(vtName != null) {
-                        JDBCDataStore jstore = (JDBCDataStore) dataAccess;
-                        jstore.removeVirtualTable(vtName);
+                    //load the actual underlying attribute type
+                    PropertyDescriptor pd = ft.getDescriptor( attName );
+                    if ( pd == null || !( pd instanceof AttributeDescriptor) ) {
+                        throw new IOException("the SimpleFeatureType " + info.getPrefixedName()
+                                + " does not contains the configured attribute " + attName
+                                + ". Check your schema configuration");
                     }
+                
+                    AttributeDescriptor ad = (AttributeDescriptor) pd;
+                    ad = handleDescriptor(ad, info);
+                    tb.add( (AttributeDescriptor) ad );
                 }
             }
+            ft = tb.buildFeatureType();
+        } // end special case for SimpleFeatureType
+        
+        if(!cacheable && vtName != null) {
+            JDBCDataStore jstore = (JDBCDataStore) dataAccess;
+            jstore.removeVirtualTable(vtName);
         }
         
         return ft;
@@ -833,8 +896,8 @@ public class ResourcePool {
      * @param info The feature type metadata.
      */
     public void clear( FeatureTypeInfo info ) {
-        featureTypeCache.remove( info.getId() );
-        featureTypeAttributeCache.remove( info.getId() );
+        featureTypeLoader.clear( info.getId() );
+        featureTypeAttributeLoader.clear( info.getId() );
     }
     
     /**
@@ -982,7 +1045,7 @@ public class ResourcePool {
      * @throws IOException Any errors that occur loading the reader.
      */
     @SuppressWarnings("deprecation")
-    public GridCoverageReader getGridCoverageReader( CoverageStoreInfo info, Hints hints ) 
+    public GridCoverageReader getGridCoverageReader( final CoverageStoreInfo info, Hints hints ) 
         throws IOException {
         
         final AbstractGridFormat gridFormat = info.getFormat();
@@ -1016,15 +1079,9 @@ public class ResourcePool {
             return reader;
         }
         
-        synchronized ( hints != null ? hintCoverageReaderCache : coverageReaderCache ) {
-        	if(key != null) {
-	            if (hints != null) {
-	                reader = (GridCoverageReader) hintCoverageReaderCache.get(key);
-	            } else {
-	                reader = (GridCoverageReader) coverageReaderCache.get(key);
-	            }
-        	}
-            if (reader == null) {
+        final Hints readerHints = hints;
+        Callable<GridCoverageReader> loader = new Callable<GridCoverageReader>() {
+            public GridCoverageReader call() throws Exception {
                 /////////////////////////////////////////////////////////
                 //
                 // Getting coverage reader using the format and the real path.
@@ -1032,17 +1089,14 @@ public class ResourcePool {
                 // /////////////////////////////////////////////////////////
                 final File obj = GeoserverDataDirectory.findDataFile(info.getURL());
     
-                reader = gridFormat.getReader(obj,hints);
-                if(hints != null) {
-                    hintCoverageReaderCache.put((CoverageHintReaderKey) key, reader);
-                } else {
-                    coverageReaderCache.put((String) key, reader);
-                }
+                return gridFormat.getReader(obj, readerHints);
             }
+        };
+        if (hints != null) {
+            return load(hintCoverageReaderLoader, (CoverageHintReaderKey) key, loader);
+        } else {
+            return load(coverageReaderLoader, (String) key, loader);
         }
-        
-        return reader;
-            
     }
     
     /**
@@ -1050,11 +1104,15 @@ public class ResourcePool {
      */
     public void clear(CoverageStoreInfo info) {
         String storeId = info.getId();
-        coverageReaderCache.remove(storeId);
-        HashSet<CoverageHintReaderKey> keys = new HashSet<CoverageHintReaderKey>(hintCoverageReaderCache.keySet());
+        coverageReaderLoader.clear(storeId);
+        HashSet<CoverageHintReaderKey> keys;
+        synchronized (hintCoverageReaderCache) {
+            keys = new HashSet<CoverageHintReaderKey>(hintCoverageReaderCache.keySet());
+            keys.addAll(hintCoverageReaderLoader.getLoadingKeys());
+        }
         for (CoverageHintReaderKey key : keys) {
             if(key.id.equals(storeId)) {
-                hintCoverageReaderCache.remove(key);
+                hintCoverageReaderLoader.clear(key);
             }
         }
         
@@ -1207,14 +1265,13 @@ public class ResourcePool {
      * @param info The WMS configuration
      * @throws IOException
      */
-    public WebMapServer getWebMapServer(WMSStoreInfo info) throws IOException {
+    public WebMapServer getWebMapServer(final WMSStoreInfo info) throws IOException {
         try {
             String id = info.getId();
             WebMapServer wms = (WebMapServer) wmsCache.get(id);
             if (wms == null) {
-                synchronized (wmsCache) {
-                    wms = (WebMapServer) wmsCache.get(id);
-                    if (wms == null) {
+                wms = wmsLoader.load(id, new Callable<WebMapServer>() {
+                    public WebMapServer call() throws Exception {
                         HTTPClient client;
                         if (info.isUseConnectionPooling()) {
                             client = new MultithreadedHttpClient();
@@ -1236,11 +1293,9 @@ public class ResourcePool {
                         client.setReadTimeout(readTimeout);
 
                         URL serverURL = new URL(info.getCapabilitiesURL());
-                        wms = new WebMapServer(serverURL, client);
-                        
-                        wmsCache.put(id, wms);
+                        return new WebMapServer(serverURL, client);
                     }
-                }
+                });
             }
 
             return wms;
@@ -1279,7 +1334,7 @@ public class ResourcePool {
      * Clears the cached resource for a web map server
      */
     public void clear( WMSStoreInfo info ) {
-        wmsCache.remove( info.getId() );
+        wmsLoader.clear( info.getId() );
     }
     
     /**
@@ -1292,13 +1347,11 @@ public class ResourcePool {
      * 
      * @throws IOException Any parsing errors.
      */
-    public Style getStyle( StyleInfo info ) throws IOException {
+    public Style getStyle( final StyleInfo info ) throws IOException {
         Style style = styleCache.get( info );
         if ( style == null ) {
-            synchronized (styleCache) {
-                style = styleCache.get( info );
-                if ( style == null ) {
-                    
+            style = load(styleLoader, info, new Callable<Style>() {
+                public Style call() throws Exception {
                     //JD: it is important that we call the SLDParser(File) constructor because
                     // if not the sourceURL will not be set which will mean it will fail to 
                     //resolve relative references to online resources
@@ -1307,14 +1360,14 @@ public class ResourcePool {
                         throw new IOException( "No such file: " + info.getFilename());
                     }
                     
-                    style = Styles.style(Styles.parse(styleFile, info.getSLDVersion()));
+                    Style style = Styles.style(Styles.parse(styleFile, info.getSLDVersion()));
                     
                     //set the name of the style to be the name of hte style metadata
                     // remove this when wms works off style info
                     style.setName( info.getName() );
-                    styleCache.put( info, style );
+                    return style;
                 }
-            }
+            });
         }
         
         return style;
@@ -1326,7 +1379,7 @@ public class ResourcePool {
      * @param info The style metadata.
      */
     public void clear(StyleInfo info) {
-        styleCache.remove( info );
+        styleLoader.clear( info );
     }
     
     /**
@@ -1424,6 +1477,21 @@ public class ResourcePool {
     GeoServerDataDirectory dataDir() {
         return new GeoServerDataDirectory(catalog.getResourceLoader());
     }
+    
+    /**
+     * Loads a resource through a cache loader, rethrowing checked exceptions as IOException.
+     */
+    <K, V> V load(KeyedLoader<K, V> loader, K key, Callable<V> callable) throws IOException {
+        try {
+            return loader.load(key, callable);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException().initCause(e);
+        }
+    }
 
     /**
      * Disposes all cached resources.
@@ -1441,6 +1509,259 @@ public class ResourcePool {
         listeners.clear();
     }
     
+    /**
+     * Loads the entries of a resource cache, making sure a single load per key is running at any
+     * given time.
+     * <p>
+     * Threads asking for a key already being loaded wait for that load to complete, while loads
+     * of different keys proceed in parallel, so that a slow connection or parse only stalls the
+     * threads after the same resource. The cache monitor is held only to publish the loaded
+     * value and to clear entries. A clear issued while a load is running prevents the loaded
+     * value from being cached, the value is then disposed through the cache once handed to the
+     * threads that asked for it, as a clear disposes a cached value that is still in use.
+     * </p>
+     * <p>
+     * Loads are not reentrant: a callable loading a key must not ask for the same key again, as
+     * it would wait forever on its own load.
+     * </p>
+     * <p>
+     * The loader keeps track of the number of loads, the number of requests that had to wait on
+     * a load in progress, and the time spent loading and waiting.
+     * </p>
+     * 
+     * @param <K>
+     * @param <V>
+     */
+    public static class KeyedLoader<K, V> {
+        
+        final String name;
+        
+        final Map<K, V> cache;
+        
+        final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+        
+        final AtomicLong loads = new AtomicLong();
+        
+        final AtomicLong failures = new AtomicLong();
+        
+        final AtomicLong waits = new AtomicLong();
+        
+        final AtomicLong loadTime = new AtomicLong();
+        
+        final AtomicLong maxLoadTime = new AtomicLong();
+        
+        final AtomicLong waitTime = new AtomicLong();
+        
+        KeyedLoader(String name, Map<K, V> cache) {
+            this.name = name;
+            this.cache = cache;
+        }
+        
+        /**
+         * Returns a loader over a new cache, carrying over the statistics. 
+         */
+        KeyedLoader<K, V> reset(Map<K, V> cache) {
+            KeyedLoader<K, V> loader = new KeyedLoader<K, V>(name, cache);
+            loader.loads.set(loads.get());
+            loader.failures.set(failures.get());
+            loader.waits.set(waits.get());
+            loader.loadTime.set(loadTime.get());
+            loader.maxLoadTime.set(maxLoadTime.get());
+            loader.waitTime.set(waitTime.get());
+            return loader;
+        }
+        
+        /**
+         * Returns the value cached for the key, loading and caching it if missing. A
+         * <code>null</code> key means the value is not cacheable, in that case it is loaded
+         * without being cached.
+         */
+        V load(K key, Callable<V> loader) throws Exception {
+            if (key == null) {
+                return run(new FutureTask<V>(loader));
+            }
+            
+            FutureTask<V> task = new FutureTask<V>(loader);
+            FutureTask<V> running = loading.putIfAbsent(key, task);
+            if (running != null) {
+                // someone else is loading, wait for it
+                waits.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    return get(running);
+                } finally {
+                    waitTime.addAndGet(System.nanoTime() - start);
+                }
+            }
+            
+            try {
+                // the value might have been published while we were registering
+                V value = cache.get(key);
+                if (value != null) {
+                    return value;
+                }
+                
+                value = run(task);
+                boolean cached;
+                synchronized (cache) {
+                    cached = loading.get(key) == task;
+                    if (cached) {
+                        cache.put(key, value);
+                    }
+                }
+                if (!cached && value != null) {
+                    // cleared while loading, nothing else is going to dispose it
+                    dispose(key, value);
+                }
+                return value;
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        
+        /**
+         * Disposes a value that did not make it into the cache, the way the cache disposes the
+         * values it drops.
+         */
+        void dispose(K key, V value) {
+            if (cache instanceof CatalogResourceCache) {
+                try {
+                    ((CatalogResourceCache<K, V>) cache).dispose(key, value);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error disposing " + name + " entry " + key, e);
+                }
+            }
+        }
+        
+        V run(FutureTask<V> task) throws Exception {
+            long start = System.nanoTime();
+            task.run();
+            long elapsed = System.nanoTime() - start;
+            
+            loads.incrementAndGet();
+            loadTime.addAndGet(elapsed);
+            long max = maxLoadTime.get();
+            while (elapsed > max && !maxLoadTime.compareAndSet(max, elapsed)) {
+                max = maxLoadTime.get();
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Loaded " + name + " cache entry in " 
+                        + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+            }
+            
+            try {
+                return get(task);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                throw e;
+            }
+        }
+        
+        V get(FutureTask<V> task) throws Exception {
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new IOException("Interrupted while waiting for " + name
+                        + " to load").initCause(e);
+            }
+        }
+        
+        /**
+         * Removes the key from the cache, preventing any load in progress from caching its
+         * result.
+         */
+        void clear(K key) {
+            if (key == null) {
+                return;
+            }
+            synchronized (cache) {
+                loading.remove(key);
+                cache.remove(key);
+            }
+        }
+        
+        /**
+         * The keys currently being loaded.
+         */
+        Set<K> getLoadingKeys() {
+            return loading.keySet();
+        }
+        
+        /**
+         * The name of the cache.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * The number of entries loaded, including the failed loads.
+         */
+        public long getLoadCount() {
+            return loads.get();
+        }
+        
+        /**
+         * The number of loads that failed.
+         */
+        public long getFailureCount() {
+            return failures.get();
+        }
+        
+        /**
+         * The number of requests that waited for another thread to load the same entry.
+         */
+        public long getWaitCount() {
+            return waits.get();
+        }
+        
+        /**
+         * The total time spent loading entries, in milliseconds.
+         */
+        public long getLoadTime() {
+            return TimeUnit.NANOSECONDS.toMillis(loadTime.get());
+        }
+        
+        /**
+         * The longest time spent loading a single entry, in milliseconds.
+         */
+        public long getMaxLoadTime() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLoadTime.get());
+        }
+        
+        /**
+         * The total time requests spent waiting on loads performed by other threads, in
+         * milliseconds.
+         */
+        public long getWaitTime() {
+            return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+        }
+        
+        /**
+         * The number of loads currently in progress.
+         */
+        public int getLoadingCount() {
+            return loading.size();
+        }
+        
+        @Override
+        public String toString() {
+            return name + "[loads=" + getLoadCount() + ", failures=" + getFailureCount() 
+                + ", waits=" + getWaitCount() + ", loadTime=" + getLoadTime() + "ms, maxLoadTime=" 
+                + getMaxLoadTime() + "ms, waitTime=" + getWaitTime() + "ms]";
+        }
+    }
+    
     /**
      * Base class for all the resource caches, ensures type safety and provides
      * an easier way to handle with resource disposal 
@@ -103,7 +103,7 @@ public class CatalogImpl implements Catalog {
     protected boolean extendedValidation = true;
 
     public CatalogImpl() {
-        facade = new DefaultCatalogFacade(this);
+        facade = new IndexedCatalogFacade(this);
         resourcePool = new ResourcePool(this);
     }
     
@@ -917,6 +917,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         if ( layerGroups != null ) layerGroups.clear();
         if ( maps != null ) maps.clear();
         if ( styles != null ) styles.clear();
+        collectionsReplaced();
     }
     
     public void resolve() {
@@ -986,6 +987,18 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         for ( MapInfo m : maps ) {
             resolve(m);
         }
+        
+        collectionsReplaced();
+    }
+
+    /**
+     * Hook called once the collections of this facade have been replaced or rebuilt as a whole,
+     * on {@link #resolve()}, {@link #dispose()} or when another facade syncs to this one.
+     * <p>
+     * Subclasses maintaining state derived from the collections should rebuild it here.
+     * </p>
+     */
+    protected void collectionsReplaced() {
     }
 
     public void syncTo(CatalogFacade dao) {
@@ -1002,6 +1015,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
             other.maps = maps;
             other.layerGroups = layerGroups;
             other.styles = styles;
+            other.collectionsReplaced();
         }
         else {
             //do a manual import
@@ -1163,7 +1177,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         return Iterables.filter(all, filterAdapter);
     }
 
-    private Comparator<Object> comparator(final SortBy sortOrder) {
+    protected Comparator<Object> comparator(final SortBy sortOrder) {
         return new Comparator<Object>() {
             @Override
             public int compare(Object o1, Object o2) {
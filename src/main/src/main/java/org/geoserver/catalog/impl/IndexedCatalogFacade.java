@@ -0,0 +1,1228 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.Predicates;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.util.CloseableIterator;
+import org.geoserver.catalog.util.CloseableIteratorAdapter;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsLike;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
+
+/**
+ * In memory catalog facade that backs the lookups of {@link DefaultCatalogFacade} with hash
+ * indexes instead of linear scans.
+ * <p>
+ * Objects are indexed by id, by name, and by the ids of the objects they reference: layers by
+ * resource and style, resources by namespace and store, stores by workspace. Lookups by name use
+ * the index to narrow the search down to the few objects sharing that name and then apply the
+ * same matching rules as the default facade.
+ * </p>
+ * <p>
+ * Indexes are updated on add, remove and save. Saving an object commits nested modification
+ * proxies as well (for instance renaming a resource through its layer) so a save reindexes the
+ * saved object along with the objects it references. Indexes are rebuilt from scratch whenever
+ * the backing collections are replaced, see {@link #collectionsReplaced()}.
+ * </p>
+ * <p>
+ * {@link #list} and {@link #count} plan the query against the indexes: equality predicates on
+ * indexed properties (such as {@code id}, {@code name}, {@code workspace.name} or
+ * {@code resource.namespace.prefix}) and {@link Predicates#fullTextSearch full text searches},
+ * either alone or as operands of an {@link And}, narrow down the objects the filter is evaluated
+ * against. Full text searches are looked up in a trigram index of the case folded text of the
+ * objects, so only searches of at least three characters are planned. Filtering happens before
+ * sorting, and paged requests only sort the objects up to the requested page. Objects with the
+ * same sort key are ordered by id so that pages are consistent with each other.
+ * </p>
+ */
+public class IndexedCatalogFacade extends DefaultCatalogFacade {
+
+    /**
+     * Breaks the ties of the sort orders, so that paging through objects sharing the same sort
+     * key neither repeats nor skips any of them
+     */
+    static final Ordering<Object> BY_ID = new Ordering<Object>() {
+        @Override
+        public int compare(Object o1, Object o2) {
+            String id1 = ((CatalogInfo) o1).getId();
+            String id2 = ((CatalogInfo) o2).getId();
+            if (id1 == null) {
+                return id2 == null ? 0 : -1;
+            } else if (id2 == null) {
+                return 1;
+            }
+            return id1.compareTo(id2);
+        }
+    };
+
+    /**
+     * the indexes, transient since they are derived from the collections
+     */
+    protected transient volatile Indexes indexes;
+
+    public IndexedCatalogFacade(Catalog catalog) {
+        super(catalog);
+        indexes = new Indexes();
+    }
+
+    //
+    // Workspaces and namespaces
+    //
+    /**
+     * Reindexes the full text of the stores, resources, layers and layer groups of the workspace,
+     * which contains the workspace name.
+     */
+    @Override
+    public void save(WorkspaceInfo workspace) {
+        super.save(workspace);
+
+        Indexes idx = indexes();
+        for (StoreInfo store : idx.storesByWorkspace.get(workspace.getId())) {
+            idx.reindex(store);
+        }
+        for (LayerGroupInfo layerGroup : layerGroups) {
+            if (layerGroup.getWorkspace() != null
+                    && workspace.getId().equals(layerGroup.getWorkspace().getId())) {
+                idx.index(layerGroup);
+            }
+        }
+    }
+
+    /**
+     * Reindexes the full text of the resources and layers of the namespace, which contains the
+     * namespace prefix.
+     */
+    @Override
+    public void save(NamespaceInfo namespace) {
+        super.save(namespace);
+
+        Indexes idx = indexes();
+        for (ResourceInfo resource : idx.resourcesByNamespace.get(namespace.getId())) {
+            idx.reindex(resource);
+        }
+    }
+
+    //
+    // Stores
+    //
+    @Override
+    public StoreInfo add(StoreInfo store) {
+        StoreInfo added = super.add(store);
+        indexes().index(unwrap(store));
+        return added;
+    }
+
+    @Override
+    public void remove(StoreInfo store) {
+        super.remove(store);
+        indexes().unindex(unwrap(store));
+    }
+
+    @Override
+    public void save(StoreInfo store) {
+        beforeSaved(store);
+        indexes().reindex(commitProxy(store));
+        afterSaved(store);
+    }
+
+    @Override
+    public <T extends StoreInfo> T getStore(String id, Class<T> clazz) {
+        for (StoreInfo store : indexes().storesById.get(id)) {
+            if (clazz.isInstance(store)) {
+                return ModificationProxy.create((T) store, clazz);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T extends StoreInfo> T getStoreByName(WorkspaceInfo workspace, String name,
+            Class<T> clazz) {
+        List<StoreInfo> candidates = indexes().storesByName.get(name);
+        if (workspace == ANY_WORKSPACE) {
+            T match = null;
+            for (StoreInfo store : candidates) {
+                if (clazz.isInstance(store)) {
+                    if (match != null) {
+                        //ambiguous
+                        return null;
+                    }
+                    match = (T) store;
+                }
+            }
+            return match != null ? ModificationProxy.create(match, clazz) : null;
+        }
+
+        for (StoreInfo store : candidates) {
+            if (clazz.isInstance(store) && store.getWorkspace().equals(workspace)) {
+                return ModificationProxy.create((T) store, clazz);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T extends StoreInfo> List<T> getStoresByWorkspace(WorkspaceInfo workspace,
+            Class<T> clazz) {
+        if (workspace == null) {
+            workspace = getDefaultWorkspace();
+        }
+
+        List<T> matches = new ArrayList<T>();
+        for (StoreInfo store : indexes().storesByWorkspace.get(workspace.getId())) {
+            if (clazz.isInstance(store) && workspace.equals(store.getWorkspace())) {
+                matches.add((T) store);
+            }
+        }
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    //
+    // Resources
+    //
+    @Override
+    public ResourceInfo add(ResourceInfo resource) {
+        ResourceInfo added = super.add(resource);
+        indexes().index(unwrap(resource));
+        return added;
+    }
+
+    @Override
+    public void remove(ResourceInfo resource) {
+        super.remove(resource);
+        indexes().unindex(unwrap(resource));
+    }
+
+    @Override
+    public void save(ResourceInfo resource) {
+        beforeSaved(resource);
+        indexes().reindex(commitProxy(resource));
+        afterSaved(resource);
+    }
+
+    @Override
+    public <T extends ResourceInfo> T getResource(String id, Class<T> clazz) {
+        for (ResourceInfo resource : indexes().resourcesById.get(id)) {
+            if (clazz.isInstance(resource)) {
+                return ModificationProxy.create((T) resource, clazz);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T extends ResourceInfo> T getResourceByName(NamespaceInfo namespace, String name,
+            Class<T> clazz) {
+        List<ResourceInfo> candidates = indexes().resourcesByName.get(name);
+        if (namespace == ANY_NAMESPACE) {
+            T match = null;
+            for (ResourceInfo resource : candidates) {
+                if (clazz.isInstance(resource)) {
+                    if (match != null) {
+                        //ambiguous
+                        return null;
+                    }
+                    match = (T) resource;
+                }
+            }
+            return match != null ? ModificationProxy.create(match, clazz) : null;
+        }
+
+        for (ResourceInfo resource : candidates) {
+            if (clazz.isInstance(resource)) {
+                NamespaceInfo namespace1 = resource.getNamespace();
+                if (namespace1 != null && namespace1.equals(namespace)) {
+                    return ModificationProxy.create((T) resource, clazz);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List getResourcesByNamespace(NamespaceInfo namespace, Class clazz) {
+        if (namespace == null) {
+            namespace = getDefaultNamespace();
+        }
+        if (namespace == null) {
+            //resources without a namespace are not indexed
+            return super.getResourcesByNamespace(namespace, clazz);
+        }
+
+        List matches = new ArrayList();
+        for (ResourceInfo resource : indexes().resourcesByNamespace.get(namespace.getId())) {
+            if (clazz.isInstance(resource) && namespace.equals(resource.getNamespace())) {
+                matches.add(resource);
+            }
+        }
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    @Override
+    public <T extends ResourceInfo> T getResourceByStore(StoreInfo store, String name,
+            Class<T> clazz) {
+        for (ResourceInfo resource : indexes().resourcesByStore.get(store.getId())) {
+            if (clazz.isInstance(resource) && name.equals(resource.getName())
+                    && store.equals(resource.getStore())) {
+                return ModificationProxy.create((T) resource, clazz);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <T extends ResourceInfo> List<T> getResourcesByStore(StoreInfo store, Class<T> clazz) {
+        List<T> matches = new ArrayList<T>();
+        for (ResourceInfo resource : indexes().resourcesByStore.get(store.getId())) {
+            if (clazz.isInstance(resource) && store.equals(resource.getStore())) {
+                matches.add((T) resource);
+            }
+        }
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    //
+    // Layers
+    //
+    @Override
+    public LayerInfo add(LayerInfo layer) {
+        LayerInfo added = super.add(layer);
+        indexes().index(unwrap(layer));
+        return added;
+    }
+
+    @Override
+    public void remove(LayerInfo layer) {
+        super.remove(layer);
+        indexes().unindex(unwrap(layer));
+    }
+
+    @Override
+    public void save(LayerInfo layer) {
+        beforeSaved(layer);
+        indexes().reindex(commitProxy(layer));
+        afterSaved(layer);
+    }
+
+    @Override
+    public LayerInfo getLayer(String id) {
+        List<LayerInfo> matches = indexes().layersById.get(id);
+        return matches.isEmpty() ? null : ModificationProxy.create(matches.get(0), LayerInfo.class);
+    }
+
+    @Override
+    public LayerInfo getLayerByName(String name) {
+        List<LayerInfo> matches = indexes().layersByName.get(name);
+        return matches.isEmpty() ? null : ModificationProxy.create(matches.get(0), LayerInfo.class);
+    }
+
+    @Override
+    public List<LayerInfo> getLayers(ResourceInfo resource) {
+        List<LayerInfo> matches = new ArrayList<LayerInfo>();
+        for (LayerInfo layer : indexes().layersByResource.get(resource.getId())) {
+            if (resource.equals(layer.getResource())) {
+                matches.add(layer);
+            }
+        }
+        return ModificationProxy.createList(matches, LayerInfo.class);
+    }
+
+    @Override
+    public List<LayerInfo> getLayers(StyleInfo style) {
+        List<LayerInfo> matches = new ArrayList<LayerInfo>();
+        for (LayerInfo layer : indexes().layersByStyle.get(style.getId())) {
+            if (style.equals(layer.getDefaultStyle()) || layer.getStyles().contains(style)) {
+                matches.add(layer);
+            }
+        }
+        return ModificationProxy.createList(matches, LayerInfo.class);
+    }
+
+    //
+    // Layer groups
+    //
+    @Override
+    public LayerGroupInfo add(LayerGroupInfo layerGroup) {
+        LayerGroupInfo added = super.add(layerGroup);
+        indexes().index(unwrap(layerGroup));
+        return added;
+    }
+
+    @Override
+    public void remove(LayerGroupInfo layerGroup) {
+        super.remove(layerGroup);
+        indexes().unindex(unwrap(layerGroup));
+    }
+
+    @Override
+    public void save(LayerGroupInfo layerGroup) {
+        beforeSaved(layerGroup);
+        indexes().index(commitProxy(layerGroup));
+        afterSaved(layerGroup);
+    }
+
+    @Override
+    public LayerGroupInfo getLayerGroup(String id) {
+        List<LayerGroupInfo> matches = indexes().layerGroupsById.get(id);
+        return matches.isEmpty() ? null : ModificationProxy.create(matches.get(0),
+                LayerGroupInfo.class);
+    }
+
+    @Override
+    public LayerGroupInfo getLayerGroupByName(WorkspaceInfo workspace, String name) {
+        LayerGroupInfo match = null;
+        for (LayerGroupInfo layerGroup : indexes().layerGroupsByName.get(name)) {
+            WorkspaceInfo lgWorkspace = layerGroup.getWorkspace();
+            boolean matches;
+            if (NO_WORKSPACE == workspace) {
+                matches = lgWorkspace == null;
+            } else if (ANY_WORKSPACE == workspace) {
+                matches = true;
+            } else {
+                matches = lgWorkspace != null && workspace.equals(lgWorkspace);
+            }
+            if (matches) {
+                if (match != null) {
+                    //ambiguous
+                    return null;
+                }
+                match = layerGroup;
+            }
+        }
+        return match != null ? ModificationProxy.create(match, LayerGroupInfo.class) : null;
+    }
+
+    //
+    // Styles
+    //
+    @Override
+    public StyleInfo add(StyleInfo style) {
+        StyleInfo added = super.add(style);
+        indexes().index(unwrap(style));
+        return added;
+    }
+
+    @Override
+    public void remove(StyleInfo style) {
+        super.remove(style);
+        indexes().unindex(unwrap(style));
+    }
+
+    @Override
+    public void save(StyleInfo style) {
+        beforeSaved(style);
+        indexes().index(commitProxy(style));
+        afterSaved(style);
+    }
+
+    @Override
+    public StyleInfo getStyle(String id) {
+        List<StyleInfo> matches = indexes().stylesById.get(id);
+        return matches.isEmpty() ? null : ModificationProxy.create(matches.get(0), StyleInfo.class);
+    }
+
+    @Override
+    public StyleInfo getStyleByName(String name) {
+        for (StyleInfo style : indexes().stylesByName.get(name)) {
+            if (null == style.getWorkspace()) {
+                return ModificationProxy.create(style, StyleInfo.class);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public StyleInfo getStyleByName(WorkspaceInfo workspace, String name) {
+        if (null == workspace) {
+            throw new NullPointerException("workspace");
+        }
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+
+        List<StyleInfo> candidates = indexes().stylesByName.get(name);
+        if (workspace == ANY_WORKSPACE) {
+            return candidates.size() == 1 ? ModificationProxy.create(candidates.get(0),
+                    StyleInfo.class) : null;
+        }
+        for (StyleInfo style : candidates) {
+            if (style.getWorkspace() != null && style.getWorkspace().equals(workspace)
+                    || style.getWorkspace() == null && workspace == NO_WORKSPACE) {
+                return ModificationProxy.create(style, StyleInfo.class);
+            }
+        }
+        return null;
+    }
+
+    //
+    // Queries
+    //
+    /**
+     * Counts the objects matching the filter, answering from the indexes when the filter
+     * contains an indexable predicate and without sorting or proxying the objects.
+     */
+    @Override
+    public <T extends CatalogInfo> int count(final Class<T> of, final Filter filter) {
+        if (!isPlannable(of)) {
+            return super.count(of, filter);
+        }
+        if (Filter.EXCLUDE.equals(filter)) {
+            return 0;
+        }
+        return Iterables.size(filter(of, filter));
+    }
+
+    /**
+     * Lists the objects matching the filter.
+     * <p>
+     * The objects are filtered before being sorted, and when paging is requested only the
+     * first {@code offset + count} objects are sorted. Only the returned objects are wrapped in
+     * a modification proxy.
+     * </p>
+     */
+    @Override
+    public <T extends CatalogInfo> CloseableIterator<T> list(final Class<T> of,
+            final Filter filter, @Nullable Integer offset, @Nullable Integer count,
+            @Nullable SortBy sortOrder) {
+
+        if (!isPlannable(of)) {
+            return super.list(of, filter, offset, count, sortOrder);
+        }
+        if (null != sortOrder && !canSort(of, sortOrder.getPropertyName().getPropertyName())) {
+            throw new IllegalArgumentException("Can't sort objects of type " + of.getName()
+                    + " by " + sortOrder.getPropertyName());
+        }
+
+        final int skip = offset != null && offset.intValue() > 0 ? offset.intValue() : 0;
+        final boolean limited = count != null && count.intValue() >= 0;
+
+        Iterable<T> matches = filter(of, filter);
+        if (null != sortOrder) {
+            Ordering<Object> ordering = Ordering.from(comparator(sortOrder));
+            if (SortOrder.DESCENDING.equals(sortOrder.getSortOrder())) {
+                ordering = ordering.reverse();
+            }
+            // leastOf is not stable, ties need a total order for the pages to be consistent
+            ordering = ordering.compound(BY_ID);
+            if (limited && (long) skip + count.intValue() < Integer.MAX_VALUE) {
+                matches = ordering.leastOf(matches, skip + count.intValue());
+            } else {
+                matches = ordering.sortedCopy(matches);
+            }
+        }
+        if (skip > 0) {
+            matches = Iterables.skip(matches, skip);
+        }
+        if (limited) {
+            matches = Iterables.limit(matches, count.intValue());
+        }
+
+        Iterable<T> proxied = Iterables.transform(matches, new Function<T, T>() {
+            @Override
+            public T apply(T input) {
+                return ModificationProxy.create(input, (Class<T>) of);
+            }
+        });
+        return new CloseableIteratorAdapter<T>(proxied.iterator());
+    }
+
+    /**
+     * Whether queries on the type are planned by this facade, the rest are few enough to be
+     * handled by the default implementation.
+     */
+    boolean isPlannable(Class<?> of) {
+        return StoreInfo.class.isAssignableFrom(of) || ResourceInfo.class.isAssignableFrom(of)
+                || LayerInfo.class.isAssignableFrom(of)
+                || LayerGroupInfo.class.isAssignableFrom(of)
+                || StyleInfo.class.isAssignableFrom(of);
+    }
+
+    /**
+     * Returns the unwrapped objects of the given type matching the filter.
+     */
+    <T extends CatalogInfo> Iterable<T> filter(final Class<T> of, final Filter filter) {
+        Iterable<? extends CatalogInfo> candidates = candidates(of, filter);
+        if (candidates == null) {
+            candidates = all(of);
+        }
+
+        com.google.common.base.Predicate<Object> predicate;
+        if (Filter.INCLUDE.equals(filter)) {
+            predicate = com.google.common.base.Predicates.instanceOf(of);
+        } else {
+            predicate = new com.google.common.base.Predicate<Object>() {
+                @Override
+                public boolean apply(Object input) {
+                    return of.isInstance(input) && filter.evaluate(input);
+                }
+            };
+        }
+        return (Iterable<T>) Iterables.filter(candidates, predicate);
+    }
+
+    /**
+     * All the unwrapped objects of a given type, without copying the layer, layer group and
+     * style collections.
+     */
+    Iterable<? extends CatalogInfo> all(Class<?> of) {
+        if (StoreInfo.class.isAssignableFrom(of)) {
+            return lookup((Class<StoreInfo>) of, stores);
+        }
+        if (ResourceInfo.class.isAssignableFrom(of)) {
+            return lookup((Class<ResourceInfo>) of, resources);
+        }
+        if (LayerInfo.class.isAssignableFrom(of)) {
+            return layers;
+        }
+        if (LayerGroupInfo.class.isAssignableFrom(of)) {
+            return layerGroups;
+        }
+        if (StyleInfo.class.isAssignableFrom(of)) {
+            return styles;
+        }
+        throw new IllegalArgumentException("Unknown type: " + of);
+    }
+
+    /**
+     * Looks for indexable predicates in the filter, either the filter itself or one of the
+     * operands of a top level {@link And}, and returns the candidates found in the index, a
+     * superset of the objects matching the filter. When several operands are indexable the
+     * smallest candidate set is used.
+     * 
+     * @return the candidates, or {@code null} if the filter has no indexable predicate
+     */
+    Iterable<? extends CatalogInfo> candidates(Class<?> of, Filter filter) {
+        if (filter instanceof And) {
+            List<? extends CatalogInfo> best = null;
+            for (Filter child : ((And) filter).getChildren()) {
+                List<? extends CatalogInfo> candidates = indexed(of, child);
+                if (candidates != null && (best == null || candidates.size() < best.size())) {
+                    best = candidates;
+                }
+            }
+            return best;
+        }
+        return indexed(of, filter);
+    }
+
+    List<? extends CatalogInfo> indexed(Class<?> of, Filter filter) {
+        if (filter instanceof PropertyIsEqualTo) {
+            return candidates(of, (PropertyIsEqualTo) filter);
+        }
+        if (filter instanceof PropertyIsLike) {
+            return candidates(of, (PropertyIsLike) filter);
+        }
+        return null;
+    }
+
+    List<? extends CatalogInfo> candidates(Class<?> of, PropertyIsLike like) {
+        String text = searchedText(like);
+        if (text == null) {
+            return null;
+        }
+
+        Indexes idx = indexes();
+        if (StoreInfo.class.isAssignableFrom(of)) {
+            return idx.storesText.get(text);
+        }
+        if (ResourceInfo.class.isAssignableFrom(of)) {
+            return idx.resourcesText.get(text);
+        }
+        if (LayerInfo.class.isAssignableFrom(of)) {
+            return idx.layersText.get(text);
+        }
+        if (LayerGroupInfo.class.isAssignableFrom(of)) {
+            return idx.layerGroupsText.get(text);
+        }
+        if (StyleInfo.class.isAssignableFrom(of)) {
+            return idx.stylesText.get(text);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the text looked for by a {@link Predicates#fullTextSearch}, or null if the filter
+     * is not one
+     */
+    static String searchedText(PropertyIsLike like) {
+        if (!(like.getExpression() instanceof PropertyName)
+                || !Predicates.ANY_TEXT.getPropertyName().equals(
+                        ((PropertyName) like.getExpression()).getPropertyName())) {
+            return null;
+        }
+        String pattern = like.getLiteral();
+        if (pattern == null || pattern.length() < 2 || !pattern.startsWith("*")
+                || !pattern.endsWith("*") || !"*".equals(like.getWildCard())
+                || !"?".equals(like.getSingleChar()) || !"\\".equals(like.getEscape())) {
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        final int end = pattern.length() - 1;
+        for (int i = 1; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (++i == end) {
+                    // the trailing wildcard is escaped
+                    return null;
+                }
+                c = pattern.charAt(i);
+            } else if (c == '*' || c == '?') {
+                return null;
+            }
+            text.append(c);
+        }
+        return text.toString();
+    }
+
+    List<? extends CatalogInfo> candidates(Class<?> of, PropertyIsEqualTo equal) {
+        if (!equal.isMatchingCase()) {
+            return null;
+        }
+
+        Expression e1 = equal.getExpression1();
+        Expression e2 = equal.getExpression2();
+        if (e2 instanceof PropertyName && e1 instanceof Literal) {
+            Expression tmp = e1;
+            e1 = e2;
+            e2 = tmp;
+        }
+        if (!(e1 instanceof PropertyName) || !(e2 instanceof Literal)) {
+            return null;
+        }
+
+        String property = ((PropertyName) e1).getPropertyName();
+        Object value = ((Literal) e2).getValue();
+        if (value instanceof CatalogInfo) {
+            //comparing against another object, look it up by id
+            value = ((CatalogInfo) value).getId();
+            property = property + ".id";
+        }
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String key = (String) value;
+
+        Indexes idx = indexes();
+        if (StoreInfo.class.isAssignableFrom(of)) {
+            if ("id".equals(property)) {
+                return idx.storesById.get(key);
+            }
+            if ("name".equals(property)) {
+                return idx.storesByName.get(key);
+            }
+            if ("workspace.id".equals(property)) {
+                return idx.storesByWorkspace.get(key);
+            }
+            if ("workspace.name".equals(property)) {
+                return idx.storesByWorkspace.get(workspaceId(key));
+            }
+        } else if (ResourceInfo.class.isAssignableFrom(of)) {
+            if ("id".equals(property)) {
+                return idx.resourcesById.get(key);
+            }
+            if ("name".equals(property)) {
+                return idx.resourcesByName.get(key);
+            }
+            if ("store.id".equals(property)) {
+                return idx.resourcesByStore.get(key);
+            }
+            if ("namespace.id".equals(property)) {
+                return idx.resourcesByNamespace.get(key);
+            }
+            if ("namespace.prefix".equals(property)) {
+                return idx.resourcesByNamespace.get(namespaceId(key));
+            }
+        } else if (LayerInfo.class.isAssignableFrom(of)) {
+            if ("id".equals(property)) {
+                return idx.layersById.get(key);
+            }
+            if ("name".equals(property) || "resource.name".equals(property)) {
+                return idx.layersByName.get(key);
+            }
+            if ("resource.id".equals(property)) {
+                return idx.layersByResource.get(key);
+            }
+            if ("defaultStyle.id".equals(property)) {
+                return idx.layersByStyle.get(key);
+            }
+            if ("resource.namespace.prefix".equals(property)) {
+                return layersByResources(idx.resourcesByNamespace.get(namespaceId(key)));
+            }
+            if ("resource.namespace.id".equals(property)) {
+                return layersByResources(idx.resourcesByNamespace.get(key));
+            }
+            if ("resource.store.id".equals(property)) {
+                return layersByResources(idx.resourcesByStore.get(key));
+            }
+        } else if (LayerGroupInfo.class.isAssignableFrom(of)) {
+            if ("id".equals(property)) {
+                return idx.layerGroupsById.get(key);
+            }
+            if ("name".equals(property)) {
+                return idx.layerGroupsByName.get(key);
+            }
+        } else if (StyleInfo.class.isAssignableFrom(of)) {
+            if ("id".equals(property)) {
+                return idx.stylesById.get(key);
+            }
+            if ("name".equals(property)) {
+                return idx.stylesByName.get(key);
+            }
+        }
+        return null;
+    }
+
+    List<LayerInfo> layersByResources(List<ResourceInfo> resources) {
+        List<LayerInfo> matches = new ArrayList<LayerInfo>();
+        for (ResourceInfo resource : resources) {
+            matches.addAll(indexes().layersByResource.get(resource.getId()));
+        }
+        return matches;
+    }
+
+    String workspaceId(String name) {
+        WorkspaceInfo ws = workspaces.get(name);
+        return ws != null ? ws.getId() : null;
+    }
+
+    String namespaceId(String prefix) {
+        NamespaceInfo ns = namespaces.get(prefix);
+        return ns != null ? ns.getId() : null;
+    }
+
+    //
+    // Index maintenance
+    //
+    @Override
+    protected void collectionsReplaced() {
+        Indexes rebuilt = new Indexes();
+        for (Object store : stores.values()) {
+            rebuilt.index((StoreInfo) store);
+        }
+        for (Object resource : resources.values()) {
+            rebuilt.index((ResourceInfo) resource);
+        }
+        for (LayerInfo layer : layers) {
+            rebuilt.index(layer);
+        }
+        for (LayerGroupInfo layerGroup : layerGroups) {
+            rebuilt.index(layerGroup);
+        }
+        for (StyleInfo style : styles) {
+            rebuilt.index(style);
+        }
+        indexes = rebuilt;
+    }
+
+    /**
+     * Returns the indexes, rebuilding them if this facade was created without running the
+     * constructor (as xstream does).
+     */
+    protected Indexes indexes() {
+        if (indexes == null) {
+            synchronized (this) {
+                if (indexes == null) {
+                    collectionsReplaced();
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * The set of indexes maintained by the facade.
+     * <p>
+     * Reads are lock free, updates are serialized on the instance.
+     * </p>
+     */
+    protected static class Indexes {
+
+        static final CatalogPropertyAccessor ACCESSOR = new CatalogPropertyAccessor();
+
+        final Index<StoreInfo> storesById = new Index<StoreInfo>();
+        final Index<StoreInfo> storesByName = new Index<StoreInfo>();
+        final Index<StoreInfo> storesByWorkspace = new Index<StoreInfo>();
+
+        final Index<ResourceInfo> resourcesById = new Index<ResourceInfo>();
+        final Index<ResourceInfo> resourcesByName = new Index<ResourceInfo>();
+        final Index<ResourceInfo> resourcesByNamespace = new Index<ResourceInfo>();
+        final Index<ResourceInfo> resourcesByStore = new Index<ResourceInfo>();
+
+        final Index<LayerInfo> layersById = new Index<LayerInfo>();
+        final Index<LayerInfo> layersByName = new Index<LayerInfo>();
+        final Index<LayerInfo> layersByResource = new Index<LayerInfo>();
+        final Index<LayerInfo> layersByStyle = new Index<LayerInfo>();
+
+        final Index<LayerGroupInfo> layerGroupsById = new Index<LayerGroupInfo>();
+        final Index<LayerGroupInfo> layerGroupsByName = new Index<LayerGroupInfo>();
+
+        final Index<StyleInfo> stylesById = new Index<StyleInfo>();
+        final Index<StyleInfo> stylesByName = new Index<StyleInfo>();
+
+        final TextIndex<StoreInfo> storesText = new TextIndex<StoreInfo>();
+        final TextIndex<ResourceInfo> resourcesText = new TextIndex<ResourceInfo>();
+        final TextIndex<LayerInfo> layersText = new TextIndex<LayerInfo>();
+        final TextIndex<LayerGroupInfo> layerGroupsText = new TextIndex<LayerGroupInfo>();
+        final TextIndex<StyleInfo> stylesText = new TextIndex<StyleInfo>();
+
+        synchronized void index(StoreInfo store) {
+            storesById.put(store, store.getId());
+            storesByName.put(store, store.getName());
+            storesByWorkspace.put(store, id(store.getWorkspace()));
+            storesText.put(store, text(store));
+        }
+
+        synchronized void unindex(StoreInfo store) {
+            storesById.remove(store);
+            storesByName.remove(store);
+            storesByWorkspace.remove(store);
+            storesText.remove(store);
+        }
+
+        /**
+         * Reindexes a store along with its resources and their layers, whose full text contains
+         * the store name.
+         */
+        synchronized void reindex(StoreInfo store) {
+            index(store);
+            for (ResourceInfo resource : resourcesByStore.get(store.getId())) {
+                index(resource);
+                for (LayerInfo layer : layersByResource.get(resource.getId())) {
+                    index(layer);
+                }
+            }
+        }
+
+        synchronized void index(ResourceInfo resource) {
+            resourcesById.put(resource, resource.getId());
+            resourcesByName.put(resource, resource.getName());
+            resourcesByNamespace.put(resource, id(resource.getNamespace()));
+            resourcesByStore.put(resource, id(resource.getStore()));
+            resourcesText.put(resource, text(resource));
+        }
+
+        synchronized void unindex(ResourceInfo resource) {
+            resourcesById.remove(resource);
+            resourcesByName.remove(resource);
+            resourcesByNamespace.remove(resource);
+            resourcesByStore.remove(resource);
+            resourcesText.remove(resource);
+        }
+
+        /**
+         * Reindexes a resource along with its store and layers, whose names derive from the
+         * resource name.
+         */
+        synchronized void reindex(ResourceInfo resource) {
+            index(resource);
+            if (resource.getStore() != null) {
+                index(unwrap(resource.getStore()));
+            }
+            for (LayerInfo layer : layersByResource.get(resource.getId())) {
+                index(layer);
+            }
+        }
+
+        synchronized void index(LayerInfo layer) {
+            ResourceInfo resource = layer.getResource();
+            layersById.put(layer, layer.getId());
+            layersByName.put(layer, resource != null ? resource.getName() : null);
+            layersByResource.put(layer, id(resource));
+
+            List<String> styleIds = new ArrayList<String>();
+            styleIds.add(id(layer.getDefaultStyle()));
+            for (StyleInfo style : layer.getStyles()) {
+                styleIds.add(id(style));
+            }
+            layersByStyle.put(layer, styleIds);
+            layersText.put(layer, text(layer));
+        }
+
+        synchronized void unindex(LayerInfo layer) {
+            layersById.remove(layer);
+            layersByName.remove(layer);
+            layersByResource.remove(layer);
+            layersByStyle.remove(layer);
+            layersText.remove(layer);
+        }
+
+        /**
+         * Reindexes a layer along with its resource and default style, which may have been
+         * modified through the layer.
+         */
+        synchronized void reindex(LayerInfo layer) {
+            index(layer);
+            if (layer.getResource() != null) {
+                reindex(unwrap(layer.getResource()));
+            }
+            if (layer.getDefaultStyle() != null) {
+                index(unwrap(layer.getDefaultStyle()));
+            }
+        }
+
+        synchronized void index(LayerGroupInfo layerGroup) {
+            layerGroupsById.put(layerGroup, layerGroup.getId());
+            layerGroupsByName.put(layerGroup, layerGroup.getName());
+            layerGroupsText.put(layerGroup, text(layerGroup));
+        }
+
+        synchronized void unindex(LayerGroupInfo layerGroup) {
+            layerGroupsById.remove(layerGroup);
+            layerGroupsByName.remove(layerGroup);
+            layerGroupsText.remove(layerGroup);
+        }
+
+        synchronized void index(StyleInfo style) {
+            stylesById.put(style, style.getId());
+            stylesByName.put(style, style.getName());
+            stylesText.put(style, text(style));
+        }
+
+        synchronized void unindex(StyleInfo style) {
+            stylesById.remove(style);
+            stylesByName.remove(style);
+            stylesText.remove(style);
+        }
+
+        static String id(CatalogInfo info) {
+            return info != null ? info.getId() : null;
+        }
+
+        /**
+         * Returns the full text of the object, or null if it cannot be extracted
+         */
+        static Collection<?> text(CatalogInfo info) {
+            try {
+                Object text = ACCESSOR.getProperty(info, Predicates.ANY_TEXT.getPropertyName());
+                return text instanceof Collection ? (Collection<?>) text : null;
+            } catch (RuntimeException e) {
+                // e.g., a missing nested object, the filter will be evaluated on the object
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Multi valued index mapping a string key to the objects indexed under it.
+     * <p>
+     * The index keeps track of the keys each object was indexed under so that it can be
+     * removed even after its properties have changed. Objects are tracked by identity.
+     * </p>
+     */
+    protected static class Index<T> {
+
+        final ConcurrentHashMap<String, CopyOnWriteArrayList<T>> entries =
+            new ConcurrentHashMap<String, CopyOnWriteArrayList<T>>();
+
+        final Map<T, Set<String>> keys = new IdentityHashMap<T, Set<String>>();
+
+        /**
+         * Returns the objects indexed under the key, never null.
+         */
+        public List<T> get(String key) {
+            List<T> list = key != null ? entries.get(key) : null;
+            return list != null ? list : Collections.<T>emptyList();
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        synchronized void put(T object, String key) {
+            put(object, Collections.singletonList(key));
+        }
+
+        synchronized void put(T object, Collection<String> newKeys) {
+            Set<String> unique = new LinkedHashSet<String>();
+            for (String key : newKeys) {
+                if (key != null) {
+                    unique.add(key);
+                }
+            }
+
+            Set<String> old = keys.get(object);
+            if (unique.equals(old)) {
+                return;
+            }
+            remove(object);
+
+            for (String key : unique) {
+                CopyOnWriteArrayList<T> list = entries.get(key);
+                if (list == null) {
+                    list = new CopyOnWriteArrayList<T>();
+                    entries.put(key, list);
+                }
+                list.add(object);
+            }
+            keys.put(object, unique);
+        }
+
+        synchronized void remove(T object) {
+            Set<String> old = keys.remove(object);
+            if (old == null) {
+                return;
+            }
+            for (String key : old) {
+                CopyOnWriteArrayList<T> list = entries.get(key);
+                if (list == null) {
+                    continue;
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i) == object) {
+                        list.remove(i);
+                        break;
+                    }
+                }
+                if (list.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Full text index mapping the trigrams of the case folded text of the objects to the objects
+     * containing them.
+     * <p>
+     * A search returns the objects having the rarest trigram of the searched text, a superset of
+     * the objects containing it, along with the objects whose text could not be extracted.
+     * Objects are tracked by id.
+     * </p>
+     */
+    protected static class TextIndex<T extends CatalogInfo> {
+
+        static final int GRAM = 3;
+
+        final ConcurrentHashMap<String, ConcurrentHashMap<String, T>> entries =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, T>>();
+
+        final ConcurrentHashMap<String, T> unindexed = new ConcurrentHashMap<String, T>();
+
+        final Map<String, Set<String>> grams = new HashMap<String, Set<String>>();
+
+        /**
+         * Returns the objects that may contain the text, or null if the text is too short to be
+         * looked up.
+         */
+        public List<T> get(String text) {
+            Set<String> searched = grams(Collections.singletonList(text));
+            if (searched.isEmpty()) {
+                return null;
+            }
+
+            Map<String, T> rarest = null;
+            for (String gram : searched) {
+                Map<String, T> objects = entries.get(gram);
+                if (objects == null) {
+                    rarest = Collections.emptyMap();
+                    break;
+                }
+                if (rarest == null || objects.size() < rarest.size()) {
+                    rarest = objects;
+                }
+            }
+
+            List<T> matches = new ArrayList<T>(rarest.values());
+            matches.addAll(unindexed.values());
+            return matches;
+        }
+
+        synchronized void put(T object, @Nullable Collection<?> text) {
+            String id = object.getId();
+            if (id == null) {
+                return;
+            }
+            remove(object);
+
+            if (text == null) {
+                unindexed.put(id, object);
+                return;
+            }
+            Set<String> objectGrams = grams(text);
+            for (String gram : objectGrams) {
+                ConcurrentHashMap<String, T> objects = entries.get(gram);
+                if (objects == null) {
+                    objects = new ConcurrentHashMap<String, T>();
+                    entries.put(gram, objects);
+                }
+                objects.put(id, object);
+            }
+            grams.put(id, objectGrams);
+        }
+
+        synchronized void remove(T object) {
+            String id = object.getId();
+            if (id == null) {
+                return;
+            }
+            unindexed.remove(id);
+            Set<String> old = grams.remove(id);
+            if (old == null) {
+                return;
+            }
+            for (String gram : old) {
+                Map<String, T> objects = entries.get(gram);
+                if (objects != null) {
+                    objects.remove(id);
+                    if (objects.isEmpty()) {
+                        entries.remove(gram);
+                    }
+                }
+            }
+        }
+
+        static Set<String> grams(Collection<?> values) {
+            Set<String> grams = new HashSet<String>();
+            for (Object value : values) {
+                if (value == null) {
+                    continue;
+                }
+                // objects and searches are folded alike, a superset of what the filter matches
+                String folded = String.valueOf(value).toUpperCase(Locale.ENGLISH)
+                        .toLowerCase(Locale.ENGLISH);
+                for (int i = 0; i + GRAM <= folded.length(); i++) {
+                    grams.add(folded.substring(i, i + GRAM));
+                }
+            }
+            return grams;
+        }
+    }
+}
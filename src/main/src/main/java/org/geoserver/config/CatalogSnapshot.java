@@ -0,0 +1,434 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.data.util.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.util.logging.Logging;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+/**
+ * Binary snapshot of the catalog, used to avoid parsing every configuration file in the data
+ * directory on startup.
+ * <p>
+ * The snapshot stores each catalog object in dependency order, encoded with the same xstream
+ * configuration used for the xml files but through the xstream binary format. It is stamped with
+ * a fingerprint of the paths, sizes and modification times of the catalog configuration files,
+ * a snapshot whose fingerprint does not match the data directory is ignored and the catalog is
+ * loaded from xml as usual.
+ * </p>
+ * <p>
+ * Once registered as a listener on the catalog the snapshot is rewritten in the background
+ * after each change. The fingerprint is computed before the catalog is written out and
+ * configuration files are persisted after the in memory change, so a change racing with the
+ * write always leaves behind a stale fingerprint rather than a stale snapshot.
+ * </p>
+ * <p>
+ * Snapshots are enabled with the {@link #SNAPSHOT} system property.
+ * </p>
+ */
+public class CatalogSnapshot implements CatalogListener {
+
+    static Logger LOGGER = Logging.getLogger( "org.geoserver.config");
+
+    /**
+     * Property enabling the catalog snapshot.
+     */
+    public static final String SNAPSHOT = "GEOSERVER_CATALOG_SNAPSHOT";
+
+    /**
+     * Name of the snapshot file, in the root of the data directory.
+     */
+    public static final String SNAPSHOT_FILE = "catalog.snapshot";
+
+    static final int MAGIC = 0x47534353;
+
+    static final int VERSION = 1;
+
+    /** record flag marking a store disabled because it failed to connect on startup */
+    static final int REENABLE = 1;
+
+    /** record flag marking the end of the snapshot */
+    static final int END = -1;
+
+    GeoServerResourceLoader resourceLoader;
+    XStreamPersister xp;
+    Catalog catalog;
+
+    /** delay between a change and the snapshot being rewritten, in milliseconds */
+    long delay = 1000;
+
+    /** ids of the stores disabled only because they failed to connect on load */
+    Set<String> disabledOnLoad = Collections.synchronizedSet(new HashSet<String>());
+
+    ScheduledExecutorService executor;
+    AtomicBoolean scheduled = new AtomicBoolean();
+
+    public CatalogSnapshot(GeoServerResourceLoader resourceLoader, XStreamPersister xp) {
+        this.resourceLoader = resourceLoader;
+        this.xp = xp;
+    }
+
+    /**
+     * Returns true if snapshots are enabled through {@link #SNAPSHOT}.
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty(SNAPSHOT));
+    }
+
+    public File getFile() {
+        return new File(resourceLoader.getBaseDirectory(), SNAPSHOT_FILE);
+    }
+
+    /**
+     * Records a store disabled on load because it could not connect, the snapshot stores it as
+     * enabled so that the connection is retried on the next startup.
+     */
+    public void disabledOnLoad(StoreInfo store) {
+        disabledOnLoad.add(store.getId());
+    }
+
+    /**
+     * Reads the snapshot into the specified catalog.
+     *
+     * @param catalog The (empty) catalog to populate.
+     * @param xp The persister used to decode objects, set up to resolve against <tt>catalog</tt>.
+     *
+     * @return The stores that were added to the catalog, or <code>null</code> if there is no
+     *   snapshot or it is out of date, in which case the catalog is left untouched.
+     */
+    public List<StoreInfo> read(Catalog catalog, XStreamPersister xp) throws IOException {
+        File f = getFile();
+        if (!f.exists()) {
+            return null;
+        }
+
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.info("Ignoring catalog snapshot written by a different version");
+                return null;
+            }
+            if (!fingerprint().equals(in.readUTF())) {
+                LOGGER.info("Catalog snapshot is out of date with the data directory");
+                return null;
+            }
+            String defaultWorkspace = in.readUTF();
+            String defaultNamespace = in.readUTF();
+
+            XStream xs = xp.getXStream();
+            List<StoreInfo> stores = new ArrayList<StoreInfo>();
+            byte[] buf = new byte[8192];
+            for (int flags = in.readInt(); flags != END; flags = in.readInt()) {
+                int length = in.readInt();
+                if (buf.length < length) {
+                    buf = new byte[length];
+                }
+                in.readFully(buf, 0, length);
+
+                Object obj = xs.unmarshal(
+                    new BinaryStreamReader(new ByteArrayInputStream(buf, 0, length)));
+                if (obj instanceof StoreInfo) {
+                    if ((flags & REENABLE) != 0) {
+                        ((StoreInfo) obj).setEnabled(true);
+                    }
+                    stores.add((StoreInfo) obj);
+                }
+                add(catalog, obj);
+            }
+
+            if (defaultWorkspace.length() > 0
+                    && catalog.getWorkspaceByName(defaultWorkspace) != null) {
+                catalog.setDefaultWorkspace(catalog.getWorkspaceByName(defaultWorkspace));
+            }
+            if (defaultNamespace.length() > 0
+                    && catalog.getNamespaceByPrefix(defaultNamespace) != null) {
+                catalog.setDefaultNamespace(catalog.getNamespaceByPrefix(defaultNamespace));
+            }
+            return stores;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    void add(Catalog catalog, Object obj) {
+        if (obj instanceof WorkspaceInfo) {
+            catalog.add((WorkspaceInfo) obj);
+        }
+        else if (obj instanceof NamespaceInfo) {
+            catalog.add((NamespaceInfo) obj);
+        }
+        else if (obj instanceof StyleInfo) {
+            catalog.add((StyleInfo) obj);
+        }
+        else if (obj instanceof StoreInfo) {
+            catalog.add((StoreInfo) obj);
+        }
+        else if (obj instanceof ResourceInfo) {
+            catalog.add((ResourceInfo) obj);
+        }
+        else if (obj instanceof LayerInfo) {
+            catalog.add((LayerInfo) obj);
+        }
+        else if (obj instanceof LayerGroupInfo) {
+            catalog.add((LayerGroupInfo) obj);
+        }
+        else {
+            throw new IllegalArgumentException("Unexpected snapshot object: " + obj);
+        }
+    }
+
+    /**
+     * Writes out the snapshot of the specified catalog.
+     */
+    public void write(Catalog catalog) throws IOException {
+        String fingerprint = fingerprint();
+
+        File f = getFile();
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+
+                WorkspaceInfo ws = catalog.getDefaultWorkspace();
+                out.writeUTF(ws != null ? ws.getName() : "");
+                NamespaceInfo ns = catalog.getDefaultNamespace();
+                out.writeUTF(ns != null ? ns.getPrefix() : "");
+
+                //dependency order, the same the data directory is loaded in
+                XStream xs = xp.getXStream();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+                write(catalog.getWorkspaces(), xs, bytes, out);
+                write(catalog.getNamespaces(), xs, bytes, out);
+                write(catalog.getStyles(), xs, bytes, out);
+                write(catalog.getStores(StoreInfo.class), xs, bytes, out);
+                write(catalog.getResources(ResourceInfo.class), xs, bytes, out);
+                write(catalog.getLayers(), xs, bytes, out);
+                write(catalog.getLayerGroups(), xs, bytes, out);
+                out.writeInt(END);
+                out.flush();
+            }
+            finally {
+                out.close();
+            }
+
+            //same as the rest of the data directory, the rename replaces the old snapshot
+            IOUtils.rename(tmp, f);
+            if (tmp.exists()) {
+                throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to "
+                    + f.getAbsolutePath());
+            }
+            written = true;
+        }
+        finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+
+    void write(List<?> objects, XStream xs, ByteArrayOutputStream bytes, DataOutputStream out)
+        throws IOException {
+        for (Object obj : objects) {
+            int flags = 0;
+            if (obj instanceof StoreInfo) {
+                StoreInfo store = (StoreInfo) obj;
+                if (!store.isEnabled() && disabledOnLoad.contains(store.getId())) {
+                    flags |= REENABLE;
+                }
+            }
+
+            bytes.reset();
+            BinaryStreamWriter writer = new BinaryStreamWriter(bytes);
+            xs.marshal(XStreamPersister.unwrapProxies(obj), writer);
+            writer.flush();
+
+            out.writeInt(flags);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the catalog configuration files currently in the data
+     * directory.
+     */
+    public String fingerprint() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (Exception e) {
+            throw (IOException) new IOException("Unable to compute fingerprint").initCause(e);
+        }
+
+        File root = resourceLoader.getBaseDirectory();
+        int count = 0;
+        //styles/*.xml, layergroups/*.xml and workspaces/<ws>/<store>/<resource>/*.xml
+        count += fingerprint(new File(root, "styles"), "styles", 0, digest);
+        count += fingerprint(new File(root, "layergroups"), "layergroups", 0, digest);
+        count += fingerprint(new File(root, "workspaces"), "workspaces", 3, digest);
+
+        StringBuilder sb = new StringBuilder().append(count).append('-');
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    int fingerprint(File dir, String path, int depth, MessageDigest digest) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+
+        int count = 0;
+        for (File f : files) {
+            String p = path + "/" + f.getName();
+            if (f.isDirectory()) {
+                if (depth > 0) {
+                    count += fingerprint(f, p, depth - 1, digest);
+                }
+            }
+            else if (f.getName().endsWith(".xml")) {
+                digest.update((p + ":" + f.length() + ":" + f.lastModified() + "\n").getBytes());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts tracking changes to the catalog, rewriting the snapshot after each one.
+     *
+     * @param catalog The catalog to snapshot.
+     * @param write Whether to write out a snapshot right away.
+     */
+    public synchronized void register(Catalog catalog, boolean write) {
+        this.catalog = catalog;
+        if (!catalog.getListeners().contains(this)) {
+            catalog.addListener(this);
+        }
+        if (write) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules a rewrite of the snapshot, changes made until the rewrite starts are coalesced
+     * into it.
+     */
+    void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CatalogSnapshot");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            executor.schedule(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    try {
+                        write(catalog);
+                    }
+                    catch( Throwable t ) {
+                        LOGGER.log(Level.WARNING, "Failed to write catalog snapshot", t);
+                        getFile().delete();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        scheduled.set(false);
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) {
+        schedule();
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        schedule();
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) {
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        if (event.getSource() instanceof StoreInfo) {
+            //explicitly saved, the stored enabled flag is authoritative again
+            disabledOnLoad.remove(((StoreInfo) event.getSource()).getId());
+        }
+        schedule();
+    }
+
+    public void reloaded() {
+        schedule();
+    }
+}
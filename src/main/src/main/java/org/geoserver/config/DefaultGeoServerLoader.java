@@ -44,6 +44,11 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
         if ( !legacy ) {
             //add the listener which will persist changes
             catalog.addListener( new GeoServerPersister( resourceLoader, xp ) );
+            
+            //keep the snapshot up to date, after the persister has written out changes
+            if ( snapshot != null ) {
+                snapshot.register( catalog, !snapshotLoaded );
+            }
         }
     }
     
@@ -13,8 +13,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +32,6 @@ import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.geoserver.catalog.Catalog;
-import org.geoserver.catalog.CatalogFactory;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.CoverageStoreInfo;
 import org.geoserver.catalog.DataStoreInfo;
@@ -31,6 +39,7 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMSStoreInfo;
@@ -73,11 +82,22 @@ public abstract class GeoServerLoader {
     GeoServer geoserver;
     XStreamPersisterFactory xpf = new XStreamPersisterFactory();
     
+    /** catalog snapshot, when enabled */
+    CatalogSnapshot snapshot;
+    /** whether the catalog was loaded from an up to date snapshot */
+    boolean snapshotLoaded;
+    
     //JD: this is a hack for the moment, it is used only to maintain tests since the test setup relies
     // on the old data directory structure, once the tests have been ported to the new structure
     // this ugly hack can die
     static boolean legacy = false;
     
+    /**
+     * Property controlling the number of threads used to parse the catalog configuration at 
+     * startup, defaults to the number of available processors. A value of 1 parses serially.
+     */
+    public static final String LOADER_THREADS = "GEOSERVER_LOADER_THREADS";
+    
     public GeoServerLoader( GeoServerResourceLoader resourceLoader ) {
         this.resourceLoader = resourceLoader;
     }
@@ -231,290 +251,480 @@ public abstract class GeoServerLoader {
     
     /**
      * Reads the catalog from disk.
+     * <p>
+     * Configuration files are parsed in parallel (see {@link #LOADER_THREADS}) but objects are 
+     * added to the catalog in dependency order, styles, workspaces, stores, resources, layers and
+     * finally layer groups. Each file is parsed only once everything it may reference has been 
+     * added, so references resolve exactly as they would with a serial load.
+     * </p>
      */
     Catalog readCatalog( XStreamPersister xp ) throws Exception {
+        snapshotLoaded = false;
+        if ( CatalogSnapshot.isEnabled() ) {
+            if ( snapshot == null ) {
+                snapshot = new CatalogSnapshot(resourceLoader, xpf.createXMLPersister());
+            }
+            Catalog catalog = readSnapshot( xp );
+            if ( catalog != null ) {
+                snapshotLoaded = true;
+                return catalog;
+            }
+        }
+        
         Catalog catalog = new CatalogImpl();
         catalog.setResourceLoader(resourceLoader);
         xp.setCatalog( catalog );
         
-        CatalogFactory factory = catalog.getFactory();
-       
-        //global styles
-        loadStyles(resourceLoader.find( "styles" ), catalog, xp);
-
-        //workspaces, stores, and resources
-        File workspaces = resourceLoader.find( "workspaces" );
-        if ( workspaces != null ) {
-            //do a first quick scan over all workspaces, setting the default
-            File dws = new File(workspaces, "default.xml");
-            WorkspaceInfo defaultWorkspace = null;
-            if (dws.exists()) {
+        PhaseTimer timer = new PhaseTimer();
+        ConfigParser parser = new ConfigParser(xp, loaderThreads());
+        try {
+            //global styles
+            loadStyles(resourceLoader.find( "styles" ), catalog, parser);
+            timer.phase("styles");
+    
+            //workspaces, stores, and resources
+            File workspaces = resourceLoader.find( "workspaces" );
+            if ( workspaces != null ) {
+                loadWorkspaces(workspaces, catalog, xp, parser);
+                timer.phase("workspaces");
+                
+                List<StoreEntry> stores = loadStores(workspaces, catalog, parser);
+                timer.phase("stores");
+                
+                checkDataStores(stores, parser);
+                timer.phase("store connections");
+                
+                Map<File,String> layers = loadResources(stores, catalog, parser);
+                timer.phase("resources");
+                
+                loadLayers(layers, catalog, parser);
+                timer.phase("layers");
+                
+                //load the layer groups for each workspace
+                for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+                    File layergroups = resourceLoader.find(wsd, "layergroups");
+                    if (layergroups != null) {
+                        loadLayerGroups(layergroups, catalog, parser);
+                    }
+                }
+            }
+            else {
+                LOGGER.warning( "No 'workspaces' directory found, unable to load any stores." );
+            }
+    
+            //layergroups
+            File layergroups = resourceLoader.find( "layergroups" );
+            if ( layergroups != null ) {
+               loadLayerGroups(layergroups, catalog, parser);
+            }
+            timer.phase("layer groups");
+        }
+        finally {
+            parser.dispose();
+        }
+        
+        LOGGER.info("Catalog loaded in " + timer.report() + " using " + parser.threads 
+            + " thread(s)");
+        return catalog;
+    }
+    
+    /**
+     * Reads the catalog from the binary snapshot, returning <code>null</code> if the snapshot is
+     * missing, out of date or unreadable.
+     */
+    Catalog readSnapshot( XStreamPersister xp ) {
+        Catalog catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        xp.setCatalog( catalog );
+        
+        PhaseTimer timer = new PhaseTimer();
+        ConfigParser parser = new ConfigParser(xp, loaderThreads());
+        try {
+            List<StoreInfo> stores = snapshot.read(catalog, xp);
+            if ( stores == null ) {
+                return null;
+            }
+            timer.phase("snapshot");
+            
+            List<StoreEntry> entries = new ArrayList<StoreEntry>();
+            for ( StoreInfo store : stores ) {
+                StoreEntry entry = new StoreEntry(null);
+                entry.store = store;
+                entries.add(entry);
+            }
+            checkDataStores(entries, parser);
+            timer.phase("store connections");
+        }
+        catch( Exception e ) {
+            LOGGER.log( Level.WARNING, "Failed to read catalog snapshot, loading from xml", e );
+            return null;
+        }
+        finally {
+            parser.dispose();
+        }
+        
+        LOGGER.info("Catalog loaded from snapshot in " + timer.report());
+        return catalog;
+    }
+    
+    /**
+     * Returns the number of threads used to parse the catalog configuration files.
+     */
+    int loaderThreads() {
+        String value = GeoServerExtensions.getProperty(LOADER_THREADS);
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            }
+            catch( NumberFormatException e ) {
+                LOGGER.warning("Ignoring invalid " + LOADER_THREADS + " value '" + value + "'");
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    void loadWorkspaces(File workspaces, Catalog catalog, XStreamPersister xp, ConfigParser parser) {
+        //do a first quick scan over all workspaces, setting the default
+        File dws = new File(workspaces, "default.xml");
+        WorkspaceInfo defaultWorkspace = null;
+        if (dws.exists()) {
+            try {
+                defaultWorkspace = depersist(xp, dws, WorkspaceInfo.class);
+                LOGGER.info("Loaded default workspace " + defaultWorkspace.getName());
+            }
+            catch( Exception e ) {
+                LOGGER.log(Level.WARNING, "Failed to load default workspace", e);
+            }
+        }
+        else {
+            LOGGER.warning("No default workspace was found.");
+        }
+        
+        for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+            File f = new File( wsd, "workspace.xml");
+            if ( !f.exists() ) {
+                continue;
+            }
+            
+            WorkspaceInfo ws = null;
+            try {
+                ws = depersist( xp, f, WorkspaceInfo.class );
+                catalog.add( ws );    
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.WARNING, "Failed to load workspace '" + wsd.getName() + "'" , e );
+                continue;
+            }
+            
+            LOGGER.info( "Loaded workspace '" + ws.getName() +"'");
+            
+            //load the namespace
+            File nsf = new File( wsd, "namespace.xml" );
+            NamespaceInfo ns = null; 
+            if ( nsf.exists() ) {
                 try {
-                    defaultWorkspace = depersist(xp, dws, WorkspaceInfo.class);
-                    LOGGER.info("Loaded default workspace " + defaultWorkspace.getName());
+                    ns = depersist( xp, nsf, NamespaceInfo.class );
+                    catalog.add( ns );
                 }
                 catch( Exception e ) {
-                    LOGGER.log(Level.WARNING, "Failed to load default workspace", e);
+                    LOGGER.log( Level.WARNING, "Failed to load namespace for '" + wsd.getName() + "'" , e );
+                }
+            }
+            
+            //set the default workspace, this value might be null in the case of coming from a 
+            // 2.0.0 data directory. See http://jira.codehaus.org/browse/GEOS-3440
+            if (defaultWorkspace != null ) {
+                if (ws.getName().equals(defaultWorkspace.getName())) {
+                    catalog.setDefaultWorkspace(ws);
+                    if (ns != null) {
+                        catalog.setDefaultNamespace(ns);
+                    }
                 }
             }
             else {
-                LOGGER.warning("No default workspace was found.");
+                //create the default.xml file
+                defaultWorkspace = catalog.getDefaultWorkspace();
+                if (defaultWorkspace != null) {
+                    try {
+                        persist(xp, defaultWorkspace, dws);    
+                    }
+                    catch( Exception e ) {
+                        LOGGER.log( Level.WARNING, "Failed to persist default workspace '" + 
+                            wsd.getName() + "'" , e );
+                    }
+                    
+                }
             }
-            
-            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
-                File f = new File( wsd, "workspace.xml");
-                if ( !f.exists() ) {
-                    continue;
+
+            //load the styles for the workspace
+            File styles = resourceLoader.find(wsd, "styles");
+            if (styles != null) {
+                loadStyles(styles, catalog, parser);
+            }
+        }
+    }
+    
+    /**
+     * Loads the stores of all workspaces, returning the ones successfully added to the catalog.
+     */
+    List<StoreEntry> loadStores(File workspaces, Catalog catalog, ConfigParser parser) {
+        //parse all the store files up front
+        List<StoreEntry> parsed = new ArrayList<StoreEntry>();
+        for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+            for ( File sd : list(wsd, DirectoryFileFilter.INSTANCE) ) {
+                StoreEntry entry = new StoreEntry(sd);
+                File f = new File( sd, "datastore.xml");
+                if ( f.exists() ) {
+                    entry.type = DataStoreInfo.class;
+                    entry.future = parser.parse(f, DataStoreInfo.class);
+                } else {
+                    f = new File( sd, "coveragestore.xml" );
+                    if ( f.exists() ) {
+                        entry.type = CoverageStoreInfo.class;
+                        entry.future = parser.parse(f, CoverageStoreInfo.class);
+                    } else {
+                        f = new File( sd, "wmsstore.xml" );
+                        if ( f.exists() ) {
+                            entry.type = WMSStoreInfo.class;
+                            entry.future = parser.parse(f, WMSStoreInfo.class);
+                        }
+                    }
                 }
-                
-                WorkspaceInfo ws = null;
+                parsed.add(entry);
+            }
+        }
+        
+        //add them in directory order
+        List<StoreEntry> stores = new ArrayList<StoreEntry>();
+        for ( StoreEntry entry : parsed ) {
+            File sd = entry.dir;
+            if ( entry.type == DataStoreInfo.class ) {
                 try {
-                    ws = depersist( xp, f, WorkspaceInfo.class );
-                    catalog.add( ws );    
+                    entry.store = parser.get(entry.future);
+                    catalog.add( entry.store );
+                    
+                    LOGGER.info( "Loaded data store '" + entry.store.getName() +"'");
                 }
                 catch( Exception e ) {
-                    LOGGER.log( Level.WARNING, "Failed to load workspace '" + wsd.getName() + "'" , e );
+                    LOGGER.log( Level.WARNING, "Failed to load data store '" + sd.getName() +"'", e);
                     continue;
                 }
+            }
+            else if ( entry.type == CoverageStoreInfo.class ) {
+                try {
+                    entry.store = parser.get(entry.future);
+                    catalog.add( entry.store );
                 
-                LOGGER.info( "Loaded workspace '" + ws.getName() +"'");
-                
-                //load the namespace
-                File nsf = new File( wsd, "namespace.xml" );
-                NamespaceInfo ns = null; 
-                if ( nsf.exists() ) {
-                    try {
-                        ns = depersist( xp, nsf, NamespaceInfo.class );
-                        catalog.add( ns );
-                    }
-                    catch( Exception e ) {
-                        LOGGER.log( Level.WARNING, "Failed to load namespace for '" + wsd.getName() + "'" , e );
-                    }
+                    LOGGER.info( "Loaded coverage store '" + entry.store.getName() +"'");
                 }
+                catch( Exception e ) {
+                    LOGGER.log( Level.WARNING, "Failed to load coverage store '" + sd.getName() +"'", e);
+                    continue;
+                }
+            }
+            else if ( entry.type == WMSStoreInfo.class ) {
+                try {
+                    entry.store = parser.get(entry.future);
+                    catalog.add( entry.store );
                 
-                //set the default workspace, this value might be null in the case of coming from a 
-                // 2.0.0 data directory. See http://jira.codehaus.org/browse/GEOS-3440
-                if (defaultWorkspace != null ) {
-                    if (ws.getName().equals(defaultWorkspace.getName())) {
-                        catalog.setDefaultWorkspace(ws);
-                        if (ns != null) {
-                            catalog.setDefaultNamespace(ns);
+                    LOGGER.info( "Loaded wmsstore '" + entry.store.getName() +"'");
+                } catch( Exception e ) {
+                    LOGGER.log( Level.WARNING, "Failed to load wms store '" + sd.getName() +"'", e);
+                    continue;
+                }
+            }
+            else {
+                LOGGER.warning( "Ignoring store directory '" + sd.getName() +  "'");
+                continue;
+            }
+            stores.add(entry);
+        }
+        return stores;
+    }
+    
+    /**
+     * Connects to the enabled data stores, disabling the ones that fail. The connections are 
+     * opened in parallel and the outcome applied in store order.
+     */
+    void checkDataStores(List<StoreEntry> stores, ConfigParser parser) {
+        List<Future<Throwable>> checks = new ArrayList<Future<Throwable>>();
+        for ( StoreEntry entry : stores ) {
+            Future<Throwable> check = null;
+            if ( entry.store instanceof DataStoreInfo && entry.store.isEnabled() ) {
+                final DataStoreInfo ds = (DataStoreInfo) entry.store;
+                check = parser.submit(new Callable<Throwable>() {
+                    public Throwable call() throws Exception {
+                        //connect to the datastore to determine if we should disable it
+                        try {
+                            ds.getDataStore(null);
+                            return null;
+                        }
+                        catch( Throwable t ) {
+                            return t;
                         }
                     }
+                });
+            }
+            checks.add(check);
+        }
+        
+        for ( int i = 0; i < stores.size(); i++ ) {
+            if ( checks.get(i) == null ) {
+                continue;
+            }
+            
+            StoreInfo ds = stores.get(i).store;
+            Throwable t;
+            try {
+                t = parser.get(checks.get(i));
+            }
+            catch( Exception e ) {
+                t = e;
+            }
+            if ( t != null ) {
+                LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
+                LOGGER.log( Level.INFO, "", t );
+                
+                ds.setError(t);
+                ds.setEnabled(false);
+                
+                if ( snapshot != null ) {
+                    snapshot.disabledOnLoad(ds);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Loads the resources of the specified stores, returning the layer files still to be loaded 
+     * mapped to the message to log should loading fail.
+     */
+    Map<File,String> loadResources(List<StoreEntry> stores, Catalog catalog, ConfigParser parser) {
+        //parse all the resource files up front
+        List<List<Future<?>>> parsed = new ArrayList<List<Future<?>>>();
+        for ( StoreEntry entry : stores ) {
+            List<Future<?>> resources = new ArrayList<Future<?>>();
+            for ( File rd : list(entry.dir, DirectoryFileFilter.INSTANCE) ) {
+                Future<?> future = null;
+                if ( entry.type == DataStoreInfo.class ) {
+                    File f = new File( rd, "featuretype.xml" );
+                    future = f.exists() ? parser.parse(f, FeatureTypeInfo.class) : null;
+                }
+                else if ( entry.type == CoverageStoreInfo.class ) {
+                    File f = new File( rd, "coverage.xml" );
+                    future = f.exists() ? parser.parse(f, CoverageInfo.class) : null;
                 }
                 else {
-                    //create the default.xml file
-                    defaultWorkspace = catalog.getDefaultWorkspace();
-                    if (defaultWorkspace != null) {
+                    File f = new File( rd, "wmslayer.xml" );
+                    future = f.exists() ? parser.parse(f, WMSLayerInfo.class) : null;
+                }
+                resources.add(future);
+            }
+            parsed.add(resources);
+        }
+        
+        Map<File,String> layers = new LinkedHashMap<File, String>();
+        for ( int i = 0; i < stores.size(); i++ ) {
+            StoreEntry entry = stores.get(i);
+            Iterator<Future<?>> resources = parsed.get(i).iterator();
+            
+            for ( File rd : list(entry.dir, DirectoryFileFilter.INSTANCE) ) {
+                Future<?> future = resources.next();
+                File f = new File( rd, "layer.xml" );
+                
+                if ( entry.type == DataStoreInfo.class ) {
+                    if( future != null ) {
+                        FeatureTypeInfo ft = null;
                         try {
-                            persist(xp, defaultWorkspace, dws);    
+                            ft = (FeatureTypeInfo) parser.get(future);
                         }
                         catch( Exception e ) {
-                            LOGGER.log( Level.WARNING, "Failed to persist default workspace '" + 
-                                wsd.getName() + "'" , e );
+                            LOGGER.log( Level.WARNING, "Failed to load feature type '" + rd.getName() +"'", e);
+                            continue;
                         }
                         
+                        catalog.add( ft );
+                        
+                        LOGGER.info( "Loaded feature type '" + entry.store.getName() +"'");
+                        
+                        if ( f.exists() ) {
+                            layers.put(f, "Failed to load layer for feature type '" + ft.getName() +"'");
+                        }
+                    }
+                    else {
+                        LOGGER.warning( "Ignoring feature type directory " + rd.getAbsolutePath() );
                     }
                 }
-
-                //load the styles for the workspace
-                File styles = resourceLoader.find(wsd, "styles");
-                if (styles != null) {
-                    loadStyles(styles, catalog, xp);
-                }
-            }
-            
-            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
-                
-                //load the stores for this workspace
-                for ( File sd : list(wsd, DirectoryFileFilter.INSTANCE) ) {
-                    File f = new File( sd, "datastore.xml");
-                    if ( f.exists() ) {
-                        //load as a datastore
-                        DataStoreInfo ds = null;
-                        try {    
-                            ds = depersist( xp, f, DataStoreInfo.class );
-                            catalog.add( ds );
-                            
-                            LOGGER.info( "Loaded data store '" + ds.getName() +"'");
+                else if ( entry.type == CoverageStoreInfo.class ) {
+                    if( future != null ) {
+                        CoverageInfo c = null;
+                        try {
+                            c = (CoverageInfo) parser.get(future);
+                            catalog.add( c );
                             
-                            if (ds.isEnabled()) {
-                                //connect to the datastore to determine if we should disable it
-                                try {
-                                    ds.getDataStore(null);
-                                }
-                                catch( Throwable t ) {
-                                    LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
-                                    LOGGER.log( Level.INFO, "", t );
-                                    
-                                    ds.setError(t);
-                                    ds.setEnabled(false);
-                                }
-                            }
+                            LOGGER.info( "Loaded coverage '" + entry.store.getName() +"'");
                         }
                         catch( Exception e ) {
-                            LOGGER.log( Level.WARNING, "Failed to load data store '" + sd.getName() +"'", e);
+                            LOGGER.log( Level.WARNING, "Failed to load coverage '" + rd.getName() +"'", e);
                             continue;
                         }
                         
-                        //load feature types
-                        for ( File ftd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                            f = new File( ftd, "featuretype.xml" );
-                            if( f.exists() ) {
-                                FeatureTypeInfo ft = null;
-                                try {
-                                    ft = depersist(xp,f,FeatureTypeInfo.class);
-                                }
-                                catch( Exception e ) {
-                                    LOGGER.log( Level.WARNING, "Failed to load feature type '" + ftd.getName() +"'", e);
-                                    continue;
-                                }
-                                
-                                catalog.add( ft );
-                                
-                                LOGGER.info( "Loaded feature type '" + ds.getName() +"'");
-                                
-                                f = new File( ftd, "layer.xml" );
-                                if ( f.exists() ) {
-                                    try {
-                                        LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                        catalog.add( l );
-                                        
-                                        LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                    }
-                                    catch( Exception e ) {
-                                        LOGGER.log( Level.WARNING, "Failed to load layer for feature type '" + ft.getName() +"'", e);
-                                    }
-                                }
-                            }
-                            else {
-                                LOGGER.warning( "Ignoring feature type directory " + ftd.getAbsolutePath() );
-                            }
-                        }
-                    } else {
-                        //look for a coverage store
-                        f = new File( sd, "coveragestore.xml" );
                         if ( f.exists() ) {
-                            CoverageStoreInfo cs = null;
-                            try {
-                                cs = depersist( xp, f, CoverageStoreInfo.class );
-                                catalog.add( cs );
-                            
-                                LOGGER.info( "Loaded coverage store '" + cs.getName() +"'");
-                            }
-                            catch( Exception e ) {
-                                LOGGER.log( Level.WARNING, "Failed to load coverage store '" + sd.getName() +"'", e);
-                                continue;
-                            }
-                            
-                            //load coverages
-                            for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                                f = new File( cd, "coverage.xml" );
-                                if( f.exists() ) {
-                                    CoverageInfo c = null;
-                                    try {
-                                        c = depersist(xp,f,CoverageInfo.class);
-                                        catalog.add( c );
-                                        
-                                        LOGGER.info( "Loaded coverage '" + cs.getName() +"'");
-                                    }
-                                    catch( Exception e ) {
-                                        LOGGER.log( Level.WARNING, "Failed to load coverage '" + cd.getName() +"'", e);
-                                        continue;
-                                    }
-                                    
-                                    f = new File( cd, "layer.xml" );
-                                    if ( f.exists() ) {
-                                        try {
-                                            LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                            catalog.add( l );
-                                            
-                                            LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                        }
-                                        catch( Exception e ) {
-                                            LOGGER.log( Level.WARNING, "Failed to load layer coverage '" + c.getName() +"'", e);
-                                        }
-                                    }
-                                }
-                                else {
-                                    LOGGER.warning( "Ignoring coverage directory " + cd.getAbsolutePath() );
-                                }
-                            }
-                        } else {
-                            f = new File( sd, "wmsstore.xml" );
-                            if(f.exists()) {
-                                WMSStoreInfo wms = null;
-                                try {
-                                    wms = depersist( xp, f, WMSStoreInfo.class );
-                                    catalog.add( wms );
-                                
-                                    LOGGER.info( "Loaded wmsstore '" + wms.getName() +"'");
-                                } catch( Exception e ) {
-                                    LOGGER.log( Level.WARNING, "Failed to load wms store '" + sd.getName() +"'", e);
-                                    continue;
-                                }
-                                
-                                //load wms layers
-                                for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                                    f = new File( cd, "wmslayer.xml" );
-                                    if( f.exists() ) {
-                                        WMSLayerInfo wl = null;
-                                        try {
-                                            wl = depersist(xp,f,WMSLayerInfo.class);
-                                            catalog.add( wl );
-                                            
-                                            LOGGER.info( "Loaded wms layer'" + wl.getName() +"'");
-                                        }
-                                        catch( Exception e ) {
-                                            LOGGER.log( Level.WARNING, "Failed to load wms layer '" + cd.getName() +"'", e);
-                                            continue;
-                                        }
-                                        
-                                        f = new File( cd, "layer.xml" );
-                                        if ( f.exists() ) {
-                                            try {
-                                                LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                                catalog.add( l );
-                                                
-                                                LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                            }
-                                            catch( Exception e ) {
-                                                LOGGER.log( Level.WARNING, "Failed to load cascaded wms layer '" + wl.getName() +"'", e);
-                                            }
-                                        }
-                                    }
-                                    else {
-                                        LOGGER.warning( "Ignoring coverage directory " + cd.getAbsolutePath() );
-                                    }
-                                }
-                            } else {
-                                LOGGER.warning( "Ignoring store directory '" + sd.getName() +  "'");
-                                continue;
-                            }
+                            layers.put(f, "Failed to load layer coverage '" + c.getName() +"'");
                         }
                     }
+                    else {
+                        LOGGER.warning( "Ignoring coverage directory " + rd.getAbsolutePath() );
+                    }
                 }
-
-                //load hte layer groups for this workspace
-                File layergroups = resourceLoader.find(wsd, "layergroups");
-                if (layergroups != null) {
-                    loadLayerGroups(layergroups, catalog, xp);
+                else {
+                    if( future != null ) {
+                        WMSLayerInfo wl = null;
+                        try {
+                            wl = (WMSLayerInfo) parser.get(future);
+                            catalog.add( wl );
+                            
+                            LOGGER.info( "Loaded wms layer'" + wl.getName() +"'");
+                        }
+                        catch( Exception e ) {
+                            LOGGER.log( Level.WARNING, "Failed to load wms layer '" + rd.getName() +"'", e);
+                            continue;
+                        }
+                        
+                        if ( f.exists() ) {
+                            layers.put(f, "Failed to load cascaded wms layer '" + wl.getName() +"'");
+                        }
+                    }
+                    else {
+                        LOGGER.warning( "Ignoring coverage directory " + rd.getAbsolutePath() );
+                    }
                 }
             }
         }
-        else {
-            LOGGER.warning( "No 'workspaces' directory found, unable to load any stores." );
+        return layers;
+    }
+    
+    /**
+     * Loads the specified layer files, logging the associated message for the ones that fail. 
+     */
+    void loadLayers(Map<File,String> layers, Catalog catalog, ConfigParser parser) {
+        List<Future<LayerInfo>> parsed = new ArrayList<Future<LayerInfo>>();
+        for ( File f : layers.keySet() ) {
+            parsed.add(parser.parse(f, LayerInfo.class));
         }
-
-        //namespaces
         
-        //layergroups
-        File layergroups = resourceLoader.find( "layergroups" );
-        if ( layergroups != null ) {
-           loadLayerGroups(layergroups, catalog, xp);
+        Iterator<Future<LayerInfo>> it = parsed.iterator();
+        for ( String message : layers.values() ) {
+            try {
+                LayerInfo l = parser.get(it.next());
+                catalog.add( l );
+                
+                LOGGER.info( "Loaded layer '" + l.getName() + "'" );
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.WARNING, message, e);
+            }
         }
-
-        return catalog;
     }
     
     /**
@@ -649,29 +859,38 @@ public abstract class GeoServerLoader {
         }
     }
 
-    void loadStyles(File styles, Catalog catalog, XStreamPersister xp) {
+    void loadStyles(File styles, Catalog catalog, ConfigParser parser) {
+        Map<File,Future<StyleInfo>> parsed = new LinkedHashMap<File, Future<StyleInfo>>();
         for ( File sf : list(styles,new SuffixFileFilter(".xml") ) ) {
+            //handle the .xml.xml case
+            if (new File(styles,sf.getName()+".xml").exists()) {
+                continue;
+            }
+            parsed.put(sf, parser.parse(sf, StyleInfo.class));
+        }
+        
+        for ( Map.Entry<File,Future<StyleInfo>> e : parsed.entrySet() ) {
             try {
-                //handle the .xml.xml case
-                if (new File(styles,sf.getName()+".xml").exists()) {
-                    continue;
-                }
-                
-                StyleInfo s = depersist( xp, sf, StyleInfo.class );
+                StyleInfo s = parser.get(e.getValue());
                 catalog.add( s );
                 
                 LOGGER.info( "Loaded style '" + s.getName() + "'" );
             }
-            catch( Exception e ) {
-                LOGGER.log( Level.WARNING, "Failed to load style from file '" + sf.getName() + "'" , e );
+            catch( Exception ex ) {
+                LOGGER.log( Level.WARNING, "Failed to load style from file '" + e.getKey().getName() + "'" , ex );
             }
         }
     }
 
-    void loadLayerGroups(File layergroups, Catalog catalog, XStreamPersister xp) {
+    void loadLayerGroups(File layergroups, Catalog catalog, ConfigParser parser) {
+        Map<File,Future<LayerGroupInfo>> parsed = new LinkedHashMap<File, Future<LayerGroupInfo>>();
         for ( File lgf : list( layergroups, new SuffixFileFilter( ".xml" ) ) ) {
+            parsed.put(lgf, parser.parse(lgf, LayerGroupInfo.class));
+        }
+        
+        for ( Map.Entry<File,Future<LayerGroupInfo>> e : parsed.entrySet() ) {
             try {
-                LayerGroupInfo lg = depersist( xp, lgf, LayerGroupInfo.class );
+                LayerGroupInfo lg = parser.get(e.getValue());
                 if(lg.getLayers() == null || lg.getLayers().size() == 0) {
                     LOGGER.warning("Skipping empty layer group '" + lg.getName() + "', it is invalid");
                     continue;
@@ -680,8 +899,8 @@ public abstract class GeoServerLoader {
                 
                 LOGGER.info( "Loaded layer group '" + lg.getName() + "'" );    
             }
-            catch( Exception e ) {
-                LOGGER.log( Level.WARNING, "Failed to load layer group '" + lgf.getName() + "'", e );
+            catch( Exception ex ) {
+                LOGGER.log( Level.WARNING, "Failed to load layer group '" + e.getKey().getName() + "'", ex );
             }
         }
     }
@@ -743,7 +962,118 @@ public abstract class GeoServerLoader {
     }
     
     public void destroy() throws Exception {
+        if ( snapshot != null ) {
+            snapshot.dispose();
+        }
+        
         //dispose
         geoserver.dispose();
     }
+    
+    /**
+     * A store directory along with the parsed store.
+     */
+    static class StoreEntry {
+        File dir;
+        Class<? extends StoreInfo> type;
+        Future<? extends StoreInfo> future;
+        StoreInfo store;
+        
+        StoreEntry(File dir) {
+            this.dir = dir;
+        }
+    }
+    
+    /**
+     * Parses configuration files on a pool of threads, results are consumed through futures in 
+     * whatever order the caller needs to add them to the catalog.
+     * <p>
+     * With a single thread files are parsed inline by {@link #parse(File, Class)}.
+     * </p>
+     */
+    class ConfigParser {
+        XStreamPersister xp;
+        int threads;
+        ExecutorService executor;
+        
+        ConfigParser(XStreamPersister xp, int threads) {
+            this.xp = xp;
+            this.threads = threads;
+            if (threads > 1) {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    int count = 0;
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GeoServerLoader-" + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        
+        <T> Future<T> parse(final File f, final Class<T> clazz) {
+            return submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return depersist(xp, f, clazz);
+                }
+            });
+        }
+        
+        <T> Future<T> submit(Callable<T> callable) {
+            FutureTask<T> task = new FutureTask<T>(callable);
+            if (executor != null) {
+                executor.execute(task);
+            }
+            else {
+                task.run();
+            }
+            return task;
+        }
+        
+        /**
+         * Waits for the result, rethrowing the exception the parse failed with, if any.
+         */
+        <T> T get(Future<? extends T> future) throws Exception {
+            try {
+                return future.get();
+            }
+            catch( ExecutionException e ) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+        
+        void dispose() {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+    
+    /**
+     * Keeps track of the time spent in each loading phase.
+     */
+    static class PhaseTimer {
+        long start = System.currentTimeMillis();
+        long last = start;
+        StringBuilder phases = new StringBuilder();
+        
+        void phase(String name) {
+            long now = System.currentTimeMillis();
+            if (phases.length() > 0) {
+                phases.append(", ");
+            }
+            phases.append(name).append(": ").append(now - last).append(" ms");
+            last = now;
+        }
+        
+        String report() {
+            return (last - start) + " ms (" + phases + ")";
+        }
+    }
 }
@@ -11,6 +11,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -29,10 +30,18 @@ public class AlternativesResponseStream extends ServletOutputStream {
     Set myCompressibleTypes;
     Logger logger = org.geotools.util.logging.Logging.getLogger("org.geoserver.filters");
 
+    int myCompressionLevel;
+
     public AlternativesResponseStream(HttpServletResponse response, Set compressible) throws IOException {
+        this(response, compressible, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public AlternativesResponseStream(HttpServletResponse response, Set compressible,
+            int compressionLevel) throws IOException {
         super();
         myResponse = response;
         myCompressibleTypes = compressible;
+        myCompressionLevel = compressionLevel;
     }
 
     public void close() throws IOException {
@@ -65,9 +74,13 @@ public class AlternativesResponseStream extends ServletOutputStream {
 //            logger.warning("Mime type was not set before first write!");
 //        }
 
-        if (type != null && isCompressible(type)){
+        if (myResponse.containsHeader("Content-Encoding")) {
+            // the output is already encoded, e.g., pre-compressed, pass it through as is
+            logger.log(Level.FINE, "Not compressing already encoded output for mimetype: {0}", type);
+            myStream = myResponse.getOutputStream();
+        } else if (type != null && isCompressible(type)){
             logger.log(Level.FINE, "Compressing output for mimetype: {0}", type);
-            myStream = new GZIPResponseStream(myResponse);
+            myStream = new GZIPResponseStream(myResponse, myCompressionLevel);
         } else {
             logger.log(Level.FINE, "Not compressing output for mimetype: {0}", type);
             myStream = myResponse.getOutputStream();
@@ -76,6 +89,16 @@ public class AlternativesResponseStream extends ServletOutputStream {
         return myStream;
     }
 
+    /**
+     * Releases the resources held by the compressing stream, if any, in case the response is
+     * abandoned without being closed
+     */
+    public void release() {
+        if (myStream instanceof GZIPResponseStream) {
+            ((GZIPResponseStream) myStream).release();
+        }
+    }
+
     protected boolean isDirty(){
         return myStream != null;
     }
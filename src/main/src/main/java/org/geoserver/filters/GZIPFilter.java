@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -29,6 +30,8 @@ public class GZIPFilter implements Filter {
 
     private Set myCompressedTypes;
 
+    private int myCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
     public void doFilter(ServletRequest req, ServletResponse res,
             FilterChain chain) throws IOException, ServletException {
         if (req instanceof HttpServletRequest) {
@@ -37,9 +40,14 @@ public class GZIPFilter implements Filter {
             String ae = request.getHeader("accept-encoding");
             if (ae != null && ae.indexOf("gzip") != -1) {
                 GZIPResponseWrapper wrappedResponse =
-                    new GZIPResponseWrapper(response, myCompressedTypes, request.getRequestURL().toString());
-                chain.doFilter(req, wrappedResponse);
-                wrappedResponse.finishResponse();
+                    new GZIPResponseWrapper(response, myCompressedTypes, 
+                            request.getRequestURL().toString(), myCompressionLevel);
+                try {
+                    chain.doFilter(req, wrappedResponse);
+                    wrappedResponse.finishResponse();
+                } finally {
+                    wrappedResponse.release();
+                }
                 return;
             }
         }
@@ -57,6 +65,17 @@ public class GZIPFilter implements Filter {
             for (int i = 0; i < typeNames.length; i++){
                 myCompressedTypes.add(Pattern.compile(typeNames[i]));
             }
+
+            // 1 is the fastest, 9 the most compact
+            String compressionLevel = filterConfig.getInitParameter("compression-level");
+            if (compressionLevel != null) {
+                int level = Integer.parseInt(compressionLevel.trim());
+                if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                    throw new IllegalArgumentException("Invalid compression level " + level
+                            + ", it should be between 0 and 9");
+                }
+                myCompressionLevel = level;
+            }
         } catch (Exception e){
             System.out.println("Error while setting up GZIPFilter; " + e);
         }
@@ -12,66 +12,124 @@ package org.geoserver.filters;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
-
+/**
+ * Compresses the response in GZIP format as the bytes are written. The compressed output is
+ * buffered until it reaches {@link #STREAM_THRESHOLD} bytes, small responses are thus sent in one
+ * go along with their content length, while larger ones are streamed to the client as they are
+ * compressed, without being held in memory. The {@link Deflater} instances are pooled, as they
+ * hold a significant amount of native memory and are costly to allocate.
+ */
 public class GZIPResponseStream extends ServletOutputStream {
+    /**
+     * Size of the compressed output above which the response is streamed
+     */
+    static final int STREAM_THRESHOLD = 64 * 1024;
+
+    static final int BUFFER_SIZE = 8192;
+
+    static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+            0, 0, 0 };
+
+    static final DeflaterPool DEFLATERS = new DeflaterPool(Runtime.getRuntime()
+            .availableProcessors() * 2);
+
     protected ByteArrayOutputStream baos = null;
-    protected GZIPOutputStream gzipstream = null;
+    protected Deflater deflater = null;
+    protected CRC32 crc = new CRC32();
+    protected byte[] buffer = new byte[BUFFER_SIZE];
+    protected byte[] single = new byte[1];
     protected boolean closed = false;
     protected HttpServletResponse response = null;
     protected ServletOutputStream output = null;
 
     public GZIPResponseStream(HttpServletResponse response) throws IOException {
+        this(response, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Builds a new stream
+     *
+     * @param response the response to be compressed
+     * @param level the compression level, between 0 and 9, or -1 for the default one
+     */
+    public GZIPResponseStream(HttpServletResponse response, int level) throws IOException {
         super();
         closed = false;
         this.response = response;
         this.output = response.getOutputStream();
         baos = new ByteArrayOutputStream();
-        gzipstream = new GZIPOutputStream(baos);
+        baos.write(HEADER);
+        deflater = DEFLATERS.borrow(level);
     }
 
     public void close() throws IOException {
         if (closed) {
             throw new IOException("This output stream has already been closed");
         }
-        gzipstream.finish();
-
-        byte[] bytes = baos.toByteArray();
-        String contentLength = Integer.toString(bytes.length);
-        
-        //JD: we need to be careful about how we set the header, checking first if it has 
-        // already been set, if we don't the result will be two values for the content lenght
-        // header which will throw off most http clients
-        if (response.containsHeader("Content-Length")) {
-            response.setHeader("Content-Length", contentLength);
+        try {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            writeTrailer();
+
+            if (baos != null) {
+                // the whole response fit in the buffer, we can tell the client its size
+                String contentLength = Integer.toString(baos.size());
+
+                //JD: we need to be careful about how we set the header, checking first if it has
+                // already been set, if we don't the result will be two values for the content lenght
+                // header which will throw off most http clients
+                if (response.containsHeader("Content-Length")) {
+                    response.setHeader("Content-Length", contentLength);
+                }
+                else {
+                    response.addHeader("Content-Length", contentLength);
+                }
+                response.addHeader("Content-Encoding", "gzip");
+                baos.writeTo(output);
+                baos = null;
+            }
+            output.flush();
+            output.close();
+        } finally {
+            closed = true;
+            release();
         }
-        else {
-            response.addHeader("Content-Length", contentLength);
+    }
+
+    /**
+     * Returns the deflater to the pool, if not already done. To be called if the stream is going
+     * to be abandoned without being closed
+     */
+    public void release() {
+        if (deflater != null) {
+            DEFLATERS.release(deflater);
+            deflater = null;
         }
-         
-        response.addHeader("Content-Encoding", "gzip");
-        output.write(bytes);
-        output.flush();
-        output.close();
-        closed = true;
     }
 
     public void flush() throws IOException {
         if (closed) {
             throw new IOException("Cannot flush a closed output stream");
         }
-        gzipstream.flush();
+        if (baos == null) {
+            output.flush();
+        }
     }
 
     public void write(int b) throws IOException {
-        if (closed) {
-            throw new IOException("Cannot write to a closed output stream");
-        }
-        gzipstream.write((byte)b);
+        single[0] = (byte) b;
+        write(single, 0, 1);
     }
 
     public void write(byte b[]) throws IOException {
@@ -82,7 +140,51 @@ public class GZIPResponseStream extends ServletOutputStream {
         if (closed) {
             throw new IOException("Cannot write to a closed output stream");
         }
-        gzipstream.write(b, off, len);
+        if (len == 0) {
+            return;
+        }
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    void deflate() throws IOException {
+        int count = deflater.deflate(buffer, 0, buffer.length);
+        if (count > 0) {
+            writeCompressed(buffer, 0, count);
+        }
+    }
+
+    void writeTrailer() throws IOException {
+        byte[] trailer = new byte[8];
+        writeInt((int) crc.getValue(), trailer, 0);
+        writeInt((int) deflater.getBytesRead(), trailer, 4);
+        writeCompressed(trailer, 0, trailer.length);
+    }
+
+    void writeInt(int value, byte[] b, int offset) {
+        // gzip uses little endian
+        b[offset] = (byte) (value & 0xff);
+        b[offset + 1] = (byte) ((value >> 8) & 0xff);
+        b[offset + 2] = (byte) ((value >> 16) & 0xff);
+        b[offset + 3] = (byte) ((value >> 24) & 0xff);
+    }
+
+    void writeCompressed(byte[] b, int off, int len) throws IOException {
+        if (baos != null) {
+            baos.write(b, off, len);
+            if (baos.size() <= STREAM_THRESHOLD) {
+                return;
+            }
+            // too big to be buffered, switch to streaming
+            response.addHeader("Content-Encoding", "gzip");
+            baos.writeTo(output);
+            baos = null;
+        } else {
+            output.write(b, off, len);
+        }
     }
 
     public boolean closed() {
@@ -92,4 +194,40 @@ public class GZIPResponseStream extends ServletOutputStream {
     public void reset() {
         //noop
     }
+
+    /**
+     * A bounded pool of {@link Deflater} objects, the ones in excess are disposed of
+     */
+    static class DeflaterPool {
+        Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+        AtomicInteger size = new AtomicInteger();
+
+        int maxSize;
+
+        DeflaterPool(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        Deflater borrow(int level) {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                // gzip wraps raw deflate data with its own header and trailer
+                return new Deflater(level, true);
+            }
+            size.decrementAndGet();
+            deflater.setLevel(level);
+            return deflater;
+        }
+
+        void release(Deflater deflater) {
+            deflater.reset();
+            if (size.incrementAndGet() <= maxSize) {
+                deflaters.offer(deflater);
+            } else {
+                size.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
 }
@@ -15,6 +15,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -28,16 +29,24 @@ public class GZIPResponseWrapper extends HttpServletResponseWrapper {
     protected String requestedURL;
     protected Logger logger = org.geotools.util.logging.Logging.getLogger("org.geoserver.filters");
 
+    protected int compressionLevel;
+
     public GZIPResponseWrapper(HttpServletResponse response, Set toCompress, String url) {
+        this(response, toCompress, url, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public GZIPResponseWrapper(HttpServletResponse response, Set toCompress, String url,
+            int compressionLevel) {
         super(response);
         requestedURL = url;
         origResponse = response;
         // TODO: allow user-configured format list here
         formatsToCompress = toCompress;
+        this.compressionLevel = compressionLevel;
     }
 
     protected AlternativesResponseStream createOutputStream() throws IOException {
-        return new AlternativesResponseStream(origResponse, formatsToCompress);
+        return new AlternativesResponseStream(origResponse, formatsToCompress, compressionLevel);
     }
 
     public void setContentType(String type){
@@ -60,6 +69,15 @@ public class GZIPResponseWrapper extends HttpServletResponseWrapper {
         } catch (IOException e) {}
     }
 
+    /**
+     * Releases the compression resources if the response was not finished
+     */
+    public void release() {
+        if (stream != null) {
+            stream.release();
+        }
+    }
+
     public void flushBuffer() throws IOException {
         getResponse().flushBuffer();
         if (writer!= null){
@@ -0,0 +1,61 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.List;
+
+import org.geoserver.platform.Operation;
+
+/**
+ * A {@link ResponseCachePolicy} declaring a list of operations of a service as cacheable, for
+ * example:
+ *
+ * <pre>
+ * &lt;bean id="wfsCacheableOperations" class="org.geoserver.ows.CacheableOperations">
+ *   &lt;constructor-arg value="wfs"/>
+ *   &lt;constructor-arg>
+ *     &lt;list>
+ *       &lt;value>GetCapabilities&lt;/value>
+ *       &lt;value>DescribeFeatureType&lt;/value>
+ *     &lt;/list>
+ *   &lt;/constructor-arg>
+ * &lt;/bean>
+ * </pre>
+ */
+public class CacheableOperations implements ResponseCachePolicy {
+
+    String service;
+
+    List<String> operations;
+
+    /**
+     * @param service the service id, e.g. "wfs"
+     * @param operations the cacheable operation names, in any version of the service
+     */
+    public CacheableOperations(String service, List<String> operations) {
+        this.service = service;
+        this.operations = operations;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public List<String> getOperations() {
+        return operations;
+    }
+
+    public boolean isCacheable(Request request, Operation operation) {
+        if (!service.equalsIgnoreCase(operation.getService().getId())) {
+            return false;
+        }
+        for (String op : operations) {
+            if (op.equalsIgnoreCase(operation.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
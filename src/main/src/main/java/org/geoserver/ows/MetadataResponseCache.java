@@ -0,0 +1,617 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Dispatcher callback caching the responses of the "metadata" operations, such as capabilities
+ * and schema descriptions, which change only when the configuration does.
+ * <p>
+ * Services opt in by registering {@link ResponseCachePolicy} beans, usually
+ * {@link CacheableOperations}. Only KVP GET requests are cached, keyed by service, version,
+ * operation, request URL, the remaining request parameters, the update sequence and the roles of
+ * the user. The first request is executed normally, and its response is captured while written
+ * out. Following identical requests skip the operation execution altogether, and get the captured
+ * bytes written back straight from the cache, without further copies.
+ * </p>
+ * <p>
+ * The cache is bounded by the total size of the responses, least recently used ones being evicted
+ * first, and is dropped whenever the catalog or the configuration change or get reloaded.
+ * </p>
+ */
+public class MetadataResponseCache extends ConfigurationListenerAdapter implements
+        DispatcherCallback, CatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger(MetadataResponseCache.class);
+
+    /**
+     * Property used to disable the cache
+     */
+    public static final String CACHE = "OWS_RESPONSE_CACHE";
+
+    /**
+     * Property used to set the maximum size of the cache, in bytes
+     */
+    public static final String MAX_SIZE = "OWS_RESPONSE_CACHE_MAX_SIZE";
+
+    /**
+     * Property used to make the user name part of the cache key
+     */
+    public static final String KEY_BY_USER = "OWS_RESPONSE_CACHE_BY_USER";
+
+    /**
+     * The raw request parameters that are part of the key in other forms
+     */
+    static final List<String> IGNORED_PARAMETERS = Arrays.asList("SERVICE", "REQUEST",
+            "VERSION");
+
+    GeoServer geoServer;
+
+    List<ResponseCachePolicy> policies;
+
+    boolean enabled = true;
+
+    boolean keyByUser = false;
+
+    long maxSize = 64 * 1024 * 1024;
+
+    int maxEntrySize = 8 * 1024 * 1024;
+
+    /**
+     * The cached responses, in least recently used order
+     */
+    LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<String, CachedResult>(16,
+            0.75f, true);
+
+    long size;
+
+    /**
+     * Incremented at each invalidation, responses captured across one are not cached
+     */
+    AtomicLong generation = new AtomicLong();
+
+    /**
+     * The response the current thread is going to capture, if any
+     */
+    ThreadLocal<Miss> miss = new ThreadLocal<Miss>();
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    public MetadataResponseCache(GeoServer geoServer) {
+        this.geoServer = geoServer;
+        geoServer.addListener(this);
+        geoServer.getCatalog().addListener(this);
+
+        String value = GeoServerExtensions.getProperty(CACHE);
+        if (value != null) {
+            enabled = Boolean.valueOf(value);
+        }
+        value = GeoServerExtensions.getProperty(KEY_BY_USER);
+        if (value != null) {
+            keyByUser = Boolean.valueOf(value);
+        }
+        value = GeoServerExtensions.getProperty(MAX_SIZE);
+        if (value != null) {
+            try {
+                maxSize = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid " + MAX_SIZE + " value: " + value);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        invalidate();
+    }
+
+    /**
+     * When true the user name is part of the cache key, otherwise only its roles are
+     */
+    public boolean isKeyByUser() {
+        return keyByUser;
+    }
+
+    public void setKeyByUser(boolean keyByUser) {
+        this.keyByUser = keyByUser;
+        invalidate();
+    }
+
+    /**
+     * The maximum size of all the cached responses, in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The size of the largest response that will be cached, in bytes
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public void setMaxEntrySize(int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Sets the policies deciding which operations are cached. When not set, the
+     * {@link ResponseCachePolicy} found in the application context are used.
+     */
+    public void setPolicies(List<ResponseCachePolicy> policies) {
+        this.policies = policies;
+    }
+
+    List<ResponseCachePolicy> getPolicies() {
+        if (policies != null) {
+            return policies;
+        }
+        return GeoServerExtensions.extensions(ResponseCachePolicy.class);
+    }
+
+    /**
+     * Number of requests served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of cacheable requests that had to be executed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of cached responses
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * The size of all the cached responses, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Drops all the cached responses
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    public Request init(Request request) {
+        return request;
+    }
+
+    public Service serviceDispatched(Request request, Service service) throws ServiceException {
+        return service;
+    }
+
+    public Operation operationDispatched(Request request, Operation operation) {
+        if (!enabled || !isCacheable(request, operation)) {
+            return operation;
+        }
+
+        String key = getKey(request, operation);
+        CachedResult cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            miss.set(new Miss(key, generation.get()));
+            return operation;
+        }
+
+        hits.incrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Serving " + operation.getId() + " from the response cache: " + key);
+        }
+        Service service = operation.getService();
+        service = new Service(service.getId(), service.getNamespace(), new CachedService(cached),
+                service.getVersion(), service.getOperations());
+        return new Operation(operation.getId(), service, operation.getMethod(),
+                operation.getParameters());
+    }
+
+    public Object operationExecuted(Request request, Operation operation, Object result) {
+        return result;
+    }
+
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        Miss m = miss.get();
+        if (m != null && !(result instanceof CachedResult)) {
+            return new CapturingResponse(response, m);
+        }
+        return response;
+    }
+
+    public void finished(Request request) {
+        miss.remove();
+    }
+
+    boolean isCacheable(Request request, Operation operation) {
+        // update sequence checks are left to the operations
+        if (!request.isGet() || request.isSOAP() || request.getHttpRequest() == null
+                || request.getRawKvp() == null
+                || request.getRawKvp().containsKey("UPDATESEQUENCE")) {
+            return false;
+        }
+        for (ResponseCachePolicy policy : getPolicies()) {
+            if (policy.isCacheable(request, operation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the key identifying the response, made of the request URL, the service and
+     * operation, the sorted KVP parameters, the update sequence and the user roles
+     */
+    String getKey(Request request, Operation operation) {
+        StringBuilder sb = new StringBuilder();
+        Service service = operation.getService();
+        sb.append(service.getId()).append('|').append(service.getVersion()).append('|');
+        sb.append(operation.getId()).append('|');
+        sb.append(request.getHttpRequest().getRequestURL()).append('|');
+        sb.append(geoServer.getGlobal().getUpdateSequence()).append('|');
+
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            if (keyByUser) {
+                sb.append(auth.getName());
+            }
+            List<String> roles = new ArrayList<String>();
+            for (GrantedAuthority authority : auth.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            Collections.sort(roles);
+            sb.append(roles);
+        }
+        sb.append('|');
+
+        Map<String, Object> kvp = new TreeMap<String, Object>();
+        for (Object o : request.getRawKvp().entrySet()) {
+            Map.Entry e = (Map.Entry) o;
+            String name = String.valueOf(e.getKey()).toUpperCase();
+            if (!IGNORED_PARAMETERS.contains(name)) {
+                kvp.put(name, e.getValue());
+            }
+        }
+        for (Map.Entry<String, Object> e : kvp.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('&');
+        }
+        return sb.toString();
+    }
+
+    void put(Miss m, CachedResult cached) {
+        synchronized (this) {
+            // don't store responses captured before an invalidation
+            if (m.generation != generation.get()) {
+                return;
+            }
+            CachedResult previous = entries.put(m.key, cached);
+            if (previous != null) {
+                size -= previous.size();
+            }
+            size += cached.size();
+            for (Iterator<CachedResult> it = entries.values().iterator(); size > maxSize
+                    && it.hasNext();) {
+                CachedResult eldest = it.next();
+                if (eldest != cached) {
+                    size -= eldest.size();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // catalog and configuration events
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // we use the post event
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    @Override
+    public void handlePostGlobalChange(GeoServerInfo global) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsAdded(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsPostModified(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsRemoved(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handlePostServiceChange(ServiceInfo service) {
+        invalidate();
+    }
+
+    @Override
+    public void handleServiceRemove(ServiceInfo service) {
+        invalidate();
+    }
+
+    @Override
+    public void reloaded() {
+        invalidate();
+    }
+
+    /**
+     * A cacheable request whose response is not cached yet
+     */
+    static class Miss {
+        String key;
+
+        long generation;
+
+        Miss(String key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A cached response, along with the headers needed to replay it. The bytes are shared among
+     * all the requests it is served to, and never modified.
+     */
+    public static class CachedResult {
+        ByteBuffer bytes;
+
+        String mimeType;
+
+        String[][] headers;
+
+        String disposition;
+
+        String fileName;
+
+        int size() {
+            return bytes.capacity();
+        }
+    }
+
+    /**
+     * Stands in for the service of the requests served from the cache
+     */
+    static class CachedService implements DirectInvocationService {
+        CachedResult cached;
+
+        CachedService(CachedResult cached) {
+            this.cached = cached;
+        }
+
+        public Object invokeDirect(String operationName, Object[] parameters)
+                throws IllegalArgumentException, Exception {
+            return cached;
+        }
+    }
+
+    /**
+     * Writes back a cached response
+     */
+    public static class CachedResponse extends Response {
+
+        public CachedResponse() {
+            super(CachedResult.class);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return ((CachedResult) value).mimeType;
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return ((CachedResult) value).headers;
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return ((CachedResult) value).disposition;
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return ((CachedResult) value).fileName;
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            // write straight out of the shared buffer, no copies
+            ByteBuffer bytes = ((CachedResult) value).bytes;
+            output.write(bytes.array(), bytes.arrayOffset(), bytes.capacity());
+        }
+    }
+
+    /**
+     * Wraps the response of a cache miss, capturing the response while it is written out
+     */
+    class CapturingResponse extends Response {
+        Response delegate;
+
+        Miss miss;
+
+        CapturingResponse(Response delegate, Miss miss) {
+            super(delegate.getBinding(), delegate.getOutputFormats());
+            this.delegate = delegate;
+            this.miss = miss;
+        }
+
+        @Override
+        public boolean canHandle(Operation operation) {
+            return delegate.canHandle(operation);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return delegate.getMimeType(value, operation);
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return delegate.getHeaders(value, operation);
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return delegate.getPreferredDisposition(value, operation);
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return delegate.getAttachmentFileName(value, operation);
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            // grab the metadata before writing, in case the write disposes the result
+            CachedResult cached = new CachedResult();
+            cached.mimeType = delegate.getMimeType(value, operation);
+            cached.headers = delegate.getHeaders(value, operation);
+            cached.disposition = delegate.getPreferredDisposition(value, operation);
+            cached.fileName = delegate.getAttachmentFileName(value, operation);
+
+            CapturingOutputStream capture = new CapturingOutputStream(output, maxEntrySize);
+            delegate.write(value, capture, operation);
+
+            if (capture.buffer != null) {
+                cached.bytes = ByteBuffer.wrap(capture.buffer.toByteArray());
+                put(miss, cached);
+            }
+        }
+    }
+
+    /**
+     * Copies whatever is written into a buffer, giving up on the copy once it grows too big
+     */
+    static class CapturingOutputStream extends OutputStream {
+        OutputStream delegate;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        int maxSize;
+
+        CapturingOutputStream(OutputStream delegate, int maxSize) {
+            this.delegate = delegate;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            if (buffer != null) {
+                if (buffer.size() + 1 > maxSize) {
+                    buffer = null;
+                } else {
+                    buffer.write(b);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            if (buffer != null) {
+                if (buffer.size() + len > maxSize) {
+                    buffer = null;
+                } else {
+                    buffer.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+/**
+ * Extension point limiting how many threads a single request can use to run parts of its work in
+ * parallel, for example to read the queries of a multi-query WFS GetFeature concurrently.
+ * <p>
+ * Services look up all the implementations in the application context and use the lowest
+ * parallelism returned.
+ * </p>
+ */
+public interface ParallelismLimiter {
+
+    /**
+     * Returns the parallelism the request is allowed to use
+     * 
+     * @param request the request being executed
+     * @param parallelism the parallelism the service would like to use
+     * @return a value between 1 and <code>parallelism</code>
+     */
+    int getParallelism(Request request, int parallelism);
+}
@@ -0,0 +1,55 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.concurrent.Callable;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * A task running in the security and OWS request context of the thread that created it, used to
+ * move part of the work of a request to a thread pool.
+ * <p>
+ * The context is captured when the task is created, and restored on the running thread only for
+ * the duration of {@link #callInContext()}.
+ * </p>
+ */
+public abstract class RequestContextCallable<T> implements Callable<T> {
+
+    SecurityContext security = SecurityContextHolder.getContext();
+
+    Request request = Dispatcher.REQUEST.get();
+
+    WorkspaceInfo workspace = LocalWorkspace.get();
+
+    LayerInfo layer = LocalLayer.get();
+
+    public T call() throws Exception {
+        SecurityContext oldSecurity = SecurityContextHolder.getContext();
+        Request oldRequest = Dispatcher.REQUEST.get();
+        WorkspaceInfo oldWorkspace = LocalWorkspace.get();
+        LayerInfo oldLayer = LocalLayer.get();
+        try {
+            SecurityContextHolder.setContext(security);
+            Dispatcher.REQUEST.set(request);
+            LocalWorkspace.set(workspace);
+            LocalLayer.set(layer);
+            return callInContext();
+        } finally {
+            SecurityContextHolder.setContext(oldSecurity);
+            Dispatcher.REQUEST.set(oldRequest);
+            LocalWorkspace.set(oldWorkspace);
+            LocalLayer.set(oldLayer);
+        }
+    }
+
+    /**
+     * Runs the task
+     */
+    protected abstract T callInContext() throws Exception;
+}
@@ -0,0 +1,28 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import org.geoserver.platform.Operation;
+
+/**
+ * Extension point used by services to opt in the {@link MetadataResponseCache}.
+ * <p>
+ * Only operations whose response depends solely on the request parameters, the user roles and the
+ * GeoServer configuration should be declared cacheable, as cached responses are dropped only when
+ * the catalog or the configuration change.
+ * </p>
+ *
+ * @see CacheableOperations
+ */
+public interface ResponseCachePolicy {
+
+    /**
+     * Returns true if the response of the operation can be cached
+     *
+     * @param request the request being dispatched
+     * @param operation the operation, with its parsed parameters
+     */
+    boolean isCacheable(Request request, Operation operation);
+}
@@ -0,0 +1,192 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Process wide scheduler for the timeouts of the requests, such as the WMS rendering one.
+ * <p>
+ * A single daemon thread serves all the timeouts, so scheduling one costs a queue insertion
+ * instead of the creation of a thread, as a {@link java.util.Timer} per request would. The tasks
+ * run in the scheduler thread, so they should just flag the timeout and ask the work to stop,
+ * without doing any heavy lifting themselves.
+ * </p>
+ * <p>
+ * The number of expired timeouts is tracked by service.
+ * </p>
+ */
+public class TimeoutScheduler {
+
+    static final Logger LOGGER = Logging.getLogger(TimeoutScheduler.class);
+
+    static final int PENDING = 0;
+
+    static final int CANCELLED = 1;
+
+    static final int EXPIRED = 2;
+
+    /**
+     * Cancelled timeouts stay in the queue until they are due, purge them every so often
+     */
+    static final int PURGE_INTERVAL = 1024;
+
+    static final TimeoutScheduler INSTANCE = new TimeoutScheduler();
+
+    ScheduledThreadPoolExecutor executor;
+
+    Map<String, AtomicLong> expired = new ConcurrentHashMap<String, AtomicLong>();
+
+    AtomicInteger cancelled = new AtomicInteger();
+
+    TimeoutScheduler() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoServerTimeoutScheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns the scheduler shared by all the requests
+     */
+    public static TimeoutScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedules a task to be run when the timeout expires, unless the returned timeout is
+     * cancelled first
+     *
+     * @param service the service the timeout is accounted to
+     * @param timeout the timeout, in milliseconds
+     * @param task the task to run when the timeout expires
+     */
+    public Timeout schedule(String service, long timeout, Runnable task) {
+        Timeout result = new Timeout(service, task);
+        result.future = executor.schedule(result, timeout, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Returns the number of timeouts expired for the specified service
+     */
+    public long getExpired(String service) {
+        AtomicLong counter = expired.get(service);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Returns the number of timeouts expired so far, by service
+     */
+    public Map<String, Long> getExpired() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : expired.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Returns the number of timeouts waiting to expire, including the cancelled ones not purged
+     * yet
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    void countExpired(String service) {
+        AtomicLong counter = expired.get(service);
+        if (counter == null) {
+            synchronized (expired) {
+                counter = expired.get(service);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    expired.put(service, counter);
+                }
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    void countCancelled() {
+        if (cancelled.incrementAndGet() % PURGE_INTERVAL == 0) {
+            executor.purge();
+        }
+    }
+
+    /**
+     * A scheduled timeout
+     */
+    public class Timeout implements Runnable {
+
+        String service;
+
+        volatile Runnable task;
+
+        volatile Future<?> future;
+
+        AtomicInteger state = new AtomicInteger(PENDING);
+
+        Timeout(String service, Runnable task) {
+            this.service = service;
+            this.task = task;
+        }
+
+        public void run() {
+            Runnable task = this.task;
+            if (task != null && state.compareAndSet(PENDING, EXPIRED)) {
+                this.task = null;
+                countExpired(service);
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.log(Level.WARNING, "Error occurred running the " + service
+                            + " timeout task", t);
+                }
+            }
+        }
+
+        /**
+         * Cancels the timeout, returns false if it already expired
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                // release the task right away, the timeout can sit in the queue for a while
+                task = null;
+                Future<?> future = this.future;
+                if (future != null) {
+                    future.cancel(false);
+                }
+                countCancelled();
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Returns true if the timeout expired
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+}
@@ -13,7 +13,16 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -28,6 +37,7 @@ import org.geoserver.test.GeoServerSystemTestSupport;
 import org.geoserver.test.RunTestSetup;
 import org.geoserver.test.SystemTest;
 import org.geotools.data.DataAccess;
+import org.geotools.data.memory.MemoryDataStore;
 import org.geotools.factory.GeoTools;
 import org.geotools.feature.NameImpl;
 import org.junit.Test;
@@ -238,4 +248,110 @@ public class ResourcePoolTest extends GeoServerSystemTestSupport {
                 MockData.LAKES.getLocalPart());
         assertEquals("foo", lakes.getTitle());
     }
+
+    @Test public void testKeyedLoaderSingleLoad() throws Exception {
+        final Map<String, String> cache = new HashMap<String, String>();
+        final ResourcePool.KeyedLoader<String, String> loader = 
+            new ResourcePool.KeyedLoader<String, String>("test", cache);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> slow = new Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "value";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return loader.load("a", slow);
+                }
+            }));
+            started.await();
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return loader.load("a", slow);
+                    }
+                }));
+            }
+
+            // a different key does not block on the slow load
+            String other = loader.load("b", new Callable<String>() {
+                public String call() throws Exception {
+                    return "other";
+                }
+            });
+            assertEquals("other", other);
+
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("value", result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("value", cache.get("a"));
+        assertEquals(2, loader.getLoadCount());
+        assertEquals(1, calls.get());
+        assertEquals(0, loader.getLoadingCount());
+    }
+
+    @Test public void testKeyedLoaderClearDuringLoad() throws Exception {
+        final Map<String, String> cache = new HashMap<String, String>();
+        final ResourcePool.KeyedLoader<String, String> loader = 
+            new ResourcePool.KeyedLoader<String, String>("test", cache);
+        String value = loader.load("a", new Callable<String>() {
+            public String call() throws Exception {
+                loader.clear("a");
+                return "stale";
+            }
+        });
+        assertEquals("stale", value);
+        assertFalse(cache.containsKey("a"));
+
+        try {
+            loader.load("a", new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+            fail("Should have thrown the loader exception");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(1, loader.getFailureCount());
+    }
+
+    @Test public void testKeyedLoaderDisposesClearedLoad() throws Exception {
+        final List<String> disposed = new ArrayList<String>();
+        ResourcePool pool = new ResourcePool(getCatalog());
+        Map<String, DataAccess> cache = pool.new DataStoreCache() {
+            @Override
+            protected void dispose(String id, DataAccess da) {
+                disposed.add(id);
+            }
+        };
+        final ResourcePool.KeyedLoader<String, DataAccess> loader = 
+            new ResourcePool.KeyedLoader<String, DataAccess>("test", cache);
+        final DataAccess store = new MemoryDataStore();
+        DataAccess loaded = loader.load("a", new Callable<DataAccess>() {
+            public DataAccess call() throws Exception {
+                loader.clear("a");
+                return store;
+            }
+        });
+        assertSame(store, loaded);
+        assertFalse(cache.containsKey("a"));
+        // not cached, so disposed right away instead of leaking
+        assertEquals(1, disposed.size());
+        assertEquals("a", disposed.get(0));
+    }
 }
@@ -0,0 +1,148 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.geoserver.catalog.CatalogFacade;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+
+/**
+ * Measures the lookups the dispatch of a request does against the catalog, comparing the linear
+ * scans of {@link DefaultCatalogFacade} with the hash indexes of {@link IndexedCatalogFacade}
+ * for catalogs of 1k, 10k and 100k layers. Each catalog has a style every 100 layers and a
+ * layer group every 10 layers.
+ * <p>
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp ... org.geoserver.catalog.impl.IndexedCatalogFacadeBenchmark [lookups]
+ * </pre>
+ */
+public class IndexedCatalogFacadeBenchmark {
+
+    static final int[] SIZES = new int[] { 1000, 10000, 100000 };
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            System.out.println(round == 0 ? "Warm up" : "Measured");
+            for (int size : SIZES) {
+                run("default", new DefaultCatalogFacade(new CatalogImpl()), size, lookups);
+                run("indexed", new IndexedCatalogFacade(new CatalogImpl()), size, lookups);
+            }
+        }
+    }
+
+    static void run(String name, CatalogFacade facade, int size, int lookups) {
+        CatalogImpl catalog = (CatalogImpl) facade.getCatalog();
+        catalog.setFacade(facade);
+        List<ResourceInfo> resources = new ArrayList<ResourceInfo>();
+        List<StyleInfo> styles = new ArrayList<StyleInfo>();
+        populate(catalog, facade, size, resources, styles);
+
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            check(facade.getLayerByName("ft" + random.nextInt(size)));
+        }
+        long byName = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            check(facade.getLayers(resources.get(random.nextInt(size))));
+        }
+        long byResource = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            check(facade.getLayers(styles.get(random.nextInt(styles.size()))));
+        }
+        long byStyle = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            check(facade.getLayerGroupByName("lg" + random.nextInt(size / 10)));
+        }
+        long groupByName = System.nanoTime() - start;
+
+        System.out.println(String.format("%-8s %7d layers: getLayerByName %9.2f us, "
+                + "getLayers(resource) %9.2f us, getLayers(style) %9.2f us, "
+                + "getLayerGroupByName %9.2f us", name, size, byName / 1000d / lookups,
+                byResource / 1000d / lookups, byStyle / 1000d / lookups, groupByName / 1000d
+                        / lookups));
+    }
+
+    /**
+     * Adds the objects straight to the facade, going through the catalog would validate them
+     * with the very lookups being measured
+     */
+    static void populate(CatalogImpl catalog, CatalogFacade facade, int size,
+            List<ResourceInfo> resources, List<StyleInfo> styles) {
+        CatalogFactory factory = catalog.getFactory();
+
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("wsName");
+        facade.add(ws);
+
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("wsName");
+        ns.setURI("nsURI");
+        facade.add(ns);
+
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("dsName");
+        ds.setWorkspace(ws);
+        facade.add(ds);
+
+        StyleInfo s = null;
+        for (int i = 0; i < size; i++) {
+            if (i % 100 == 0) {
+                s = factory.createStyle();
+                s.setName("style" + i);
+                s.setFilename("style" + i + ".sld");
+                styles.add(facade.add(s));
+            }
+
+            FeatureTypeInfo ft = factory.createFeatureType();
+            ft.setName("ft" + i);
+            ft.setNativeName("ft" + i);
+            ft.setStore(ds);
+            ft.setNamespace(ns);
+            resources.add(facade.add(ft));
+
+            LayerInfo l = factory.createLayer();
+            l.setResource(ft);
+            l.setDefaultStyle(s);
+            l.setType(LayerInfo.Type.VECTOR);
+            facade.add(l);
+
+            if (i % 10 == 0) {
+                LayerGroupInfo lg = factory.createLayerGroup();
+                lg.setName("lg" + (i / 10));
+                lg.getLayers().add(l);
+                lg.getStyles().add(null);
+                facade.add(lg);
+            }
+        }
+    }
+
+    static void check(Object found) {
+        if (found == null || (found instanceof List && ((List) found).isEmpty())) {
+            throw new IllegalStateException("Lookup failed");
+        }
+    }
+}
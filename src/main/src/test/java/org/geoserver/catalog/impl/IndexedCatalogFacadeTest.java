@@ -0,0 +1,285 @@
+package org.geoserver.catalog.impl;
+
+import static org.geoserver.catalog.Predicates.acceptAll;
+import static org.geoserver.catalog.Predicates.and;
+import static org.geoserver.catalog.Predicates.asc;
+import static org.geoserver.catalog.Predicates.desc;
+import static org.geoserver.catalog.Predicates.equal;
+import static org.geoserver.catalog.Predicates.fullTextSearch;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.util.CloseableIterator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+
+import com.google.common.collect.Iterables;
+
+public class IndexedCatalogFacadeTest extends TestCase {
+
+    CatalogImpl catalog;
+
+    IndexedCatalogFacade facade;
+
+    protected void setUp() throws Exception {
+        catalog = new CatalogImpl();
+        facade = (IndexedCatalogFacade) catalog.getFacade();
+
+        CatalogFactory factory = catalog.getFactory();
+
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("wsName");
+        catalog.add(ws);
+
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("wsName");
+        ns.setURI("nsURI");
+        catalog.add(ns);
+
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("dsName");
+        ds.setWorkspace(ws);
+        catalog.add(ds);
+
+        StyleInfo s = factory.createStyle();
+        s.setName("styleName");
+        s.setFilename("styleFilename");
+        catalog.add(s);
+
+        for (int i = 0; i < 10; i++) {
+            FeatureTypeInfo ft = factory.createFeatureType();
+            ft.setName("ft" + i);
+            ft.setNativeName("ft" + i);
+            ft.setStore(ds);
+            ft.setNamespace(ns);
+            catalog.add(ft);
+
+            LayerInfo l = factory.createLayer();
+            l.setResource(ft);
+            l.setDefaultStyle(s);
+            catalog.add(l);
+        }
+    }
+
+    public void testLookups() {
+        LayerInfo l = catalog.getLayerByName("ft3");
+        assertNotNull(l);
+        assertEquals("ft3", l.getName());
+        assertEquals(l, catalog.getLayer(l.getId()));
+        assertEquals(l, catalog.getLayerByName("wsName:ft3"));
+
+        ResourceInfo r = catalog.getResourceByName("wsName", "ft3", ResourceInfo.class);
+        assertNotNull(r);
+        assertEquals(1, catalog.getLayers(r).size());
+        assertEquals(10, catalog.getLayers(catalog.getStyleByName("styleName")).size());
+        assertEquals(10, catalog.getResourcesByStore(
+                catalog.getDataStoreByName("dsName"), FeatureTypeInfo.class).size());
+        assertEquals(1, catalog.getStoresByWorkspace("wsName", DataStoreInfo.class).size());
+        assertNull(catalog.getLayerByName("missing"));
+    }
+
+    public void testRenameResourceThroughLayer() {
+        LayerInfo l = catalog.getLayerByName("ft3");
+        l.getResource().setName("renamed");
+        catalog.save(l);
+
+        assertNull(catalog.getLayerByName("ft3"));
+        assertNull(catalog.getResourceByName("wsName", "ft3", ResourceInfo.class));
+        assertEquals(l.getId(), catalog.getLayerByName("renamed").getId());
+        assertNotNull(catalog.getResourceByName("wsName", "renamed", ResourceInfo.class));
+    }
+
+    public void testRenameResource() {
+        FeatureTypeInfo ft = catalog.getFeatureTypeByName("wsName", "ft5");
+        ft.setName("renamed");
+        catalog.save(ft);
+
+        assertNull(catalog.getLayerByName("ft5"));
+        assertNotNull(catalog.getLayerByName("renamed"));
+    }
+
+    public void testChangeStyle() {
+        StyleInfo other = catalog.getFactory().createStyle();
+        other.setName("other");
+        other.setFilename("other.sld");
+        catalog.add(other);
+
+        LayerInfo l = catalog.getLayerByName("ft1");
+        l.setDefaultStyle(catalog.getStyleByName("other"));
+        catalog.save(l);
+
+        assertEquals(9, catalog.getLayers(catalog.getStyleByName("styleName")).size());
+        assertEquals(1, catalog.getLayers(catalog.getStyleByName("other")).size());
+    }
+
+    public void testRemove() {
+        LayerInfo l = catalog.getLayerByName("ft7");
+        ResourceInfo r = l.getResource();
+        catalog.remove(l);
+        catalog.remove(r);
+
+        assertNull(catalog.getLayerByName("ft7"));
+        assertNull(catalog.getLayer(l.getId()));
+        assertNull(catalog.getResource(r.getId(), ResourceInfo.class));
+        assertEquals(9, catalog.getLayers(catalog.getStyleByName("styleName")).size());
+    }
+
+    public void testLayerGroup() {
+        LayerGroupInfo lg = catalog.getFactory().createLayerGroup();
+        lg.setName("group");
+        lg.getLayers().add(catalog.getLayerByName("ft0"));
+        lg.getStyles().add(null);
+        catalog.add(lg);
+
+        assertNotNull(catalog.getLayerGroupByName("group"));
+
+        lg = catalog.getLayerGroupByName("group");
+        lg.setName("renamed");
+        catalog.save(lg);
+        assertNull(catalog.getLayerGroupByName("group"));
+        assertNotNull(catalog.getLayerGroupByName("renamed"));
+        assertNotNull(catalog.getLayerGroup(lg.getId()));
+    }
+
+    public void testSync() {
+        CatalogImpl other = new CatalogImpl();
+        other.sync(catalog);
+
+        assertNotNull(other.getLayerByName("ft2"));
+        assertEquals(10, other.getLayers(other.getStyleByName("styleName")).size());
+    }
+
+    public void testListIndexed() {
+        CloseableIterator<LayerInfo> it = catalog.list(LayerInfo.class, equal("name", "ft4"));
+        try {
+            assertTrue(it.hasNext());
+            assertEquals("ft4", it.next().getName());
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+
+        Filter filter = and(equal("resource.namespace.prefix", "wsName"), equal("name", "ft1"));
+        assertEquals(1, catalog.count(LayerInfo.class, filter));
+        assertEquals(10, catalog.count(LayerInfo.class,
+                equal("resource.namespace.prefix", "wsName")));
+        assertEquals(0, catalog.count(LayerInfo.class, equal("resource.namespace.prefix", "foo")));
+        assertEquals(10, catalog.count(FeatureTypeInfo.class,
+                equal("store", catalog.getDataStoreByName("dsName"))));
+        assertEquals(1, catalog.count(DataStoreInfo.class, equal("workspace.name", "wsName")));
+        assertEquals(0, catalog.count(DataStoreInfo.class, equal("workspace.name", "foo")));
+    }
+
+    public void testListPaged() {
+        CloseableIterator<LayerInfo> it = catalog.list(LayerInfo.class, acceptAll(), 2, 3,
+                desc("name"));
+        try {
+            assertEquals("ft7", it.next().getName());
+            assertEquals("ft6", it.next().getName());
+            LayerInfo last = it.next();
+            assertEquals("ft5", last.getName());
+            assertFalse(it.hasNext());
+            assertTrue(Proxy.isProxyClass(last.getClass()));
+        } finally {
+            it.close();
+        }
+
+        it = catalog.list(LayerInfo.class, fullTextSearch("ft"), 8, 5, asc("name"));
+        try {
+            assertEquals("ft8", it.next().getName());
+            assertEquals("ft9", it.next().getName());
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+        assertEquals(10, catalog.count(LayerInfo.class, fullTextSearch("ft")));
+    }
+
+    public void testListPagedTiedSortKey() {
+        // all the layers are enabled, paging by the enabled flag has to resort to the id
+        for (SortBy sortBy : new SortBy[] { asc("enabled"), desc("enabled") }) {
+            Set<String> seen = new HashSet<String>();
+            for (int offset = 0; offset < 10; offset += 3) {
+                List<String> page = ids(catalog.list(LayerInfo.class, acceptAll(), offset, 3,
+                        sortBy));
+                assertEquals(Math.min(3, 10 - offset), page.size());
+                for (String id : page) {
+                    assertTrue(id, seen.add(id));
+                }
+            }
+            assertEquals(10, seen.size());
+        }
+
+        // the same order whatever the page size
+        List<String> all = ids(catalog.list(LayerInfo.class, acceptAll(), 0, 10, asc("enabled")));
+        List<String> unpaged = ids(catalog.list(LayerInfo.class, acceptAll(), null, null,
+                asc("enabled")));
+        assertEquals(unpaged, all);
+        for (int offset = 0; offset < 10; offset++) {
+            assertEquals(all.subList(offset, offset + 1),
+                    ids(catalog.list(LayerInfo.class, acceptAll(), offset, 1, asc("enabled"))));
+        }
+    }
+
+    List<String> ids(CloseableIterator<LayerInfo> it) {
+        List<String> ids = new ArrayList<String>();
+        try {
+            while (it.hasNext()) {
+                ids.add(it.next().getId());
+            }
+        } finally {
+            it.close();
+        }
+        return ids;
+    }
+
+    public void testFullTextSearchIndexed() {
+        assertEquals(1, facade.candidates(LayerInfo.class, fullTextSearch("FT3")).size());
+        assertEquals(1, catalog.count(LayerInfo.class, fullTextSearch("FT3")));
+        // too short to be looked up
+        assertNull(facade.candidates(LayerInfo.class, fullTextSearch("ft")));
+        assertEquals(0, Iterables.size(facade.candidates(LayerInfo.class,
+                fullTextSearch("missing"))));
+        assertEquals(1, catalog.count(StyleInfo.class, fullTextSearch("stylefile")));
+    }
+
+    public void testFullTextSearchReindexed() {
+        DataStoreInfo ds = catalog.getDataStoreByName("dsName");
+        ds.setName("renamedStore");
+        catalog.save(ds);
+        assertEquals(10, catalog.count(LayerInfo.class, fullTextSearch("renamedStore")));
+        assertEquals(10, catalog.count(FeatureTypeInfo.class, fullTextSearch("renamedStore")));
+        assertEquals(0, catalog.count(LayerInfo.class, fullTextSearch("dsName")));
+
+        WorkspaceInfo ws = catalog.getWorkspaceByName("wsName");
+        ws.setName("renamedWs");
+        catalog.save(ws);
+        assertEquals(10, catalog.count(LayerInfo.class, fullTextSearch("renamedWs")));
+        assertEquals(1, catalog.count(DataStoreInfo.class, fullTextSearch("renamedWs")));
+
+        NamespaceInfo ns = catalog.getNamespaceByPrefix("wsName");
+        ns.setPrefix("renamedNs");
+        catalog.save(ns);
+        assertEquals(10, catalog.count(FeatureTypeInfo.class, fullTextSearch("renamedNs")));
+
+        LayerInfo l = catalog.getLayerByName("ft3");
+        l.getResource().setTitle("A title");
+        catalog.save(l);
+        assertEquals(1, catalog.count(FeatureTypeInfo.class, fullTextSearch("a titl")));
+    }
+}
@@ -0,0 +1,160 @@
+package org.geoserver.config;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.test.GeoServerSystemTestSupport;
+import org.geoserver.test.SystemTest;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(SystemTest.class)
+public class GeoServerLoaderTest extends GeoServerSystemTestSupport {
+
+    @Test
+    public void testParallelLoadMatchesSerial() throws Exception {
+        Catalog serial = readCatalog(1);
+        Catalog parallel = readCatalog(4);
+
+        assertFalse(serial.getLayers().isEmpty());
+        assertEquals(ids(serial.getStyles()), ids(parallel.getStyles()));
+        assertEquals(ids(serial.getStores(StoreInfo.class)), ids(parallel.getStores(StoreInfo.class)));
+        assertEquals(ids(serial.getLayers()), ids(parallel.getLayers()));
+        assertEquals(ids(serial.getLayerGroups()), ids(parallel.getLayerGroups()));
+
+        for (LayerInfo l : parallel.getLayers()) {
+            LayerInfo other = serial.getLayer(l.getId());
+            assertEquals(other.getResource().getId(), l.getResource().getId());
+            assertEquals(other.getResource().getStore().getId(), l.getResource().getStore().getId());
+            assertEquals(other.getResource().getStore().isEnabled(),
+                l.getResource().getStore().isEnabled());
+            for (StyleInfo s : l.getStyles()) {
+                assertNotNull(parallel.getStyle(s.getId()));
+            }
+        }
+        for (LayerGroupInfo lg : parallel.getLayerGroups()) {
+            for (LayerInfo l : lg.getLayers()) {
+                assertNotNull(parallel.getLayer(l.getId()));
+            }
+        }
+        assertEquals(serial.getDefaultWorkspace().getName(),
+            parallel.getDefaultWorkspace().getName());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Catalog catalog = readCatalog(1);
+
+        CatalogSnapshot snapshot = new CatalogSnapshot(getResourceLoader(),
+            new XStreamPersisterFactory().createXMLPersister());
+        snapshot.write(catalog);
+        try {
+            Catalog copy = new CatalogImpl();
+            XStreamPersister xp = new XStreamPersisterFactory().createXMLPersister();
+            xp.setCatalog(copy);
+            assertNotNull(snapshot.read(copy, xp));
+
+            assertEquals(ids(catalog.getStyles()), ids(copy.getStyles()));
+            assertEquals(ids(catalog.getStores(StoreInfo.class)), ids(copy.getStores(StoreInfo.class)));
+            assertEquals(ids(catalog.getLayers()), ids(copy.getLayers()));
+            assertEquals(ids(catalog.getLayerGroups()), ids(copy.getLayerGroups()));
+            assertEquals(catalog.getDefaultWorkspace().getName(), 
+                copy.getDefaultWorkspace().getName());
+
+            LayerInfo l = copy.getLayers().get(0);
+            assertEquals(catalog.getLayer(l.getId()).getResource().getId(), l.getResource().getId());
+
+            //touching a configuration file invalidates the snapshot
+            File f = getResourceLoader().find("workspaces", 
+                catalog.getDefaultWorkspace().getName(), "workspace.xml");
+            f.setLastModified(f.lastModified() + 10000);
+
+            copy = new CatalogImpl();
+            xp.setCatalog(copy);
+            assertNull(snapshot.read(copy, xp));
+            assertTrue(copy.getLayers().isEmpty());
+        }
+        finally {
+            snapshot.getFile().delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotReplace() throws Exception {
+        Catalog catalog = readCatalog(1);
+
+        CatalogSnapshot snapshot = new CatalogSnapshot(getResourceLoader(),
+            new XStreamPersisterFactory().createXMLPersister());
+        File f = snapshot.getFile();
+        try {
+            snapshot.write(catalog);
+            long length = f.length();
+            assertTrue(length > 0);
+
+            //replacing an existing snapshot
+            snapshot.write(catalog);
+            assertEquals(length, f.length());
+            assertEquals(0, tempFiles(f).length);
+
+            //a failed write leaves the previous snapshot alone
+            Catalog broken = new CatalogImpl() {
+                @Override
+                public List<StyleInfo> getStyles() {
+                    throw new IllegalStateException("broken");
+                }
+            };
+            try {
+                snapshot.write(broken);
+                fail("Write should have failed");
+            }
+            catch (IllegalStateException e) {
+                assertEquals("broken", e.getMessage());
+            }
+            assertEquals(length, f.length());
+            assertEquals(0, tempFiles(f).length);
+        }
+        finally {
+            f.delete();
+        }
+    }
+
+    File[] tempFiles(final File snapshot) {
+        return snapshot.getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(snapshot.getName()) && name.endsWith(".tmp");
+            }
+        });
+    }
+
+    Catalog readCatalog(final int threads) throws Exception {
+        GeoServerLoader loader = new DefaultGeoServerLoader(getResourceLoader()) {
+            @Override
+            int loaderThreads() {
+                return threads;
+            }
+        };
+        return loader.readCatalog(new XStreamPersisterFactory().createXMLPersister());
+    }
+
+    Set<String> ids(Iterable<? extends CatalogInfo> infos) {
+        Set<String> ids = new TreeSet<String>();
+        for (CatalogInfo info : infos) {
+            ids.add(info.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.impl.GeoServerImpl;
+import org.geoserver.ows.MetadataResponseCache.CachedResult;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.Version;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class MetadataResponseCacheTest {
+
+    GeoServerImpl geoServer;
+
+    MetadataResponseCache cache;
+
+    Operation capabilities;
+
+    Operation getFeature;
+
+    @Before
+    public void setUp() throws Exception {
+        geoServer = new GeoServerImpl();
+        geoServer.setCatalog(new CatalogImpl());
+        geoServer.setGlobal(geoServer.getFactory().createGlobal());
+
+        cache = new MetadataResponseCache(geoServer);
+        cache.setPolicies(Collections.<ResponseCachePolicy> singletonList(
+                new CacheableOperations("wfs", Arrays.asList("GetCapabilities"))));
+
+        Service service = new Service("wfs", new Object(), new Version("1.1.0"), Arrays.asList(
+                "GetCapabilities", "GetFeature"));
+        capabilities = new Operation("GetCapabilities", service, Object.class
+                .getMethod("toString"), new Object[0]);
+        getFeature = new Operation("GetFeature", service, Object.class.getMethod("toString"),
+                new Object[0]);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        // the first request is executed, and its response captured
+        assertEquals("<caps/>", execute(request("GetCapabilities"), capabilities, "<caps/>"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(7, cache.getSize());
+
+        // the second one is served from the cache, with its headers
+        Request request = request("GetCapabilities");
+        Operation op = cache.operationDispatched(request, capabilities);
+        assertNotSame(capabilities, op);
+        Object result = ((DirectInvocationService) op.getService().getService()).invokeDirect(
+                op.getId(), op.getParameters());
+        assertTrue(result instanceof CachedResult);
+        assertSame(result, cache.operationExecuted(request, op, result));
+        Response response = new MetadataResponseCache.CachedResponse();
+        assertSame(response, cache.responseDispatched(request, op, result, response));
+        assertEquals("text/xml", response.getMimeType(result, op));
+        assertEquals("test", response.getHeaders(result, op)[0][1]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.write(result, out, op);
+        assertEquals("<caps/>", out.toString());
+        cache.finished(request);
+        assertEquals(1, cache.getHits());
+
+        // a different request is not
+        Request other = request("GetCapabilities");
+        other.getRawKvp().put("NAMESPACE", "topp");
+        assertSame(capabilities, cache.operationDispatched(other, capabilities));
+        cache.finished(other);
+    }
+
+    @Test
+    public void testNotCacheable() throws Exception {
+        // operation not declared cacheable
+        execute(request("GetFeature"), getFeature, "<features/>");
+        assertEquals(0, cache.getEntryCount());
+
+        // update sequence
+        Request request = request("GetCapabilities");
+        request.getRawKvp().put("UPDATESEQUENCE", "10");
+        execute(request, capabilities, "<caps/>");
+        assertEquals(0, cache.getEntryCount());
+
+        // post
+        request = request("GetCapabilities");
+        request.setGet(false);
+        execute(request, capabilities, "<caps/>");
+        assertEquals(0, cache.getEntryCount());
+
+        // too large
+        cache.setMaxEntrySize(4);
+        execute(request("GetCapabilities"), capabilities, "<caps/>");
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        execute(request("GetCapabilities"), capabilities, "<caps/>");
+        assertEquals(1, cache.getEntryCount());
+
+        WorkspaceInfo ws = geoServer.getCatalog().getFactory().createWorkspace();
+        ws.setName("acme");
+        geoServer.getCatalog().add(ws);
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+
+        // a response captured across an invalidation is not stored
+        Request request = request("GetCapabilities");
+        assertSame(capabilities, cache.operationDispatched(request, capabilities));
+        cache.invalidate();
+        write(cache.responseDispatched(request, capabilities, "<caps/>", new TestResponse()),
+                "<caps/>");
+        cache.finished(request);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        cache.setMaxSize(10);
+        Request first = request("GetCapabilities");
+        first.getRawKvp().put("NAMESPACE", "a");
+        execute(first, capabilities, "<caps/>");
+        Request second = request("GetCapabilities");
+        second.getRawKvp().put("NAMESPACE", "b");
+        execute(second, capabilities, "<caps/>");
+
+        // the least recently used response was evicted
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(7, cache.getSize());
+    }
+
+    String execute(Request request, Operation operation, String result) throws Exception {
+        Operation op = cache.operationDispatched(request, operation);
+        assertSame(operation, op);
+        Response response = cache.responseDispatched(request, op, result, new TestResponse());
+        String written = write(response, result);
+        cache.finished(request);
+        return written;
+    }
+
+    String write(Response response, String result) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.write(result, out, capabilities);
+        return out.toString();
+    }
+
+    Request request(String operation) {
+        Request request = new Request();
+        MockHttpServletRequest http = new MockHttpServletRequest();
+        http.setRequestURL("http://localhost/geoserver/wfs");
+        request.setHttpRequest(http);
+        request.setGet(true);
+        KvpMap kvp = new KvpMap();
+        kvp.put("SERVICE", "WFS");
+        kvp.put("REQUEST", operation);
+        request.setRawKvp(kvp);
+        return request;
+    }
+
+    static class TestResponse extends Response {
+        TestResponse() {
+            super(String.class);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return "text/xml";
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return new String[][] { { "X-Test", "test" } };
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            output.write(((String) value).getBytes());
+        }
+    }
+}
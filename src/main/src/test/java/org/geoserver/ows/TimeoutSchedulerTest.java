@@ -0,0 +1,92 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.geoserver.ows.TimeoutScheduler.Timeout;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeoutSchedulerTest {
+
+    TimeoutScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new TimeoutScheduler();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Timeout timeout = scheduler.schedule("wms", 10, new Runnable() {
+
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(1, scheduler.getExpired("wms"));
+        assertEquals(0, scheduler.getExpired("wfs"));
+        assertEquals(Long.valueOf(1), scheduler.getExpired().get("wms"));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicBoolean run = new AtomicBoolean();
+        Timeout timeout = scheduler.schedule("wms", 50, new Runnable() {
+
+            public void run() {
+                run.set(true);
+            }
+        });
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.cancel());
+        assertNull(timeout.task);
+        Thread.sleep(200);
+        assertFalse(run.get());
+        assertFalse(timeout.isExpired());
+        assertEquals(0, scheduler.getExpired("wms"));
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        for (int i = 0; i < TimeoutScheduler.PURGE_INTERVAL; i++) {
+            scheduler.schedule("wms", 60000, new Runnable() {
+
+                public void run() {
+                }
+            }).cancel();
+        }
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void testFailingTask() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule("wcs", 1, new Runnable() {
+
+            public void run() {
+                throw new RuntimeException("Failing on purpose");
+            }
+        });
+        // the scheduler thread survives the failure
+        scheduler.schedule("wcs", 10, new Runnable() {
+
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getExpired("wcs"));
+    }
+}
@@ -11,6 +11,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletOutputStream;
@@ -34,6 +38,38 @@ public class GZIPResponseStreamTest  {
         assertEquals("Hello world!", new String(unzip(response.toByteArray())));
     }
 
+    @Test
+    public void testStreamLarge() throws Exception {
+        ByteStreamCapturingHttpServletResponse response = 
+            new ByteStreamCapturingHttpServletResponse(new MockHttpServletResponse());
+        GZIPResponseStream stream = new GZIPResponseStream(response, 1);
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        stream.write(data);
+
+        // the compressed output has been streamed before the end, without a content length
+        assertTrue(response.toByteArray().length > 0);
+        assertTrue(response.containsHeader("Content-Encoding"));
+        stream.close();
+        assertFalse(response.containsHeader("Content-Length"));
+        assertArrayEquals(data, unzip(response.toByteArray()));
+    }
+
+    @Test
+    public void testAlreadyEncoded() throws Exception {
+        ByteStreamCapturingHttpServletResponse response = 
+            new ByteStreamCapturingHttpServletResponse(new MockHttpServletResponse());
+        response.setContentType("text/plain");
+        response.setHeader("Content-Encoding", "gzip");
+        Set<Pattern> types = Collections.singleton(Pattern.compile("text/.*"));
+        AlternativesResponseStream stream = new AlternativesResponseStream(response, types);
+        stream.write("Hello world!".getBytes());
+        stream.close();
+
+        // the output is passed through as is
+        assertEquals("Hello world!", new String(response.toByteArray()));
+    }
+
     private byte[] unzip(byte[] zipped) throws Exception {
         InputStream stream  =
             new GZIPInputStream(new ByteArrayInputStream(zipped));
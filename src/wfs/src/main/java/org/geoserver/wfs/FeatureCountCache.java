@@ -0,0 +1,398 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.Hints;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Computes and caches the number of features matched by the GetFeature queries, used for the
+ * <code>numberMatched</code> attribute and to adjust the offset of paged multi-query requests, so
+ * that the same count is not run against the store over and over while clients page through the
+ * results.
+ * <p>
+ * Counts are keyed by feature types, filter, view parameters, user and the revision of the
+ * feature types. The revision is bumped each time a WFS transaction touches a feature type, both
+ * when the change happens and when the transaction request ends, so that counts taken while the
+ * transaction was in progress are not reused. The whole cache is dropped on catalog changes, and
+ * entries expire after {@link #TIME_TO_LIVE} seconds to account for changes made to the data
+ * behind GeoServer's back.
+ * </p>
+ * <p>
+ * The behaviour is controlled by the {@link #COUNT_MODE} WFS metadata entry, see
+ * {@link CountMode}.
+ * </p>
+ */
+public class FeatureCountCache extends AbstractDispatcherCallback implements
+        TransactionListener, CatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureCountCache.class);
+
+    /**
+     * WFS metadata entry holding the {@link CountMode}
+     */
+    public static final String COUNT_MODE = "GETFEATURE_COUNT_MODE";
+
+    /**
+     * System property setting the maximum number of cached counts
+     */
+    public static final String MAX_ENTRIES = "WFS_COUNT_CACHE_MAX_ENTRIES";
+
+    /**
+     * System property setting how many seconds a cached count is valid
+     */
+    public static final String TIME_TO_LIVE = "WFS_COUNT_CACHE_TTL";
+
+    /**
+     * How GetFeature counts the features matched by a query
+     */
+    public enum CountMode {
+        /**
+         * Counts the features of each request, without caching
+         */
+        EXACT,
+        /**
+         * Exact counts, cached until the data changes
+         */
+        CACHED,
+        /**
+         * Uses the store fast count when available, falling back on the feature type total count
+         * when the query filter makes the count expensive, and on an exact count as a last resort.
+         * Totals are cached as in {@link #CACHED}. Offset adjustments always use exact counts.
+         */
+        ESTIMATED;
+
+        /**
+         * Returns the count mode configured in the service, {@link #CACHED} by default
+         */
+        public static CountMode get(WFSInfo wfs) {
+            String mode = wfs.getMetadata().get(COUNT_MODE, String.class);
+            if (mode != null) {
+                try {
+                    return valueOf(mode.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Invalid " + COUNT_MODE + " value " + mode
+                            + ", using exact cached counts");
+                }
+            }
+            return CACHED;
+        }
+    }
+
+    int maxEntries = 1000;
+
+    long timeToLive = 300 * 1000;
+
+    /**
+     * The cached counts, in least recently used order
+     */
+    LinkedHashMap<CountKey, CachedCount> entries = new LinkedHashMap<CountKey, CachedCount>(16,
+            0.75f, true);
+
+    /**
+     * The feature type revisions, by name
+     */
+    Map<String, AtomicLong> revisions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * The feature types modified by the transaction running in the current thread
+     */
+    ThreadLocal<Set<String>> modified = new ThreadLocal<Set<String>>();
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    public FeatureCountCache(Catalog catalog) {
+        catalog.addListener(this);
+
+        String value = GeoServerExtensions.getProperty(MAX_ENTRIES);
+        if (value != null) {
+            try {
+                maxEntries = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + MAX_ENTRIES + " value " + value + ", using "
+                        + maxEntries);
+            }
+        }
+        value = GeoServerExtensions.getProperty(TIME_TO_LIVE);
+        if (value != null) {
+            try {
+                timeToLive = Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + TIME_TO_LIVE + " value " + value + ", using "
+                        + (timeToLive / 1000) + " seconds");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of features matched by the query, ignoring its offset and limit.
+     *
+     * @param metas the feature types involved in the query, the primary one first
+     * @param source the feature source of the primary feature type
+     * @param query the query
+     * @param estimate if true the count can be an estimate, as set by the {@link CountMode}
+     * @param mode the count mode
+     */
+    public int getCount(List<FeatureTypeInfo> metas,
+            FeatureSource<? extends FeatureType, ? extends Feature> source, Query query,
+            boolean estimate, CountMode mode) throws IOException {
+        Query unbounded = new Query(query);
+        unbounded.setStartIndex(null);
+        unbounded.setMaxFeatures(Integer.MAX_VALUE);
+        if (mode == CountMode.EXACT) {
+            return source.getFeatures(unbounded).size();
+        }
+
+        // joins are not comparable, don't cache them
+        CountKey key = null;
+        if (query.getJoins() == null || query.getJoins().isEmpty()) {
+            key = new CountKey(metas, query);
+            CachedCount cached = get(key);
+            if (cached != null && (cached.exact || (estimate && mode == CountMode.ESTIMATED))) {
+                hits.incrementAndGet();
+                return cached.count;
+            }
+        }
+        misses.incrementAndGet();
+
+        boolean exact = true;
+        int count = -1;
+        if (estimate && mode == CountMode.ESTIMATED) {
+            count = source.getCount(unbounded);
+            if (count < 0 && unbounded.getFilter() != null
+                    && unbounded.getFilter() != Filter.INCLUDE) {
+                // the filter makes counting expensive, use the number of features in the type
+                // as an upper bound
+                Query all = new Query(unbounded);
+                all.setFilter(Filter.INCLUDE);
+                count = source.getCount(all);
+                exact = false;
+            }
+        }
+        if (count < 0) {
+            count = source.getFeatures(unbounded).size();
+            exact = true;
+        }
+
+        if (key != null) {
+            put(key, new CachedCount(count, exact));
+        }
+        return count;
+    }
+
+    synchronized CachedCount get(CountKey key) {
+        CachedCount cached = entries.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.created > timeToLive) {
+            entries.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    synchronized void put(CountKey key, CachedCount count) {
+        entries.put(key, count);
+        while (entries.size() > maxEntries) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Drops all the cached counts
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    long getRevision(String typeName) {
+        AtomicLong revision = revisions.get(typeName);
+        return revision != null ? revision.get() : 0;
+    }
+
+    void bumpRevision(String typeName) {
+        AtomicLong revision = revisions.get(typeName);
+        if (revision == null) {
+            synchronized (revisions) {
+                revision = revisions.get(typeName);
+                if (revision == null) {
+                    revision = new AtomicLong();
+                    revisions.put(typeName, revision);
+                }
+            }
+        }
+        revision.incrementAndGet();
+    }
+
+    // transaction events
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (event.getLayerName() == null) {
+            return;
+        }
+        String typeName = event.getLayerName().getLocalPart();
+        bumpRevision(typeName);
+
+        // remember the type, to bump it again once the changes are committed
+        Set<String> names = modified.get();
+        if (names == null) {
+            names = new HashSet<String>();
+            modified.set(names);
+        }
+        names.add(typeName);
+    }
+
+    @Override
+    public void finished(Request request) {
+        Set<String> names = modified.get();
+        if (names != null) {
+            modified.remove();
+            for (String typeName : names) {
+                bumpRevision(typeName);
+            }
+        }
+    }
+
+    // catalog events
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // a new resource has no cached counts
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // we use the post event
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void reloaded() {
+        invalidate();
+    }
+
+    /**
+     * The key of a cached count
+     */
+    class CountKey {
+
+        List<String> typeIds;
+
+        List<Long> typeRevisions;
+
+        Filter filter;
+
+        Map<String, String> viewParams;
+
+        String user;
+
+        List<String> roles;
+
+        CountKey(List<FeatureTypeInfo> metas, Query query) {
+            typeIds = new ArrayList<String>(metas.size());
+            typeRevisions = new ArrayList<Long>(metas.size());
+            for (FeatureTypeInfo meta : metas) {
+                typeIds.add(meta.getId());
+                typeRevisions.add(getRevision(meta.getName()));
+            }
+            filter = query.getFilter();
+            if (query.getHints() != null) {
+                viewParams = (Map<String, String>) query.getHints().get(
+                        Hints.VIRTUAL_TABLE_PARAMETERS);
+            }
+            // the data security rules can depend on the user, and restrict what is counted
+            Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+            if (auth != null) {
+                user = auth.getName();
+                roles = new ArrayList<String>();
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    roles.add(authority.getAuthority());
+                }
+                Collections.sort(roles);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + typeIds.hashCode();
+            result = prime * result + typeRevisions.hashCode();
+            result = prime * result + ((filter == null) ? 0 : filter.hashCode());
+            result = prime * result + ((viewParams == null) ? 0 : viewParams.hashCode());
+            result = prime * result + ((user == null) ? 0 : user.hashCode());
+            result = prime * result + ((roles == null) ? 0 : roles.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CountKey))
+                return false;
+            CountKey other = (CountKey) obj;
+            return typeIds.equals(other.typeIds) && typeRevisions.equals(other.typeRevisions)
+                    && equals(filter, other.filter) && equals(viewParams, other.viewParams)
+                    && equals(user, other.user) && equals(roles, other.roles);
+        }
+
+        boolean equals(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+
+    /**
+     * A cached count, along with its creation time
+     */
+    static class CachedCount {
+
+        int count;
+
+        boolean exact;
+
+        long created = System.currentTimeMillis();
+
+        CachedCount(int count, boolean exact) {
+            this.count = count;
+            this.exact = exact;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.FeatureCountCache.CountMode;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.request.Lock;
@@ -175,12 +177,16 @@ public class GetFeature {
     /** stored query provider */
     StoredQueryProvider storedQueryProvider;
 
+    /** feature count cache */
+    FeatureCountCache countCache;
+
     /**
      * Creates the WFS 1.0/1.1 GetFeature operation.
      */
     public GetFeature(WFSInfo wfs, Catalog catalog) {
         this.wfs = wfs;
         this.catalog = catalog;
+        this.countCache = GeoServerExtensions.bean(FeatureCountCache.class);
     }
 
     /**
@@ -226,6 +232,14 @@ public class GetFeature {
         this.storedQueryProvider = storedQueryProvider;
     }
 
+    /**
+     * Sets the cache used to count the features matched by the queries. When missing, the
+     * features are counted at each request
+     */
+    public void setFeatureCountCache(FeatureCountCache countCache) {
+        this.countCache = countCache;
+    }
+
     public FeatureCollectionResponse run(GetFeatureRequest request)
         throws WFSException {
         List<Query> queries = request.getQueries();
@@ -319,6 +333,9 @@ public class GetFeature {
         }
         int offset = totalOffset;
 
+        // how to count the features matched by the queries
+        CountMode countMode = countCache != null ? CountMode.get(wfs) : CountMode.EXACT;
+
         List results = new ArrayList();
         try {
             for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
@@ -473,6 +490,7 @@ public class GetFeature {
                     source, request, allPropNames.get(0), viewParam, joins);
 
                 LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
+                int queryOffset = offset;
 
                 FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
 
@@ -522,7 +540,13 @@ public class GetFeature {
                             source, request, allPropNames.get(0), viewParam, joins);
                         
                         //int size2 = getFeatures(request, source, q2).size();
-                        int size2 = source.getCount(q2);
+                        int size2;
+                        if (countMode == CountMode.EXACT) {
+                            size2 = source.getCount(q2);
+                        } else {
+                            size2 = Math.min(queryMaxFeatures, 
+                                countCache.getCount(metas, source, q2, false, countMode));
+                        }
                         if (size2 > 0) {
                             //adjust the offset for the next query
                             offset = Math.max(0, offset - size2);
@@ -537,10 +561,20 @@ public class GetFeature {
                     if (calculateSize && queryMaxFeatures == Integer.MAX_VALUE && offset == 0) {
                         totalCount += size;
                     }
+                    else if (countMode != CountMode.EXACT && calculateSize 
+                        && size < queryMaxFeatures && (queryOffset <= 0 || size > 0)) {
+                        // the query returned less than it could, so it reached the end of the 
+                        // matched features, no need to count them again
+                        totalCount += Math.max(queryOffset, 0) + size;
+                    }
                     else {
                         org.geotools.data.Query q2 = toDataQuery(query, filter, 0, Integer.MAX_VALUE, 
                             source, request, allPropNames.get(0), viewParam, joins);
-                        totalCount += source.getFeatures(q2).size();
+                        if (countMode == CountMode.EXACT) {
+                            totalCount += source.getFeatures(q2).size();
+                        } else {
+                            totalCount += countCache.getCount(metas, source, q2, true, countMode);
+                        }
                     }
                 }
 
@@ -616,6 +650,11 @@ public class GetFeature {
             lockId = response.getLockId();
         }
 
+        // read the collections of the different queries in parallel, if enabled
+        if (request.isResultTypeResults()) {
+            results = QueryPrefetcher.prefetch(wfs, Dispatcher.REQUEST.get(), results);
+        }
+
         return buildResults(request, totalOffset, maxFeatures, count, totalCount, results, lockId);
     }
 
@@ -0,0 +1,239 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.ows.RequestContextCallable;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Feature collection reading the features of the wrapped one in a background thread, into a
+ * bounded buffer, so that the read can overlap with the encoding of the collections preceding it
+ * in the response.
+ * <p>
+ * Only the first iterator opened gets the prefetched features, any other one reads the wrapped
+ * collection directly. If the first iterator is opened before the background read started, the
+ * read is cancelled and the iterator reads the wrapped collection directly as well.
+ * </p>
+ *
+ * @see QueryPrefetcher
+ */
+class PrefetchingFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    static final int NEW = 0;
+
+    static final int QUEUED = 1;
+
+    static final int RUNNING = 2;
+
+    static final int CANCELLED = 3;
+
+    /**
+     * Marks the end of the features in the buffer
+     */
+    static final Object END = new Object();
+
+    AtomicInteger state = new AtomicInteger(NEW);
+
+    AtomicBoolean claimed = new AtomicBoolean();
+
+    volatile boolean cancelled;
+
+    /** set once the background read is over, whatever the outcome */
+    volatile boolean finished;
+
+    BlockingQueue<Object> buffer;
+
+    QueryPrefetcher prefetcher;
+
+    PrefetchingFeatureCollection(SimpleFeatureCollection delegate, int bufferSize,
+            QueryPrefetcher prefetcher) {
+        super(delegate);
+        this.buffer = new ArrayBlockingQueue<Object>(bufferSize);
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Schedules the background read, returns false if the collection is already being read
+     */
+    boolean start(Executor executor) {
+        if (!state.compareAndSet(NEW, QUEUED)) {
+            return false;
+        }
+        executor.execute(new FutureTask<Object>(new RequestContextCallable<Object>() {
+            protected Object callInContext() throws Exception {
+                try {
+                    if (state.compareAndSet(QUEUED, RUNNING)) {
+                        prefetch();
+                    }
+                } finally {
+                    finished = true;
+                    prefetcher.completed(PrefetchingFeatureCollection.this);
+                }
+                return null;
+            }
+        }));
+        return true;
+    }
+
+    void prefetch() {
+        SimpleFeatureIterator it = null;
+        try {
+            it = delegate.features();
+            while (it.hasNext()) {
+                if (!put(it.next())) {
+                    return;
+                }
+            }
+            put(END);
+        } catch (Throwable t) {
+            put(new Failure(t));
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the buffer, waiting for space to be available. Returns false if the
+     * collection got cancelled in the meantime
+     */
+    boolean put(Object item) {
+        try {
+            while (!buffer.offer(item, 1, TimeUnit.SECONDS)) {
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return !cancelled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the background read and releases the buffered features
+     */
+    void cancel() {
+        cancelled = true;
+        state.compareAndSet(NEW, CANCELLED);
+        state.compareAndSet(QUEUED, CANCELLED);
+        buffer.clear();
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        PrefetchIterator it = claim();
+        return it != null ? it : delegate.features();
+    }
+
+    public Iterator<SimpleFeature> iterator() {
+        PrefetchIterator it = claim();
+        return it != null ? it : delegate.iterator();
+    }
+
+    public void close(Iterator<SimpleFeature> iterator) {
+        if (iterator instanceof PrefetchIterator) {
+            ((PrefetchIterator) iterator).close();
+        } else {
+            delegate.close(iterator);
+        }
+    }
+
+    /**
+     * Returns an iterator over the prefetched features if this is the first iterator opened and
+     * the background read started, null otherwise
+     */
+    PrefetchIterator claim() {
+        if (claimed.compareAndSet(false, true)) {
+            // read directly if the background read did not start yet
+            if (state.compareAndSet(NEW, CANCELLED) || state.compareAndSet(QUEUED, CANCELLED)) {
+                return null;
+            }
+            return new PrefetchIterator();
+        }
+        return null;
+    }
+
+    /**
+     * Iterator over the buffered features
+     */
+    class PrefetchIterator implements SimpleFeatureIterator, Iterator<SimpleFeature> {
+
+        Object next;
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    while ((next = buffer.poll(1, TimeUnit.SECONDS)) == null) {
+                        if (finished && (next = buffer.poll()) == null) {
+                            throw new RuntimeException(
+                                    "The background read of the features stopped unexpectedly");
+                        }
+                        if (next != null) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while reading the features", e);
+                }
+                if (next instanceof Failure) {
+                    Throwable t = ((Failure) next).error;
+                    next = END;
+                    if (t instanceof RuntimeException) {
+                        throw (RuntimeException) t;
+                    } else if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    throw new RuntimeException("Error occurred reading the features", t);
+                }
+            }
+            return next != END;
+        }
+
+        public SimpleFeature next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = (SimpleFeature) next;
+            next = null;
+            return feature;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            cancel();
+        }
+    }
+
+    /**
+     * Carries a read failure to the consuming thread
+     */
+    static class Failure {
+        Throwable error;
+
+        Failure(Throwable error) {
+            this.error = error;
+        }
+    }
+}
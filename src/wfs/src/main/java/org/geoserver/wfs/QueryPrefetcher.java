@@ -0,0 +1,205 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.ParallelismLimiter;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Reads the feature collections of a multi-query GetFeature request in background threads, each
+ * one into a bounded buffer, while the output format encodes them in request order.
+ * <p>
+ * At most <code>parallelism</code> collections of the same request are read at the same time,
+ * the following ones start as soon as a previous read is over. The threads come from a pool
+ * shared by all requests, sized by the {@link #PREFETCH_THREADS} system property (two per core by
+ * default). Only simple feature collections are prefetched, complex ones are read by the
+ * encoder as usual.
+ * </p>
+ * <p>
+ * The prefetchers of a request are cancelled when the request ends, by the {@link Cleaner}
+ * dispatcher callback.
+ * </p>
+ */
+public class QueryPrefetcher {
+
+    static final Logger LOGGER = Logging.getLogger(QueryPrefetcher.class);
+
+    /**
+     * WFS metadata entry setting how many queries of a GetFeature request can be read in
+     * parallel, 1 or less disables the prefetching
+     */
+    public static final String PARALLEL_QUERIES = "GETFEATURE_PARALLEL_QUERIES";
+
+    /**
+     * WFS metadata entry setting how many features of each query can be read in advance
+     */
+    public static final String PREFETCH_BUFFER = "GETFEATURE_PREFETCH_BUFFER";
+
+    /**
+     * System property setting the size of the thread pool shared by all requests
+     */
+    public static final String PREFETCH_THREADS = "WFS_PREFETCH_THREADS";
+
+    static final int DEFAULT_BUFFER = 1000;
+
+    static final ThreadLocal<List<QueryPrefetcher>> PREFETCHERS = new ThreadLocal<List<QueryPrefetcher>>();
+
+    static ExecutorService executor;
+
+    List<PrefetchingFeatureCollection> collections = new ArrayList<PrefetchingFeatureCollection>();
+
+    int parallelism;
+
+    int next;
+
+    int running;
+
+    QueryPrefetcher(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Wraps the simple feature collections among the results of a GetFeature request so that
+     * they get read in parallel, and starts reading them. Returns the results unchanged if the
+     * prefetching is not enabled, or not useful.
+     *
+     * @param wfs the service configuration
+     * @param request the current request, used to look up the parallelism limits
+     * @param results the feature collections, in request order
+     */
+    public static List prefetch(WFSInfo wfs, Request request, List results) {
+        Integer parallelism = wfs.getMetadata().get(PARALLEL_QUERIES, Integer.class);
+        if (parallelism == null || parallelism <= 1 || results.size() <= 1) {
+            return results;
+        }
+        int limited = parallelism;
+        for (ParallelismLimiter limiter : GeoServerExtensions.extensions(ParallelismLimiter.class)) {
+            limited = Math.min(limited, limiter.getParallelism(request, limited));
+        }
+        if (limited <= 1) {
+            LOGGER.fine("Parallel query reading disabled for this request, the allowed "
+                    + "parallelism is " + limited);
+            return results;
+        }
+
+        Integer bufferSize = wfs.getMetadata().get(PREFETCH_BUFFER, Integer.class);
+        if (bufferSize == null || bufferSize <= 0) {
+            bufferSize = DEFAULT_BUFFER;
+        }
+        QueryPrefetcher prefetcher = new QueryPrefetcher(limited);
+        List wrapped = new ArrayList(results.size());
+        for (Object result : results) {
+            if (result instanceof SimpleFeatureCollection) {
+                PrefetchingFeatureCollection pfc = new PrefetchingFeatureCollection(
+                        (SimpleFeatureCollection) result, bufferSize, prefetcher);
+                prefetcher.collections.add(pfc);
+                wrapped.add(pfc);
+            } else {
+                wrapped.add(result);
+            }
+        }
+        if (prefetcher.collections.isEmpty()) {
+            return results;
+        }
+
+        // schedule the cleanup at the end of the request
+        List<QueryPrefetcher> prefetchers = PREFETCHERS.get();
+        if (prefetchers == null) {
+            prefetchers = new ArrayList<QueryPrefetcher>();
+            PREFETCHERS.set(prefetchers);
+        }
+        prefetchers.add(prefetcher);
+
+        prefetcher.startNext();
+        return wrapped;
+    }
+
+    /**
+     * Starts reading the next collections, up to the parallelism
+     */
+    synchronized void startNext() {
+        while (running < parallelism && next < collections.size()) {
+            if (collections.get(next++).start(getExecutor())) {
+                running++;
+            }
+        }
+    }
+
+    /**
+     * Called when the read of a collection is over
+     */
+    synchronized void completed(PrefetchingFeatureCollection collection) {
+        running--;
+        startNext();
+    }
+
+    /**
+     * Cancels all the reads, running or not
+     */
+    synchronized void cancel() {
+        next = collections.size();
+        for (PrefetchingFeatureCollection collection : collections) {
+            collection.cancel();
+        }
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Runtime.getRuntime().availableProcessors() * 2;
+            String property = GeoServerExtensions.getProperty(PREFETCH_THREADS);
+            if (property != null) {
+                try {
+                    threads = Integer.parseInt(property);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Invalid " + PREFETCH_THREADS + " value " + property
+                            + ", using " + threads + " threads");
+                }
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        int count;
+
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "WFSQueryPrefetcher-" + (++count));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Cancels the prefetching of the feature collections once the request is done
+     */
+    public static class Cleaner extends AbstractDispatcherCallback {
+
+        @Override
+        public void finished(Request request) {
+            List<QueryPrefetcher> prefetchers = PREFETCHERS.get();
+            if (prefetchers != null) {
+                PREFETCHERS.remove();
+                for (QueryPrefetcher prefetcher : prefetchers) {
+                    prefetcher.cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Calendar;
+
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.util.Converters;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Streaming GeoJSON encoder writing UTF-8 text straight into an output stream.
+ * <p>
+ * Unlike {@link GeoJSONBuilder} it does not keep track of the JSON structure, the caller is in
+ * charge of writing keys, separators and brackets in the right order, usually as pre-encoded byte
+ * arrays (see {@link #key(String)}). Coordinates are read straight from the
+ * {@link CoordinateSequence} of each geometry and doubles are formatted without going through
+ * {@link Double#toString(double)} whenever possible.
+ * </p>
+ * <p>
+ * The encoder buffers its output in a byte array reused across the requests handled by the same
+ * thread, call {@link #flush()} once done. Instances are not thread safe.
+ * </p>
+ */
+public class GeoJSONEncoder {
+
+    static final byte[] NULL = ascii("null");
+
+    static final byte[] TRUE = ascii("true");
+
+    static final byte[] FALSE = ascii("false");
+
+    static final byte[] TYPE = ascii("{\"type\":\"");
+
+    static final byte[] COORDINATES = ascii("\",\"coordinates\":");
+
+    static final byte[] GEOMETRIES = ascii("\",\"geometries\":[");
+
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Largest number of decimals written by the fast double formatting
+     */
+    static final int MAX_DECIMALS = 15;
+
+    static final double[] POW10 = new double[MAX_DECIMALS + 1];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * 2^53, above it not all longs can be represented as doubles
+     */
+    static final double MAX_EXACT = 9007199254740992d;
+
+    static final byte[] HEX = ascii("0123456789abcdef");
+
+    static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    OutputStream out;
+
+    byte[] buffer;
+
+    int count;
+
+    public GeoJSONEncoder(OutputStream out) {
+        this.out = out;
+        this.buffer = BUFFERS.get();
+    }
+
+    /**
+     * Pre-encodes an object key, quoted and followed by the colon
+     */
+    public static byte[] key(String name) {
+        return encode(name, ":");
+    }
+
+    /**
+     * Pre-encodes a string value, quoted and escaped, followed by the specified ASCII suffix
+     */
+    static byte[] encode(String value, String suffix) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GeoJSONEncoder encoder = new GeoJSONEncoder(bytes, new byte[64]);
+        try {
+            encoder.string(value);
+            encoder.raw(suffix);
+            encoder.flush();
+        } catch (IOException e) {
+            // cannot happen on a byte array
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    GeoJSONEncoder(OutputStream out, byte[] buffer) {
+        this.out = out;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Writes pre-encoded content
+     */
+    public void raw(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - count) {
+            drain();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Writes a string containing only ASCII characters, as is
+     */
+    public void raw(String ascii) throws IOException {
+        for (int i = 0, n = ascii.length(); i < n; i++) {
+            write(ascii.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a single ASCII character
+     */
+    public void write(int c) throws IOException {
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) c;
+    }
+
+    /**
+     * Writes a quoted and escaped string
+     */
+    public void string(String value) throws IOException {
+        write('"');
+        char prev = 0;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            // the longest sequence written per char is the 6 bytes unicode escape
+            if (buffer.length - count < 6) {
+                drain();
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                case '"':
+                case '\\':
+                    buffer[count++] = '\\';
+                    buffer[count++] = (byte) c;
+                    break;
+                case '/':
+                    // same as json-lib, avoids closing a script tag
+                    if (prev == '<') {
+                        buffer[count++] = '\\';
+                    }
+                    buffer[count++] = '/';
+                    break;
+                case '\b':
+                    escape('b');
+                    break;
+                case '\t':
+                    escape('t');
+                    break;
+                case '\n':
+                    escape('n');
+                    break;
+                case '\f':
+                    escape('f');
+                    break;
+                case '\r':
+                    escape('r');
+                    break;
+                default:
+                    if (c < ' ') {
+                        buffer[count++] = '\\';
+                        buffer[count++] = 'u';
+                        buffer[count++] = '0';
+                        buffer[count++] = '0';
+                        buffer[count++] = HEX[c >> 4];
+                        buffer[count++] = HEX[c & 0xF];
+                    } else {
+                        buffer[count++] = (byte) c;
+                    }
+                }
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (cp >> 18));
+                buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // unpaired surrogate, same replacement the charset encoder would use
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+            prev = c;
+        }
+        write('"');
+    }
+
+    private void escape(char c) {
+        buffer[count++] = '\\';
+        buffer[count++] = (byte) c;
+    }
+
+    /**
+     * Writes a long
+     */
+    public void number(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            raw(Long.toString(value));
+            return;
+        }
+        if (buffer.length - count < 20) {
+            drain();
+        }
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        digits(value, 0);
+    }
+
+    /**
+     * Writes a double using the shortest decimal representation with up to
+     * {@link #MAX_DECIMALS} decimals that parses back to the same value. Very large or very small
+     * values fall back on {@link Double#toString(double)}, non finite ones are written as null
+     */
+    public void number(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            raw(NULL);
+            return;
+        }
+        if (value == 0) {
+            write('0');
+            return;
+        }
+
+        double abs = Math.abs(value);
+        if (abs >= 1e-4 && abs < 1e15) {
+            for (int decimals = 0; decimals <= MAX_DECIMALS; decimals++) {
+                double scaled = abs * POW10[decimals];
+                if (scaled >= MAX_EXACT) {
+                    break;
+                }
+                // both the long and the power of ten are exact, so the division is rounded
+                // the same way parsing the decimal representation would be
+                long l = (long) (scaled + 0.5);
+                if (l / POW10[decimals] == abs) {
+                    if (buffer.length - count < 40) {
+                        drain();
+                    }
+                    if (value < 0) {
+                        buffer[count++] = '-';
+                    }
+                    digits(l, decimals);
+                    return;
+                }
+            }
+        }
+
+        // same trimming of the trailing zeroes json-lib does
+        raw(JSONUtils.numberToString(value));
+    }
+
+    /**
+     * Writes the digits of a positive long, placing a decimal point before the last ones
+     */
+    private void digits(long value, int decimals) {
+        // write the digits backwards, then move them in place
+        int start = count;
+        int written = 0;
+        do {
+            if (written == decimals && decimals > 0) {
+                buffer[count++] = '.';
+            }
+            buffer[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+            written++;
+        } while (value > 0 || written <= decimals);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    /**
+     * Writes an attribute value, encoding it the same way {@link GeoJSONBuilder#value(Object)}
+     * would
+     */
+    public void value(Object value) throws IOException {
+        if (value == null) {
+            raw(NULL);
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            number(((Double) value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            raw(value.toString());
+        } else if (value instanceof Number) {
+            // floats and big decimals keep their own string representation
+            raw(JSONUtils.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            raw(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value instanceof java.util.Date || value instanceof Calendar) {
+            string(Converters.convert(value, String.class));
+        } else if (value instanceof Geometry) {
+            geometry((Geometry) value);
+        } else {
+            raw(JSONUtils.valueToString(value).getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Writes a geometry object
+     */
+    public void geometry(Geometry geometry) throws IOException {
+        raw(TYPE);
+        raw(GeoJSONBuilder.getGeometryName(geometry));
+
+        int type = GeoJSONBuilder.getGeometryType(geometry);
+        if (type == GeoJSONBuilder.MULTIGEOMETRY) {
+            raw(GEOMETRIES);
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                geometry(geometry.getGeometryN(i));
+            }
+            write(']');
+            write('}');
+            return;
+        }
+
+        raw(COORDINATES);
+        switch (type) {
+        case GeoJSONBuilder.POINT:
+            Point point = (Point) geometry;
+            if (point.isEmpty()) {
+                write('[');
+                write(']');
+            } else {
+                coordinate(point.getCoordinateSequence(), 0);
+            }
+            break;
+        case GeoJSONBuilder.LINESTRING:
+            coordinates(((LineString) geometry).getCoordinateSequence());
+            break;
+        case GeoJSONBuilder.POLYGON:
+            polygon((Polygon) geometry);
+            break;
+        case GeoJSONBuilder.MULTIPOINT:
+            write('[');
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                coordinate(((Point) geometry.getGeometryN(i)).getCoordinateSequence(), 0);
+            }
+            write(']');
+            break;
+        case GeoJSONBuilder.MULTILINESTRING:
+            write('[');
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                coordinates(((LineString) geometry.getGeometryN(i)).getCoordinateSequence());
+            }
+            write(']');
+            break;
+        case GeoJSONBuilder.MULTIPOLYGON:
+            write('[');
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                polygon((Polygon) geometry.getGeometryN(i));
+            }
+            write(']');
+            break;
+        }
+        write('}');
+    }
+
+    private void polygon(Polygon polygon) throws IOException {
+        write('[');
+        coordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            write(',');
+            coordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        write(']');
+    }
+
+    private void coordinates(CoordinateSequence cs) throws IOException {
+        write('[');
+        for (int i = 0, n = cs.size(); i < n; i++) {
+            if (i > 0) {
+                write(',');
+            }
+            coordinate(cs, i);
+        }
+        write(']');
+    }
+
+    private void coordinate(CoordinateSequence cs, int i) throws IOException {
+        write('[');
+        number(cs.getOrdinate(i, CoordinateSequence.X));
+        write(',');
+        number(cs.getOrdinate(i, CoordinateSequence.Y));
+        write(']');
+    }
+
+    /**
+     * Writes an envelope as an array [minX,minY,maxX,maxY]
+     */
+    public void boundingBox(Envelope env) throws IOException {
+        write('[');
+        number(env.getMinX());
+        write(',');
+        number(env.getMinY());
+        write(',');
+        number(env.getMaxX());
+        write(',');
+        number(env.getMaxY());
+        write(']');
+    }
+
+    /**
+     * Writes the buffered content to the output stream, and flushes it
+     */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -5,14 +5,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import net.sf.json.JSONException;
 
 import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSGetFeatureOutputFormat;
@@ -37,6 +41,34 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
     .getLogger(this.getClass().toString());
 
     public static final String FORMAT = "json";
+    
+    /**
+     * System property forcing the use of the json-lib based {@link GeoJSONBuilder}, instead of
+     * the faster {@link GeoJSONEncoder} used when the output charset is UTF-8
+     */
+    public static final String GEOJSON_LEGACY_ENCODER = "GEOJSON_LEGACY_ENCODER";
+    
+    static final String UTF8 = "UTF-8";
+    
+    static final byte[] FEATURE_COLLECTION_START = 
+        GeoJSONEncoder.ascii("{\"type\":\"FeatureCollection\",\"features\":[");
+    
+    static final byte[] FEATURE_START = GeoJSONEncoder.ascii("{\"type\":\"Feature\",\"id\":");
+    
+    static final byte[] NEXT_FEATURE_START = GeoJSONEncoder.ascii(",{\"type\":\"Feature\",\"id\":");
+    
+    static final byte[] GEOMETRY = GeoJSONEncoder.ascii(",\"geometry\":");
+    
+    static final byte[] GEOMETRY_NAME = GeoJSONEncoder.ascii(",\"geometry_name\":");
+    
+    static final byte[] PROPERTIES = GeoJSONEncoder.ascii(",\"properties\":{");
+    
+    static final byte[] BBOX = GeoJSONEncoder.ascii("\"bbox\":");
+    
+    static final byte[] NEXT_BBOX = GeoJSONEncoder.ascii(",\"bbox\":");
+    
+    static final byte[] CRS_START = 
+        GeoJSONEncoder.ascii(",\"crs\":{\"type\":\"EPSG\",\"properties\":{\"code\":");
 
     public GeoJSONOutputFormat(GeoServer gs) {
         super(gs, FORMAT);
@@ -75,20 +107,12 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
             ServiceException {
 
         WFSInfo wfs = getInfo();
-        
-        // TODO: investigate setting proper charsets in this
-        // it's part of the constructor, just need to hook it up.
-        Writer outWriter = new BufferedWriter(
-            new OutputStreamWriter(output,wfs.getGeoServer().getSettings().getCharset()));
+        String charset = wfs.getGeoServer().getSettings().getCharset();
         
         // let's check if a callback has been set
         GetFeatureRequest gft = GetFeatureRequest.adapt(getFeature.getParameters()[0]);
         String callback = (String) gft.getFormatOptions().get("CALLBACK");
-        if(callback != null && !"".equals(callback)) {
-            outWriter.write(callback + "(");
-        }
-
-        GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
+        boolean hasCallback = callback != null && !"".equals(callback);
 
         // execute should of set all the header information
         // including the lockID
@@ -102,6 +126,171 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
 
         // Generate bounds for every feature?
         boolean featureBounding = wfs.isFeatureBounding();
+        
+        if (isStreamEncoding(charset)) {
+            GeoJSONEncoder encoder = new GeoJSONEncoder(output);
+            if (hasCallback) {
+                encoder.raw(callback.getBytes(UTF8));
+                encoder.write('(');
+            }
+            encode(resultsList, encoder, featureBounding);
+            if (hasCallback) {
+                encoder.write(')');
+            }
+            encoder.flush();
+            return;
+        }
+
+        // TODO: investigate setting proper charsets in this
+        // it's part of the constructor, just need to hook it up.
+        Writer outWriter = new BufferedWriter(new OutputStreamWriter(output, charset));
+        if (hasCallback) {
+            outWriter.write(callback + "(");
+        }
+        encode(resultsList, outWriter, featureBounding);
+        outWriter.flush();
+        if (hasCallback) {
+            outWriter.write(")");
+            outWriter.flush();
+        }
+    }
+    
+    /**
+     * Returns true if the output can be written with the {@link GeoJSONEncoder}, that is, if the
+     * output charset is UTF-8 and the {@link #GEOJSON_LEGACY_ENCODER} property is not set
+     */
+    boolean isStreamEncoding(String charset) {
+        if (Boolean.valueOf(GeoServerExtensions.getProperty(GEOJSON_LEGACY_ENCODER))) {
+            return false;
+        }
+        try {
+            return UTF8.equals(Charset.forName(charset).name());
+        } catch (IllegalArgumentException e) {
+            // let the writer report the unsupported charset
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the feature collections with the streaming {@link GeoJSONEncoder}
+     */
+    void encode(List resultsList, GeoJSONEncoder encoder, boolean featureBounding)
+            throws IOException {
+        boolean hasGeom = false;
+        encoder.raw(FEATURE_COLLECTION_START);
+
+        CoordinateReferenceSystem crs = null;
+        boolean first = true;
+        Map<SimpleFeatureType, FeatureTypeKeys> keysByType = 
+            new IdentityHashMap<SimpleFeatureType, FeatureTypeKeys>();
+        for (int i = 0; i < resultsList.size(); i++) {
+            FeatureCollection collection = (FeatureCollection) resultsList.get(i);
+            FeatureIterator iterator = collection.features();
+            try {
+                SimpleFeatureType lastType = null;
+                FeatureTypeKeys keys = null;
+                while (iterator.hasNext()) {
+                    SimpleFeature feature = (SimpleFeature) iterator.next();
+                    
+                    // features of the same collection usually share the same type
+                    SimpleFeatureType fType = feature.getFeatureType();
+                    if (fType != lastType) {
+                        keys = keysByType.get(fType);
+                        if (keys == null) {
+                            keys = new FeatureTypeKeys(fType);
+                            keysByType.put(fType, keys);
+                        }
+                        lastType = fType;
+                        if (crs == null && fType.getGeometryDescriptor() != null) {
+                            crs = fType.getGeometryDescriptor().getCoordinateReferenceSystem();
+                        }
+                    }
+                    
+                    encoder.raw(first ? FEATURE_START : NEXT_FEATURE_START);
+                    first = false;
+                    encoder.value(feature.getID());
+                    encoder.raw(GEOMETRY);
+                    
+                    Geometry aGeom = (Geometry) feature.getDefaultGeometry();
+                    if (aGeom == null) {
+                        // In case the default geometry is not set, we will
+                        // just use the first geometry we find
+                        for (int j = 0; j < keys.attributes.length && aGeom == null; j++) {
+                            Object value = feature.getAttribute(j);
+                            if (value != null && value instanceof Geometry) {
+                                aGeom = (Geometry) value;
+                            }
+                        }
+                    }
+                    // Write the geometry, whether it is a null or not
+                    if (aGeom != null) {
+                        encoder.geometry(aGeom);
+                        hasGeom = true;
+                    } else {
+                        encoder.raw(GeoJSONEncoder.NULL);
+                    }
+                    if (keys.geometryName != null) {
+                        encoder.raw(keys.geometryName);
+                    }
+                    
+                    encoder.raw(PROPERTIES);
+                    boolean firstProperty = true;
+                    for (int j = 0; j < keys.attributes.length; j++) {
+                        Object value = feature.getAttribute(j);
+                        if (j == keys.defaultGeometry && value instanceof Geometry) {
+                            // written above already
+                            continue;
+                        }
+                        if (!firstProperty) {
+                            encoder.write(',');
+                        }
+                        firstProperty = false;
+                        encoder.raw(keys.attributes[j]);
+                        encoder.value(value);
+                    }
+                    // Bounding box for feature in properties
+                    if (featureBounding) {
+                        ReferencedEnvelope refenv = new ReferencedEnvelope(feature.getBounds());
+                        if (!refenv.isEmpty()) {
+                            encoder.raw(firstProperty ? BBOX : NEXT_BBOX);
+                            encoder.boundingBox(refenv);
+                        }
+                    }
+                    
+                    encoder.write('}'); // end the properties
+                    encoder.write('}'); // end the feature
+                }
+            } finally {
+                collection.close(iterator);
+            }
+        }
+        encoder.write(']'); // end features
+
+        NamedIdentifier namedIdent = getEPSGIdentifier(crs);
+        if (namedIdent != null) {
+            encoder.raw(CRS_START);
+            encoder.value(namedIdent.getCode());
+            encoder.write('}'); // end properties
+            encoder.write('}'); // end crs
+        }
+
+        // Bounding box for featurecollection
+        if (hasGeom && featureBounding) {
+            ReferencedEnvelope e = getBounds(resultsList);
+            if (e != null) {
+                encoder.raw(NEXT_BBOX);
+                encoder.boundingBox(e);
+            }
+        }
+        
+        encoder.write('}'); // end featurecollection
+    }
+
+    /**
+     * Encodes the feature collections with the {@link GeoJSONBuilder}
+     */
+    void encode(List resultsList, Writer outWriter, boolean featureBounding) {
+        GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
         boolean hasGeom = false;
 
         try {
@@ -209,53 +398,28 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
 
             // Coordinate Referense System, currently only if the namespace is
             // EPSG
-            if (crs != null) {
-                Set<ReferenceIdentifier> ids = crs.getIdentifiers();
-                // WKT defined crs might not have identifiers at all
-                if(ids != null && ids.size() > 0) {
-                    NamedIdentifier namedIdent = (NamedIdentifier) ids.iterator().next();
-                    String csStr = namedIdent.getCodeSpace().toUpperCase();
-    
-                    if (csStr.equals("EPSG")) {
-                        jsonWriter.key("crs");
-                        jsonWriter.object();
-                        jsonWriter.key("type").value(csStr);
-                        jsonWriter.key("properties");
-                        jsonWriter.object();
-                        jsonWriter.key("code");
-                        jsonWriter.value(namedIdent.getCode());
-                        jsonWriter.endObject(); // end properties
-                        jsonWriter.endObject(); // end crs
-                    }
-                }
+            NamedIdentifier namedIdent = getEPSGIdentifier(crs);
+            if (namedIdent != null) {
+                jsonWriter.key("crs");
+                jsonWriter.object();
+                jsonWriter.key("type").value("EPSG");
+                jsonWriter.key("properties");
+                jsonWriter.object();
+                jsonWriter.key("code");
+                jsonWriter.value(namedIdent.getCode());
+                jsonWriter.endObject(); // end properties
+                jsonWriter.endObject(); // end crs
             }
 
             // Bounding box for featurecollection
             if (hasGeom && featureBounding) {
-                ReferencedEnvelope e = null;
-                for (int i = 0; i < resultsList.size(); i++) {
-                    FeatureCollection collection = (FeatureCollection) resultsList
-                    .get(i);
-                    if (e == null) {
-                        e = collection.getBounds();
-                    } else {
-                        e.expandToInclude(collection.getBounds());
-                    }
-
-                }
-
+                ReferencedEnvelope e = getBounds(resultsList);
                 if (e != null) {
                     jsonWriter.writeBoundingBox(e);
                 }
             }
 
             jsonWriter.endObject(); // end featurecollection
-            outWriter.flush();
-            if(callback != null && !"".equals(callback)) {
-                outWriter.write(")");
-                outWriter.flush();
-            }
-
         } catch (JSONException jsonException) {
             ServiceException serviceException = new ServiceException("Error: "
                     + jsonException.getMessage());
@@ -264,5 +428,69 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
         }
 
     }
+    
+    /**
+     * Returns the first identifier of the crs if it's an EPSG one, null otherwise
+     */
+    NamedIdentifier getEPSGIdentifier(CoordinateReferenceSystem crs) {
+        if (crs != null) {
+            Set<ReferenceIdentifier> ids = crs.getIdentifiers();
+            // WKT defined crs might not have identifiers at all
+            if(ids != null && ids.size() > 0) {
+                NamedIdentifier namedIdent = (NamedIdentifier) ids.iterator().next();
+                if ("EPSG".equals(namedIdent.getCodeSpace().toUpperCase())) {
+                    return namedIdent;
+                }
+            }
+        }
+        return null;
+    }
+    
+    ReferencedEnvelope getBounds(List resultsList) {
+        ReferencedEnvelope e = null;
+        for (int i = 0; i < resultsList.size(); i++) {
+            FeatureCollection collection = (FeatureCollection) resultsList
+            .get(i);
+            if (e == null) {
+                e = collection.getBounds();
+            } else {
+                e.expandToInclude(collection.getBounds());
+            }
+
+        }
+        return e;
+    }
+    
+    /**
+     * The attribute keys of a feature type, pre-encoded for the {@link GeoJSONEncoder}
+     */
+    static class FeatureTypeKeys {
+        byte[][] attributes;
+        
+        /** index of the default geometry attribute, or -1 */
+        int defaultGeometry = -1;
+        
+        /** the geometry_name member, or null if there is no default geometry */
+        byte[] geometryName;
+        
+        FeatureTypeKeys(SimpleFeatureType type) {
+            List<AttributeDescriptor> descriptors = type.getAttributeDescriptors();
+            GeometryDescriptor defaultGeomType = type.getGeometryDescriptor();
+            attributes = new byte[descriptors.size()][];
+            for (int i = 0; i < attributes.length; i++) {
+                AttributeDescriptor ad = descriptors.get(i);
+                attributes[i] = GeoJSONEncoder.key(ad.getLocalName());
+                if (defaultGeometry == -1 && ad.equals(defaultGeomType)) {
+                    defaultGeometry = i;
+                }
+            }
+            if (defaultGeomType != null) {
+                byte[] name = GeoJSONEncoder.encode(defaultGeomType.getLocalName(), "");
+                geometryName = new byte[GEOMETRY_NAME.length + name.length];
+                System.arraycopy(GEOMETRY_NAME, 0, geometryName, 0, GEOMETRY_NAME.length);
+                System.arraycopy(name, 0, geometryName, GEOMETRY_NAME.length, name.length);
+            }
+        }
+    }
 
 }
@@ -13,6 +13,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -20,17 +21,28 @@ import java.net.MalformedURLException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.SimpleTimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
@@ -46,6 +58,7 @@ import org.geoserver.data.util.IOUtils;
 import org.geoserver.feature.RetypingFeatureCollection;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
+import org.geoserver.ows.RequestContextCallable;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.platform.GeoServerExtensions;
@@ -109,6 +122,36 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private static final Logger LOGGER = Logging.getLogger(ShapeZipOutputFormat.class);
     public static final String GS_SHAPEFILE_CHARSET = "GS-SHAPEFILE-CHARSET";
     public static final String SHAPE_ZIP_DEFAULT_PRJ_IS_ESRI = "SHAPE-ZIP_DEFAULT_PRJ_IS_ESRI";
+    /**
+     * WFS metadata entry enabling the streaming of each shapefile into the output as soon as it's
+     * written, instead of zipping all of them at the end
+     */
+    public static final String SHAPE_ZIP_STREAMING = "SHAPE-ZIP_STREAMING";
+    /**
+     * WFS metadata entry setting how many feature collections are written in parallel when streaming
+     */
+    public static final String SHAPE_ZIP_THREADS = "SHAPE-ZIP_THREADS";
+    /**
+     * WFS metadata entry setting the maximum disk usage, in bytes, of the temporary shapefiles of
+     * a single request
+     */
+    public static final String SHAPE_ZIP_MAX_DISK = "SHAPE-ZIP_MAX_DISK";
+    
+    private static final FilenameFilter SHAPEFILE_FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
+                   || name.endsWith(".prj") || name.endsWith(".cst") || name.endsWith(".cpg")
+                   || name.endsWith(".txt");
+        }
+    };
+    
+    /**
+     * How long, in seconds, a failed streaming request waits for its writers to stop before
+     * deleting their files
+     */
+    static final int WRITERS_STOP_TIMEOUT = 60;
+    
+    private static ExecutorService executor;
     
     private static final Configuration templateConfig = new Configuration();
     
@@ -213,56 +256,45 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
      */
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, 
         GetFeatureRequest request) throws IOException, ServiceException {
+        // check the collections upfront, when streaming the output is already committed by
+        // the time the later ones get written
+        for (SimpleFeatureCollection curCollection : collections) {
+            if(curCollection.getSchema().getGeometryDescriptor() == null) {
+                throw new WFSException(request, "Cannot write geometryless shapefiles, yet " 
+                        + curCollection.getSchema() + " has no geometry field");
+            } 
+        }
+        
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
         File tempDir = IOUtils.createTempDirectory("shpziptemp");
         
-        // target charset
-        
         try {
-           // if an empty result out of feature type with unknown geometry is created, the
+            if (isStreaming()) {
+                writeStreaming(collections, charset, output, request, tempDir);
+                return;
+            }
+            
+            // if an empty result out of feature type with unknown geometry is created, the
             // zip file will be empty and the zip output stream will break
             boolean shapefileCreated = false;
+            long maxDisk = getMaxDisk();
             for (SimpleFeatureCollection curCollection : collections) {
-                
-                if(curCollection.getSchema().getGeometryDescriptor() == null) {
-                    throw new WFSException(request, "Cannot write geometryless shapefiles, yet " 
-                            + curCollection.getSchema() + " has no geometry field");
-                } 
-                Class geomType = curCollection.getSchema().getGeometryDescriptor().getType().getBinding();
-                if(GeometryCollection.class.equals(geomType) || Geometry.class.equals(geomType)) {
-                    // in this case we fan out the output to multiple shapefiles
-                    shapefileCreated |= writeCollectionToShapefiles(curCollection, tempDir, charset, request);
-                } else {
-                    // simple case, only one and supported type
-                    writeCollectionToShapefile(curCollection, tempDir, charset, request);
-                    shapefileCreated = true;
-                }
-
+                shapefileCreated |= writeCollection(curCollection, tempDir, charset, request);
+                checkDiskUsage(tempDir, maxDisk, request);
             }
             
             // take care of the case the output is completely empty
             if(!shapefileCreated) {
-                SimpleFeatureCollection fc;
-                fc = (SimpleFeatureCollection) collections.get(0);
-                fc = remapCollectionSchema(fc, Point.class);
-                writeCollectionToShapefile(fc, tempDir, charset, request);
-                createEmptyZipWarning(tempDir);
+                writeEmptyShapefile(collections, tempDir, charset, request);
             }
             
             // dump the request
             createRequestDump(tempDir, request, collections.get(0));
             
             // zip all the files produced
-            final FilenameFilter filter = new FilenameFilter() {
-            
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
-                           || name.endsWith(".prj") || name.endsWith(".cst") || name.endsWith(".txt");
-                }
-            };
             ZipOutputStream zipOut = new ZipOutputStream(output);
-            IOUtils.zipDirectory(tempDir, zipOut, filter);
+            IOUtils.zipDirectory(tempDir, zipOut, SHAPEFILE_FILTER);
             zipOut.finish();
 
             // This is an error, because this closes the output stream too... it's
@@ -277,7 +309,250 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             }
         }
     }
-
+    
+    /**
+     * Writes each collection in its own sub directory, and zips it into the output as soon as it's
+     * done, deleting it afterwards. Up to {@link #getThreads()} collections are written in
+     * parallel, as long as the disk usage allows, but they are zipped in request order.
+     */
+    void writeStreaming(List<SimpleFeatureCollection> collections, final Charset charset,
+            OutputStream output, final GetFeatureRequest request, File tempDir)
+            throws IOException, ServiceException {
+        ZipOutputStream zipOut = new ZipOutputStream(output);
+        Set<String> entries = new HashSet<String>();
+        int threads = Math.max(1, getThreads());
+        long maxDisk = getMaxDisk();
+        
+        LinkedList<Future<Boolean>> running = new LinkedList<Future<Boolean>>();
+        LinkedList<CountDownLatch> runningDone = new LinkedList<CountDownLatch>();
+        LinkedList<File> runningDirs = new LinkedList<File>();
+        boolean shapefileCreated = false;
+        int next = 0;
+        try {
+            while (next < collections.size() || !running.isEmpty()) {
+                // start writing the next collections, the one to be zipped next always goes
+                while (next < collections.size() && running.size() < threads
+                        && (running.isEmpty() || maxDisk <= 0 || getDiskUsage(tempDir) < maxDisk)) {
+                    final SimpleFeatureCollection collection = collections.get(next);
+                    final File dir = new File(tempDir, String.valueOf(next++));
+                    dir.mkdir();
+                    final FutureTask<Boolean> task = new FutureTask<Boolean>(new RequestContextCallable<Boolean>() {
+                        protected Boolean callInContext() throws Exception {
+                            return writeCollection(collection, dir, charset, request);
+                        }
+                    });
+                    // a cancelled task returns right away, this tracks when the writer lets go
+                    final CountDownLatch done = new CountDownLatch(1);
+                    Runnable writer = new Runnable() {
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    };
+                    if (threads > 1) {
+                        getExecutor().execute(writer);
+                    } else {
+                        writer.run();
+                    }
+                    running.add(task);
+                    runningDone.add(done);
+                    runningDirs.add(dir);
+                }
+                
+                // zip the oldest one once done
+                File dir = runningDirs.removeFirst();
+                runningDone.removeFirst();
+                shapefileCreated |= get(running.removeFirst());
+                checkDiskUsage(dir, maxDisk, request);
+                zipComponent(dir, zipOut, entries);
+                FileUtils.deleteDirectory(dir);
+            }
+            
+            // take care of the case the output is completely empty
+            File dir = new File(tempDir, "meta");
+            dir.mkdir();
+            if (!shapefileCreated) {
+                writeEmptyShapefile(collections, dir, charset, request);
+            }
+            createRequestDump(dir, request, collections.get(0));
+            zipComponent(dir, zipOut, entries);
+            zipOut.finish();
+        } finally {
+            // stop whatever is still running in case of failure, and wait for the writers to
+            // be done with their files before the temp directory gets deleted
+            for (Future<Boolean> future : running) {
+                future.cancel(true);
+            }
+            long deadline = System.currentTimeMillis() + WRITERS_STOP_TIMEOUT * 1000L;
+            for (CountDownLatch done : runningDone) {
+                try {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !done.await(remaining, TimeUnit.MILLISECONDS)) {
+                        LOGGER.warning("Shapefile writers did not stop within "
+                                + WRITERS_STOP_TIMEOUT + "s, their temporary files might "
+                                + "not be removed");
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes a collection to one shapefile, or to multiple ones if it has a generic geometry type
+     * 
+     * @return true if a shapefile has been created
+     */
+    private boolean writeCollection(SimpleFeatureCollection curCollection, File tempDir,
+            Charset charset, GetFeatureRequest request) {
+        Class geomType = curCollection.getSchema().getGeometryDescriptor().getType().getBinding();
+        if(GeometryCollection.class.equals(geomType) || Geometry.class.equals(geomType)) {
+            // in this case we fan out the output to multiple shapefiles
+            return writeCollectionToShapefiles(curCollection, tempDir, charset, request);
+        } else {
+            // simple case, only one and supported type
+            writeCollectionToShapefile(curCollection, tempDir, charset, request);
+            return true;
+        }
+    }
+    
+    /**
+     * Writes an empty point shapefile, used when the output would otherwise be empty
+     */
+    private void writeEmptyShapefile(List<SimpleFeatureCollection> collections, File tempDir,
+            Charset charset, GetFeatureRequest request) throws IOException {
+        SimpleFeatureCollection fc;
+        fc = (SimpleFeatureCollection) collections.get(0);
+        fc = remapCollectionSchema(fc, Point.class);
+        writeCollectionToShapefile(fc, tempDir, charset, request);
+        createEmptyZipWarning(tempDir);
+    }
+    
+    /**
+     * Adds the files of a component to the zip, skipping the ones already added by a previous
+     * component of the same type
+     */
+    private void zipComponent(File dir, ZipOutputStream zipOut, Set<String> entries)
+            throws IOException {
+        File[] files = dir.listFiles(SHAPEFILE_FILTER);
+        Arrays.sort(files);
+        byte[] buffer = new byte[8 * 1024];
+        for (File file : files) {
+            if (!entries.add(file.getName())) {
+                LOGGER.warning("Skipping " + file.getName() + " of output component "
+                        + dir.getName() + ", the output already contains a file with the same "
+                        + "name");
+                continue;
+            }
+            zipOut.putNextEntry(new ZipEntry(file.getName()));
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    zipOut.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            zipOut.closeEntry();
+        }
+        zipOut.flush();
+    }
+    
+    private Boolean get(Future<Boolean> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while writing the shapefiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new ServiceException(cause);
+        }
+    }
+    
+    /**
+     * Fails the request if the files in the specified directory use more disk than allowed
+     */
+    private void checkDiskUsage(File dir, long maxDisk, GetFeatureRequest request) {
+        if (maxDisk > 0 && getDiskUsage(dir) > maxDisk) {
+            throw new WFSException(request, "The shapefile output exceeds the maximum disk usage of "
+                    + maxDisk + " bytes");
+        }
+    }
+    
+    /**
+     * Returns the size of the files in the specified directory and its sub directories
+     */
+    static long getDiskUsage(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? getDiskUsage(file) : file.length();
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Returns true if the shapefiles should be zipped into the output as soon as each one is
+     * written, as set by the {@link #SHAPE_ZIP_STREAMING} WFS metadata entry
+     */
+    boolean isStreaming() {
+        Boolean streaming = getMetadata(SHAPE_ZIP_STREAMING, Boolean.class);
+        return streaming != null && streaming.booleanValue();
+    }
+    
+    /**
+     * Returns the number of feature collections written in parallel when streaming, as set by the
+     * {@link #SHAPE_ZIP_THREADS} WFS metadata entry
+     */
+    int getThreads() {
+        Integer threads = getMetadata(SHAPE_ZIP_THREADS, Integer.class);
+        return threads != null ? threads : 1;
+    }
+    
+    /**
+     * Returns the maximum disk usage of the temporary shapefiles, in bytes, as set by the
+     * {@link #SHAPE_ZIP_MAX_DISK} WFS metadata entry, or 0 if there is no limit
+     */
+    long getMaxDisk() {
+        Long maxDisk = getMetadata(SHAPE_ZIP_MAX_DISK, Long.class);
+        return maxDisk != null ? maxDisk : 0;
+    }
+    
+    private <T> T getMetadata(String key, Class<T> type) {
+        WFSInfo wfs = gs != null ? gs.getService(WFSInfo.class) : null;
+        return wfs != null ? wfs.getMetadata().get(key, type) : null;
+    }
+    
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                int count;
+                
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ShapeZipWriter-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+    
     /**
      * Dumps the request
      * @param simpleFeatureCollection
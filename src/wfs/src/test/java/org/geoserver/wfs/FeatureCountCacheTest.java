@@ -0,0 +1,136 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.impl.CatalogPostModifyEventImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.wfs.FeatureCountCache.CountMode;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+
+public class FeatureCountCacheTest {
+
+    SimpleFeatureType type;
+
+    List<SimpleFeature> features;
+
+    SimpleFeatureSource source;
+
+    List<FeatureTypeInfo> metas;
+
+    FeatureCountCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        type = DataUtilities.createType("test", "name:String,value:Integer");
+        features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < 10; i++) {
+            addFeature(i);
+        }
+        source = DataUtilities.source(new ListFeatureCollection(type, features));
+
+        Catalog catalog = new CatalogImpl();
+        FeatureTypeInfoImpl meta = new FeatureTypeInfoImpl(catalog, "test-id");
+        meta.setName("test");
+        metas = Collections.singletonList((FeatureTypeInfo) meta);
+        cache = new FeatureCountCache(catalog);
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        Query query = new Query("test", Filter.INCLUDE);
+        query.setMaxFeatures(5);
+        query.setStartIndex(5);
+        assertEquals(10, cache.getCount(metas, source, query, true, CountMode.CACHED));
+
+        // the data changed behind the cache back, the count is reused
+        addFeature(10);
+        assertEquals(10, cache.getCount(metas, source, query, true, CountMode.CACHED));
+        assertEquals(10, cache.getCount(metas, source, query, false, CountMode.CACHED));
+        assertEquals(2, cache.hits.get());
+
+        // a different filter is counted on its own
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        Query filtered = new Query("test", ff.less(ff.property("value"), ff.literal(3)));
+        assertEquals(3, cache.getCount(metas, source, filtered, true, CountMode.CACHED));
+    }
+
+    @Test
+    public void testExact() throws Exception {
+        Query query = new Query("test", Filter.INCLUDE);
+        assertEquals(10, cache.getCount(metas, source, query, true, CountMode.EXACT));
+        addFeature(10);
+        assertEquals(11, cache.getCount(metas, source, query, true, CountMode.EXACT));
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testTransactionInvalidation() throws Exception {
+        Query query = new Query("test", Filter.INCLUDE);
+        assertEquals(10, cache.getCount(metas, source, query, true, CountMode.CACHED));
+
+        addFeature(10);
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_INSERT, null,
+                new QName("http://www.geoserver.org", "test"), null));
+        assertEquals(11, cache.getCount(metas, source, query, true, CountMode.CACHED));
+
+        // the count taken while the transaction was running is dropped when the request ends
+        addFeature(11);
+        cache.finished(null);
+        assertEquals(12, cache.getCount(metas, source, query, true, CountMode.CACHED));
+
+        // other types are not affected
+        addFeature(12);
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_INSERT, null,
+                new QName("http://www.geoserver.org", "other"), null));
+        assertEquals(12, cache.getCount(metas, source, query, true, CountMode.CACHED));
+    }
+
+    @Test
+    public void testCatalogInvalidation() throws Exception {
+        Query query = new Query("test", Filter.INCLUDE);
+        assertEquals(10, cache.getCount(metas, source, query, true, CountMode.CACHED));
+
+        addFeature(10);
+        cache.handlePostModifyEvent(new CatalogPostModifyEventImpl());
+        assertEquals(11, cache.getCount(metas, source, query, true, CountMode.CACHED));
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        cache.maxEntries = 2;
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        for (int i = 0; i < 5; i++) {
+            Query query = new Query("test", ff.less(ff.property("value"), ff.literal(i)));
+            assertEquals(i, cache.getCount(metas, source, query, true, CountMode.CACHED));
+        }
+        assertEquals(2, cache.entries.size());
+    }
+
+    void addFeature(int i) {
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { "f" + i, i }, "test." + i));
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class QueryPrefetcherTest {
+
+    SimpleFeatureType type;
+
+    WFSInfo wfs;
+
+    @Before
+    public void setUp() throws Exception {
+        type = DataUtilities.createType("test", "name:String,value:Integer");
+        wfs = new WFSInfoImpl();
+    }
+
+    @After
+    public void tearDown() {
+        new QueryPrefetcher.Cleaner().finished(null);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        List results = Arrays.asList(collection("a", 10), collection("b", 10));
+        assertSame(results, QueryPrefetcher.prefetch(wfs, null, results));
+
+        wfs.getMetadata().put(QueryPrefetcher.PARALLEL_QUERIES, 1);
+        assertSame(results, QueryPrefetcher.prefetch(wfs, null, results));
+    }
+
+    @Test
+    public void testSingleQuery() throws Exception {
+        wfs.getMetadata().put(QueryPrefetcher.PARALLEL_QUERIES, 4);
+        List results = Arrays.asList(collection("a", 10));
+        assertSame(results, QueryPrefetcher.prefetch(wfs, null, results));
+    }
+
+    @Test
+    public void testOrderAndContents() throws Exception {
+        wfs.getMetadata().put(QueryPrefetcher.PARALLEL_QUERIES, 2);
+        // smaller than the collections, the reads have to wait for the consumer
+        wfs.getMetadata().put(QueryPrefetcher.PREFETCH_BUFFER, 5);
+        List results = Arrays.asList(collection("a", 100), collection("b", 50),
+                collection("c", 0), collection("d", 30));
+
+        List prefetched = QueryPrefetcher.prefetch(wfs, null, results);
+        assertEquals(4, prefetched.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(prefetched.get(i) instanceof PrefetchingFeatureCollection);
+            assertEquals(names((SimpleFeatureCollection) results.get(i)),
+                    names((SimpleFeatureCollection) prefetched.get(i)));
+        }
+    }
+
+    @Test
+    public void testSecondIteratorReadsDirectly() throws Exception {
+        wfs.getMetadata().put(QueryPrefetcher.PARALLEL_QUERIES, 2);
+        List results = Arrays.asList(collection("a", 20), collection("b", 20));
+        List prefetched = QueryPrefetcher.prefetch(wfs, null, results);
+
+        SimpleFeatureCollection fc = (SimpleFeatureCollection) prefetched.get(0);
+        List<String> expected = names((SimpleFeatureCollection) results.get(0));
+        assertEquals(expected, names(fc));
+        assertEquals(expected, names(fc));
+    }
+
+    @Test
+    public void testNotStarted() throws Exception {
+        QueryPrefetcher prefetcher = new QueryPrefetcher(2);
+        SimpleFeatureCollection delegate = collection("a", 20);
+        PrefetchingFeatureCollection fc = new PrefetchingFeatureCollection(delegate, 5,
+                prefetcher);
+        prefetcher.collections.add(fc);
+
+        // the background read never started, the collection is read directly and cannot be
+        // started anymore
+        SimpleFeatureIterator it = fc.features();
+        assertFalse(it instanceof PrefetchingFeatureCollection.PrefetchIterator);
+        it.close();
+        assertEquals(PrefetchingFeatureCollection.CANCELLED, fc.state.get());
+        assertFalse(fc.start(QueryPrefetcher.getExecutor()));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        wfs.getMetadata().put(QueryPrefetcher.PARALLEL_QUERIES, 2);
+        wfs.getMetadata().put(QueryPrefetcher.PREFETCH_BUFFER, 5);
+        List results = Arrays.asList(collection("a", 1000), collection("b", 1000),
+                collection("c", 1000));
+        List prefetched = QueryPrefetcher.prefetch(wfs, null, results);
+
+        // end the request, the reads in progress stop and the queued one never starts
+        new QueryPrefetcher.Cleaner().finished(null);
+        for (Object result : prefetched) {
+            PrefetchingFeatureCollection fc = (PrefetchingFeatureCollection) result;
+            assertTrue(fc.cancelled);
+            assertTrue(fc.buffer.size() <= 5);
+        }
+        PrefetchingFeatureCollection last = (PrefetchingFeatureCollection) prefetched.get(2);
+        assertEquals(PrefetchingFeatureCollection.CANCELLED, last.state.get());
+    }
+
+    SimpleFeatureCollection collection(String prefix, int count) {
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < count; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { prefix + i, i },
+                    prefix + "." + i));
+        }
+        return new ListFeatureCollection(type, features);
+    }
+
+    List<String> names(SimpleFeatureCollection fc) {
+        List<String> names = new ArrayList<String>();
+        SimpleFeatureIterator it = fc.features();
+        try {
+            while (it.hasNext()) {
+                names.add((String) it.next().getAttribute("name"));
+            }
+        } finally {
+            it.close();
+        }
+        return names;
+    }
+}
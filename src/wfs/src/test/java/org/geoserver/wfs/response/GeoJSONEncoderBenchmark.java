@@ -0,0 +1,125 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Compares the throughput of the {@link GeoJSONBuilder} and the {@link GeoJSONEncoder} based
+ * encodings of {@link GeoJSONOutputFormat}, on generated point, line and polygon datasets with
+ * coordinates rounded to 6 decimals, as most of the data served by WFS.
+ * <p>
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp ... org.geoserver.wfs.response.GeoJSONEncoderBenchmark [features] [iterations]
+ * </pre>
+ */
+public class GeoJSONEncoderBenchmark {
+
+    static final GeometryFactory GF = new GeometryFactory();
+
+    public static void main(String[] args) throws Exception {
+        int features = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Random random = new Random(0);
+        String[] names = new String[] { "points", "lines", "polygons" };
+        int[] vertices = new int[] { 1, 20, 100 };
+        GeoJSONOutputFormat format = new GeoJSONOutputFormat(null);
+        for (int i = 0; i < names.length; i++) {
+            List collections = dataset(random, features, vertices[i]);
+            for (int round = 0; round < 2; round++) {
+                // the first round warms up the JIT
+                run(format, names[i], collections, iterations, false);
+                run(format, names[i], collections, iterations, true);
+            }
+        }
+    }
+
+    static List dataset(Random random, int features, int vertices) throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("bench", "geom:Geometry:srid=4326,"
+                + "name:String,code:Integer,value:Double");
+        List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < features; i++) {
+            Coordinate[] coords = new Coordinate[vertices == 1 ? 1 : vertices + 1];
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            for (int j = 0; j < vertices; j++) {
+                coords[j] = new Coordinate(round(x + random.nextDouble()),
+                        round(y + random.nextDouble()));
+            }
+            Geometry geom;
+            if (vertices == 1) {
+                geom = GF.createPoint(coords[0]);
+            } else if (vertices < 100) {
+                coords[vertices] = coords[vertices - 1];
+                geom = GF.createLineString(coords);
+            } else {
+                coords[vertices] = coords[0];
+                geom = GF.createPolygon(GF.createLinearRing(coords), null);
+            }
+            list.add(SimpleFeatureBuilder.build(type, new Object[] { geom, "feature " + i, i,
+                    random.nextDouble() * 1000 }, "bench." + i));
+        }
+        return Collections.singletonList(new ListFeatureCollection(type, list));
+    }
+
+    static double round(double value) {
+        return Math.round(value * 1e6) / 1e6;
+    }
+
+    static void run(GeoJSONOutputFormat format, String name, List collections, int iterations,
+            boolean stream) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (stream) {
+                GeoJSONEncoder encoder = new GeoJSONEncoder(out);
+                format.encode(collections, encoder, true);
+                encoder.flush();
+            } else {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                format.encode(collections, writer, true);
+                writer.flush();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-10s %-16s %8.1f MB/s %8.1f ms/iteration", name,
+                stream ? "GeoJSONEncoder" : "GeoJSONBuilder", out.count / seconds / 1024 / 1024,
+                seconds * 1000 / iterations));
+    }
+
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeoJSONEncoderTest {
+
+    ByteArrayOutputStream bytes;
+
+    GeoJSONEncoder encoder;
+
+    @Before
+    public void setUp() {
+        bytes = new ByteArrayOutputStream();
+        encoder = new GeoJSONEncoder(bytes);
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        assertEquals("0", number(0));
+        assertEquals("12", number(12));
+        assertEquals("-0.5", number(-0.5));
+        assertEquals("55.174", number(55.174));
+        assertEquals("-122.4194155", number(-122.4194155));
+        assertEquals("0.0001234", number(0.0001234));
+        assertEquals("3.141592653589793", number(Math.PI));
+        // values the fast path cannot handle
+        assertEquals("0.30000000000000004", number(0.1 + 0.2));
+        assertEquals("1.0E20", number(1e20));
+        assertEquals("1.0E-10", number(1e-10));
+        assertEquals("null", number(Double.NaN));
+    }
+
+    @Test
+    public void testNumbersRoundTrip() throws Exception {
+        double[] values = new double[] { 1e-4, 0.1, 1.0 / 3, 2.0 / 3, 123456.789012,
+                9007199254740991d, 1e15 - 0.5, -179.99999999999997 };
+        for (double value : values) {
+            assertEquals(value, Double.parseDouble(number(value)), 0d);
+        }
+    }
+
+    @Test
+    public void testLongs() throws Exception {
+        encoder.number(0);
+        encoder.write(',');
+        encoder.number(-1234567890123L);
+        encoder.write(',');
+        encoder.number(Long.MIN_VALUE);
+        encoder.flush();
+        assertEquals("0,-1234567890123," + Long.MIN_VALUE, bytes.toString());
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        encoder.string("a\"b\\c</d>\n\t\u0001");
+        encoder.flush();
+        assertEquals("\"a\\\"b\\\\c<\\/d>\\n\\t\\u0001\"", bytes.toString());
+    }
+
+    @Test
+    public void testUnicode() throws Exception {
+        String value = "caf\u00e9 \u20ac \ud83d\ude00";
+        encoder.string(value);
+        encoder.flush();
+        assertEquals("\"" + value + "\"", bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testLongString() throws Exception {
+        char[] chars = new char[GeoJSONEncoder.BUFFER_SIZE * 2];
+        Arrays.fill(chars, '\u00e9');
+        String value = new String(chars);
+        encoder.string(value);
+        encoder.flush();
+        assertEquals("\"" + value + "\"", bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGeometries() throws Exception {
+        String[] wkts = new String[] { "POINT(1 2)", "LINESTRING(0 0, 1.5 1, 2 -3.25)",
+                "POLYGON((0 0, 10 0, 10 10, 0 0), (1 1, 2 1, 2 2, 1 1))",
+                "MULTIPOINT((0 0), (1 1))", "MULTILINESTRING((0 0, 1 1), (2 2, 3 3))",
+                "MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((2 2, 3 2, 3 3, 2 2)))" };
+        for (String wkt : wkts) {
+            Geometry g = new WKTReader().read(wkt);
+            StringWriter writer = new StringWriter();
+            new GeoJSONBuilder(writer).writeGeom(g);
+
+            setUp();
+            encoder.geometry(g);
+            encoder.flush();
+            assertEquals(writer.toString(), bytes.toString());
+        }
+    }
+
+    @Test
+    public void testGeometryCollection() throws Exception {
+        encoder.geometry(new WKTReader().read("GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))"));
+        encoder.flush();
+        assertEquals("{\"type\":\"GeometryCollection\",\"geometries\":["
+                + "{\"type\":\"Point\",\"coordinates\":[1,2]},"
+                + "{\"type\":\"LineString\",\"coordinates\":[[0,0],[1,1]]}]}", bytes.toString());
+    }
+
+    @Test
+    public void testSameAsBuilder() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("test",
+                "geom:Point:srid=4326,name:String,count:Integer,value:Double,time:java.sql.Timestamp,"
+                        + "line:LineString,flag:Boolean");
+        WKTReader reader = new WKTReader();
+        SimpleFeature f1 = SimpleFeatureBuilder.build(type, new Object[] {
+                reader.read("POINT(1.5 -2.25)"), "first \"one\"", 10, 0.1,
+                new Timestamp(1319557685000L), reader.read("LINESTRING(0 0, 1 1)"), true }, "test.1");
+        SimpleFeature f2 = SimpleFeatureBuilder.build(type, new Object[] { null, null, null,
+                null, null, null, null }, "test.2");
+        List collections = Collections.singletonList(new ListFeatureCollection(type, Arrays
+                .asList(f1, f2)));
+
+        GeoJSONOutputFormat format = new GeoJSONOutputFormat(null);
+        for (boolean featureBounding : new boolean[] { false, true }) {
+            StringWriter writer = new StringWriter();
+            format.encode(collections, writer, featureBounding);
+
+            setUp();
+            format.encode(collections, encoder, featureBounding);
+            encoder.flush();
+
+            assertEquals(JSONObject.fromObject(writer.toString()).toString(), JSONObject
+                    .fromObject(bytes.toString("UTF-8")).toString());
+        }
+    }
+
+    String number(double value) throws Exception {
+        setUp();
+        encoder.number(value);
+        encoder.flush();
+        return bytes.toString();
+    }
+}
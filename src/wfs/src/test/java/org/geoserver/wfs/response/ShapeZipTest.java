@@ -13,6 +13,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,6 +36,7 @@ import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.Operation;
 import org.geoserver.test.TestSetup;
 import org.geoserver.test.TestSetupFrequency;
+import org.geoserver.wfs.WFSException;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
@@ -457,15 +459,81 @@ public class ShapeZipTest extends WFSTestSupport {
                 get4326_ESRI_WKTContent());
     }
 
+    @Test
+    public void testStreaming() throws Exception {
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_STREAMING, true);
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(),
+                getFeatureSource(ALL_TYPES).getFeatures(), getFeatureSource(DOTS).getFeatures());
+
+        final String[] expectedTypes = new String[] { "BasicPolygons", "AllTypesPoint",
+                "AllTypesMPoint", "AllTypesPolygon", "AllTypesLine", "dots_in_name" };
+        checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingParallel() throws Exception {
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_STREAMING, true);
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_THREADS, 2);
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(),
+                getFeatureSource(ALL_TYPES).getFeatures(), getFeatureSource(DOTS).getFeatures());
+
+        final String[] expectedTypes = new String[] { "BasicPolygons", "AllTypesPoint",
+                "AllTypesMPoint", "AllTypesPolygon", "AllTypesLine", "dots_in_name" };
+        checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
+        
+        // the components are zipped in request order
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        assertTrue(zis.getNextEntry().getName().startsWith("BasicPolygons."));
+        zis.close();
+    }
+
+    @Test
+    public void testStreamingEmptyResult() throws Exception {
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_STREAMING, true);
+        byte[] zip = writeOut(getFeatureSource(ALL_DOTS).getFeatures(Filter.EXCLUDE));
+
+        checkShapefileIntegrity(new String[] { "All_Types_Dots" }, new ByteArrayInputStream(zip));
+        
+        boolean foundReadme = false;
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            foundReadme |= entry.getName().equals("README.TXT");
+        }
+        assertTrue(foundReadme);
+    }
+
+    @Test
+    public void testMaxDisk() throws Exception {
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_MAX_DISK, 100l);
+        try {
+            writeOut(getFeatureSource(ALL_TYPES).getFeatures());
+            fail("The disk usage limit should have been exceeded");
+        } catch (WFSException e) {
+            assertTrue(e.getMessage().contains("maximum disk usage"));
+        }
+        
+        setupShapeZipMetadata(ShapeZipOutputFormat.SHAPE_ZIP_STREAMING, true);
+        try {
+            writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(),
+                    getFeatureSource(ALL_TYPES).getFeatures());
+            fail("The disk usage limit should have been exceeded");
+        } catch (WFSException e) {
+            assertTrue(e.getMessage().contains("maximum disk usage"));
+        }
+    }
+
     /**
      * Saves the feature source contents into a zipped shapefile, returns the output as a byte array
      */
-    byte[] writeOut(FeatureCollection fc) throws IOException {
+    byte[] writeOut(FeatureCollection... fcs) throws IOException {
         ShapeZipOutputFormat zip = new ShapeZipOutputFormat();
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         FeatureCollectionResponse fct = 
             FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
-        fct.getFeature().add(fc);
+        for (FeatureCollection fc : fcs) {
+            fct.getFeature().add(fc);
+        }
         zip.write(fct, bos, op);
         return bos.toByteArray();
     }
@@ -561,6 +629,12 @@ public class ShapeZipTest extends WFSTestSupport {
         geoServer.save(wfsInfo);
     }
 
+    private void setupShapeZipMetadata(String key, Serializable value) {
+        WFSInfo wfsInfo = getGeoServer().getService(WFSInfo.class);
+        wfsInfo.getMetadata().put(key, value);
+        getGeoServer().save(wfsInfo);
+    }
+
     private void checkShapefileIntegrity(String[] typeNames, final InputStream in)
             throws IOException {
         ZipInputStream zis = new ZipInputStream(in);
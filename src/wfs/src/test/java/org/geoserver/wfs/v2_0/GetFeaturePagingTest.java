@@ -16,6 +16,9 @@ import org.geoserver.catalog.DataStoreInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.wfs.FeatureCountCache;
+import org.geoserver.wfs.FeatureCountCache.CountMode;
+import org.geoserver.wfs.WFSInfo;
 import org.geotools.data.DataStore;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureStore;
@@ -300,6 +303,86 @@ public class GetFeaturePagingTest extends WFS20TestSupport {
         XMLAssert.assertXpathEvaluatesTo("1", "count(//" + typeName + "[@gml:id='Fifteen.5'])", doc);
     }
 
+    @Test
+    public void testNumberMatched() throws Exception {
+        doTestNumberMatched("gs:Fifteen");
+        doTestNumberMatched("cdf:Fifteen");
+    }
+
+    public void doTestNumberMatched(String typeName) throws Exception {
+        // full page
+        Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&" +
+            "typename=" + typeName + "&startIndex=5&count=5");
+        assertNumbers(doc, 15, 5);
+
+        // short last page
+        doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&" +
+            "typename=" + typeName + "&startIndex=12&count=5");
+        assertNumbers(doc, 15, 3);
+
+        // page past the end
+        doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&" +
+            "typename=" + typeName + "&startIndex=20&count=5");
+        assertNumbers(doc, 15, 0);
+
+        // short last page, filtered
+        doc = postAsDOM("wfs", resourceIdXML(typeName, 4, 2));
+        assertNumbers(doc, 5, 1);
+
+        // page past the end, filtered
+        doc = postAsDOM("wfs", resourceIdXML(typeName, 10, 2));
+        assertNumbers(doc, 5, 0);
+    }
+
+    @Test
+    public void testNumberMatchedEstimated() throws Exception {
+        WFSInfo wfs = getGeoServer().getService(WFSInfo.class);
+        wfs.getMetadata().put(FeatureCountCache.COUNT_MODE, CountMode.ESTIMATED.name());
+        getGeoServer().save(wfs);
+        try {
+            // h2 counts filters natively
+            Document doc = postAsDOM("wfs", resourceIdXML("gs:Fifteen", 0, 2));
+            assertNumbers(doc, 5, 2);
+
+            // the property store cannot count a filter quickly, the estimate can be as high
+            // as the number of features in the type
+            doc = postAsDOM("wfs", resourceIdXML("cdf:Fifteen", 0, 2));
+            int matched = Integer.parseInt(doc.getDocumentElement().getAttribute(
+                    "numberMatched"));
+            assertTrue(matched >= 5 && matched <= 15);
+            assertEquals("2", doc.getDocumentElement().getAttribute("numberReturned"));
+
+            // paging up to or past the end of the matched features gives exact counts
+            doTestNumberMatched("gs:Fifteen");
+            doTestNumberMatched("cdf:Fifteen");
+        } finally {
+            wfs.getMetadata().remove(FeatureCountCache.COUNT_MODE);
+            getGeoServer().save(wfs);
+        }
+    }
+
+    void assertNumbers(Document doc, int matched, int returned) {
+        assertEquals(String.valueOf(matched), 
+            doc.getDocumentElement().getAttribute("numberMatched"));
+        assertEquals(String.valueOf(returned), 
+            doc.getDocumentElement().getAttribute("numberReturned"));
+    }
+
+    String resourceIdXML(String typeName, int startIndex, int count) {
+        return String.format("<GetFeature version='2.0.0' " +
+            "xmlns:fes='http://www.opengis.net/fes/2.0' startIndex='%d' count='%d'>" + 
+            "<Query typeNames = '%s'>" + 
+            "  <fes:Filter>" + 
+            "   <fes:ResourceId rid='Fifteen.5'></fes:ResourceId>" + 
+            "   <fes:ResourceId rid='Fifteen.6'></fes:ResourceId>" + 
+            "   <fes:ResourceId rid='Fifteen.7'></fes:ResourceId>" +
+            "   <fes:ResourceId rid='Fifteen.8'></fes:ResourceId>" +
+            "   <fes:ResourceId rid='Fifteen.9'></fes:ResourceId>" +
+            "  </fes:Filter>" + 
+            "</Query>"+
+            "</GetFeature>", startIndex, count, typeName);
+    }
+
     @Test
     public void testNextPreviousGET() throws Exception {
         doTestNextPreviousGET("gs:Fifteen");
@@ -9,6 +9,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import net.opengis.wfs.FeatureCollectionType;
@@ -104,6 +105,11 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     public static ExecutorService RENDERING_POOL;
 
+    /**
+     * Pool rendering the groups of layers in parallel, shared by all requests
+     */
+    public static ExecutorService LAYER_RENDERING_POOL;
+
     /**
      * default for 'bbox' paramter
      */
@@ -145,6 +151,16 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     private static Boolean USE_GLOBAL_RENDERING_POOL = null;
 
+    /**
+     * Max number of layer groups a single GetMap can render in parallel
+     */
+    private static Integer PARALLEL_LAYERS = null;
+
+    /**
+     * Max number of layer groups rendered in parallel by all requests
+     */
+    private static Integer PARALLEL_LAYERS_THREADS = null;
+
     private GetCapabilities getCapabilities;
 
     private DescribeLayer describeLayer;
@@ -264,6 +280,22 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
             else
                 USE_GLOBAL_RENDERING_POOL = Boolean.valueOf(usePool);
         }
+
+        // parallel layer rendering, disabled by default
+        if (PARALLEL_LAYERS == null) {
+            String parallel = GeoServerExtensions.getProperty("PARALLEL_LAYERS", context);
+            if (parallel == null)
+                PARALLEL_LAYERS = 1;
+            else
+                PARALLEL_LAYERS = Integer.valueOf(parallel);
+        }
+        if (PARALLEL_LAYERS_THREADS == null) {
+            String threads = GeoServerExtensions.getProperty("PARALLEL_LAYERS_THREADS", context);
+            if (threads == null)
+                PARALLEL_LAYERS_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+            else
+                PARALLEL_LAYERS_THREADS = Integer.valueOf(threads);
+        }
     }
 
     /**
@@ -305,6 +337,16 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
         return MAX_FILTER_RULES;
     }
     
+    /**
+     * Returns how many groups of layers a single GetMap can render in parallel, 1 or less means
+     * the layers are rendered serially (set with the PARALLEL_LAYERS property, defaults to 1)
+     * 
+     * @return
+     */
+    public static int getLayerRenderingParallelism() {
+        return PARALLEL_LAYERS != null ? PARALLEL_LAYERS : 1;
+    }
+
     /**
      * If true (default) the direct raster rendering path is enabled
      * @return
@@ -721,12 +763,46 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
         return RENDERING_POOL;
     }
 
+    /**
+     * Returns the app wide pool used to render groups of layers in parallel, its size (set by the
+     * PARALLEL_LAYERS_THREADS property, twice the number of cores by default) limits the layers
+     * rendered in parallel by all the requests
+     * 
+     * @return
+     */
+    public static ExecutorService getLayerRenderingPool() {
+        if (LAYER_RENDERING_POOL == null) {
+            synchronized (DefaultWebMapService.class) {
+                if (LAYER_RENDERING_POOL == null) {
+                    int threads = PARALLEL_LAYERS_THREADS != null ? PARALLEL_LAYERS_THREADS
+                            : Runtime.getRuntime().availableProcessors() * 2;
+                    LAYER_RENDERING_POOL = Executors.newFixedThreadPool(threads,
+                            new ThreadFactory() {
+                                int count;
+
+                                public synchronized Thread newThread(Runnable r) {
+                                    Thread t = new Thread(r, "LayerRenderer-" + (++count));
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                }
+            }
+        }
+        return LAYER_RENDERING_POOL;
+    }
+
     public void destroy() throws Exception {
         if (RENDERING_POOL != null) {
             RENDERING_POOL.shutdown();
             RENDERING_POOL.awaitTermination(10, TimeUnit.SECONDS);
             RENDERING_POOL = null;
         }
+        if (LAYER_RENDERING_POOL != null) {
+            LAYER_RENDERING_POOL.shutdown();
+            LAYER_RENDERING_POOL.awaitTermination(10, TimeUnit.SECONDS);
+            LAYER_RENDERING_POOL = null;
+        }
     }
 
 }
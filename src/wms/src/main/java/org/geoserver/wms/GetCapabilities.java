@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.capabilities.CapabilitiesCache;
 import org.geoserver.wms.capabilities.Capabilities_1_3_0_Transformer;
 import org.geoserver.wms.capabilities.GetCapabilitiesTransformer;
 import org.geotools.util.Version;
@@ -23,10 +24,19 @@ public class GetCapabilities {
 
     private final WMS wms;
 
+    private CapabilitiesCache cache;
+
     public GetCapabilities(final WMS wms) {
         this.wms = wms;
     }
 
+    /**
+     * Sets the cache used to answer conditional requests, if any
+     */
+    public void setCache(CapabilitiesCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * 
      * @param request
@@ -64,6 +74,11 @@ public class GetCapabilities {
         }
         // otherwise it's a normal response...
 
+        // unless the client already has the current document
+        if (cache != null) {
+            cache.checkNotModified(request);
+        }
+
         Set<String> legendFormats = wms.getAvailableLegendGraphicsFormats();
         
         TransformerBase transformer;
@@ -0,0 +1,705 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.capabilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetCapabilitiesRequest;
+import org.geoserver.wms.WMS;
+import org.geotools.util.Version;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Caches the encoded WMS capabilities documents, so that they are not rebuilt at each request.
+ * <p>
+ * Documents are cached by version, namespace filter, virtual service workspace and layer, base
+ * URL, the remaining request parameters and the access profile of the user, that is, the sorted
+ * list of its roles, since those drive the data security restrictions. If the configured security
+ * rules discriminate single users rather than roles {@link #setKeyByUser(boolean)} makes the
+ * user name part of the key as well.
+ * </p>
+ * <p>
+ * Documents are kept GZIP compressed, and sent back to the clients as is when they accept the GZIP
+ * content encoding. The whole cache is dropped whenever the catalog or the configuration change
+ * (which is also when the {@link WMS#getUpdateSequence() update sequence} gets incremented) or get
+ * reloaded, documents can also be given a maximum age to account for changes happening outside of
+ * GeoServer control. Each document is associated to an ETag, requests carrying a matching
+ * <code>If-None-Match</code> header are answered with a 304 status code.
+ * </p>
+ * <p>
+ * Documents larger than {@link #getMaxEntrySize()} are not cached, but the cache remembers they
+ * are too large, so that they get encoded straight to the client from then on.
+ * </p>
+ */
+public class CapabilitiesCache extends ConfigurationListenerAdapter implements CatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger(CapabilitiesCache.class);
+
+    /**
+     * Property used to disable the cache
+     */
+    public static final String CACHE = "WMS_CAPABILITIES_CACHE";
+
+    /**
+     * Property used to set the maximum age of a cached document, in seconds
+     */
+    public static final String MAX_AGE = "WMS_CAPABILITIES_CACHE_MAX_AGE";
+
+    /**
+     * Property used to make the user name part of the cache key
+     */
+    public static final String KEY_BY_USER = "WMS_CAPABILITIES_CACHE_BY_USER";
+
+    /**
+     * The request attribute holding the cache entry used by the current request
+     */
+    static final String ENTRY_ATTRIBUTE = CapabilitiesCache.class.getName() + ".entry";
+
+    /**
+     * The raw request parameters that do not affect the capabilities document
+     */
+    static final List<String> IGNORED_PARAMETERS = Arrays.asList("SERVICE", "REQUEST",
+            "VERSION", "WMTVER", "UPDATESEQUENCE");
+
+    /**
+     * Encodes a capabilities document
+     */
+    public interface Encoder {
+        void encode(OutputStream output) throws IOException, ServiceException;
+    }
+
+    WMS wms;
+
+    boolean enabled = true;
+
+    boolean keyByUser = false;
+
+    long maxAge = 0;
+
+    long maxSize = 32 * 1024 * 1024;
+
+    int maxEntrySize = 4 * 1024 * 1024;
+
+    /**
+     * The cached documents, in least recently used order
+     */
+    LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    long size;
+
+    /**
+     * The documents being encoded, used to encode a document only once when several requests
+     * for it come in at the same time
+     */
+    ConcurrentHashMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    /**
+     * Incremented at each invalidation, starts from the current time so that ETags do not repeat
+     * across restarts
+     */
+    AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    AtomicLong notModified = new AtomicLong();
+
+    public CapabilitiesCache(WMS wms) {
+        this.wms = wms;
+        wms.getGeoServer().addListener(this);
+        wms.getCatalog().addListener(this);
+
+        String value = GeoServerExtensions.getProperty(CACHE);
+        if (value != null) {
+            enabled = Boolean.valueOf(value);
+        }
+        value = GeoServerExtensions.getProperty(KEY_BY_USER);
+        if (value != null) {
+            keyByUser = Boolean.valueOf(value);
+        }
+        value = GeoServerExtensions.getProperty(MAX_AGE);
+        if (value != null) {
+            try {
+                maxAge = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid " + MAX_AGE + " value: " + value);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        invalidate();
+    }
+
+    /**
+     * When true the user name is part of the cache key, otherwise only its roles are
+     */
+    public boolean isKeyByUser() {
+        return keyByUser;
+    }
+
+    public void setKeyByUser(boolean keyByUser) {
+        this.keyByUser = keyByUser;
+        invalidate();
+    }
+
+    /**
+     * The maximum age of a cached document in milliseconds, or zero if documents are only dropped
+     * when the catalog or the configuration change
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * The maximum size, in compressed bytes, of all the cached documents
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The size, in compressed bytes, of the largest document that will be cached
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public void setMaxEntrySize(int maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Number of requests served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of requests that had to encode the document
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of requests answered with a 304 status code
+     */
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    /**
+     * The number of cached documents
+     */
+    public synchronized int getEntryCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.isTooLarge()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The size of all the cached documents, in compressed bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Drops all the cached documents
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the ETag of the capabilities document requested, or null if caching is disabled
+     */
+    public String getETag(GetCapabilitiesRequest request) {
+        if (!enabled) {
+            return null;
+        }
+        return getETag(getKey(request), generation.get());
+    }
+
+    String getETag(String key, long generation) {
+        return "\"" + wms.getUpdateSequence() + "-" + Long.toHexString(generation) + "-"
+                + digest(key) + "\"";
+    }
+
+    /**
+     * Throws a 304 {@link HttpErrorCodeException} if the client already has the requested
+     * document, as stated by its <code>If-None-Match</code> header
+     */
+    public void checkNotModified(GetCapabilitiesRequest request) throws HttpErrorCodeException {
+        Request owsRequest = Dispatcher.REQUEST.get();
+        if (!enabled || owsRequest == null || owsRequest.getHttpRequest() == null) {
+            return;
+        }
+        String ifNoneMatch = owsRequest.getHttpRequest().getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return;
+        }
+        String etag = getETag(request);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals(etag) || tag.equals("*")) {
+                notModified.incrementAndGet();
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer("ETag matches, returning 304");
+                }
+                if (owsRequest.getHttpResponse() != null) {
+                    owsRequest.getHttpResponse().setHeader("ETag", etag);
+                }
+                throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+        }
+    }
+
+    /**
+     * Returns the headers to be set for the requested document, encoding the document if it is
+     * not cached yet.
+     */
+    public String[][] getHeaders(GetCapabilitiesRequest request, Encoder encoder)
+            throws IOException, ServiceException {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = getEntry(request, encoder);
+        HttpServletRequest httpRequest = getHttpRequest();
+        if (httpRequest == null) {
+            return null;
+        }
+
+        // pin the entry, so that the headers and the document are consistent even if the
+        // cache gets invalidated before the document is written out
+        boolean compressed = !entry.isTooLarge() && acceptsGzip(httpRequest);
+        httpRequest.setAttribute(ENTRY_ATTRIBUTE, new Lease(entry, compressed));
+        if (entry.isTooLarge()) {
+            return null;
+        }
+
+        List<String[]> headers = new ArrayList<String[]>();
+        headers.add(new String[] { "ETag", entry.etag });
+        headers.add(new String[] { "Vary", "Accept-Encoding" });
+        if (compressed) {
+            headers.add(new String[] { "Content-Encoding", "gzip" });
+        }
+        return headers.toArray(new String[headers.size()][]);
+    }
+
+    /**
+     * Writes out the requested document, from the cache if possible
+     */
+    public void write(GetCapabilitiesRequest request, OutputStream output, Encoder encoder)
+            throws IOException, ServiceException {
+        if (!enabled) {
+            encoder.encode(output);
+            return;
+        }
+
+        Lease lease = null;
+        HttpServletRequest httpRequest = getHttpRequest();
+        if (httpRequest != null) {
+            lease = (Lease) httpRequest.getAttribute(ENTRY_ATTRIBUTE);
+            httpRequest.removeAttribute(ENTRY_ATTRIBUTE);
+        }
+        Entry entry = lease != null ? lease.entry : getEntry(request, encoder);
+        if (entry.isTooLarge()) {
+            encoder.encode(output);
+        } else if (lease != null && lease.compressed) {
+            output.write(entry.data);
+        } else {
+            InputStream in = entry.open();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the requested document, encoding it if missing. Returns a
+     * {@link Entry#isTooLarge() too large} entry if the document cannot be cached.
+     */
+    Entry getEntry(GetCapabilitiesRequest request, final Encoder encoder) throws IOException,
+            ServiceException {
+        final String key = getKey(request);
+        final long gen = generation.get();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.generation == gen
+                        && (maxAge <= 0 || System.currentTimeMillis() - entry.created < maxAge)) {
+                    hits.incrementAndGet();
+                    return entry;
+                }
+                remove(key);
+            }
+        }
+
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            public Entry call() throws Exception {
+                return encode(key, gen, encoder);
+            }
+        });
+        FutureTask<Entry> running = pending.putIfAbsent(key, task);
+        if (running == null) {
+            misses.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+            running = task;
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new ServiceException(cause);
+        }
+    }
+
+    Entry encode(String key, long gen, Encoder encoder) throws Exception {
+        LimitedOutputStream bytes = new LimitedOutputStream(maxEntrySize);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192);
+            encoder.encode(gzip);
+            gzip.close();
+        } catch (Exception e) {
+            // the encoder might have wrapped the failure, check the stream instead
+            if (!bytes.exceeded) {
+                throw e;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Capabilities document larger than " + maxEntrySize
+                        + " compressed bytes, not caching it: " + key);
+            }
+            return put(key, new Entry(null, null, gen, key.length()));
+        }
+
+        byte[] data = bytes.buffer.toByteArray();
+        return put(key, new Entry(data, getETag(key, gen), gen, data.length));
+    }
+
+    Entry put(String key, Entry entry) {
+        synchronized (this) {
+            // don't store documents encoded before an invalidation
+            if (entry.generation == generation.get()) {
+                remove(key);
+                entries.put(key, entry);
+                size += entry.size;
+                for (Iterator<Entry> it = entries.values().iterator(); size > maxSize
+                        && it.hasNext();) {
+                    Entry eldest = it.next();
+                    if (eldest != entry) {
+                        size -= eldest.size;
+                        it.remove();
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.size;
+        }
+    }
+
+    /**
+     * Builds the key identifying the requested document
+     */
+    String getKey(GetCapabilitiesRequest request) {
+        StringBuilder sb = new StringBuilder();
+        Version version = WMS.version(request.getVersion());
+        sb.append(version).append('|');
+        sb.append(request.getNamespace()).append('|');
+        sb.append(request.getBaseUrl()).append('|');
+        if (LocalWorkspace.get() != null) {
+            sb.append(LocalWorkspace.get().getName());
+        }
+        sb.append('/');
+        if (LocalLayer.get() != null) {
+            sb.append(LocalLayer.get().getName());
+        }
+        sb.append('|');
+
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            if (keyByUser) {
+                sb.append(auth.getName());
+            }
+            List<String> roles = new ArrayList<String>();
+            for (GrantedAuthority authority : auth.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            Collections.sort(roles);
+            sb.append(roles);
+        }
+        sb.append('|');
+
+        if (request.getRawKvp() != null) {
+            Map<String, String> kvp = new TreeMap<String, String>();
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                String name = e.getKey().toUpperCase();
+                if (!IGNORED_PARAMETERS.contains(name)) {
+                    kvp.put(name, e.getValue());
+                }
+            }
+            for (Map.Entry<String, String> e : kvp.entrySet()) {
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('&');
+            }
+        }
+        return sb.toString();
+    }
+
+    String digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    HttpServletRequest getHttpRequest() {
+        Request request = Dispatcher.REQUEST.get();
+        return request != null ? request.getHttpRequest() : null;
+    }
+
+    boolean acceptsGzip(HttpServletRequest request) {
+        String encoding = request.getHeader("Accept-Encoding");
+        return encoding != null && encoding.toLowerCase().contains("gzip");
+    }
+
+    // catalog and configuration events
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // we use the post event
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate();
+    }
+
+    @Override
+    public void handlePostGlobalChange(GeoServerInfo global) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsAdded(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsPostModified(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handleSettingsRemoved(SettingsInfo settings) {
+        invalidate();
+    }
+
+    @Override
+    public void handlePostServiceChange(ServiceInfo service) {
+        invalidate();
+    }
+
+    @Override
+    public void handleServiceRemove(ServiceInfo service) {
+        invalidate();
+    }
+
+    @Override
+    public void reloaded() {
+        invalidate();
+    }
+
+    /**
+     * A cached document, or the marker of a document too large to be cached
+     */
+    static class Entry {
+        byte[] data;
+
+        String etag;
+
+        long generation;
+
+        /**
+         * The memory held by the entry, the document or the key of a marker
+         */
+        int size;
+
+        long created = System.currentTimeMillis();
+
+        Entry(byte[] data, String etag, long generation, int size) {
+            this.data = data;
+            this.etag = etag;
+            this.generation = generation;
+            this.size = size;
+        }
+
+        boolean isTooLarge() {
+            return data == null;
+        }
+
+        InputStream open() throws IOException {
+            return new GZIPInputStream(new ByteArrayInputStream(data), 8192);
+        }
+    }
+
+    /**
+     * The entry used by a request, along with the way it is being sent back
+     */
+    static class Lease {
+        Entry entry;
+
+        boolean compressed;
+
+        Lease(Entry entry, boolean compressed) {
+            this.entry = entry;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * An output stream collecting bytes in memory, failing once it grows past a limit
+     */
+    static class LimitedOutputStream extends OutputStream {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+
+        int limit;
+
+        boolean exceeded;
+
+        LimitedOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            buffer.write(b, off, len);
+        }
+
+        void check(int len) throws IOException {
+            if (buffer.size() + len > limit) {
+                exceeded = true;
+                throw new IOException("Capabilities document larger than " + limit
+                        + " compressed bytes");
+            }
+        }
+    }
+}
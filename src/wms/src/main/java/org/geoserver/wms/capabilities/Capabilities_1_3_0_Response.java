@@ -22,10 +22,19 @@ import org.geoserver.wms.GetCapabilitiesRequest;
  */
 public class Capabilities_1_3_0_Response extends Response {
 
+    private CapabilitiesCache cache;
+
     public Capabilities_1_3_0_Response() {
         super(Capabilities_1_3_0_Transformer.class);
     }
 
+    /**
+     * Sets the cache the encoded documents are kept into, if any
+     */
+    public void setCache(CapabilitiesCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * @return {@code "application/vnd.ogc.wms_xml"}
      * @see org.geoserver.ows.Response#getMimeType(java.lang.Object,
@@ -43,6 +52,20 @@ public class Capabilities_1_3_0_Response extends Response {
                 + "/" + operation.getId());
     }
 
+    @Override
+    public String[][] getHeaders(final Object value, final Operation operation)
+            throws ServiceException {
+        if (cache == null) {
+            return null;
+        }
+        GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
+        try {
+            return cache.getHeaders(request, encoder(value, request));
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
     /**
      * @param value
      *            {@link Capabilities_1_3_0_Transformer}
@@ -57,14 +80,26 @@ public class Capabilities_1_3_0_Response extends Response {
     public void write(final Object value, final OutputStream output, final Operation operation)
             throws IOException, ServiceException {
 
-        Capabilities_1_3_0_Transformer transformer = (Capabilities_1_3_0_Transformer) value;
-
-        try {
-            GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
-            transformer.transform(request, output);
-        } catch (TransformerException e) {
-            throw new ServiceException(e);
+        GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
+        if (cache != null) {
+            cache.write(request, output, encoder(value, request));
+        } else {
+            encoder(value, request).encode(output);
         }
     }
 
+    private CapabilitiesCache.Encoder encoder(final Object value,
+            final GetCapabilitiesRequest request) {
+        return new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException, ServiceException {
+                Capabilities_1_3_0_Transformer transformer = (Capabilities_1_3_0_Transformer) value;
+                try {
+                    transformer.transform(request, output);
+                } catch (TransformerException e) {
+                    throw new ServiceException(e);
+                }
+            }
+        };
+    }
+
 }
@@ -79,6 +79,8 @@ public class GetCapabilitiesResponse extends Response {
 
     private WMS wms;
 
+    private CapabilitiesCache cache;
+
     /**
      * @param wms
      *            needed for {@link WMS#getAvailableExtendedCapabilitiesProviders()} in order to
@@ -89,6 +91,13 @@ public class GetCapabilitiesResponse extends Response {
         this.wms = wms;
     }
 
+    /**
+     * Sets the cache the encoded documents are kept into, if any
+     */
+    public void setCache(CapabilitiesCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * @return {@code "text/xml"}
      * @see org.geoserver.ows.Response#getMimeType(java.lang.Object,
@@ -106,6 +115,20 @@ public class GetCapabilitiesResponse extends Response {
                 + "/" + operation.getId());
     }
 
+    @Override
+    public String[][] getHeaders(final Object value, final Operation operation)
+            throws ServiceException {
+        if (cache == null) {
+            return null;
+        }
+        final GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
+        try {
+            return cache.getHeaders(request, encoder(value, request));
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
     /**
      * @param value
      *            {@link GetCapabilitiesTransformer}
@@ -120,8 +143,27 @@ public class GetCapabilitiesResponse extends Response {
     public void write(final Object value, final OutputStream output, final Operation operation)
             throws IOException, ServiceException {
 
-        final GetCapabilitiesTransformer transformer = (GetCapabilitiesTransformer) value;
         final GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
+        if (cache != null) {
+            cache.write(request, output, encoder(value, request));
+        } else {
+            encode((GetCapabilitiesTransformer) value, request, output);
+        }
+    }
+
+    private CapabilitiesCache.Encoder encoder(final Object value,
+            final GetCapabilitiesRequest request) {
+        return new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException, ServiceException {
+                GetCapabilitiesResponse.this.encode((GetCapabilitiesTransformer) value, request,
+                        output);
+            }
+        };
+    }
+
+    private void encode(final GetCapabilitiesTransformer transformer,
+            final GetCapabilitiesRequest request, final OutputStream output)
+            throws ServiceException {
 
         final String internalDTDDeclaration = getInternalDTDDeclaration(request);
 
@@ -0,0 +1,251 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Pool of the images used as rendering surfaces by {@link RenderedImageMapOutputFormat}, so that
+ * tile loads, which keep on asking for images of the same few sizes, do not allocate a new one
+ * for each request.
+ * <p>
+ * The images are pooled by width, height and image type (which encodes the color model and the
+ * transparency). The idle images are bounded by a total size in bytes, set by the
+ * {@link #POOL_SIZE} system property, the least recently used sizes being evicted first. Images
+ * larger than a quarter of the pool are never pooled. Callers are expected to fully paint the
+ * background of the images they acquire, as they can contain a previous rendering.
+ * </p>
+ */
+public class CanvasPool {
+
+    static final Logger LOGGER = Logging.getLogger(CanvasPool.class);
+
+    /**
+     * System property setting the maximum size of the idle images, in bytes, 0 disables pooling
+     */
+    public static final String POOL_SIZE = "WMS_CANVAS_POOL_SIZE";
+
+    static final long DEFAULT_POOL_SIZE = 32 * 1024 * 1024;
+
+    static final CanvasPool INSTANCE = new CanvasPool(getConfiguredSize());
+
+    long maxSize;
+
+    long size;
+
+    /**
+     * The idle images by size class, in least recently used order
+     */
+    LinkedHashMap<CanvasKey, LinkedList<BufferedImage>> idle = new LinkedHashMap<CanvasKey, LinkedList<BufferedImage>>(
+            16, 0.75f, true);
+
+    AtomicLong allocated = new AtomicLong();
+
+    AtomicLong reused = new AtomicLong();
+
+    AtomicLong bytesReused = new AtomicLong();
+
+    AtomicLong evicted = new AtomicLong();
+
+    CanvasPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the pool shared by all the requests
+     */
+    public static CanvasPool get() {
+        return INSTANCE;
+    }
+
+    static long getConfiguredSize() {
+        String value = GeoServerExtensions.getProperty(POOL_SIZE);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + POOL_SIZE + " value " + value + ", using "
+                        + DEFAULT_POOL_SIZE);
+            }
+        }
+        return DEFAULT_POOL_SIZE;
+    }
+
+    /**
+     * Returns an image of the specified size and type, either taken from the pool or freshly
+     * allocated. The contents of a pooled image are the ones of its previous use.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param type the image type, one of the {@link BufferedImage} TYPE_XXX constants
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        CanvasKey key = new CanvasKey(width, height, type);
+        BufferedImage image = null;
+        if (isPoolable(key)) {
+            synchronized (this) {
+                LinkedList<BufferedImage> images = idle.get(key);
+                if (images != null) {
+                    image = images.poll();
+                    if (images.isEmpty()) {
+                        idle.remove(key);
+                    }
+                    if (image != null) {
+                        size -= key.getBytes();
+                    }
+                }
+            }
+        }
+        if (image != null) {
+            reused.incrementAndGet();
+            bytesReused.addAndGet(key.getBytes());
+            return image;
+        }
+        allocated.incrementAndGet();
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Gives back an image acquired from the pool, once it's no longer used. The image is kept
+     * for reuse if there is room for it.
+     */
+    public void release(BufferedImage image) {
+        CanvasKey key = new CanvasKey(image.getWidth(), image.getHeight(), image.getType());
+        if (!isPoolable(key)) {
+            return;
+        }
+        synchronized (this) {
+            LinkedList<BufferedImage> images = idle.get(key);
+            if (images == null) {
+                images = new LinkedList<BufferedImage>();
+                idle.put(key, images);
+            }
+            images.add(image);
+            size += key.getBytes();
+
+            // evict the least recently used sizes first
+            Iterator<Map.Entry<CanvasKey, LinkedList<BufferedImage>>> it = idle.entrySet()
+                    .iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<CanvasKey, LinkedList<BufferedImage>> entry = it.next();
+                LinkedList<BufferedImage> list = entry.getValue();
+                while (size > maxSize && !list.isEmpty()) {
+                    list.removeFirst();
+                    size -= entry.getKey().getBytes();
+                    evicted.incrementAndGet();
+                }
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    boolean isPoolable(CanvasKey key) {
+        return maxSize > 0 && key.getBytes() <= maxSize / 4;
+    }
+
+    /**
+     * Drops all the idle images
+     */
+    public synchronized void clear() {
+        idle.clear();
+        size = 0;
+    }
+
+    /**
+     * The number of images allocated because none was available in the pool
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * The number of images taken from the pool, that is, the allocations saved
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * The total size of the images taken from the pool, that is, the allocated bytes saved
+     */
+    public long getBytesReused() {
+        return bytesReused.get();
+    }
+
+    /**
+     * The number of images dropped from the pool to stay within its size
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * The current size of the idle images, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * The size class of a pooled image
+     */
+    static class CanvasKey {
+        int width;
+
+        int height;
+
+        int type;
+
+        CanvasKey(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        long getBytes() {
+            long pixels = (long) width * height;
+            switch (type) {
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+                return pixels * 4;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return pixels * 3;
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return pixels;
+            default:
+                return pixels * 4;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CanvasKey)) {
+                return false;
+            }
+            CanvasKey other = (CanvasKey) obj;
+            return width == other.width && height == other.height && type == other.type;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.DirectInvocationService;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Response;
+import org.geoserver.ows.URLMangler.URLType;
+import org.geoserver.ows.util.OwsUtils;
+import org.geoserver.ows.util.ResponseUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WebMap;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Dispatcher callback coalescing identical, concurrent GetMap requests into a single rendering.
+ * <p>
+ * The first request for a given map becomes the leader and is executed normally. Identical
+ * requests arriving while the leader is in flight follow it: they wait, up to {@link #getMaxWait()}
+ * milliseconds, and are then served the bytes encoded by the leader instead of rendering the map
+ * again. The leader response is captured into a buffer while it is written out only if it has
+ * followers by then, requests without followers are written out as usual. If the leader fails,
+ * times out or produces a response larger than {@link #getMaxBufferSize()} the waiting requests
+ * fall back on rendering the map themselves.
+ * </p>
+ * <p>
+ * Coalescing is disabled by default, it can be enabled with the {@link #COALESCING} property.
+ * </p>
+ * <p>
+ * Requests are considered identical when they are KVP requests with the same parameters, in a way
+ * similar to the map definition used by {@link QuickTileCache}, issued by the same user against
+ * the same base URL, as mangled by the {@link org.geoserver.ows.URLMangler}s, since formats such
+ * as KML embed links back to the server.
+ * </p>
+ */
+public class GetMapCoalescingCallback extends AbstractDispatcherCallback {
+
+    static final Logger LOGGER = Logging.getLogger(GetMapCoalescingCallback.class);
+
+    /**
+     * Property used to enable coalescing
+     */
+    public static final String COALESCING = "GETMAP_COALESCING";
+
+    /**
+     * Property used to set the maximum time a request waits for an identical one, in milliseconds
+     */
+    public static final String MAX_WAIT = "GETMAP_COALESCING_MAX_WAIT";
+
+    /**
+     * The in flight requests, by key
+     */
+    ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * The flight the current thread is leading, if any
+     */
+    ThreadLocal<Flight> leading = new ThreadLocal<Flight>();
+
+    boolean enabled = false;
+
+    long maxWait = 30000;
+
+    int maxBufferSize = 512 * 1024;
+
+    AtomicLong rendered = new AtomicLong();
+
+    AtomicLong coalesced = new AtomicLong();
+
+    AtomicLong timeouts = new AtomicLong();
+
+    AtomicLong fallbacks = new AtomicLong();
+
+    public GetMapCoalescingCallback() {
+        String value = GeoServerExtensions.getProperty(COALESCING);
+        if (value != null) {
+            enabled = Boolean.valueOf(value);
+        }
+        value = GeoServerExtensions.getProperty(MAX_WAIT);
+        if (value != null) {
+            try {
+                maxWait = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid " + MAX_WAIT + " value: " + value);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The maximum time, in milliseconds, a request waits for an identical in flight request before
+     * rendering the map itself
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * The size of the largest response that will be shared with waiting requests, in bytes
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Number of requests that rendered the map themselves while leading a flight
+     */
+    public long getRendered() {
+        return rendered.get();
+    }
+
+    /**
+     * Number of requests served with the response of an identical in flight request
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Number of requests that gave up waiting for an identical in flight request
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Number of requests that waited for an identical request which failed to produce a
+     * shareable response
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public void resetStatistics() {
+        rendered.set(0);
+        coalesced.set(0);
+        timeouts.set(0);
+        fallbacks.set(0);
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation) {
+        if (!enabled || !"GetMap".equalsIgnoreCase(operation.getId()) || !request.isGet()
+                || request.getRawKvp() == null
+                || OwsUtils.parameter(operation.getParameters(), GetMapRequest.class) == null) {
+            return operation;
+        }
+
+        String key = getKey(request);
+        Flight flight = new Flight(key);
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            leading.set(flight);
+            rendered.incrementAndGet();
+            return operation;
+        }
+        leader.followers.incrementAndGet();
+
+        SharedResponse shared;
+        try {
+            if (!leader.done.await(maxWait, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                return operation;
+            }
+            shared = leader.response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return operation;
+        }
+        if (shared == null) {
+            fallbacks.incrementAndGet();
+            return operation;
+        }
+
+        coalesced.incrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Serving GetMap from an identical in flight request: " + key);
+        }
+        Service service = operation.getService();
+        service = new Service(service.getId(), service.getNamespace(), new SharedMapService(
+                shared), service.getVersion(), service.getOperations());
+        return new Operation(operation.getId(), service, operation.getMethod(),
+                operation.getParameters());
+    }
+
+    @Override
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        if (result instanceof SharedMap) {
+            return new SharedMapResponse(((SharedMap) result).shared);
+        }
+        Flight flight = leading.get();
+        if (flight != null && result instanceof WebMap) {
+            if (flight.followers.get() > 0) {
+                return new CapturingResponse(response, flight);
+            }
+            // nobody to share with, identical requests arriving from now on render on their own
+            flight.complete(null);
+        }
+        return response;
+    }
+
+    @Override
+    public void finished(Request request) {
+        Flight flight = leading.get();
+        if (flight != null) {
+            leading.remove();
+            // no-op if the response has already been published
+            flight.complete(null);
+        }
+    }
+
+    /**
+     * Builds the key identifying the map requested, made of the user, the base URL as seen by the
+     * client, which ends up in the formats embedding links, and the sorted KVP
+     */
+    String getKey(Request request) {
+        StringBuilder sb = new StringBuilder();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            sb.append(auth.getName()).append(auth.getAuthorities());
+        }
+        sb.append('|');
+        if (request.getHttpRequest() != null) {
+            sb.append(ResponseUtils.buildURL(ResponseUtils.baseURL(request.getHttpRequest()),
+                    null, null, URLType.SERVICE));
+        }
+        sb.append('|').append(request.getPath()).append('?');
+
+        Map<String, Object> kvp = new TreeMap<String, Object>();
+        for (Object o : request.getRawKvp().entrySet()) {
+            Map.Entry e = (Map.Entry) o;
+            kvp.put(String.valueOf(e.getKey()).toUpperCase(), e.getValue());
+        }
+        for (Map.Entry<String, Object> e : kvp.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('&');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A request being executed, along with the response to share once done
+     */
+    class Flight {
+        String key;
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        AtomicInteger followers = new AtomicInteger();
+
+        volatile SharedResponse response;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        void complete(SharedResponse response) {
+            if (done.getCount() > 0) {
+                this.response = response;
+                flights.remove(key, this);
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * An encoded response along with the headers needed to replay it
+     */
+    static class SharedResponse {
+        SharedBuffer bytes;
+
+        String mimeType;
+
+        String[][] headers;
+
+        String disposition;
+
+        String fileName;
+    }
+
+    /**
+     * The result of a coalesced request
+     */
+    static class SharedMap extends RawMap {
+        SharedResponse shared;
+
+        SharedMap(SharedResponse shared) {
+            super(null, shared.bytes, shared.mimeType);
+            this.shared = shared;
+        }
+    }
+
+    /**
+     * Stands in for the WMS service for coalesced requests
+     */
+    static class SharedMapService implements DirectInvocationService {
+        SharedResponse shared;
+
+        SharedMapService(SharedResponse shared) {
+            this.shared = shared;
+        }
+
+        public Object invokeDirect(String operationName, Object[] parameters)
+                throws IllegalArgumentException, Exception {
+            return new SharedMap(shared);
+        }
+    }
+
+    /**
+     * Replays the response of the leader request
+     */
+    static class SharedMapResponse extends Response {
+        SharedResponse shared;
+
+        SharedMapResponse(SharedResponse shared) {
+            super(SharedMap.class);
+            this.shared = shared;
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return shared.mimeType;
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return shared.headers;
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return shared.disposition;
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return shared.fileName;
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            shared.bytes.writeTo(output);
+            output.flush();
+        }
+    }
+
+    /**
+     * Wraps the response of the leader request, capturing the encoded map while it is written out
+     */
+    class CapturingResponse extends Response {
+        Response delegate;
+
+        Flight flight;
+
+        CapturingResponse(Response delegate, Flight flight) {
+            super(delegate.getBinding(), delegate.getOutputFormats());
+            this.delegate = delegate;
+            this.flight = flight;
+        }
+
+        @Override
+        public boolean canHandle(Operation operation) {
+            return delegate.canHandle(operation);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return delegate.getMimeType(value, operation);
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return delegate.getHeaders(value, operation);
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return delegate.getPreferredDisposition(value, operation);
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return delegate.getAttachmentFileName(value, operation);
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            // grab the metadata before writing, the map is usually disposed by the write
+            SharedResponse shared = new SharedResponse();
+            shared.mimeType = delegate.getMimeType(value, operation);
+            shared.headers = delegate.getHeaders(value, operation);
+            shared.disposition = delegate.getPreferredDisposition(value, operation);
+            shared.fileName = delegate.getAttachmentFileName(value, operation);
+
+            CapturingOutputStream capture = new CapturingOutputStream(output, maxBufferSize);
+            delegate.write(value, capture, operation);
+
+            if (capture.buffer != null) {
+                shared.bytes = capture.buffer;
+                flight.complete(shared);
+            } else {
+                flight.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Copies whatever is written into a buffer, giving up on the copy once it grows too big
+     */
+    static class CapturingOutputStream extends OutputStream {
+        OutputStream delegate;
+
+        SharedBuffer buffer = new SharedBuffer();
+
+        int maxSize;
+
+        CapturingOutputStream(OutputStream delegate, int maxSize) {
+            this.delegate = delegate;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            if (buffer != null) {
+                if (buffer.size() + 1 > maxSize) {
+                    buffer = null;
+                } else {
+                    buffer.write(b);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            if (buffer != null) {
+                if (buffer.size() + len > maxSize) {
+                    buffer = null;
+                } else {
+                    buffer.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * The buffer the leader response is captured into, handed over as is to the followers. It is
+     * no longer modified once shared, so the followers write it out concurrently rather than
+     * one at a time as {@link ByteArrayOutputStream#writeTo(OutputStream)} would
+     */
+    static class SharedBuffer extends ByteArrayOutputStream {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.quantize.CachingColorIndexer;
+import org.geoserver.wms.map.quantize.ColorHistogram;
+import org.geoserver.wms.map.quantize.ColorIndexer;
+import org.geoserver.wms.map.quantize.LRUColorIndexer;
+import org.geoserver.wms.map.quantize.Quantizer;
+import org.geotools.renderer.lite.RendererUtilities;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Caches the palettes built by the {@link Quantizer} for the paletted outputs, such as
+ * <code>image/png8</code>, so that the maps of the same layers and styles at about the same
+ * scale, typically the tiles of a tiled client, do not compute a histogram and a median cut
+ * palette each, and end up using the same colors across the tile borders.
+ * <p>
+ * The palette of a map is learned from the histogram of the first image rendered for it. The
+ * following images are only sampled, one pixel every {@link #SAMPLE_STEP} in both directions, to
+ * check the cached palette still represents them, and the samples are merged into the learned
+ * histogram. If any sampled pixel is far from the palette colors the palette drifted (e.g., the
+ * data or the style changed, or the tile covers an area with other colors): the full histogram
+ * of the current image is merged into the learned one, and the palette rebuilt from it, so that
+ * it covers both the old and the new colors, and the tiles alternating between them do not
+ * rebuild it over and over. A map whose palette keeps on drifting after
+ * {@link #MAX_REFRESHES} rebuilds, or whose learned colors exceed {@link #MAX_COLORS}, does not
+ * fit a shared palette, and is quantized from scratch from then on.
+ * </p>
+ * <p>
+ * Only maps made of named layers and styles are cached, the ones using SLD documents are
+ * always quantized from scratch. The cache is disabled by default, the number of palettes kept
+ * is set by the {@link #CACHE_SIZE} system property, the least recently used ones being dropped
+ * first.
+ * </p>
+ */
+public class PaletteCache {
+
+    static final Logger LOGGER = Logging.getLogger(PaletteCache.class);
+
+    /**
+     * System property setting the max number of palettes cached, 0 disables the cache
+     */
+    public static final String CACHE_SIZE = "WMS_PALETTE_CACHE_SIZE";
+
+    static final int DEFAULT_CACHE_SIZE = 0;
+
+    /**
+     * Distance between the pixels sampled to check the palette drift
+     */
+    static final int SAMPLE_STEP = 8;
+
+    /**
+     * Max squared RGBA distance between a pixel and its palette color
+     */
+    static final int MAX_PIXEL_ERROR = 4 * 16 * 16;
+
+    /**
+     * Max number of palette rebuilds of a map before it's considered unfit for caching
+     */
+    static final int MAX_REFRESHES = 8;
+
+    /**
+     * Max number of distinct colors learned for a map before it's considered unfit for caching
+     */
+    static final int MAX_COLORS = 8192;
+
+    /**
+     * Pixels with an alpha up to this value are considered transparent, as the quantizer does
+     */
+    static final int ALPHA_THRESHOLD = 5;
+
+    /**
+     * Colors cached by the indexers using a cached palette, same as the user provided palettes
+     */
+    static final int LRU_COLORS = 1024;
+
+    static final PaletteCache INSTANCE = new PaletteCache(getConfiguredSize());
+
+    int maxEntries;
+
+    LinkedHashMap<List<Object>, Entry> palettes;
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    AtomicLong refreshes = new AtomicLong();
+
+    PaletteCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.palettes = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all the requests
+     */
+    public static PaletteCache get() {
+        return INSTANCE;
+    }
+
+    static int getConfiguredSize() {
+        String value = GeoServerExtensions.getProperty(CACHE_SIZE);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + CACHE_SIZE + " value " + value + ", using "
+                        + DEFAULT_CACHE_SIZE);
+            }
+        }
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    /**
+     * Returns a color indexer for the specified RGBA image, using the cached palette of the map
+     * if there is one and it still fits the image, or building a new one otherwise
+     *
+     * @param mapContent the map the image has been rendered from
+     * @param image the RGBA image to be turned into a paletted one
+     */
+    public ColorIndexer getColorIndexer(WMSMapContent mapContent, RenderedImage image) {
+        List<Object> key = maxEntries > 0 ? getKey(mapContent) : null;
+        if (key == null) {
+            return buildColorIndexer(image);
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = palettes.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                palettes.put(key, entry);
+            }
+        }
+
+        // learning happens under the entry lock, so that the concurrent requests of a map that
+        // has no palette yet wait for the first one to build it, instead of building their own
+        IndexColorModel icm;
+        synchronized (entry) {
+            if (entry.icm == null) {
+                misses.incrementAndGet();
+                if (!entry.unstable) {
+                    entry.histogram.add(image, 1);
+                    ColorIndexer indexer = learn(entry, key);
+                    if (indexer != null) {
+                        return indexer;
+                    }
+                }
+            }
+            icm = entry.icm;
+        }
+        if (icm == null) {
+            // the map does not fit a shared palette
+            return buildColorIndexer(image);
+        }
+
+        ColorIndexer indexer = new CachingColorIndexer(new LRUColorIndexer(icm, LRU_COLORS));
+        ColorHistogram samples = new ColorHistogram();
+        boolean drifted = isDrifted(indexer, image, samples);
+        synchronized (entry) {
+            if (entry.unstable) {
+                misses.incrementAndGet();
+                return buildColorIndexer(image);
+            }
+            if (!drifted) {
+                hits.incrementAndGet();
+                entry.histogram.add(samples);
+                return indexer;
+            }
+
+            refreshes.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Cached palette drifted for " + key + ", building a new one");
+            }
+            entry.histogram.add(image, 1);
+            if (++entry.refreshes > MAX_REFRESHES) {
+                giveUp(entry, key, "it kept on drifting");
+            } else {
+                indexer = learn(entry, key);
+                if (indexer != null) {
+                    return indexer;
+                }
+            }
+        }
+        return buildColorIndexer(image);
+    }
+
+    /**
+     * Builds the palette of the map from its learned histogram, or returns null if the map has
+     * too many colors to share a palette
+     */
+    ColorIndexer learn(Entry entry, List<Object> key) {
+        if (entry.histogram.size() > MAX_COLORS) {
+            giveUp(entry, key, "it has too many colors");
+            return null;
+        }
+        ColorIndexer indexer = new Quantizer(256).buildColorIndexer(entry.histogram);
+        entry.icm = indexer.toIndexColorModel();
+        return indexer;
+    }
+
+    /**
+     * Stops caching the palette of the map, which does not fit a shared one
+     */
+    void giveUp(Entry entry, List<Object> key, String reason) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Not caching the palette of " + key + " any longer, " + reason);
+        }
+        entry.unstable = true;
+        entry.histogram = null;
+        entry.icm = null;
+    }
+
+    ColorIndexer buildColorIndexer(RenderedImage image) {
+        return new Quantizer(256).subsample().buildColorIndexer(image);
+    }
+
+    /**
+     * Builds the cache key of a map, or returns null if the map cannot be cached
+     */
+    static List<Object> getKey(WMSMapContent mapContent) {
+        GetMapRequest request = mapContent.getRequest();
+        if (request == null || request.getLayers() == null || request.getSld() != null
+                || request.getSldBody() != null) {
+            return null;
+        }
+        List<Object> key = new ArrayList<Object>();
+        for (MapLayerInfo layer : request.getLayers()) {
+            key.add(layer.getName());
+        }
+        if (request.getStyles() != null) {
+            for (Style style : request.getStyles()) {
+                if (style == null || style.getName() == null) {
+                    return null;
+                }
+                key.add(style.getName());
+            }
+        }
+        // anything else changing the colors of the map
+        key.add(mapContent.isTransparent());
+        key.add(String.valueOf(mapContent.getBgColor()));
+        key.add(String.valueOf(request.getFilter()));
+        key.add(String.valueOf(request.getCQLFilter()));
+        key.add(String.valueOf(request.getFeatureId()));
+        key.add(String.valueOf(request.getEnv()));
+        key.add(String.valueOf(request.getViewParams()));
+        key.add(String.valueOf(request.getTime()));
+        key.add(String.valueOf(request.getElevation()));
+        key.add(String.valueOf(request.getFormatOptions()));
+
+        // the scale range, maps at the same zoom level end up in the same power of two range
+        double scale = RendererUtilities.calculateOGCScaleAffine(
+                mapContent.getCoordinateReferenceSystem(), mapContent.getRenderingTransform(),
+                new HashMap());
+        key.add(Math.round(Math.log(scale) / Math.log(2)));
+
+        return key;
+    }
+
+    /**
+     * Samples the image, collecting the samples in the given histogram, and checks if any of
+     * them is far from the colors of the palette
+     */
+    boolean isDrifted(ColorIndexer indexer, RenderedImage image, ColorHistogram samples) {
+        IndexColorModel icm = indexer.toIndexColorModel();
+        boolean drifted = false;
+        final int minTileX = image.getMinTileX();
+        final int maxTileX = minTileX + image.getNumXTiles();
+        final int minTileY = image.getMinTileY();
+        final int maxTileY = minTileY + image.getNumYTiles();
+        int[] pixel = null;
+        for (int tx = minTileX; tx < maxTileX; tx++) {
+            for (int ty = minTileY; ty < maxTileY; ty++) {
+                Raster tile = image.getTile(tx, ty);
+                final int minX = Math.max(tile.getMinX(), image.getMinX());
+                final int maxX = Math.min(tile.getMinX() + tile.getWidth(), image.getMinX()
+                        + image.getWidth());
+                final int minY = Math.max(tile.getMinY(), image.getMinY());
+                final int maxY = Math.min(tile.getMinY() + tile.getHeight(), image.getMinY()
+                        + image.getHeight());
+                final int bands = tile.getNumBands();
+                if (pixel == null) {
+                    pixel = new int[bands];
+                }
+                // align the samples on the image grid, not on the tile one
+                int startX = minX + (SAMPLE_STEP - (minX - image.getMinX()) % SAMPLE_STEP)
+                        % SAMPLE_STEP;
+                int startY = minY + (SAMPLE_STEP - (minY - image.getMinY()) % SAMPLE_STEP)
+                        % SAMPLE_STEP;
+                for (int y = startY; y < maxY; y += SAMPLE_STEP) {
+                    for (int x = startX; x < maxX; x += SAMPLE_STEP) {
+                        tile.getPixel(x, y, pixel);
+                        int r, g, b, a;
+                        if (bands == 1 || bands == 2) {
+                            r = g = b = pixel[0];
+                            a = bands == 2 ? pixel[1] : 255;
+                        } else {
+                            r = pixel[0];
+                            g = pixel[1];
+                            b = pixel[2];
+                            a = bands == 4 ? pixel[3] : 255;
+                        }
+                        samples.add(r, g, b, a);
+                        if (drifted) {
+                            continue;
+                        }
+                        int idx = indexer.getClosestIndex(r, g, b, a) & 0xFF;
+                        int da = a - icm.getAlpha(idx);
+                        int error;
+                        if (a <= ALPHA_THRESHOLD) {
+                            // the color of a transparent pixel does not matter
+                            error = da * da;
+                        } else {
+                            int dr = r - icm.getRed(idx);
+                            int dg = g - icm.getGreen(idx);
+                            int db = b - icm.getBlue(idx);
+                            error = dr * dr + dg * dg + db * db + da * da;
+                        }
+                        // a single far color is enough, small features show up in few samples
+                        drifted = error > MAX_PIXEL_ERROR;
+                    }
+                }
+            }
+        }
+        return drifted;
+    }
+
+    /**
+     * Drops all the cached palettes
+     */
+    public synchronized void clear() {
+        palettes.clear();
+    }
+
+    /**
+     * The number of maps that used a cached palette
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of maps that had no cached palette, or whose palette cannot be cached
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of maps whose cached palette drifted, and got rebuilt
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * The number of maps whose palette is currently cached or being learned
+     */
+    public synchronized int getSize() {
+        return palettes.size();
+    }
+
+    /**
+     * The colors learned for a map, and the palette built from them
+     */
+    static final class Entry {
+
+        ColorHistogram histogram = new ColorHistogram();
+
+        IndexColorModel icm;
+
+        int refreshes;
+
+        /**
+         * Set when the map does not fit a shared palette
+         */
+        boolean unstable;
+    }
+}
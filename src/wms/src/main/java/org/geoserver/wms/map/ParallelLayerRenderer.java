@@ -0,0 +1,429 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.ows.RequestContextCallable;
+import org.geoserver.wms.DefaultWebMapService;
+import org.geotools.data.DataAccess;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.RenderListener;
+import org.geotools.renderer.label.LabelCacheImpl;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A {@link StreamingRenderer} splitting the layers of the map in groups and rendering them in
+ * parallel, each one into its own buffer, then compositing the buffers in z-order.
+ * <p>
+ * Consecutive layers reading from the same store make up a group, so that they keep on sharing
+ * the store connections as they do in serial rendering, while each other layer is a group of its
+ * own. The first group is painted directly on the map graphics by the calling thread, the others
+ * into buffers taken from the {@link CanvasPool}, at most <code>parallelism - 1</code> of them at
+ * the same time, in a pool shared by all the requests that limits the overall number of layers
+ * rendered in parallel.
+ * </p>
+ * <p>
+ * The labels of each group are conflict resolved only among themselves, and painted on top of
+ * the map, in z-order, once all the groups are composited, just like serial rendering paints all
+ * the labels at the end.
+ * </p>
+ * <p>
+ * When the rendering is stopped, or fails, the groups still rendering are stopped too, and waited
+ * for up to {@link #STOP_TIMEOUT} seconds, so that their buffers go back to the pool.
+ * </p>
+ */
+public class ParallelLayerRenderer extends StreamingRenderer {
+
+    static final Logger LOGGER = Logging.getLogger(ParallelLayerRenderer.class);
+
+    /**
+     * How many seconds to wait for the groups still rendering once the rendering is stopped
+     */
+    static final int STOP_TIMEOUT = 30;
+
+    int parallelism;
+
+    ExecutorService executor;
+
+    List<RenderListener> listeners = new ArrayList<RenderListener>();
+
+    List<StreamingRenderer> renderers = Collections
+            .synchronizedList(new ArrayList<StreamingRenderer>());
+
+    volatile boolean stopped;
+
+    /**
+     * Builds a new renderer
+     *
+     * @param parallelism the max number of groups rendered at the same time, including the one
+     *        painted by the calling thread
+     * @param executor the pool running the rendering of the groups
+     */
+    public ParallelLayerRenderer(int parallelism, ExecutorService executor) {
+        this.parallelism = parallelism;
+        this.executor = executor;
+    }
+
+    /**
+     * Splits the layers in groups, consecutive layers reading from the same store end up in the
+     * same group
+     */
+    static List<List<Layer>> getLayerGroups(List<Layer> layers) {
+        List<List<Layer>> groups = new ArrayList<List<Layer>>();
+        List<Layer> group = null;
+        DataAccess store = null;
+        for (Layer layer : layers) {
+            DataAccess layerStore = getStore(layer);
+            if (group == null || layerStore == null || layerStore != store) {
+                group = new ArrayList<Layer>();
+                groups.add(group);
+            }
+            group.add(layer);
+            store = layerStore;
+        }
+        return groups;
+    }
+
+    static DataAccess getStore(Layer layer) {
+        if (layer instanceof FeatureLayer) {
+            try {
+                return layer.getFeatureSource().getDataStore();
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not get the store of layer " + layer.getTitle(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the map has more than one group of layers to render
+     */
+    public static boolean hasMultipleGroups(List<Layer> layers) {
+        return getLayerGroups(layers).size() > 1;
+    }
+
+    @Override
+    public void paint(Graphics2D graphics, Rectangle paintArea, ReferencedEnvelope mapArea,
+            AffineTransform worldToScreen) {
+        List<List<Layer>> groups = getLayerGroups(getMapContent().layers());
+        if (groups.size() == 1 || parallelism <= 1) {
+            super.paint(graphics, paintArea, mapArea, worldToScreen);
+            return;
+        }
+
+        List<GroupRenderer> groupRenderers = new ArrayList<GroupRenderer>();
+        for (List<Layer> group : groups) {
+            groupRenderers.add(new GroupRenderer(group, paintArea, mapArea, worldToScreen));
+        }
+        LinkedList<GroupRenderer> pending = new LinkedList<GroupRenderer>();
+        try {
+            // keep up to parallelism - 1 groups rendering in the background, the calling thread
+            // being busy with the first one
+            int submitted = 1;
+            for (; submitted < groupRenderers.size() && submitted < parallelism; submitted++) {
+                pending.add(groupRenderers.get(submitted).submit());
+            }
+            groupRenderers.get(0).render(graphics);
+
+            // composite the other groups in z-order as they complete
+            Graphics2D composite = null;
+            try {
+                for (int i = 1; i < groupRenderers.size() && !stopped; i++) {
+                    GroupRenderer groupRenderer = pending.getFirst();
+                    BufferedImage buffer = groupRenderer.future.get();
+                    pending.removeFirst();
+                    groupRenderer.buffer = null;
+                    if (submitted < groupRenderers.size()) {
+                        pending.add(groupRenderers.get(submitted++).submit());
+                    }
+                    if (buffer == null) {
+                        // stopped before it started
+                        continue;
+                    }
+                    try {
+                        if (composite == null) {
+                            composite = (Graphics2D) graphics.create();
+                            composite.setTransform(new AffineTransform());
+                            composite.setComposite(AlphaComposite.SrcOver);
+                        }
+                        composite.drawImage(buffer, paintArea.x, paintArea.y, null);
+                    } finally {
+                        CanvasPool.get().release(buffer);
+                    }
+                }
+            } finally {
+                if (composite != null) {
+                    composite.dispose();
+                }
+            }
+
+            // labels go on top, in the same order as the layers
+            if (!stopped) {
+                for (GroupRenderer groupRenderer : groupRenderers) {
+                    groupRenderer.labelCache.paint(graphics, paintArea);
+                }
+            }
+        } catch (InterruptedException e) {
+            stopRendering();
+            fireError(e);
+        } catch (ExecutionException e) {
+            stopRendering();
+            fireError(e.getCause());
+        } finally {
+            if (!pending.isEmpty()) {
+                stopPending(pending);
+            }
+            for (GroupRenderer groupRenderer : groupRenderers) {
+                // a group that did not stop in time could still be using its content
+                if (!groupRenderer.isRunning()) {
+                    groupRenderer.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the groups still in the queue or rendering, and waits for the running ones to
+     * complete, giving back their buffers
+     */
+    void stopPending(List<GroupRenderer> pending) {
+        stopRendering();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(STOP_TIMEOUT);
+        for (GroupRenderer groupRenderer : pending) {
+            // the groups that did not start yet won't run
+            groupRenderer.future.cancel(false);
+            if (!groupRenderer.started) {
+                continue;
+            }
+            try {
+                long wait = Math.max(deadline - System.currentTimeMillis(), 0);
+                if (!groupRenderer.done.await(wait, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warning("Layer group still rendering " + STOP_TIMEOUT
+                            + " seconds after being stopped, leaving it behind");
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (groupRenderer.buffer != null) {
+                CanvasPool.get().release(groupRenderer.buffer);
+                groupRenderer.buffer = null;
+            }
+        }
+    }
+
+    void fireError(Throwable t) {
+        Exception e = t instanceof Exception ? (Exception) t : new Exception(t);
+        synchronized (listeners) {
+            for (RenderListener listener : listeners) {
+                listener.errorOccurred(e);
+            }
+        }
+    }
+
+    @Override
+    public void stopRendering() {
+        stopped = true;
+        super.stopRendering();
+        synchronized (renderers) {
+            for (StreamingRenderer renderer : renderers) {
+                renderer.stopRendering();
+            }
+        }
+    }
+
+    @Override
+    public void addRenderListener(RenderListener listener) {
+        super.addRenderListener(listener);
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeRenderListener(RenderListener listener) {
+        super.removeRenderListener(listener);
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Forwards the events of the group renderers to the listeners of this one, one event at a
+     * time, as the listeners are not meant to be called concurrently
+     */
+    class ListenerForwarder implements RenderListener {
+
+        public void featureRenderer(SimpleFeature feature) {
+            synchronized (listeners) {
+                for (RenderListener listener : listeners) {
+                    listener.featureRenderer(feature);
+                }
+            }
+        }
+
+        public void errorOccurred(Exception e) {
+            fireError(e);
+        }
+    }
+
+    /**
+     * Label cache holding the labels of a group until all the groups are composited
+     */
+    static class DeferredLabelCache extends LabelCacheImpl {
+
+        @Override
+        public void end(Graphics2D graphics, Rectangle displayArea) {
+            // painted later by paint(Graphics2D, Rectangle)
+        }
+
+        void paint(Graphics2D graphics, Rectangle displayArea) {
+            super.end(graphics, displayArea);
+        }
+    }
+
+    /**
+     * Renders a group of layers, either on the map graphics or on a buffer of its own
+     */
+    class GroupRenderer extends RequestContextCallable<BufferedImage> {
+
+        MapContent content;
+
+        StreamingRenderer renderer;
+
+        DeferredLabelCache labelCache = new DeferredLabelCache();
+
+        Rectangle paintArea;
+
+        ReferencedEnvelope mapArea;
+
+        AffineTransform worldToScreen;
+
+        Future<BufferedImage> future;
+
+        /**
+         * Set once the group rendering started in the background
+         */
+        volatile boolean started;
+
+        /**
+         * The rendered buffer, kept until it is composited or given back on stop
+         */
+        volatile BufferedImage buffer;
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        GroupRenderer(List<Layer> layers, Rectangle paintArea, ReferencedEnvelope mapArea,
+                AffineTransform worldToScreen) {
+            this.paintArea = paintArea;
+            this.mapArea = mapArea;
+            this.worldToScreen = worldToScreen;
+
+            content = new MapContent();
+            for (Layer layer : layers) {
+                content.addLayer(layer);
+            }
+            content.getViewport().setBounds(mapArea);
+
+            renderer = new StreamingRenderer();
+            renderer.setThreadPool(DefaultWebMapService.getRenderingPool());
+            renderer.setMapContent(content);
+            renderer.setJava2DHints(getJava2DHints());
+            Map hints = new HashMap();
+            if (getRendererHints() != null) {
+                hints.putAll(getRendererHints());
+            }
+            hints.put(LABEL_CACHE_KEY, labelCache);
+            renderer.setRendererHints(hints);
+            renderer.addRenderListener(new ListenerForwarder());
+            renderers.add(renderer);
+        }
+
+        GroupRenderer submit() {
+            future = executor.submit(this);
+            return this;
+        }
+
+        boolean isRunning() {
+            return started && done.getCount() > 0;
+        }
+
+        void render(Graphics2D graphics) {
+            if (stopped) {
+                return;
+            }
+            renderer.paint(graphics, paintArea, mapArea, worldToScreen);
+        }
+
+        protected BufferedImage callInContext() throws Exception {
+            // checked after flagging the start, so that stopPending either waits for this group or
+            // the group sees the stop
+            started = true;
+            try {
+                if (stopped) {
+                    return null;
+                }
+                BufferedImage buffer = CanvasPool.get().acquire(paintArea.width,
+                        paintArea.height, BufferedImage.TYPE_INT_ARGB_PRE);
+                Graphics2D graphics = buffer.createGraphics();
+                try {
+                    // pooled buffers keep the previous rendering
+                    graphics.setComposite(AlphaComposite.Clear);
+                    graphics.fillRect(0, 0, paintArea.width, paintArea.height);
+                    graphics.setComposite(AlphaComposite.SrcOver);
+                    RenderingHints hints = getJava2DHints();
+                    if (hints != null) {
+                        graphics.setRenderingHints(hints);
+                    }
+                    graphics.translate(-paintArea.x, -paintArea.y);
+                    render(graphics);
+                } catch (RuntimeException e) {
+                    CanvasPool.get().release(buffer);
+                    throw e;
+                } finally {
+                    graphics.dispose();
+                }
+                this.buffer = buffer;
+                return buffer;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void dispose() {
+            renderers.remove(renderer);
+            // the layers belong to the map, only drop the group content
+            for (Layer layer : new ArrayList<Layer>(content.layers())) {
+                content.removeLayer(layer);
+            }
+            content.dispose();
+        }
+    }
+}
@@ -7,34 +7,73 @@ package org.geoserver.wms.map;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.ServiceInfo;
 import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionListener;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSInfo;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
+import org.geotools.styling.Style;
 import org.geotools.util.CanonicalSet;
+import org.geotools.util.logging.Logging;
 
 import com.vividsolutions.jts.geom.Envelope;
 
-public class QuickTileCache implements TransactionListener, GeoServerLifecycleHandler {
+/**
+ * In memory cache of the tiles split out of rendered meta-tiles.
+ * <p>
+ * The cache is bounded by the amount of raster data it holds, see {@link #getMaxSize()}, and
+ * evicts the least recently used meta-tiles once full. Each meta-tile records the layers, 
+ * resources, stores and styles it was rendered from, catalog changes and WFS transactions only
+ * evict the meta-tiles depending on the modified objects.
+ * </p>
+ */
+public class QuickTileCache implements TransactionListener, GeoServerLifecycleHandler,
+        CatalogListener {
+    
+    static final Logger LOGGER = Logging.getLogger(QuickTileCache.class);
+    
+    /**
+     * Property used to set the cache size, in megabytes
+     */
+    public static final String CACHE_SIZE = "GEOSERVER_METATILE_CACHE_SIZE";
+    
     /**
      * Set of parameters that we can ignore, since they do not define a map, are either unrelated,
      * or define the tiling instead
@@ -58,24 +97,60 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      */
     private CanonicalSet<MetaTileKey> metaTileKeys = CanonicalSet.newInstance(MetaTileKey.class);
 
-    private WeakHashMap tileCache = new WeakHashMap();
+    /**
+     * The cached meta-tiles, in access order
+     */
+    private LinkedHashMap<MetaTileKey, CacheElement> tileCache = 
+        new LinkedHashMap<MetaTileKey, CacheElement>(16, 0.75f, true);
+    
+    /**
+     * Maximum amount of raster data held in the cache, in bytes
+     */
+    private long maxSize = 64 * 1024 * 1024;
+    
+    /**
+     * Amount of raster data currently in the cache, in bytes
+     */
+    private long size;
+    
+    private long hits;
+    
+    private long misses;
+    
+    private long evictions;
 
     public QuickTileCache(GeoServer geoServer) {
+        String value = GeoServerExtensions.getProperty(CACHE_SIZE);
+        if (value != null) {
+            try {
+                maxSize = Long.parseLong(value) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid " + CACHE_SIZE + " value: " + value);
+            }
+        }
+        
         geoServer.addListener(new ConfigurationListenerAdapter() {
             public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                // the update sequence gets bumped on each catalog change, that does not 
+                // affect rendering
+                if (!Collections.singletonList("updateSequence").equals(propertyNames)) {
+                    clear();
+                }
             }
 
             public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                if (service instanceof WMSInfo) {
+                    clear();
+                }
             }
 
             public void reloaded() {
-                tileCache.clear();
+                clear();
             }
         });
+        geoServer.getCatalog().addListener(this);
     }
 
     /**
@@ -115,7 +190,59 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         // since this will be used for thread synchronization, we have to make
         // sure two thread asking for the same meta tile will get the same key
         // object
-        return (MetaTileKey) metaTileKeys.unique(key);
+        key = (MetaTileKey) metaTileKeys.unique(key);
+        
+        // the objects behind the layer names might have been replaced since the key was created 
+        key.dependencies = getDependencies(request);
+        return key;
+    }
+
+    /**
+     * Collects the identifiers of the catalog objects a map depends on, the layers, along with 
+     * their resources and stores, the styles and the layer names used in the request
+     */
+    Set<String> getDependencies(GetMapRequest request) {
+        Set<String> dependencies = new HashSet<String>();
+        for (MapLayerInfo layer : request.getLayers()) {
+            LayerInfo info = layer.getLayerInfo();
+            if (info != null) {
+                dependencies.add(info.getId());
+                ResourceInfo resource = info.getResource();
+                if (resource != null) {
+                    dependencies.add(resource.getId());
+                    dependencies.add(qualifiedName(resource.getNamespace().getURI(),
+                            resource.getName()));
+                    if (resource.getStore() != null) {
+                        dependencies.add(resource.getStore().getId());
+                    }
+                }
+            }
+        }
+        for (Style style : request.getStyles()) {
+            if (style != null && style.getName() != null) {
+                dependencies.add(styleName(style.getName()));
+            }
+        }
+        // group names are expanded in the parsed request, look at the raw one
+        Object layers = request.getRawKvp() != null ? request.getRawKvp().get("LAYERS") : null;
+        if (layers != null) {
+            for (String name : String.valueOf(layers).split(",")) {
+                dependencies.add(layerName(name.trim()));
+            }
+        }
+        return dependencies;
+    }
+    
+    static String qualifiedName(String uri, String localName) {
+        return "{" + uri + "}" + localName;
+    }
+    
+    static String styleName(String name) {
+        return "style:" + name;
+    }
+    
+    static String layerName(String name) {
+        return "layer:" + name;
     }
 
     private ReferencedEnvelope getMetaTileEnvelope(ReferencedEnvelope bbox, Point tileCoords, Point metaTileCoords) {
@@ -261,6 +388,11 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         Point metaTileCoords;
 
         ReferencedEnvelope metaTileEnvelope;
+        
+        /**
+         * Identifiers of the catalog objects the meta-tile depends on, not part of the key identity
+         */
+        volatile Set<String> dependencies = Collections.emptySet();
 
         public MetaTileKey(MapKey mapKey, Point metaTileCoords, ReferencedEnvelope metaTileEnvelope) {
             super();
@@ -316,16 +448,26 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      * @param request
      * @return
      */
-    public synchronized RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
-        CacheElement ce = (CacheElement) tileCache.get(key);
+    public RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
+        RenderedImage[] tiles = getTiles(key);
+        return tiles != null ? getTile(key, request, tiles) : null;
+    }
+    
+    /**
+     * Gathers the tiles of a meta-tile from the cache, if available
+     */
+    synchronized RenderedImage[] getTiles(MetaTileKey key) {
+        CacheElement ce = tileCache.get(key);
 
         if (ce == null) {
+            misses++;
             return null;
         }
 
-        return getTile(key, request, ce.tiles);
+        hits++;
+        return ce.tiles;
     }
-
+    
     /**
      * 
      * @param key
@@ -346,7 +488,8 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
-     * Puts the specified tile array in the cache, and returns the tile the request was looking for
+     * Puts the specified tile array in the cache, evicting the least recently used meta-tiles if
+     * the cache grows beyond its maximum size
      * 
      * @param key
      * @param request
@@ -354,38 +497,197 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      * @return
      */
     public synchronized void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
-        tileCache.put(key, new CacheElement(tiles));
+        CacheElement ce = new CacheElement(tiles);
+        if (ce.size > maxSize) {
+            return;
+        }
+        
+        CacheElement old = tileCache.put(key, ce);
+        if (old != null) {
+            size -= old.size;
+        }
+        size += ce.size;
+        
+        for (Iterator<CacheElement> it = tileCache.values().iterator(); size > maxSize
+                && it.hasNext();) {
+            CacheElement eldest = it.next();
+            it.remove();
+            size -= eldest.size;
+            evictions++;
+        }
+    }
+    
+    /**
+     * Removes all the meta-tiles depending on the specified catalog object identifier
+     */
+    synchronized void invalidate(String dependency) {
+        for (Iterator<Map.Entry<MetaTileKey, CacheElement>> it = tileCache.entrySet().iterator(); 
+                it.hasNext();) {
+            Map.Entry<MetaTileKey, CacheElement> e = it.next();
+            if (e.getKey().dependencies.contains(dependency)) {
+                it.remove();
+                size -= e.getValue().size;
+            }
+        }
+    }
+    
+    /**
+     * Removes all the meta-tiles from the cache
+     */
+    public synchronized void clear() {
+        tileCache.clear();
+        size = 0;
+    }
+    
+    /**
+     * The maximum amount of raster data held in the cache, in bytes
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
     }
 
-    class CacheElement {
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        for (Iterator<CacheElement> it = tileCache.values().iterator(); size > maxSize
+                && it.hasNext();) {
+            size -= it.next().size;
+            it.remove();
+            evictions++;
+        }
+    }
+    
+    /**
+     * The amount of raster data currently held in the cache, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * The number of meta-tiles in the cache
+     */
+    public synchronized int getCount() {
+        return tileCache.size();
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * The number of meta-tiles evicted to make room for new ones
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    
+    public synchronized void resetStatistics() {
+        hits = misses = evictions = 0;
+    }
+
+    static class CacheElement {
         RenderedImage[] tiles;
+        
+        long size;
 
         public CacheElement(RenderedImage[] tiles) {
             this.tiles = tiles;
+            for (RenderedImage tile : tiles) {
+                if (tile != null) {
+                    int bits = 0;
+                    for (int sampleSize : tile.getSampleModel().getSampleSize()) {
+                        bits += sampleSize;
+                    }
+                    size += (long) tile.getWidth() * tile.getHeight() * bits / 8;
+                }
+            }
         }
     }
 
     public void dataStoreChange(TransactionEvent event) throws WFSException {
-        // if anything changes we just wipe out the cache. the mapkey
-        // contains a string with part of the map request where the layer
-        // name is included, but we would have to parse it and consider
-        // also that the namespace may be missing in the getmap request
-        tileCache.clear();
+        QName name = event.getLayerName();
+        if (name != null) {
+            invalidate(qualifiedName(name.getNamespaceURI(), name.getLocalPart()));
+        } else {
+            clear();
+        }
+    }
+    
+    public void handleAddEvent(CatalogAddEvent event) {
+        // new objects cannot be part of any cached map
+    }
+    
+    public void handleModifyEvent(CatalogModifyEvent event) {
+        // the rest waits for the change to be committed, by then a renamed style or group has lost
+        // the name its maps are cached under
+        CatalogInfo source = event.getSource();
+        int name = event.getPropertyNames().indexOf("name");
+        int workspace = event.getPropertyNames().indexOf("workspace");
+        if (source instanceof StyleInfo && name >= 0) {
+            invalidate(styleName((String) event.getOldValues().get(name)));
+        } else if (source instanceof LayerGroupInfo && (name >= 0 || workspace >= 0)) {
+            LayerGroupInfo group = (LayerGroupInfo) source;
+            invalidateGroup(name >= 0 ? (String) event.getOldValues().get(name) : group
+                    .getName(), workspace >= 0 ? (WorkspaceInfo) event.getOldValues().get(
+                    workspace) : group.getWorkspace());
+        }
+    }
+    
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        invalidate(event.getSource());
+    }
+    
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        invalidate(event.getSource());
+    }
+    
+    /**
+     * Removes all the meta-tiles depending on the specified catalog object
+     */
+    void invalidate(CatalogInfo source) {
+        if (source instanceof LayerInfo || source instanceof ResourceInfo 
+                || source instanceof StoreInfo) {
+            invalidate(source.getId());
+        } 
+        if (source instanceof LayerInfo) {
+            invalidate(layerName(((LayerInfo) source).getName()));
+            invalidate(layerName(((LayerInfo) source).getResource().prefixedName()));
+        } else if (source instanceof StyleInfo) {
+            invalidate(styleName(((StyleInfo) source).getName()));
+        } else if (source instanceof LayerGroupInfo) {
+            LayerGroupInfo group = (LayerGroupInfo) source;
+            invalidateGroup(group.getName(), group.getWorkspace());
+        }
+    }
+
+    void invalidateGroup(String name, WorkspaceInfo workspace) {
+        invalidate(layerName(name));
+        if (workspace != null) {
+            invalidate(layerName(workspace.getName() + ":" + name));
+        }
+    }
+    
+    public void reloaded() {
+        clear();
     }
 
     @Override
     public void onReset() {
         // data might have changed in the meantime
-        tileCache.clear();        
+        clear();        
     }
 
     @Override
     public void onDispose() {
-        tileCache.clear();
+        clear();
     }
 
     @Override
     public void onReload() {
-        tileCache.clear();
+        clear();
     }
 }
@@ -4,6 +4,7 @@
  */
 package org.geoserver.wms.map;
 
+import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.util.Collections;
 import java.util.List;
@@ -23,6 +24,8 @@ public class RenderedImageMap extends WebMap {
 
     private List<GridCoverage2D> renderedCoverages;
 
+    private BufferedImage canvas;
+
     public RenderedImageMap(final WMSMapContent mapContent, final RenderedImage image,
             final String mimeType) {
         super(mapContent);
@@ -37,6 +40,20 @@ public class RenderedImageMap extends WebMap {
     @Override
     protected void disposeInternal() {
         image = null;
+        if (canvas != null) {
+            CanvasPool.get().release(canvas);
+            canvas = null;
+        }
+    }
+
+    /**
+     * Sets the image taken from the {@link CanvasPool} the map has been painted on, given back to
+     * the pool when the map is disposed. The map can outlive the request that produced it, e.g.
+     * GeoWebCache encodes the meta tiles after the GetMap dispatch ends, so the image cannot be
+     * given back any earlier.
+     */
+    void setCanvas(BufferedImage canvas) {
+        this.canvas = canvas;
     }
 
     /**
@@ -44,6 +44,10 @@ import javax.media.jai.operator.FormatDescriptor;
 import javax.media.jai.operator.LookupDescriptor;
 import javax.media.jai.operator.MosaicDescriptor;
 
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.ParallelismLimiter;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapOutputFormat;
@@ -342,9 +346,18 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         // we use the alpha channel if the image is transparent or if the meta tiler
         // is enabled, since apparently the Crop operation inside the meta-tiler
         // generates striped images in that case (see GEOS-
-        boolean useAlpha = transparent || MetatileMapOutputFormat.isRequestTiled(request, this);
-        final RenderedImage preparedImage = prepareImage(paintArea.width, paintArea.height,
-                palette, useAlpha);
+        boolean metaTiled = MetatileMapOutputFormat.isRequestTiled(request, this);
+        boolean useAlpha = transparent || metaTiled;
+        // meta tiles are split into tiles sharing their raster, and cached, so they cannot be
+        // taken from the pool
+        final RenderedImage preparedImage;
+        BufferedImage canvas = null;
+        if (metaTiled || (palette != null && isPaletteSupported())) {
+            preparedImage = prepareImage(paintArea.width, paintArea.height, palette, useAlpha);
+        } else {
+            canvas = leaseImage(paintArea.width, paintArea.height, useAlpha);
+            preparedImage = canvas;
+        }
         final Map<RenderingHints.Key, Object> hintsMap = new HashMap<RenderingHints.Key, Object>();
 
         final Graphics2D graphic = ImageUtils.prepareTransparency(transparent, bgColor,
@@ -398,8 +411,15 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
 
         RenderingHints hints = new RenderingHints(hintsMap);
         GTRenderer renderer;
+        int parallelism = getLayerRenderingParallelism(mapContent, palette, preparedImage,
+                memory, maxMemory);
         if (DefaultWebMapService.useShapefileRenderer()) {
             renderer = new ShapefileRenderer();
+        } else if (parallelism > 1) {
+            ParallelLayerRenderer pr = new ParallelLayerRenderer(parallelism,
+                    DefaultWebMapService.getLayerRenderingPool());
+            pr.setThreadPool(DefaultWebMapService.getRenderingPool());
+            renderer = pr;
         } else {
             StreamingRenderer sr = new StreamingRenderer();
             sr.setThreadPool(DefaultWebMapService.getRenderingPool());
@@ -531,6 +551,9 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         // }
 
         RenderedImageMap map = buildMap(mapContent, image);
+        if (canvas != null) {
+            map.setCanvas(canvas);
+        }
         return map;
     }
 
@@ -654,6 +677,20 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                 transparent && isTransparencySupported());
     }
 
+    /**
+     * Same as {@link #prepareImage(int, int, IndexColorModel, boolean)} for RGB images, but takes
+     * them from the {@link CanvasPool}. The image is given back when the map painted on it is
+     * disposed, that is, once it has been encoded, see {@link RenderedImageMap#setCanvas}. The
+     * images of the maps that are never disposed, e.g. because rendering failed, are just left
+     * to the garbage collector.
+     */
+    BufferedImage leaseImage(int width, int height, boolean transparent) {
+        // same image types as ImageUtils.createImage
+        int type = transparent && isTransparencySupported() ? BufferedImage.TYPE_4BYTE_ABGR
+                : BufferedImage.TYPE_3BYTE_BGR;
+        return CanvasPool.get().acquire(width, height, type);
+    }
+
     /**
      * Returns true if the format supports image transparency, false otherwise (defaults to
      * {@code true})
@@ -668,6 +705,49 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         this.transparencySupported = supportsTransparency;
     }
 
+    /**
+     * Returns how many groups of layers can be rendered in parallel for this map, 1 if the map
+     * has to be rendered serially: parallel rendering needs a true color surface and a map with
+     * layers from more than one store, and each extra group rendered at the same time needs a
+     * buffer as big as the map, which must fit both the max request memory and the free heap
+     */
+    int getLayerRenderingParallelism(WMSMapContent mapContent, IndexColorModel palette,
+            RenderedImage image, long memory, long maxMemory) {
+        int parallelism = DefaultWebMapService.getLayerRenderingParallelism();
+        if (parallelism <= 1 || DefaultWebMapService.useShapefileRenderer()
+                || (palette != null && isPaletteSupported())
+                || !(image instanceof BufferedImage)
+                || !ParallelLayerRenderer.hasMultipleGroups(mapContent.layers())) {
+            return 1;
+        }
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null) {
+            for (ParallelismLimiter limiter : GeoServerExtensions
+                    .extensions(ParallelismLimiter.class)) {
+                parallelism = Math.min(parallelism,
+                        limiter.getParallelism(request, parallelism));
+            }
+        }
+
+        // fall back on fewer threads, down to serial rendering, when memory is tight
+        long bufferMemory = (long) image.getWidth() * image.getHeight() * 4;
+        Runtime runtime = Runtime.getRuntime();
+        long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+                - runtime.maxMemory() / 10;
+        while (parallelism > 1) {
+            long extraMemory = (parallelism - 1) * bufferMemory;
+            if ((maxMemory <= 0 || memory + extraMemory <= maxMemory)
+                    && extraMemory <= freeMemory) {
+                break;
+            }
+            parallelism--;
+        }
+        if (parallelism <= 1 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Not enough memory to render the layers in parallel, rendering serially");
+        }
+        return parallelism;
+    }
+
     /**
      * Returns true if the format supports palette encoding, false otherwise (defaults to
      * {@code true}).
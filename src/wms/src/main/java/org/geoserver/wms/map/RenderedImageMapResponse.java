@@ -25,7 +25,6 @@ import org.geoserver.wms.map.quantize.CachingColorIndexer;
 import org.geoserver.wms.map.quantize.ColorIndexer;
 import org.geoserver.wms.map.quantize.ColorIndexerDescriptor;
 import org.geoserver.wms.map.quantize.LRUColorIndexer;
-import org.geoserver.wms.map.quantize.Quantizer;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.image.ImageWorker;
 import org.geotools.image.palette.InverseColorMapOp;
@@ -176,8 +175,9 @@ public abstract class RenderedImageMapResponse extends AbstractMapResponse {
                 if (mapContent.getPalette() != null) {
                     indexer = new CachingColorIndexer(new LRUColorIndexer(icm, 1024));
                 } else if (palettedFormatName.equalsIgnoreCase(format)) {
-                    // build the palette and grab the optimized color indexer
-                    indexer = new Quantizer(256).subsample().buildColorIndexer(image);
+                    // build the palette, or reuse the one of the previous maps of the same
+                    // layers and styles, and grab the optimized color indexer
+                    indexer = PaletteCache.get().getColorIndexer(mapContent, image);
                 }
 
                 // if we have an indexer transform the image
@@ -5,15 +5,18 @@
 package org.geoserver.wms.map;
 
 import java.awt.Graphics;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import org.geoserver.ows.TimeoutScheduler;
+import org.geoserver.ows.TimeoutScheduler.Timeout;
 import org.geotools.renderer.GTRenderer;
 
 /**
  * An utility class that can be used to set a strict timeout on rendering operations:
  * if the timeout elapses, the renderer will be asked to stop rendering and the graphics
  * will be disposed of to make extra sure the renderer cannot keep going on.
+ * <p>
+ * The timeouts are tracked by the shared {@link TimeoutScheduler}, under the "wms" service
+ * </p>
  * @author Andrea Aime - OpenGeo
  */
 public class RenderingTimeoutEnforcer {
@@ -21,8 +24,8 @@ public class RenderingTimeoutEnforcer {
     long timeout;
     GTRenderer renderer;
     Graphics graphics;
-    Timer timer;
-    boolean timedOut = false;
+    Timeout timer;
+    volatile boolean timedOut = false;
 
     public RenderingTimeoutEnforcer(long timeout, GTRenderer renderer, Graphics graphics) {
         this.timeout = timeout;
@@ -39,8 +42,7 @@ public class RenderingTimeoutEnforcer {
         
         if(timeout > 0) {
             timedOut = false;
-            timer = new Timer();
-            timer.schedule(new StopRenderingTask(), timeout);
+            timer = TimeoutScheduler.get().schedule("wms", timeout, new StopRenderingTask());
         }
     }
     
@@ -50,8 +52,6 @@ public class RenderingTimeoutEnforcer {
     public void stop() {
         if(timer != null) {
             timer.cancel();
-            timer.purge();
-            // timer.getTheHellOutOfDodge();
             timer = null;
         }
     }
@@ -63,9 +63,8 @@ public class RenderingTimeoutEnforcer {
         return timedOut;
     }
     
-    class StopRenderingTask extends TimerTask {
+    class StopRenderingTask implements Runnable {
 
-        @Override
         public void run() {
             // mark as timed out
             timedOut = true;
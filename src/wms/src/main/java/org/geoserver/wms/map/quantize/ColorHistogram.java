@@ -0,0 +1,101 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.quantize;
+
+import static org.geoserver.wms.map.quantize.ColorUtils.*;
+
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+import org.geoserver.wms.map.quantize.ColorMap.ColorEntry;
+
+/**
+ * A histogram of the exact colors of one or more images, that can be accumulated over several
+ * renderings of the same map and then turned into a palette by
+ * {@link Quantizer#buildColorIndexer(ColorHistogram)}
+ */
+public class ColorHistogram {
+
+    ColorMap colorMap = new ColorMap();
+
+    long pixelCount;
+
+    /**
+     * Adds the pixels of the image, one every <code>step</code> in both directions, the samples
+     * being aligned on the image grid
+     */
+    public void add(RenderedImage image, int step) {
+        final int minTileX = image.getMinTileX();
+        final int maxTileX = minTileX + image.getNumXTiles();
+        final int minTileY = image.getMinTileY();
+        final int maxTileY = minTileY + image.getNumYTiles();
+        int[] pixel = null;
+        for (int tx = minTileX; tx < maxTileX; tx++) {
+            for (int ty = minTileY; ty < maxTileY; ty++) {
+                Raster tile = image.getTile(tx, ty);
+                final int minX = Math.max(tile.getMinX(), image.getMinX());
+                final int maxX = Math.min(tile.getMinX() + tile.getWidth(), image.getMinX()
+                        + image.getWidth());
+                final int minY = Math.max(tile.getMinY(), image.getMinY());
+                final int maxY = Math.min(tile.getMinY() + tile.getHeight(), image.getMinY()
+                        + image.getHeight());
+                final int bands = tile.getNumBands();
+                if (pixel == null) {
+                    pixel = new int[bands];
+                }
+                int startX = minX + (step - (minX - image.getMinX()) % step) % step;
+                int startY = minY + (step - (minY - image.getMinY()) % step) % step;
+                for (int y = startY; y < maxY; y += step) {
+                    for (int x = startX; x < maxX; x += step) {
+                        tile.getPixel(x, y, pixel);
+                        if (bands == 1 || bands == 2) {
+                            add(pixel[0], pixel[0], pixel[0], bands == 2 ? pixel[1] : 255);
+                        } else {
+                            add(pixel[0], pixel[1], pixel[2], bands == 4 ? pixel[3] : 255);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a single pixel
+     */
+    public void add(int red, int green, int blue, int alpha) {
+        // same as PackedHistogram, colors with a very low alpha are all the same
+        if (alpha <= PackedHistogram.ALPHA_THRESHOLD) {
+            red = green = blue = 255;
+            alpha = 0;
+        }
+        colorMap.increment(red, green, blue, alpha);
+        pixelCount++;
+    }
+
+    /**
+     * Adds all the pixels of another histogram
+     */
+    public void add(ColorHistogram other) {
+        for (ColorEntry ce : other.colorMap) {
+            int color = ce.color;
+            colorMap.increment(red(color), green(color), blue(color), alpha(color), ce.value);
+        }
+        pixelCount += other.pixelCount;
+    }
+
+    /**
+     * The number of distinct colors
+     */
+    public int size() {
+        return colorMap.size();
+    }
+
+    /**
+     * The number of pixels added
+     */
+    public long getPixelCount() {
+        return pixelCount;
+    }
+}
@@ -106,31 +106,23 @@ public class ColorIndexerOpImage extends PointOpImage {
                 + h);
         final int dstMinX = Math.max(src.getMinX(), sourceImage.getMinX());
         final int dstMinY = Math.max(src.getMinY(), sourceImage.getMinY());
-        int srcBands = src.getNumBands();
-        final int[] pixel = new int[srcBands];
-        final byte[] bytes = new byte[srcBands];
-        for (int y = srcMinY, y_ = dstMinY; y < srcMaxY; y++, y_++) {
-            for (int x = srcMinX, x_ = dstMinX; x < srcMaxX; x++, x_++) {
-                src.getPixel(x, y, pixel);
-                for (int i = 0; i < srcBands; i++) {
-                    bytes[i] = (byte) (pixel[i] & 0xFF);
-                }
-
-                int r, g, b, a;
-
-                if(srcBands == 1 || srcBands == 2) {
-                    r = g = b = pixel[0] & 0xFF;
-                    a = srcBands == 2 ? pixel[1] & 0xFF : 255;
-                } else  {
-                    r = pixel[0] & 0xFF;
-                    g = pixel[1] & 0xFF;
-                    b = pixel[2] & 0xFF;
-                    a = srcBands == 4 ? pixel[3] & 0xFF : 255;
-                }
+        final int srcBands = src.getNumBands();
+        final int width = srcMaxX - srcMinX;
+        if (width <= 0) {
+            return dest;
+        }
 
-                int idx = palette.getClosestIndex(r, g, b, a);
-                dest.setSample(x_, y_, 0, (byte) (idx & 0xff));
-            }
+        // work a row at a time on packed colors, the row buffers and the color cache are
+        // allocated once per tile, nothing is allocated per pixel
+        final int[] pixels = new int[width * srcBands];
+        final int[] colors = new int[width];
+        final int[] indexes = new int[width];
+        final PackedColorIndexer indexer = new PackedColorIndexer(palette);
+        for (int y = srcMinY, y_ = dstMinY; y < srcMaxY; y++, y_++) {
+            src.getPixels(srcMinX, y, width, 1, pixels);
+            PackedColorIndexer.pack(pixels, srcBands, colors, width);
+            indexer.getClosestIndexes(colors, indexes, width);
+            dest.setSamples(dstMinX, y_, width, 1, 0, indexes);
         }
 
         return dest;
@@ -0,0 +1,164 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.quantize;
+
+import static org.geoserver.wms.map.quantize.ColorUtils.*;
+
+import java.awt.image.IndexColorModel;
+
+/**
+ * Wraps around another indexer and maps whole rows of colors, packed as ARGB integers, caching
+ * the palette indexes in a fixed size open addressing table made of primitive arrays. No objects
+ * are allocated while indexing, and runs of the same color skip the table altogether.
+ * <p>
+ * When the few slots probed for a color are all taken by other colors the first one is
+ * overwritten, so the table never grows and keeps the most recently used colors. The indexer is
+ * not thread safe, it is meant to be used by a single thread, for example to index one tile.
+ * </p>
+ */
+public final class PackedColorIndexer implements ColorIndexer {
+
+    /**
+     * Bits of the table size
+     */
+    static final int DEFAULT_BITS = 12;
+
+    /**
+     * Max number of slots probed before overwriting one
+     */
+    static final int MAX_PROBES = 4;
+
+    final ColorIndexer delegate;
+
+    final int shift;
+
+    final int mask;
+
+    /**
+     * The colors in the table
+     */
+    final int[] colors;
+
+    /**
+     * The palette index plus one of each color in the table, 0 for the empty slots
+     */
+    final short[] indexes;
+
+    public PackedColorIndexer(ColorIndexer delegate) {
+        this(delegate, DEFAULT_BITS);
+    }
+
+    PackedColorIndexer(ColorIndexer delegate, int bits) {
+        this.delegate = delegate;
+        this.shift = 32 - bits;
+        this.mask = (1 << bits) - 1;
+        this.colors = new int[1 << bits];
+        this.indexes = new short[1 << bits];
+    }
+
+    public IndexColorModel toIndexColorModel() {
+        return delegate.toIndexColorModel();
+    }
+
+    public int getClosestIndex(int r, int g, int b, int a) {
+        return getClosestIndex(color(r, g, b, a));
+    }
+
+    /**
+     * Returns the palette index of a color packed as an ARGB integer
+     */
+    public int getClosestIndex(final int color) {
+        // fibonacci hashing, spreads the similar colors of gradients and antialiasing
+        final int home = (color * 0x9E3779B9) >>> shift;
+        // the table is crowded around the home slot unless we find an empty one
+        int target = home;
+        int slot = home;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int value = indexes[slot];
+            if (value == 0) {
+                target = slot;
+                break;
+            } else if (colors[slot] == color) {
+                return value - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slot = target;
+        final int idx = delegate.getClosestIndex(red(color), green(color), blue(color),
+                alpha(color)) & 0xFF;
+        colors[slot] = color;
+        indexes[slot] = (short) (idx + 1);
+        return idx;
+    }
+
+    /**
+     * Maps a row of colors packed as ARGB integers to their palette indexes
+     *
+     * @param colors the packed colors
+     * @param indexes the array receiving the palette indexes
+     * @param length the number of colors to map
+     */
+    public void getClosestIndexes(final int[] colors, final int[] indexes, final int length) {
+        if (length == 0) {
+            return;
+        }
+        int lastColor = colors[0];
+        int lastIndex = getClosestIndex(lastColor);
+        indexes[0] = lastIndex;
+        for (int i = 1; i < length; i++) {
+            final int color = colors[i];
+            if (color != lastColor) {
+                lastColor = color;
+                lastIndex = getClosestIndex(color);
+            }
+            indexes[i] = lastIndex;
+        }
+    }
+
+    /**
+     * Packs a row of band interleaved pixels, as returned by
+     * {@link java.awt.image.Raster#getPixels(int, int, int, int, int[])}, into ARGB integers
+     *
+     * @param pixels the band interleaved pixels
+     * @param bands the number of bands, gray, gray alpha, RGB or RGBA
+     * @param colors the array receiving the packed colors
+     * @param length the number of pixels to pack
+     */
+    public static void pack(final int[] pixels, final int bands, final int[] colors,
+            final int length) {
+        switch (bands) {
+        case 1:
+            for (int i = 0; i < length; i++) {
+                final int gray = pixels[i] & 0xFF;
+                colors[i] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+            }
+            break;
+        case 2:
+            for (int i = 0, j = 0; i < length; i++, j += 2) {
+                final int gray = pixels[j] & 0xFF;
+                colors[i] = ((pixels[j + 1] & 0xFF) << 24) | (gray << 16) | (gray << 8) | gray;
+            }
+            break;
+        case 3:
+            for (int i = 0, j = 0; i < length; i++, j += 3) {
+                colors[i] = 0xFF000000 | ((pixels[j] & 0xFF) << 16)
+                        | ((pixels[j + 1] & 0xFF) << 8) | (pixels[j + 2] & 0xFF);
+            }
+            break;
+        case 4:
+            for (int i = 0, j = 0; i < length; i++, j += 4) {
+                colors[i] = ((pixels[j + 3] & 0xFF) << 24) | ((pixels[j] & 0xFF) << 16)
+                        | ((pixels[j + 1] & 0xFF) << 8) | (pixels[j + 2] & 0xFF);
+            }
+            break;
+        default:
+            // extra bands are ignored, the pixels are opaque
+            for (int i = 0, j = 0; i < length; i++, j += bands) {
+                colors[i] = 0xFF000000 | ((pixels[j] & 0xFF) << 16)
+                        | ((pixels[j + 1] & 0xFF) << 8) | (pixels[j + 2] & 0xFF);
+            }
+        }
+    }
+}
@@ -125,14 +125,47 @@ class PackedHistogram {
             }
         }
 
+        buildHistogram();
+        // System.out.println("Histogram stats");
+        // colorMap.printStats();
+    }
+
+    /**
+     * Builds the histogram of a set of exact colors and their counts, packing them as needed
+     */
+    PackedHistogram(ColorMap colors) {
+        colorMap = new ColorMap();
+        this.shift = 0;
+        for (ColorEntry ce : colors) {
+            int color = ce.color;
+            int red = red(color);
+            int green = green(color);
+            int blue = blue(color);
+            int alpha = alpha(color);
+            if (shift > 0) {
+                red = shift(red, shift);
+                green = shift(green, shift);
+                blue = shift(blue, shift);
+                alpha = shift(alpha, shift);
+            }
+            colorMap.increment(red, green, blue, alpha, ce.value);
+
+            if (colorMap.size() > Short.MAX_VALUE) {
+                shift++;
+                shiftColorMap(colorMap);
+            }
+        }
+
+        buildHistogram();
+    }
+
+    private void buildHistogram() {
         // turn it into an array for indexed access and reduced memory consumption
         histogram = new HistogramBin[colorMap.size()];
         int i = 0;
         for (ColorEntry ce : colorMap) {
             histogram[i++] = new HistogramBin(ce.color, ce.value);
         }
-        // System.out.println("Histogram stats");
-        // colorMap.printStats();
     }
 
     private int updateColorMap(RenderedImage image, Raster tile, ColorMap colorMap, int shift,
@@ -70,6 +70,19 @@ public class Quantizer {
             LOGGER.fine("Histogram count " + histogram.pixelCount() + " and pixels "
                     + totalPixelCount);
         }
+        return buildColorIndexer(histogram, totalPixelCount);
+    }
+
+    /**
+     * Builds the color indexer from a histogram accumulated by the caller, e.g. over several
+     * images
+     */
+    public ColorIndexer buildColorIndexer(ColorHistogram histogram) {
+        return buildColorIndexer(new PackedHistogram(histogram.colorMap),
+                histogram.getPixelCount());
+    }
+
+    ColorIndexer buildColorIndexer(PackedHistogram histogram, long totalPixelCount) {
         int colors = Math.min(histogram.size(), maxColors);
 
         // setup the first box, that median cut will split in parts
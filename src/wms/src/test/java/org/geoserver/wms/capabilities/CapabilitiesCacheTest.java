@@ -0,0 +1,149 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.capabilities;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
+import static org.junit.Assert.*;
+
+import java.util.zip.GZIPInputStream;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.WMSTestSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class CapabilitiesCacheTest extends WMSTestSupport {
+
+    static final String CAPS_111 = "wms?service=WMS&request=GetCapabilities&version=1.1.1";
+
+    static final String CAPS_130 = "wms?service=WMS&request=GetCapabilities&version=1.3.0";
+
+    CapabilitiesCache cache;
+
+    @Before
+    public void setUpCache() {
+        cache = GeoServerExtensions.bean(CapabilitiesCache.class);
+        cache.invalidate();
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        MockHttpServletResponse first = getAsServletResponse(CAPS_111);
+        MockHttpServletResponse second = getAsServletResponse(CAPS_111);
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(first.getOutputStreamContent(), second.getOutputStreamContent());
+        assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+        assertNotNull(first.getHeader("ETag"));
+
+        // each version gets its own document
+        getAsServletResponse(CAPS_130);
+        assertEquals(misses + 2, cache.getMisses());
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        String etag = getAsServletResponse(CAPS_111).getHeader("ETag");
+
+        MockHttpServletRequest request = createRequest(CAPS_111);
+        request.addHeader("If-None-Match", etag);
+        MockHttpServletResponse response = dispatch(request);
+        assertEquals(304, response.getErrorCode());
+        assertEquals(etag, response.getHeader("ETag"));
+
+        // an ETag from another version does not match
+        request = createRequest(CAPS_130);
+        request.addHeader("If-None-Match", etag);
+        response = dispatch(request);
+        assertEquals(200, response.getErrorCode());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse(CAPS_111);
+        String etag = response.getHeader("ETag");
+
+        Catalog catalog = getCatalog();
+        FeatureTypeInfo ft = catalog.getFeatureTypeByName(getLayerId(MockData.BASIC_POLYGONS));
+        String title = ft.getTitle();
+        try {
+            ft.setTitle("A cached title");
+            catalog.save(ft);
+            assertEquals(0, cache.getEntryCount());
+
+            response = getAsServletResponse(CAPS_111);
+            assertFalse(etag.equals(response.getHeader("ETag")));
+            Document dom = dom(getBinaryInputStream(response), true);
+            assertXpathEvaluatesTo("A cached title", "//Layer[Name='"
+                    + getLayerId(MockData.BASIC_POLYGONS) + "']/Title", dom);
+
+            // the old ETag is stale
+            MockHttpServletRequest request = createRequest(CAPS_111);
+            request.addHeader("If-None-Match", etag);
+            assertEquals(200, dispatch(request).getErrorCode());
+        } finally {
+            ft = catalog.getFeatureTypeByName(getLayerId(MockData.BASIC_POLYGONS));
+            ft.setTitle(title);
+            catalog.save(ft);
+        }
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        MockHttpServletRequest request = createRequest(CAPS_111);
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        MockHttpServletResponse response = dispatch(request);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        GZIPInputStream in = new GZIPInputStream(getBinaryInputStream(response));
+        Document dom = dom(in, true);
+        assertEquals("WMT_MS_Capabilities", dom.getDocumentElement().getNodeName());
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        int maxEntrySize = cache.getMaxEntrySize();
+        try {
+            cache.setMaxEntrySize(16);
+            long misses = cache.getMisses();
+            long hits = cache.getHits();
+            Document dom = getAsDOM(CAPS_111, true);
+            assertEquals("WMT_MS_Capabilities", dom.getDocumentElement().getNodeName());
+            assertEquals(0, cache.getEntryCount());
+            // encoded once to find out it's too large, then written out using the lease
+            assertEquals(misses + 1, cache.getMisses());
+            assertEquals(hits, cache.getHits());
+
+            // the cache remembers the document is too large, no attempt at caching it again
+            dom = getAsDOM(CAPS_111, true);
+            assertEquals("WMT_MS_Capabilities", dom.getDocumentElement().getNodeName());
+            assertEquals(misses + 1, cache.getMisses());
+            assertEquals(hits + 1, cache.getHits());
+        } finally {
+            cache.setMaxEntrySize(maxEntrySize);
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        try {
+            cache.setEnabled(false);
+            MockHttpServletResponse response = getAsServletResponse(CAPS_111);
+            assertNull(response.getHeader("ETag"));
+            assertEquals(0, cache.getEntryCount());
+        } finally {
+            cache.setEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+
+import org.geoserver.wms.RasterCleaner;
+import org.junit.Test;
+
+public class CanvasPoolTest {
+
+    static final int TILE_BYTES = 256 * 256 * 4;
+
+    @Test
+    public void testReuse() {
+        CanvasPool pool = new CanvasPool(16 * TILE_BYTES);
+        BufferedImage image = pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        assertEquals(1, pool.getAllocated());
+        pool.release(image);
+        assertEquals(TILE_BYTES, pool.getSize());
+
+        // same size class, same image
+        assertSame(image, pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR));
+        assertEquals(1, pool.getReused());
+        assertEquals(TILE_BYTES, pool.getBytesReused());
+        assertEquals(0, pool.getSize());
+
+        // different type or size, new image
+        pool.release(image);
+        BufferedImage other = pool.acquire(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+        assertNotSame(image, other);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, other.getType());
+        other = pool.acquire(512, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        assertNotSame(image, other);
+        assertEquals(512, other.getWidth());
+        assertEquals(3, pool.getAllocated());
+    }
+
+    @Test
+    public void testBoundedSize() {
+        CanvasPool pool = new CanvasPool(4 * TILE_BYTES);
+        BufferedImage[] images = new BufferedImage[6];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        for (int i = 0; i < images.length; i++) {
+            pool.release(images[i]);
+        }
+        assertEquals(4 * TILE_BYTES, pool.getSize());
+        assertEquals(2, pool.getEvicted());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        CanvasPool pool = new CanvasPool(4 * TILE_BYTES);
+        BufferedImage small = pool.acquire(128, 128, BufferedImage.TYPE_4BYTE_ABGR);
+        pool.release(small);
+        BufferedImage[] tiles = new BufferedImage[4];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        for (int i = 0; i < tiles.length; i++) {
+            pool.release(tiles[i]);
+        }
+        // the small image went first
+        assertEquals(4 * TILE_BYTES, pool.getSize());
+        assertNotSame(small, pool.acquire(128, 128, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void testLargeImagesNotPooled() {
+        CanvasPool pool = new CanvasPool(4 * TILE_BYTES);
+        BufferedImage image = pool.acquire(1024, 1024, BufferedImage.TYPE_4BYTE_ABGR);
+        pool.release(image);
+        assertEquals(0, pool.getSize());
+        assertNotSame(image, pool.acquire(1024, 1024, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void testDisabled() {
+        CanvasPool pool = new CanvasPool(0);
+        BufferedImage image = pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        pool.release(image);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void testReleasedByMapDispose() {
+        CanvasPool pool = CanvasPool.get();
+        pool.clear();
+        BufferedImage image = pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        RenderedImageMap map = new RenderedImageMap(null, image, "image/png");
+        map.setCanvas(image);
+
+        // the map can be encoded after the request ends
+        new RasterCleaner().finished(null);
+        assertEquals(0, pool.getSize());
+
+        map.dispose();
+        assertEquals(TILE_BYTES, pool.getSize());
+        assertSame(image, pool.acquire(256, 256, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+}
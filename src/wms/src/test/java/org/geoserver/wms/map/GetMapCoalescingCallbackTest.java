@@ -0,0 +1,255 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geoserver.ows.DirectInvocationService;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Response;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WebMap;
+import org.geotools.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class GetMapCoalescingCallbackTest {
+
+    static final byte[] MAP = new byte[] { 1, 2, 3, 4 };
+
+    GetMapCoalescingCallback callback;
+
+    Operation operation;
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        callback = new GetMapCoalescingCallback();
+        callback.setEnabled(true);
+        callback.setMaxWait(10000);
+        Service service = new Service("wms", new Object(), new Version("1.1.1"),
+                Arrays.asList("GetMap"));
+        operation = new Operation("GetMap", service, Object.class.getMethod("toString"),
+                new Object[] { new GetMapRequest() });
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        // the leader
+        Request leader = request("topp:states", "image/png");
+        assertSame(operation, callback.operationDispatched(leader, operation));
+
+        // an identical request, with parameters in a different order and case, waits
+        Future<Operation> follower = executor.submit(new Callable<Operation>() {
+            public Operation call() throws Exception {
+                Request r = request("topp:states", "image/png");
+                Object format = r.getRawKvp().remove("FORMAT");
+                r.getRawKvp().put("format", format);
+                return callback.operationDispatched(r, operation);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(follower.isDone());
+
+        // the leader writes out its response
+        WebMap map = new RawMap(null, MAP, "image/png");
+        Response response = callback.responseDispatched(leader, operation, map, new TestResponse());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.write(map, out, operation);
+        callback.finished(leader);
+        assertArrayEquals(MAP, out.toByteArray());
+
+        // the follower gets the same bytes without executing the operation
+        Operation op = follower.get();
+        assertNotSame(operation, op);
+        Object result = ((DirectInvocationService) op.getService().getService()).invokeDirect(
+                "GetMap", op.getParameters());
+        Response shared = callback.responseDispatched(leader, op, result, null);
+        assertEquals("image/png", shared.getMimeType(result, op));
+        out = new ByteArrayOutputStream();
+        shared.write(result, out, op);
+        assertArrayEquals(MAP, out.toByteArray());
+
+        assertEquals(1, callback.getRendered());
+        assertEquals(1, callback.getCoalesced());
+        assertTrue(callback.flights.isEmpty());
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        callback = new GetMapCoalescingCallback();
+        assertFalse(callback.isEnabled());
+        assertSame(operation, callback.operationDispatched(request("topp:states", "image/png"),
+                operation));
+        assertTrue(callback.flights.isEmpty());
+        assertEquals(0, callback.getRendered());
+    }
+
+    @Test
+    public void testNoFollowers() throws Exception {
+        Request leader = request("topp:states", "image/png");
+        callback.operationDispatched(leader, operation);
+
+        // nobody waiting, the response is not captured and the flight is over
+        WebMap map = new RawMap(null, MAP, "image/png");
+        Response delegate = new TestResponse();
+        assertSame(delegate, callback.responseDispatched(leader, operation, map, delegate));
+        assertTrue(callback.flights.isEmpty());
+
+        // so an identical request arriving while the response is written out leads its own
+        assertSame(operation, callback.operationDispatched(request("topp:states", "image/png"),
+                operation));
+        assertEquals(2, callback.getRendered());
+        callback.finished(leader);
+    }
+
+    @Test
+    public void testDifferentRequests() throws Exception {
+        assertSame(operation, callback.operationDispatched(request("topp:states", "image/png"),
+                operation));
+        assertSame(operation, callback.operationDispatched(request("topp:states", "image/gif"),
+                operation));
+        assertEquals(2, callback.getRendered());
+        assertEquals(0, callback.getCoalesced());
+    }
+
+    @Test
+    public void testDifferentBaseURL() throws Exception {
+        Request local = request("topp:states", "application/vnd.google-earth.kml+xml");
+        local.setHttpRequest(httpRequest("localhost"));
+        Request proxied = request("topp:states", "application/vnd.google-earth.kml+xml");
+        proxied.setHttpRequest(httpRequest("www.example.com"));
+
+        assertFalse(callback.getKey(local).equals(callback.getKey(proxied)));
+        assertSame(operation, callback.operationDispatched(local, operation));
+        assertSame(operation, callback.operationDispatched(proxied, operation));
+        assertEquals(2, callback.getRendered());
+        assertEquals(0, callback.getCoalesced());
+    }
+
+    @Test
+    public void testLeaderFailure() throws Exception {
+        final Request leader = request("topp:states", "image/png");
+        callback.operationDispatched(leader, operation);
+
+        Future<Operation> follower = executor.submit(new Callable<Operation>() {
+            public Operation call() throws Exception {
+                return callback.operationDispatched(request("topp:states", "image/png"),
+                        operation);
+            }
+        });
+        Thread.sleep(100);
+
+        // the leader fails before writing anything, the follower renders on its own
+        callback.finished(leader);
+        assertSame(operation, follower.get());
+        assertEquals(1, callback.getFallbacks());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        callback.setMaxWait(50);
+        callback.operationDispatched(request("topp:states", "image/png"), operation);
+
+        Future<Operation> follower = executor.submit(new Callable<Operation>() {
+            public Operation call() throws Exception {
+                return callback.operationDispatched(request("topp:states", "image/png"),
+                        operation);
+            }
+        });
+        assertSame(operation, follower.get());
+        assertEquals(1, callback.getTimeouts());
+    }
+
+    @Test
+    public void testResponseTooLarge() throws Exception {
+        callback.setMaxBufferSize(2);
+        Request leader = request("topp:states", "image/png");
+        callback.operationDispatched(leader, operation);
+
+        Future<Operation> follower = executor.submit(new Callable<Operation>() {
+            public Operation call() throws Exception {
+                return callback.operationDispatched(request("topp:states", "image/png"),
+                        operation);
+            }
+        });
+        Thread.sleep(100);
+
+        WebMap map = new RawMap(null, MAP, "image/png");
+        Response response = callback.responseDispatched(leader, operation, map, new TestResponse());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.write(map, out, operation);
+
+        // the response still got out in full, but is not shared
+        assertArrayEquals(MAP, out.toByteArray());
+        assertTrue(callback.flights.isEmpty());
+        callback.finished(leader);
+        assertSame(operation, follower.get());
+        assertEquals(1, callback.getFallbacks());
+    }
+
+    Request request(String layers, String format) {
+        Request request = new Request();
+        request.setGet(true);
+        request.setPath("wms");
+        KvpMap kvp = new KvpMap();
+        kvp.put("SERVICE", "WMS");
+        kvp.put("REQUEST", "GetMap");
+        kvp.put("LAYERS", layers);
+        kvp.put("FORMAT", format);
+        kvp.put("BBOX", "-180,-90,180,90");
+        request.setRawKvp(kvp);
+        return request;
+    }
+
+    MockHttpServletRequest httpRequest(String host) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setScheme("http");
+        request.setServerName(host);
+        request.setServerPort(8080);
+        request.setContextPath("/geoserver");
+        return request;
+    }
+
+    static class TestResponse extends Response {
+        TestResponse() {
+            super(WebMap.class);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return "image/png";
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            ((RawMap) value).writeTo(output);
+        }
+    }
+}
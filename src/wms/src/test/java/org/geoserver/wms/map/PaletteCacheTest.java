@@ -0,0 +1,210 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.quantize.ColorIndexer;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PaletteCacheTest {
+
+    PaletteCache cache;
+
+    WMSMapContent mapContent;
+
+    @Before
+    public void setUp() {
+        cache = new PaletteCache(10);
+        mapContent = new WMSMapContent();
+        mapContent.setRequest(new GetMapRequest());
+        mapContent.setMapWidth(256);
+        mapContent.setMapHeight(256);
+        mapContent.getViewport().setBounds(
+                new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84));
+    }
+
+    @After
+    public void tearDown() {
+        mapContent.dispose();
+    }
+
+    BufferedImage createImage(Color... colors) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        int height = image.getHeight() / colors.length;
+        for (int i = 0; i < colors.length; i++) {
+            graphics.setColor(colors[i]);
+            graphics.fillRect(0, i * height, image.getWidth(), height);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    @Test
+    public void testReuse() {
+        BufferedImage image = createImage(Color.RED, Color.GREEN, Color.BLUE, Color.WHITE);
+        IndexColorModel icm = cache.getColorIndexer(mapContent, image).toIndexColorModel();
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSize());
+
+        // a similar image uses the same palette
+        image = createImage(Color.BLUE, Color.WHITE, Color.RED);
+        ColorIndexer indexer = cache.getColorIndexer(mapContent, image);
+        assertEquals(1, cache.getHits());
+        assertSame(icm, indexer.toIndexColorModel());
+        int idx = indexer.getClosestIndex(0, 0, 255, 255);
+        assertEquals(Color.BLUE.getRGB(), icm.getRGB(idx));
+
+        // and its samples are learned
+        int samples = (256 / PaletteCache.SAMPLE_STEP) * (256 / PaletteCache.SAMPLE_STEP);
+        assertEquals(256 * 256 + samples, cache.palettes.values().iterator().next().histogram
+                .getPixelCount());
+    }
+
+    @Test
+    public void testDrift() {
+        BufferedImage image = createImage(Color.RED, Color.GREEN);
+        IndexColorModel icm = cache.getColorIndexer(mapContent, image).toIndexColorModel();
+
+        // colors far from the cached palette
+        image = createImage(Color.YELLOW, Color.CYAN, Color.MAGENTA);
+        IndexColorModel refreshed = cache.getColorIndexer(mapContent, image).toIndexColorModel();
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(0, cache.getHits());
+        assertNotSame(icm, refreshed);
+        assertEquals(1, cache.getSize());
+
+        // the new palette is the cached one now
+        assertSame(refreshed, cache.getColorIndexer(mapContent, image).toIndexColorModel());
+        assertEquals(1, cache.getHits());
+
+        // and it still has the old colors
+        assertHasColor(refreshed, Color.RED);
+        assertHasColor(refreshed, Color.GREEN);
+    }
+
+    void assertHasColor(IndexColorModel icm, Color color) {
+        for (int i = 0; i < icm.getMapSize(); i++) {
+            if (icm.getRGB(i) == color.getRGB()) {
+                return;
+            }
+        }
+        fail("Palette does not contain " + color);
+    }
+
+    @Test
+    public void testSmallFeatureDrift() {
+        BufferedImage image = createImage(Color.RED, Color.GREEN);
+        cache.getColorIndexer(mapContent, image);
+
+        // a tiny feature, caught by a single sample
+        image = createImage(Color.RED, Color.GREEN);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(8, 8, 2, 2);
+        graphics.dispose();
+        IndexColorModel icm = cache.getColorIndexer(mapContent, image).toIndexColorModel();
+        assertEquals(1, cache.getRefreshes());
+        assertHasColor(icm, Color.BLUE);
+    }
+
+    @Test
+    public void testAlternating() {
+        BufferedImage image1 = createImage(Color.RED, Color.GREEN);
+        BufferedImage image2 = createImage(Color.YELLOW, Color.CYAN);
+        cache.getColorIndexer(mapContent, image1);
+        cache.getColorIndexer(mapContent, image2);
+        assertEquals(1, cache.getRefreshes());
+
+        // the palette learned both, no more rebuilds
+        for (int i = 0; i < 3; i++) {
+            cache.getColorIndexer(mapContent, image1);
+            cache.getColorIndexer(mapContent, image2);
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(6, cache.getHits());
+    }
+
+    @Test
+    public void testUnstable() {
+        // keeps on drifting
+        int[] levels = new int[] { 0, 128, 255 };
+        int images = 0;
+        for (int r : levels) {
+            for (int g : levels) {
+                for (int b : levels) {
+                    if (images++ < PaletteCache.MAX_REFRESHES + 2) {
+                        cache.getColorIndexer(mapContent, createImage(new Color(r, g, b)));
+                    }
+                }
+            }
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(PaletteCache.MAX_REFRESHES + 1, cache.getRefreshes());
+
+        // not cached any longer
+        cache.getColorIndexer(mapContent, createImage(Color.BLACK));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testScaleRange() {
+        BufferedImage image = createImage(Color.RED, Color.GREEN);
+        cache.getColorIndexer(mapContent, image);
+
+        // slightly different scale, same range
+        mapContent.getViewport().setBounds(
+                new ReferencedEnvelope(0, 9, 0, 9, DefaultGeographicCRS.WGS84));
+        cache.getColorIndexer(mapContent, image);
+        assertEquals(1, cache.getHits());
+
+        // next zoom level
+        mapContent.getViewport().setBounds(
+                new ReferencedEnvelope(0, 5, 0, 5, DefaultGeographicCRS.WGS84));
+        cache.getColorIndexer(mapContent, image);
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testSldNotCached() {
+        mapContent.getRequest().setSldBody("<StyledLayerDescriptor/>");
+        BufferedImage image = createImage(Color.RED, Color.GREEN);
+        cache.getColorIndexer(mapContent, image);
+        cache.getColorIndexer(mapContent, image);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertEquals(0, PaletteCache.getConfiguredSize());
+    }
+
+    @Test
+    public void testDisabled() {
+        cache = new PaletteCache(0);
+        BufferedImage image = createImage(Color.RED, Color.GREEN);
+        cache.getColorIndexer(mapContent, image);
+        cache.getColorIndexer(mapContent, image);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getHits());
+    }
+}
@@ -0,0 +1,174 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.renderer.RenderListener;
+import org.geotools.renderer.lite.RendererUtilities;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.SLD;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.io.WKTReader;
+
+public class ParallelLayerRendererTest {
+
+    static final ReferencedEnvelope BOUNDS = new ReferencedEnvelope(0, 10, 0, 10,
+            DefaultGeographicCRS.WGS84);
+
+    ExecutorService executor;
+
+    MemoryDataStore red;
+
+    MemoryDataStore green;
+
+    MemoryDataStore blue;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        red = createStore("red", "POLYGON((1 1, 6 1, 6 6, 1 6, 1 1))");
+        green = createStore("green", "POLYGON((3 3, 8 3, 8 8, 3 8, 3 3))");
+        blue = createStore("blue", "POLYGON((5 0, 9 0, 9 4, 5 4, 5 0))");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    MemoryDataStore createStore(String name, String wkt) throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(name, "geom:Polygon:srid=4326");
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder(type);
+        fb.add(new WKTReader().read(wkt));
+        MemoryDataStore store = new MemoryDataStore();
+        store.addFeature(fb.buildFeature(null));
+        return store;
+    }
+
+    Layer createLayer(MemoryDataStore store, Color color) throws Exception {
+        String typeName = store.getTypeNames()[0];
+        return new FeatureLayer(store.getFeatureSource(typeName), SLD.createPolygonStyle(color,
+                color, 1));
+    }
+
+    @Test
+    public void testLayerGroups() throws Exception {
+        Layer r1 = createLayer(red, Color.RED);
+        Layer r2 = createLayer(red, Color.RED);
+        Layer g = createLayer(green, Color.GREEN);
+        Layer r3 = createLayer(red, Color.RED);
+        List<List<Layer>> groups = ParallelLayerRenderer.getLayerGroups(Arrays.asList(r1, r2, g,
+                r3));
+        assertEquals(3, groups.size());
+        assertEquals(Arrays.asList(r1, r2), groups.get(0));
+        assertEquals(Arrays.asList(g), groups.get(1));
+        assertEquals(Arrays.asList(r3), groups.get(2));
+
+        assertFalse(ParallelLayerRenderer.hasMultipleGroups(Arrays.asList(r1, r2)));
+        assertTrue(ParallelLayerRenderer.hasMultipleGroups(Arrays.asList(r1, g)));
+    }
+
+    @Test
+    public void testSameAsSerial() throws Exception {
+        MapContent content = new MapContent();
+        try {
+            content.addLayer(createLayer(red, Color.RED));
+            content.addLayer(createLayer(green, Color.GREEN));
+            content.addLayer(createLayer(blue, Color.BLUE));
+            content.getViewport().setBounds(BOUNDS);
+
+            BufferedImage serial = render(new StreamingRenderer(), content);
+            BufferedImage parallel = render(new ParallelLayerRenderer(2, executor), content);
+            for (int x = 0; x < serial.getWidth(); x++) {
+                for (int y = 0; y < serial.getHeight(); y++) {
+                    assertEquals("Pixel " + x + "," + y + " differs", serial.getRGB(x, y),
+                            parallel.getRGB(x, y));
+                }
+            }
+            // the layers are still there
+            assertEquals(3, content.layers().size());
+            // the last layer goes on top
+            assertEquals(Color.BLUE.getRGB(), parallel.getRGB(70, 70));
+        } finally {
+            content.dispose();
+        }
+    }
+
+    @Test
+    public void testStopReleasesBuffers() throws Exception {
+        CanvasPool pool = CanvasPool.get();
+        pool.clear();
+        long acquired = pool.getAllocated() + pool.getReused();
+        MapContent content = new MapContent();
+        try {
+            content.addLayer(createLayer(red, Color.RED));
+            content.addLayer(createLayer(green, Color.GREEN));
+            content.addLayer(createLayer(blue, Color.BLUE));
+            content.getViewport().setBounds(BOUNDS);
+
+            // stop as soon as the first group painted its feature, while the others are in the
+            // queue or rendering
+            final ParallelLayerRenderer renderer = new ParallelLayerRenderer(3, executor);
+            renderer.addRenderListener(new RenderListener() {
+
+                public void featureRenderer(SimpleFeature feature) {
+                    renderer.stopRendering();
+                }
+
+                public void errorOccurred(Exception e) {
+                }
+            });
+            render(renderer, content);
+        } finally {
+            content.dispose();
+        }
+
+        // all the buffers the groups took are back in the pool
+        acquired = pool.getAllocated() + pool.getReused() - acquired;
+        assertEquals(acquired * 100 * 100 * 4, pool.getSize());
+    }
+
+    BufferedImage render(StreamingRenderer renderer, MapContent content) {
+        Rectangle paintArea = new Rectangle(0, 0, 100, 100);
+        BufferedImage image = new BufferedImage(paintArea.width, paintArea.height,
+                BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            renderer.setMapContent(content);
+            // no antialiasing, so that the compositing does not alter the edges
+            renderer.setJava2DHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF));
+            renderer.paint(graphics, paintArea, BOUNDS,
+                    RendererUtilities.worldToScreenTransform(BOUNDS, paintArea));
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
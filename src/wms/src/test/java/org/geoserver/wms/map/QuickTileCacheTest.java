@@ -8,7 +8,15 @@ import static org.junit.Assert.*;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
-
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geoserver.catalog.event.impl.CatalogModifyEventImpl;
+import org.geoserver.catalog.impl.StyleInfoImpl;
+import org.geoserver.wms.map.QuickTileCache.MapKey;
+import org.geoserver.wms.map.QuickTileCache.MetaTileKey;
 import org.junit.Test;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -57,4 +65,64 @@ public class QuickTileCacheTest {
         tc = cache.getTileCoordinates(env, origin);
         assertEquals(new Point(-1, -1), tc);
     }
+
+    @Test
+    public void testEviction() {
+        // one 10x10 RGBA meta-tile weighs 400 bytes
+        cache.setMaxSize(1000);
+        MetaTileKey k1 = key("a", 0), k2 = key("a", 3), k3 = key("a", 6);
+        cache.storeTiles(k1, tiles());
+        cache.storeTiles(k2, tiles());
+        assertEquals(800, cache.getSize());
+
+        // touch the first, the second is the one evicted
+        assertNotNull(cache.getTiles(k1));
+        cache.storeTiles(k3, tiles());
+        assertEquals(2, cache.getCount());
+        assertEquals(800, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.getTiles(k1));
+        assertNull(cache.getTiles(k2));
+        assertNotNull(cache.getTiles(k3));
+    }
+
+    @Test
+    public void testInvalidate() {
+        MetaTileKey k1 = key("a", 0), k2 = key("b", 0);
+        k1.dependencies = Collections.singleton("layer1");
+        k2.dependencies = Collections.singleton("layer2");
+        cache.storeTiles(k1, tiles());
+        cache.storeTiles(k2, tiles());
+
+        cache.invalidate("layer1");
+        assertNull(cache.getTiles(k1));
+        assertNotNull(cache.getTiles(k2));
+        assertEquals(400, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateRenamedStyle() {
+        MetaTileKey k1 = key("a", 0);
+        k1.dependencies = Collections.singleton(QuickTileCache.styleName("old"));
+        cache.storeTiles(k1, tiles());
+
+        StyleInfoImpl style = new StyleInfoImpl(null);
+        style.setName("new");
+        CatalogModifyEventImpl event = new CatalogModifyEventImpl();
+        event.setSource(style);
+        event.setPropertyNames(Arrays.asList("name"));
+        event.setOldValues(Arrays.asList("old"));
+        event.setNewValues(Arrays.asList("new"));
+        cache.handleModifyEvent(event);
+        assertNull(cache.getTiles(k1));
+    }
+
+    MetaTileKey key(String map, int x) {
+        MapKey mapKey = new MapKey(map, 1, new Point2D.Double(0, 0));
+        return new MetaTileKey(mapKey, new Point(x, 0), null);
+    }
+
+    RenderedImage[] tiles() {
+        return new RenderedImage[] { new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB) };
+    }
 }
@@ -0,0 +1,85 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+
+import org.geoserver.ows.TimeoutScheduler;
+import org.geotools.renderer.lite.StreamingRenderer;
+
+/**
+ * Measures the overhead the rendering timeout enforcement adds to each GetMap, comparing a
+ * {@link Timer} per request, as {@link RenderingTimeoutEnforcer} used to do, with the shared
+ * {@link TimeoutScheduler}, with several threads starting and stopping enforcers concurrently.
+ * <p>
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp ... org.geoserver.wms.map.RenderingTimeoutEnforcerBenchmark [threads] [requests]
+ * </pre>
+ */
+public class RenderingTimeoutEnforcerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            run(threads, requests, false);
+            run(threads, requests, true);
+        }
+        System.out.println("Timeouts still queued: " + TimeoutScheduler.get().getQueueSize());
+    }
+
+    static void run(int threads, final int requests, final boolean shared) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    StreamingRenderer renderer = new StreamingRenderer();
+                    Graphics2D graphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB)
+                            .createGraphics();
+                    try {
+                        start.await();
+                        for (int j = 0; j < requests; j++) {
+                            if (shared) {
+                                RenderingTimeoutEnforcer enforcer = new RenderingTimeoutEnforcer(
+                                        60000, renderer, graphics);
+                                enforcer.start();
+                                enforcer.stop();
+                            } else {
+                                Timer timer = new Timer();
+                                timer.schedule(new TimerTask() {
+                                    public void run() {
+                                    }
+                                }, 60000);
+                                timer.cancel();
+                                timer.purge();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // just exit
+                    } finally {
+                        graphics.dispose();
+                        end.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long time = System.nanoTime();
+        start.countDown();
+        end.await();
+        time = System.nanoTime() - time;
+        int total = threads * requests;
+        System.out.println(String.format("%-16s %8.2f us/request %10.0f requests/s",
+                shared ? "TimeoutScheduler" : "Timer", time / 1e3 / total, total / (time / 1e9)));
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.quantize;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+/**
+ * Measures the time taken to turn a RGBA map into a paletted one, comparing the pixel by pixel
+ * indexing {@link ColorIndexerOpImage} used to do with the row based one using
+ * {@link PackedColorIndexer}, for opaque, bitmask and translucent palettes, with both the
+ * indexer built by the {@link Quantizer} and the one used for user provided palettes.
+ * <p>
+ * Not a unit test, run it with:
+ * <pre>
+ * java -cp ... org.geoserver.wms.map.quantize.ColorIndexerBenchmark [size] [iterations]
+ * </pre>
+ */
+public class ColorIndexerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 768;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        String[] names = new String[] { "opaque", "bitmask", "translucent" };
+        BufferedImage[] images = new BufferedImage[] {
+                createMap(size, BufferedImage.TYPE_3BYTE_BGR, true, false),
+                createMap(size, BufferedImage.TYPE_4BYTE_ABGR, false, false),
+                createMap(size, BufferedImage.TYPE_4BYTE_ABGR, true, true) };
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            System.out.println(round == 0 ? "Warm up" : "Measured");
+            for (int i = 0; i < images.length; i++) {
+                BufferedImage image = images[i];
+                ColorIndexer quantized = new Quantizer(256).buildColorIndexer(image);
+                IndexColorModel icm = quantized.toIndexColorModel();
+                run(names[i], "quantizer", image, quantized, null, iterations);
+                run(names[i], "lru", image, null, icm, iterations);
+            }
+        }
+    }
+
+    /**
+     * Paints a map like image, with filled polygons and antialiased lines
+     */
+    static BufferedImage createMap(int size, int type, boolean antialias, boolean translucent) {
+        BufferedImage image = new BufferedImage(size, size, type);
+        Graphics2D graphics = image.createGraphics();
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, size, size);
+        }
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                antialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        Random random = new Random(0);
+        int alpha = translucent ? 128 : 255;
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), alpha));
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            graphics.fillOval(x, y, random.nextInt(size / 4) + 1, random.nextInt(size / 4) + 1);
+        }
+        graphics.setStroke(new BasicStroke(3));
+        for (int i = 0; i < 300; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), alpha));
+            graphics.drawLine(random.nextInt(size), random.nextInt(size), random.nextInt(size),
+                    random.nextInt(size));
+        }
+        if (translucent) {
+            graphics.setPaint(new GradientPaint(0, 0, new Color(255, 0, 0, 0), size, size,
+                    new Color(0, 0, 255, 200)));
+            graphics.fillRect(0, size / 2, size, size / 8);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    static void run(String name, String indexerName, BufferedImage image,
+            ColorIndexer quantized, IndexColorModel icm, int iterations) {
+        long perPixel = 0;
+        long packed = 0;
+        for (int i = 0; i < iterations; i++) {
+            // user palette indexers are built for each request, and keep state
+            ColorIndexer indexer = quantized != null ? quantized : new CachingColorIndexer(
+                    new LRUColorIndexer(icm, 1024));
+            long start = System.nanoTime();
+            indexPerPixel(image, indexer);
+            perPixel += System.nanoTime() - start;
+
+            indexer = quantized != null ? quantized : new CachingColorIndexer(
+                    new LRUColorIndexer(icm, 1024));
+            start = System.nanoTime();
+            new ColorIndexerOpImage(image, indexer, null).computeTile(0, 0);
+            packed += System.nanoTime() - start;
+        }
+        double pixels = (double) image.getWidth() * image.getHeight() * iterations;
+        System.out.println(String.format("%-12s %-10s per pixel %7.2f ns/pixel, "
+                + "packed rows %7.2f ns/pixel", name, indexerName, perPixel / pixels, packed
+                / pixels));
+    }
+
+    /**
+     * The pixel by pixel indexing {@link ColorIndexerOpImage} used to do
+     */
+    static Raster indexPerPixel(BufferedImage image, ColorIndexer indexer) {
+        Raster src = image.getRaster();
+        IndexColorModel icm = indexer.toIndexColorModel();
+        WritableRaster dest = icm.createCompatibleWritableRaster(src.getWidth(), src.getHeight());
+        int bands = src.getNumBands();
+        int[] pixel = new int[bands];
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                src.getPixel(x, y, pixel);
+                int a = bands == 4 ? pixel[3] : 255;
+                int idx = indexer.getClosestIndex(pixel[0], pixel[1], pixel[2], a);
+                dest.setSample(x, y, 0, (byte) (idx & 0xff));
+            }
+        }
+        return dest;
+    }
+}
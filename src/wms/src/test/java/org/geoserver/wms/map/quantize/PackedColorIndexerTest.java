@@ -0,0 +1,109 @@
+/* Copyright (c) 2001 - 2012 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.quantize;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PackedColorIndexerTest {
+
+    static {
+        ColorIndexerDescriptor.register();
+    }
+
+    byte[][] randomPalette(Random random, int size) {
+        byte[][] colors = new byte[4][size];
+        for (int i = 0; i < 4; i++) {
+            random.nextBytes(colors[i]);
+        }
+        return colors;
+    }
+
+    @Test
+    public void testSameAsDelegate() {
+        Random random = new Random(0);
+        ColorIndexer delegate = new SimpleColorIndexer(randomPalette(random, 256));
+        // a tiny table, lots of collisions and evictions
+        PackedColorIndexer indexer = new PackedColorIndexer(delegate, 4);
+        int[] colors = new int[1000];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(64) * 0x01030507;
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int color : colors) {
+                int expected = delegate.getClosestIndex(ColorUtils.red(color),
+                        ColorUtils.green(color), ColorUtils.blue(color), ColorUtils.alpha(color));
+                assertEquals(expected, indexer.getClosestIndex(color));
+            }
+        }
+    }
+
+    @Test
+    public void testRows() {
+        Random random = new Random(1);
+        ColorIndexer delegate = new SimpleColorIndexer(randomPalette(random, 16));
+        PackedColorIndexer indexer = new PackedColorIndexer(delegate);
+        int[] colors = new int[] { 0, 0, 0xFFFF0000, 0xFFFF0000, 0x800000FF, 0, 0x800000FF };
+        int[] indexes = new int[colors.length + 1];
+        indexes[colors.length] = -1;
+        indexer.getClosestIndexes(colors, indexes, colors.length);
+        for (int i = 0; i < colors.length; i++) {
+            assertEquals(indexer.getClosestIndex(colors[i]), indexes[i]);
+        }
+        // only the requested length is written
+        assertEquals(-1, indexes[colors.length]);
+    }
+
+    @Test
+    public void testPack() {
+        int[] colors = new int[2];
+        PackedColorIndexer.pack(new int[] { 10, 200 }, 1, colors, 2);
+        assertArrayEquals(new int[] { 0xFF0A0A0A, 0xFFC8C8C8 }, colors);
+
+        PackedColorIndexer.pack(new int[] { 10, 0, 200, 128 }, 2, colors, 2);
+        assertArrayEquals(new int[] { 0x000A0A0A, 0x80C8C8C8 }, colors);
+
+        PackedColorIndexer.pack(new int[] { 1, 2, 3, 4, 5, 6 }, 3, colors, 2);
+        assertArrayEquals(new int[] { 0xFF010203, 0xFF040506 }, colors);
+
+        PackedColorIndexer.pack(new int[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 4, colors, 2);
+        assertArrayEquals(new int[] { 0x04010203, 0x08050607 }, colors);
+    }
+
+    @Test
+    public void testOpImage() {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, new Color(255, 0, 0, 50), 300, 200, new Color(
+                0, 0, 255, 255)));
+        graphics.fillOval(10, 10, 280, 180);
+        graphics.dispose();
+
+        ColorIndexer indexer = new Quantizer(256).buildColorIndexer(image);
+        RenderedImage indexed = ColorIndexerDescriptor.create(image, indexer, null);
+        Raster source = image.getRaster();
+        Raster result = indexed.getData();
+        int[] pixel = new int[4];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                source.getPixel(x, y, pixel);
+                int expected = indexer.getClosestIndex(pixel[0], pixel[1], pixel[2], pixel[3]);
+                assertEquals(expected, result.getSample(x, y, 0));
+            }
+        }
+    }
+}